@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ * epoll and eventfd access used by EventLoop.
+ */
+#include <jni.h>
+#include <errno.h>
+#include <stdint.h>
+#include <unistd.h>
+#include <sys/epoll.h>
+#include <sys/eventfd.h>
+
+#include "packetio.h"
+
+#define LOOP_CLASS(name) Java_de_uniluebeck_itm_spitfire_gatewayconnectionmapper_EventLoop_##name
+
+#define MAX_EVENTS 64
+
+JNIEXPORT jint JNICALL LOOP_CLASS(epollCreate)(JNIEnv *env, jclass clazz) {
+    int fd = epoll_create1(EPOLL_CLOEXEC);
+
+    if (fd < 0) {
+        throw_io_exception(env, "epoll_create1", errno);
+    }
+    return fd;
+}
+
+JNIEXPORT void JNICALL LOOP_CLASS(epollAdd)(JNIEnv *env, jclass clazz, jint epollFd, jint fd, jint token) {
+    struct epoll_event event;
+
+    /* level triggered: a source which was not drained completely is
+     * reported again by the next epoll_wait */
+    event.events = EPOLLIN;
+    event.data.u64 = 0;
+    event.data.u32 = (uint32_t) token;
+    if (epoll_ctl(epollFd, EPOLL_CTL_ADD, fd, &event) < 0) {
+        throw_io_exception(env, "epoll_ctl", errno);
+    }
+}
+
+JNIEXPORT jint JNICALL LOOP_CLASS(epollWait)(JNIEnv *env, jclass clazz, jint epollFd, jintArray tokens,
+        jint timeout) {
+    struct epoll_event events[MAX_EVENTS];
+    jint result[MAX_EVENTS];
+    int max = (*env)->GetArrayLength(env, tokens);
+    int count;
+    int i;
+
+    if (max > MAX_EVENTS) {
+        max = MAX_EVENTS;
+    }
+    count = epoll_wait(epollFd, events, max, timeout);
+    if (count < 0) {
+        if (errno == EINTR) {
+            return 0;
+        }
+        throw_io_exception(env, "epoll_wait", errno);
+        return 0;
+    }
+    for (i = 0; i < count; i++) {
+        result[i] = (jint) events[i].data.u32;
+    }
+    (*env)->SetIntArrayRegion(env, tokens, 0, count, result);
+    return count;
+}
+
+JNIEXPORT jint JNICALL LOOP_CLASS(eventfdCreate)(JNIEnv *env, jclass clazz) {
+    int fd = eventfd(0, EFD_NONBLOCK | EFD_CLOEXEC);
+
+    if (fd < 0) {
+        throw_io_exception(env, "eventfd", errno);
+    }
+    return fd;
+}
+
+JNIEXPORT void JNICALL LOOP_CLASS(eventfdSignal)(JNIEnv *env, jclass clazz, jint fd) {
+    uint64_t value = 1;
+
+    if (write(fd, &value, sizeof(value)) < 0) {
+        /* counter overflow (EAGAIN) means the loop is woken up anyway */
+    }
+}
+
+JNIEXPORT void JNICALL LOOP_CLASS(eventfdClear)(JNIEnv *env, jclass clazz, jint fd) {
+    uint64_t value;
+
+    if (read(fd, &value, sizeof(value)) < 0) {
+        /* EAGAIN: already cleared */
+    }
+}
+
+JNIEXPORT void JNICALL LOOP_CLASS(closeFd)(JNIEnv *env, jclass clazz, jint fd) {
+    close(fd);
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ * AF_PACKET TPACKET_V3 RX ring used by PacketRingIF.
+ * The ring is mapped into the JVM as a direct ByteBuffer, frames are parsed
+ * in Java. Only waiting for and releasing blocks happens here.
+ */
+#include <jni.h>
+#include <errno.h>
+#include <poll.h>
+#include <stdint.h>
+#include <stdlib.h>
+#include <string.h>
+#include <unistd.h>
+#include <arpa/inet.h>
+#include <linux/filter.h>
+#include <linux/if_ether.h>
+#include <linux/if_packet.h>
+#include <net/if.h>
+#include <sys/mman.h>
+#include <sys/socket.h>
+
+#include "packetio.h"
+
+#define RING_CLASS(name) Java_de_uniluebeck_itm_spitfire_gatewayconnectionmapper_connectioninterfaces_PacketRingIF_##name
+
+struct ring {
+    int fd;
+    uint8_t *map;
+    size_t size;
+    unsigned int block_size;
+    unsigned int block_count;
+};
+
+static struct tpacket_block_desc *ring_block(struct ring *ring, jint block) {
+    return (struct tpacket_block_desc *) (ring->map + (size_t) block * ring->block_size);
+}
+
+static int block_ready(struct tpacket_block_desc *desc) {
+    return __atomic_load_n(&desc->hdr.bh1.block_status, __ATOMIC_ACQUIRE) & TP_STATUS_USER;
+}
+
+JNIEXPORT jlong JNICALL RING_CLASS(ringOpen)(JNIEnv *env, jclass clazz, jstring ifName,
+        jint blockSize, jint blockCount, jint frameSize, jint blockTimeout) {
+    const char *name = (*env)->GetStringUTFChars(env, ifName, NULL);
+    unsigned int ifindex;
+    int version = TPACKET_V3;
+    struct tpacket_req3 req;
+    struct sockaddr_ll addr;
+    struct packet_mreq mreq;
+    struct ring *ring;
+
+    if (name == NULL) {
+        return 0;
+    }
+    ifindex = if_nametoindex(name);
+    (*env)->ReleaseStringUTFChars(env, ifName, name);
+    if (ifindex == 0) {
+        throw_io_exception(env, "if_nametoindex", errno);
+        return 0;
+    }
+    ring = calloc(1, sizeof(*ring));
+    if (ring == NULL) {
+        throw_io_exception(env, "calloc", ENOMEM);
+        return 0;
+    }
+    ring->map = MAP_FAILED;
+    ring->block_size = blockSize;
+    ring->block_count = blockCount;
+    ring->size = (size_t) blockSize * blockCount;
+
+    /* protocol 0: nothing is queued before the ring is set up and bound */
+    ring->fd = socket(AF_PACKET, SOCK_RAW, 0);
+    if (ring->fd < 0) {
+        throw_io_exception(env, "socket", errno);
+        goto fail;
+    }
+    if (setsockopt(ring->fd, SOL_PACKET, PACKET_VERSION, &version, sizeof(version)) < 0) {
+        throw_io_exception(env, "PACKET_VERSION", errno);
+        goto fail;
+    }
+    memset(&req, 0, sizeof(req));
+    req.tp_block_size = blockSize;
+    req.tp_block_nr = blockCount;
+    req.tp_frame_size = frameSize;
+    req.tp_frame_nr = (blockSize / frameSize) * blockCount;
+    req.tp_retire_blk_tov = blockTimeout;
+    if (setsockopt(ring->fd, SOL_PACKET, PACKET_RX_RING, &req, sizeof(req)) < 0) {
+        throw_io_exception(env, "PACKET_RX_RING", errno);
+        goto fail;
+    }
+    ring->map = mmap(NULL, ring->size, PROT_READ | PROT_WRITE, MAP_SHARED, ring->fd, 0);
+    if (ring->map == MAP_FAILED) {
+        throw_io_exception(env, "mmap", errno);
+        goto fail;
+    }
+    /* only IPv6 frames are of interest for the mapper */
+    memset(&addr, 0, sizeof(addr));
+    addr.sll_family = AF_PACKET;
+    addr.sll_protocol = htons(ETH_P_IPV6);
+    addr.sll_ifindex = ifindex;
+    if (bind(ring->fd, (struct sockaddr *) &addr, sizeof(addr)) < 0) {
+        throw_io_exception(env, "bind", errno);
+        goto fail;
+    }
+    memset(&mreq, 0, sizeof(mreq));
+    mreq.mr_ifindex = ifindex;
+    mreq.mr_type = PACKET_MR_PROMISC;
+    if (setsockopt(ring->fd, SOL_PACKET, PACKET_ADD_MEMBERSHIP, &mreq, sizeof(mreq)) < 0) {
+        throw_io_exception(env, "PACKET_ADD_MEMBERSHIP", errno);
+        goto fail;
+    }
+    return (jlong) (intptr_t) ring;
+
+fail:
+    if (ring->map != MAP_FAILED) {
+        munmap(ring->map, ring->size);
+    }
+    if (ring->fd >= 0) {
+        close(ring->fd);
+    }
+    free(ring);
+    return 0;
+}
+
+JNIEXPORT jobject JNICALL RING_CLASS(ringBuffer)(JNIEnv *env, jclass clazz, jlong handle) {
+    struct ring *ring = (struct ring *) (intptr_t) handle;
+    return (*env)->NewDirectByteBuffer(env, ring->map, (jlong) ring->size);
+}
+
+JNIEXPORT jboolean JNICALL RING_CLASS(ringWait)(JNIEnv *env, jclass clazz, jlong handle,
+        jint block, jint timeout) {
+    struct ring *ring = (struct ring *) (intptr_t) handle;
+    struct tpacket_block_desc *desc = ring_block(ring, block);
+    struct pollfd pfd;
+
+    if (block_ready(desc)) {
+        return JNI_TRUE;
+    }
+    pfd.fd = ring->fd;
+    pfd.events = POLLIN | POLLERR;
+    pfd.revents = 0;
+    if (poll(&pfd, 1, timeout) < 0 && errno != EINTR) {
+        throw_io_exception(env, "poll", errno);
+        return JNI_FALSE;
+    }
+    return block_ready(desc) ? JNI_TRUE : JNI_FALSE;
+}
+
+JNIEXPORT void JNICALL RING_CLASS(ringRelease)(JNIEnv *env, jclass clazz, jlong handle, jint block) {
+    struct ring *ring = (struct ring *) (intptr_t) handle;
+    __atomic_store_n(&ring_block(ring, block)->hdr.bh1.block_status, TP_STATUS_KERNEL, __ATOMIC_RELEASE);
+}
+
+JNIEXPORT void JNICALL RING_CLASS(ringSetFilter)(JNIEnv *env, jclass clazz, jlong handle,
+        jlongArray instructions) {
+    struct ring *ring = (struct ring *) (intptr_t) handle;
+    jsize count = (*env)->GetArrayLength(env, instructions);
+    jlong *insns;
+    struct sock_fprog prog;
+    int result;
+
+    insns = (*env)->GetLongArrayElements(env, instructions, NULL);
+    if (insns == NULL) {
+        return;
+    }
+    /* a struct sock_filter has the same 8 byte layout as the
+     * struct bpf_insn read by jnetpcap as a long */
+    prog.len = (unsigned short) count;
+    prog.filter = (struct sock_filter *) insns;
+    result = setsockopt(ring->fd, SOL_SOCKET, SO_ATTACH_FILTER, &prog, sizeof(prog));
+    (*env)->ReleaseLongArrayElements(env, instructions, insns, JNI_ABORT);
+    if (result < 0) {
+        throw_io_exception(env, "SO_ATTACH_FILTER", errno);
+    }
+}
+
+JNIEXPORT jint JNICALL RING_CLASS(ringFd)(JNIEnv *env, jclass clazz, jlong handle) {
+    return ((struct ring *) (intptr_t) handle)->fd;
+}
+
+JNIEXPORT void JNICALL RING_CLASS(ringJoinFanout)(JNIEnv *env, jclass clazz, jlong handle, jint group) {
+    struct ring *ring = (struct ring *) (intptr_t) handle;
+    /* flow hash: all frames of a connection are passed to the same socket,
+     * fragments are reassembled first so they hash like the whole packet */
+    int arg = (group & 0xFFFF) | ((PACKET_FANOUT_HASH | PACKET_FANOUT_FLAG_DEFRAG) << 16);
+
+    if (setsockopt(ring->fd, SOL_PACKET, PACKET_FANOUT, &arg, sizeof(arg)) < 0) {
+        throw_io_exception(env, "PACKET_FANOUT", errno);
+    }
+}
+
+JNIEXPORT void JNICALL RING_CLASS(ringStatistics)(JNIEnv *env, jclass clazz, jlong handle,
+        jlongArray result) {
+    struct ring *ring = (struct ring *) (intptr_t) handle;
+    struct tpacket_stats_v3 stats;
+    socklen_t length = sizeof(stats);
+    jlong values[3];
+
+    /* the kernel resets the counters on every read */
+    if (getsockopt(ring->fd, SOL_PACKET, PACKET_STATISTICS, &stats, &length) < 0) {
+        throw_io_exception(env, "PACKET_STATISTICS", errno);
+        return;
+    }
+    values[0] = stats.tp_packets;
+    values[1] = stats.tp_drops;
+    values[2] = stats.tp_freeze_q_cnt;
+    (*env)->SetLongArrayRegion(env, result, 0, 3, values);
+}
+
+JNIEXPORT void JNICALL RING_CLASS(ringClose)(JNIEnv *env, jclass clazz, jlong handle) {
+    struct ring *ring = (struct ring *) (intptr_t) handle;
+    munmap(ring->map, ring->size);
+    close(ring->fd);
+    free(ring);
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ * Multi queue TUN interface allocation and non-blocking mode used by TUNIF.
+ * Reading and writing of byte arrays starting at index 0 is done with
+ * tun_read/tun_write of the TUN wrapper, packets in direct buffers, at other
+ * offsets and batches of packets are read and written by this library.
+ */
+#include <jni.h>
+#include <errno.h>
+#include <fcntl.h>
+#include <string.h>
+#include <unistd.h>
+#include <linux/if_tun.h>
+#include <net/if.h>
+#include <sys/ioctl.h>
+
+#include "packetio.h"
+
+/* No packet is longer */
+#define MAX_PACKET_SIZE 65536
+
+#define TUN_CLASS(name) Java_de_uniluebeck_itm_spitfire_gatewayconnectionmapper_connectioninterfaces_TUNIF_##name
+
+/*
+ * Opens one queue of a multi queue TUN interface. Every call attaches a
+ * new queue to the same device, the device is created by the first call.
+ */
+JNIEXPORT jint JNICALL TUN_CLASS(tunAllocQueue)(JNIEnv *env, jclass clazz, jstring dev) {
+    const char *name;
+    struct ifreq ifr;
+    int fd;
+
+    fd = open("/dev/net/tun", O_RDWR);
+    if (fd < 0) {
+        throw_io_exception(env, "open /dev/net/tun", errno);
+        return -1;
+    }
+    memset(&ifr, 0, sizeof(ifr));
+    ifr.ifr_flags = IFF_TUN | IFF_NO_PI | IFF_MULTI_QUEUE;
+    name = (*env)->GetStringUTFChars(env, dev, NULL);
+    if (name == NULL) {
+        close(fd);
+        return -1;
+    }
+    strncpy(ifr.ifr_name, name, IFNAMSIZ - 1);
+    (*env)->ReleaseStringUTFChars(env, dev, name);
+    if (ioctl(fd, TUNSETIFF, &ifr) < 0) {
+        /* EINVAL: the device exists without IFF_MULTI_QUEUE */
+        throw_io_exception(env, "TUNSETIFF", errno);
+        close(fd);
+        return -1;
+    }
+    return fd;
+}
+
+JNIEXPORT void JNICALL TUN_CLASS(tunSetNonBlocking)(JNIEnv *env, jclass clazz, jint fd) {
+    int flags = fcntl(fd, F_GETFL);
+
+    if (flags < 0 || fcntl(fd, F_SETFL, flags | O_NONBLOCK) < 0) {
+        throw_io_exception(env, "fcntl", errno);
+    }
+}
+
+JNIEXPORT void JNICALL TUN_CLASS(tunClose)(JNIEnv *env, jclass clazz, jint fd) {
+    close(fd);
+}
+
+/*
+ * Read/write results: bytes transferred, 0 if the descriptor is
+ * non-blocking and no packet is available, -errno on errors.
+ */
+static jint result(ssize_t n) {
+    if (n >= 0) {
+        return (jint) n;
+    }
+    return errno == EAGAIN ? 0 : -errno;
+}
+
+JNIEXPORT jint JNICALL TUN_CLASS(tunReadDirect)(JNIEnv *env, jclass clazz, jint fd,
+        jobject buffer, jint position, jint length) {
+    char *address = (*env)->GetDirectBufferAddress(env, buffer);
+    ssize_t n;
+
+    do {
+        n = read(fd, address + position, length);
+    } while (n < 0 && errno == EINTR);
+    return result(n);
+}
+
+JNIEXPORT jint JNICALL TUN_CLASS(tunReadArray)(JNIEnv *env, jclass clazz, jint fd,
+        jbyteArray array, jint offset, jint length) {
+    char packet[MAX_PACKET_SIZE];
+    ssize_t n;
+
+    do {
+        n = read(fd, packet, sizeof(packet));
+    } while (n < 0 && errno == EINTR);
+    if (n > 0) {
+        /* truncate like a read into a short buffer */
+        if (n > length) {
+            n = length;
+        }
+        (*env)->SetByteArrayRegion(env, array, offset, n, (jbyte *) packet);
+    }
+    return result(n);
+}
+
+/*
+ * Writes a single packet, packet is a direct ByteBuffer or a byte array.
+ */
+static jint write_packet(JNIEnv *env, jint fd, jobject packet, jint offset, jint length) {
+    char copy[MAX_PACKET_SIZE];
+    char *address = (*env)->GetDirectBufferAddress(env, packet);
+    ssize_t n;
+
+    if (address == NULL) {
+        if (length > MAX_PACKET_SIZE) {
+            return -EMSGSIZE;
+        }
+        (*env)->GetByteArrayRegion(env, (jbyteArray) packet, offset, length, (jbyte *) copy);
+        address = copy;
+        offset = 0;
+    }
+    do {
+        n = write(fd, address + offset, length);
+    } while (n < 0 && errno == EINTR);
+    return result(n);
+}
+
+JNIEXPORT jint JNICALL TUN_CLASS(tunWrite)(JNIEnv *env, jclass clazz, jint fd,
+        jobject packet, jint offset, jint length) {
+    return write_packet(env, fd, packet, offset, length);
+}
+
+/*
+ * Writes count packets with a single JNI call, packet i is written to
+ * fds[i]. Stops at the first packet which can not be written.
+ * Returns the number of packets written, -errno if the first packet
+ * failed.
+ */
+JNIEXPORT jint JNICALL TUN_CLASS(tunWriteBatch)(JNIEnv *env, jclass clazz, jintArray fds,
+        jobjectArray packets, jintArray offsets, jintArray lengths, jint count) {
+    jint fd[count], offset[count], length[count];
+    jint i, n;
+
+    (*env)->GetIntArrayRegion(env, fds, 0, count, fd);
+    (*env)->GetIntArrayRegion(env, offsets, 0, count, offset);
+    (*env)->GetIntArrayRegion(env, lengths, 0, count, length);
+    for (i = 0; i < count; i++) {
+        jobject packet = (*env)->GetObjectArrayElement(env, packets, i);
+        n = write_packet(env, fd[i], packet, offset[i], length[i]);
+        (*env)->DeleteLocalRef(env, packet);
+        if (n <= 0 && length[i] > 0) {
+            return i == 0 ? (n < 0 ? n : 0) : i;
+        }
+    }
+    return count;
+}
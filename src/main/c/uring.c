@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+/*
+ * io_uring rings used by UringTUNIF. Each ring has its own registered
+ * buffer which is split into slots of equal size, every read or write
+ * uses exactly one slot and carries the slot index as user data.
+ * Submission entries are queued in the shared memory without a system
+ * call and submitted together by uringSubmit, completions are reaped from
+ * the shared memory without a system call.
+ * liburing is not required, the rings are set up with the raw system calls.
+ */
+#include <jni.h>
+#include <errno.h>
+#include <stdint.h>
+#include <stdlib.h>
+#include <string.h>
+#include <unistd.h>
+#include <linux/io_uring.h>
+#include <sys/mman.h>
+#include <sys/syscall.h>
+#include <sys/uio.h>
+
+#include "packetio.h"
+
+#define URING_CLASS(name) Java_de_uniluebeck_itm_spitfire_gatewayconnectionmapper_connectioninterfaces_UringTUNIF_##name
+
+struct uring {
+    int fd;
+    /* submission queue */
+    uint8_t *sq_map;
+    size_t sq_map_size;
+    unsigned int *sq_head;
+    unsigned int *sq_tail;
+    unsigned int sq_mask;
+    unsigned int sq_entries;
+    unsigned int *sq_array;
+    struct io_uring_sqe *sqes;
+    size_t sqes_size;
+    /* entries which were queued but not submitted yet */
+    unsigned int to_submit;
+    /* completion queue, shares sq_map if IORING_FEAT_SINGLE_MMAP */
+    uint8_t *cq_map;
+    size_t cq_map_size;
+    unsigned int *cq_head;
+    unsigned int *cq_tail;
+    unsigned int cq_mask;
+    struct io_uring_cqe *cqes;
+    /* registered buffer */
+    uint8_t *buffer;
+    size_t buffer_size;
+    unsigned int slot_size;
+};
+
+static void uring_free(struct uring *ring) {
+    if (ring->sqes != MAP_FAILED) {
+        munmap(ring->sqes, ring->sqes_size);
+    }
+    if (ring->cq_map != MAP_FAILED && ring->cq_map != ring->sq_map) {
+        munmap(ring->cq_map, ring->cq_map_size);
+    }
+    if (ring->sq_map != MAP_FAILED) {
+        munmap(ring->sq_map, ring->sq_map_size);
+    }
+    if (ring->fd >= 0) {
+        /* also unregisters the buffer */
+        close(ring->fd);
+    }
+    free(ring->buffer);
+    free(ring);
+}
+
+JNIEXPORT jlong JNICALL URING_CLASS(uringOpen)(JNIEnv *env, jclass clazz, jint slots, jint slotSize) {
+    struct io_uring_params params;
+    struct iovec iov;
+    struct uring *ring;
+
+    ring = calloc(1, sizeof(*ring));
+    if (ring == NULL) {
+        throw_io_exception(env, "calloc", ENOMEM);
+        return 0;
+    }
+    ring->sq_map = MAP_FAILED;
+    ring->cq_map = MAP_FAILED;
+    ring->sqes = MAP_FAILED;
+    ring->slot_size = slotSize;
+    ring->buffer_size = (size_t) slots * slotSize;
+
+    /* every slot has at most one request in flight, so with one
+     * submission entry per slot neither queue can overflow */
+    memset(&params, 0, sizeof(params));
+    ring->fd = syscall(__NR_io_uring_setup, slots, &params);
+    if (ring->fd < 0) {
+        throw_io_exception(env, "io_uring_setup", errno);
+        goto fail;
+    }
+    ring->sq_map_size = params.sq_off.array + params.sq_entries * sizeof(unsigned int);
+    ring->cq_map_size = params.cq_off.cqes + params.cq_entries * sizeof(struct io_uring_cqe);
+    if (params.features & IORING_FEAT_SINGLE_MMAP) {
+        if (ring->cq_map_size > ring->sq_map_size) {
+            ring->sq_map_size = ring->cq_map_size;
+        }
+    }
+    ring->sq_map = mmap(NULL, ring->sq_map_size, PROT_READ | PROT_WRITE, MAP_SHARED | MAP_POPULATE,
+            ring->fd, IORING_OFF_SQ_RING);
+    if (ring->sq_map == MAP_FAILED) {
+        throw_io_exception(env, "mmap", errno);
+        goto fail;
+    }
+    if (params.features & IORING_FEAT_SINGLE_MMAP) {
+        ring->cq_map = ring->sq_map;
+    } else {
+        ring->cq_map = mmap(NULL, ring->cq_map_size, PROT_READ | PROT_WRITE, MAP_SHARED | MAP_POPULATE,
+                ring->fd, IORING_OFF_CQ_RING);
+        if (ring->cq_map == MAP_FAILED) {
+            throw_io_exception(env, "mmap", errno);
+            goto fail;
+        }
+    }
+    ring->sqes_size = params.sq_entries * sizeof(struct io_uring_sqe);
+    ring->sqes = mmap(NULL, ring->sqes_size, PROT_READ | PROT_WRITE, MAP_SHARED | MAP_POPULATE,
+            ring->fd, IORING_OFF_SQES);
+    if (ring->sqes == MAP_FAILED) {
+        throw_io_exception(env, "mmap", errno);
+        goto fail;
+    }
+    ring->sq_head = (unsigned int *) (ring->sq_map + params.sq_off.head);
+    ring->sq_tail = (unsigned int *) (ring->sq_map + params.sq_off.tail);
+    ring->sq_mask = *(unsigned int *) (ring->sq_map + params.sq_off.ring_mask);
+    ring->sq_entries = params.sq_entries;
+    ring->sq_array = (unsigned int *) (ring->sq_map + params.sq_off.array);
+    ring->cq_head = (unsigned int *) (ring->cq_map + params.cq_off.head);
+    ring->cq_tail = (unsigned int *) (ring->cq_map + params.cq_off.tail);
+    ring->cq_mask = *(unsigned int *) (ring->cq_map + params.cq_off.ring_mask);
+    ring->cqes = (struct io_uring_cqe *) (ring->cq_map + params.cq_off.cqes);
+
+    /* the buffer is registered once, so the kernel does not have to map
+     * the pages of every single read and write */
+    if (posix_memalign((void **) &ring->buffer, sysconf(_SC_PAGESIZE), ring->buffer_size) != 0) {
+        ring->buffer = NULL;
+        throw_io_exception(env, "posix_memalign", ENOMEM);
+        goto fail;
+    }
+    memset(ring->buffer, 0, ring->buffer_size);
+    iov.iov_base = ring->buffer;
+    iov.iov_len = ring->buffer_size;
+    if (syscall(__NR_io_uring_register, ring->fd, IORING_REGISTER_BUFFERS, &iov, 1) < 0) {
+        /* ENOMEM: RLIMIT_MEMLOCK is too small */
+        throw_io_exception(env, "IORING_REGISTER_BUFFERS", errno);
+        goto fail;
+    }
+    return (jlong) (intptr_t) ring;
+
+fail:
+    uring_free(ring);
+    return 0;
+}
+
+JNIEXPORT jobject JNICALL URING_CLASS(uringBuffer)(JNIEnv *env, jclass clazz, jlong handle) {
+    struct uring *ring = (struct uring *) (intptr_t) handle;
+    return (*env)->NewDirectByteBuffer(env, ring->buffer, (jlong) ring->buffer_size);
+}
+
+/*
+ * Queues a read (or write) of length bytes from fd into (from) the given slot.
+ * Returns false if the submission queue is full.
+ */
+JNIEXPORT jboolean JNICALL URING_CLASS(uringPrepare)(JNIEnv *env, jclass clazz, jlong handle,
+        jboolean write, jint fd, jint slot, jint length) {
+    struct uring *ring = (struct uring *) (intptr_t) handle;
+    unsigned int tail = *ring->sq_tail;
+    unsigned int index;
+    struct io_uring_sqe *sqe;
+
+    if (tail - __atomic_load_n(ring->sq_head, __ATOMIC_ACQUIRE) >= ring->sq_entries) {
+        return JNI_FALSE;
+    }
+    index = tail & ring->sq_mask;
+    sqe = &ring->sqes[index];
+    memset(sqe, 0, sizeof(*sqe));
+    sqe->opcode = write ? IORING_OP_WRITE_FIXED : IORING_OP_READ_FIXED;
+    sqe->fd = fd;
+    sqe->addr = (uint64_t) (uintptr_t) (ring->buffer + (size_t) slot * ring->slot_size);
+    sqe->len = length;
+    /* TUN devices have no file position */
+    sqe->off = (uint64_t) -1;
+    sqe->buf_index = 0;
+    sqe->user_data = (uint64_t) slot;
+    ring->sq_array[index] = index;
+    __atomic_store_n(ring->sq_tail, tail + 1, __ATOMIC_RELEASE);
+    ring->to_submit++;
+    return JNI_TRUE;
+}
+
+/*
+ * Submits all queued entries with a single io_uring_enter call and waits
+ * until at least minComplete completions are available.
+ * Returns the number of submitted entries.
+ */
+JNIEXPORT jint JNICALL URING_CLASS(uringSubmit)(JNIEnv *env, jclass clazz, jlong handle, jint minComplete) {
+    struct uring *ring = (struct uring *) (intptr_t) handle;
+    unsigned int flags = minComplete > 0 ? IORING_ENTER_GETEVENTS : 0;
+    int result;
+
+    if (ring->to_submit == 0 && minComplete == 0) {
+        return 0;
+    }
+    result = syscall(__NR_io_uring_enter, ring->fd, ring->to_submit, minComplete, flags, NULL, 0);
+    if (result < 0) {
+        if (errno == EINTR || errno == EAGAIN || errno == EBUSY) {
+            /* nothing submitted, the caller tries again */
+            return 0;
+        }
+        throw_io_exception(env, "io_uring_enter", errno);
+        return 0;
+    }
+    ring->to_submit -= result;
+    return result;
+}
+
+/*
+ * Copies the available completions as pairs of slot and result (bytes or
+ * -errno) to completions and returns them to the kernel.
+ * Returns the number of completions.
+ */
+JNIEXPORT jint JNICALL URING_CLASS(uringReap)(JNIEnv *env, jclass clazz, jlong handle, jintArray completions) {
+    struct uring *ring = (struct uring *) (intptr_t) handle;
+    unsigned int head = *ring->cq_head;
+    unsigned int tail = __atomic_load_n(ring->cq_tail, __ATOMIC_ACQUIRE);
+    int max = (*env)->GetArrayLength(env, completions) / 2;
+    jint *result;
+    int count = 0;
+
+    if (head == tail) {
+        return 0;
+    }
+    result = (*env)->GetPrimitiveArrayCritical(env, completions, NULL);
+    if (result == NULL) {
+        return 0;
+    }
+    while (head != tail && count < max) {
+        struct io_uring_cqe *cqe = &ring->cqes[head & ring->cq_mask];
+        result[2 * count] = (jint) cqe->user_data;
+        result[2 * count + 1] = cqe->res;
+        head++;
+        count++;
+    }
+    (*env)->ReleasePrimitiveArrayCritical(env, completions, result, 0);
+    __atomic_store_n(ring->cq_head, head, __ATOMIC_RELEASE);
+    return count;
+}
+
+JNIEXPORT void JNICALL URING_CLASS(uringClose)(JNIEnv *env, jclass clazz, jlong handle) {
+    uring_free((struct uring *) (intptr_t) handle);
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.uniluebeck.itm.spitfire.gatewayconnectionmapper;
+
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.protocol.IPv6Address;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.protocol.IPv6AddressSet;
+
+import java.util.List;
+
+import static de.uniluebeck.itm.spitfire.gatewayconnectionmapper.ConnectionTable.*;
+import static de.uniluebeck.itm.spitfire.gatewayconnectionmapper.protocol.Tools.*;
+
+/**
+ * This class generates BPF filter expressions for the uplink pcap interfaces.
+ * The filters reject all frames in the kernel which would be dropped by
+ * ConnectionMapper.mapUDPNetIF()/mapTCPNetIF() anyway, so they are never
+ * copied to user space.
+ */
+public class CaptureFilter {
+
+    //Maximum number of bound addresses which are excluded by the filter.
+    //Further addresses are only excluded by the check in user space.
+    public static int MAX_EXCLUDED_ADDRESSES = 32;
+
+    //Fixed header protocols of packets which may carry TCP or UDP behind
+    //extension headers (hop-by-hop, routing, destination options).
+    //The extension headers are walked in user space.
+    private static final String EXTENSION_HEADERS = "ip6 proto 0 or ip6 proto 43 or ip6 proto 60";
+
+    /**
+     * Creates the static filter for a uplink interface. It only accepts
+     * IPv6 packets carrying TCP or UDP (maybe behind extension headers),
+     * which are not sent by blockedSourceMac and not targeted to a link local,
+     * multicast or local bound address.
+     * @param blockedSourceMac Mac address of the uplink interface
+     * @param boundIPs Local bound addresses
+     * @return BPF filter expression
+     */
+    public static String createStaticFilter(long blockedSourceMac, IPv6AddressSet boundIPs) {
+        return createBaseFilter(blockedSourceMac, boundIPs)
+                + " and (ip6 proto 6 or ip6 proto 17 or " + EXTENSION_HEADERS + ")";
+    }
+
+    /**
+     * Creates a filter for the UDP uplink which only accepts packets that
+     * can be mapped: UDP requests to the virtual UDP server port and UDP
+     * responses for the passed TCP requests. Packets with extension headers
+     * are always accepted.
+     * @param config Current configuration
+     * @param boundIPs Local bound addresses
+     * @param tcpRequests Current TCP requests
+     * @return BPF filter expression
+     */
+    public static String createUdpFlowFilter(MapperConfig config, IPv6AddressSet boundIPs,
+            List<Request> tcpRequests) {
+        StringBuilder filter = new StringBuilder(createBaseFilter(config.getUdpNetIfMac(), boundIPs));
+        filter.append(" and (").append(EXTENSION_HEADERS);
+        filter.append(" or (ip6 proto 17 and dst port ").append(config.getVirtualUDPServerPort()).append(")");
+        for (Request r : tcpRequests) {
+            //see ConnectionTable.getMappedPortFromUDPResponseForTCPRequest()
+            appendFlow(filter, 17, r.getDestIP().getHostAddress(), r.getSourceIP().getHostAddress(),
+                    r.getSourcePort());
+        }
+        return filter.append(")").toString();
+    }
+
+    /**
+     * Creates a filter for the TCP uplink which only accepts packets that
+     * can be mapped: TCP requests to the virtual TCP server port and TCP
+     * responses for the passed UDP requests. Packets with extension headers
+     * are always accepted.
+     * @param config Current configuration
+     * @param boundIPs Local bound addresses
+     * @param udpRequests Current UDP requests
+     * @return BPF filter expression
+     */
+    public static String createTcpFlowFilter(MapperConfig config, IPv6AddressSet boundIPs,
+            List<Request> udpRequests) {
+        StringBuilder filter = new StringBuilder(createBaseFilter(config.getTcpNetIfMac(), boundIPs));
+        filter.append(" and (").append(EXTENSION_HEADERS);
+        filter.append(" or (ip6 proto 6 and dst port ").append(config.getVirtualTCPServerPort()).append(")");
+        for (Request r : udpRequests) {
+            //see ConnectionTable.getMappedPortFromTCPResponseForUDPRequest()
+            appendFlow(filter, 6, r.getDestIP().getHostAddress(), r.getSourceIP().getHostAddress(),
+                    r.getLocalTcpPort());
+        }
+        return filter.append(")").toString();
+    }
+
+    private static void appendFlow(StringBuilder filter, int protocol, String source, String dest, int destPort) {
+        filter.append(" or (ip6 proto ").append(protocol);
+        filter.append(" and src host ").append(removeScope(source));
+        filter.append(" and dst host ").append(removeScope(dest));
+        filter.append(" and dst port ").append(destPort).append(")");
+    }
+
+    private static String removeScope(String address) {
+        int index = address.indexOf('%');
+        return index == -1 ? address : address.substring(0, index);
+    }
+
+    private static String createBaseFilter(long blockedSourceMac, IPv6AddressSet boundIPs) {
+        StringBuilder filter = new StringBuilder("ip6");
+        filter.append(" and not ether src ").append(getHWaddrAsString(blockedSourceMac));
+        filter.append(" and not dst net fe80::/10 and not dst net ff00::/8");
+        int excluded = 0;
+        for (IPv6Address address : boundIPs.getAddresses()) {
+            if (excluded++ == MAX_EXCLUDED_ADDRESSES) {
+                break;
+            }
+            filter.append(" and not dst host ").append(address);
+        }
+        return filter.toString();
+    }
+}
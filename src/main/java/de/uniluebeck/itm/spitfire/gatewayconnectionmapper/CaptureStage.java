@@ -0,0 +1,111 @@
+/**
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.uniluebeck.itm.spitfire.gatewayconnectionmapper;
+
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.IFAdapter;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.IFBatchReader;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.IFBufferReader;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.IFReader;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.PacketHandler;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.PacketQueue;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * Reads packets from a interface and copies them into the queue of the map
+ * stage. Packets are dropped if the queue is full. While the mapper is
+ * overloaded, requests of new flows on a uplink are dropped before they
+ * take a queue slot (see OverloadController).
+ */
+class CaptureStage implements NamedTask, PacketHandler {
+    private final String taskName;
+    private final IFReader source;
+    private final PacketQueue queue;
+    private final int tag;
+    private final byte[] scratch = new byte[OverloadController.CLASSIFY_LENGTH];
+    //overload controller if new flows are shed in the current batch, null otherwise
+    private OverloadController shedding;
+
+    CaptureStage(IFReader source, PacketQueue queue, int tag) {
+        this.taskName = "Pipeline-capture-" + source.getName();
+        this.source = source;
+        this.queue = queue;
+        this.tag = tag;
+    }
+
+    @Override
+    public String getTaskName() {
+        return taskName;
+    }
+
+    @Override
+    public void run() {
+        if (IFAdapter.canReadBatches(source)) {
+            readBatches((IFBatchReader) source);
+            return;
+        }
+        IFBufferReader reader = IFAdapter.bufferReader(source);
+        ByteBuffer packet = ByteBuffer.allocate(queue.getSlotSize());
+        while (!Thread.currentThread().isInterrupted()) {
+            packet.clear();
+            if (reader.read(packet) > 0) {
+                packet.flip();
+                updateShedding();
+                handlePacket(packet);
+                queue.signal();
+            }
+        }
+    }
+
+    private void readBatches(IFBatchReader reader) {
+        ErrorBackoff backoff = new ErrorBackoff("CaptureStage");
+        while (!Thread.currentThread().isInterrupted()) {
+            updateShedding();
+            try {
+                reader.read(this, ConnectionMapper.pcapBatchSize);
+                backoff.succeeded();
+            } catch (Exception ex) {
+                backoff.failed(ex);
+            }
+            queue.signal();
+        }
+    }
+
+    /**
+     * Evaluates the overload state, once per batch.
+     */
+    private void updateShedding() {
+        shedding = tag == WorkerPool.TUN_PACKET ? null : OverloadController.getShedding();
+    }
+
+    @Override
+    public void handlePacket(ByteBuffer packet) {
+        if (shedding != null && !shedding.admit(packet, tag == WorkerPool.UDP_FRAME, scratch)) {
+            return;
+        }
+        queue.offer(packet);
+    }
+}
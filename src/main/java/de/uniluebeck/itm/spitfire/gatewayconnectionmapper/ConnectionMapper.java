@@ -24,23 +24,53 @@
  */
 package de.uniluebeck.itm.spitfire.gatewayconnectionmapper;
 
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.InputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.*;
-
+import java.nio.ByteBuffer;
+
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.FilterableIFReader;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.IF;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.IFAdapter;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.IFBatchWriter;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.IFBufferReadWriter;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.IFBufferReader;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.IFBufferWriter;
 import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.IFReadWriter;
 import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.IFReader;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.IFWriter;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import static de.uniluebeck.itm.spitfire.gatewayconnectionmapper.ConnectionTable.*;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.PacketFilter;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.PacketRingIF;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.PcapDumper;
 import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.PcapIF;
 import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.TUNIF;
-import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.protocol.EthernetFrame;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.TUNWriter;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.TapIF;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.UringTUNIF;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.WaitStrategy;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.protocol.EthernetFrameView;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.protocol.IPv6Address;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.protocol.IPv6AddressSet;
 import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.protocol.IPv6Packet;
 
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.protocol.Tools;
 import org.apache.log4j.*;
@@ -65,18 +95,132 @@ public class ConnectionMapper {
     //Logger
     public static Logger log = Logger.getLogger(ConnectionMapper.class.getName());
 
-    //Has to be the same IP owned by the tun interface
-    public static String tunBoundIP;
-
-    //UDP server port
-    static int localUdpServerPort;
-
-    //TCP server port
-    static int localTcpServerPort;
-
-    //Virtual Server Ports
-    public static int virtualTCPServerPort = 80;
-    public static int virtualUDPServerPort = 5683;
+    //Virtual Server Ports, used by start() for the first configuration.
+    //Later changes need setConfig(getConfig().withVirtualServerPorts(udp, tcp)).
+    public static int virtualTCPServerPort = MapperConfig.DEFAULT_VIRTUAL_TCP_SERVER_PORT;
+    public static int virtualUDPServerPort = MapperConfig.DEFAULT_VIRTUAL_UDP_SERVER_PORT;
+
+    //If true, BPF filters are installed on the uplink pcap interfaces by start(),
+    //so frames which would be ignored are already dropped in the kernel
+    public static boolean useCaptureFilters = true;
+
+    //If true, the uplink filters only accept packets which can be mapped
+    //and are regenerated whenever the ConnectionTable changes.
+    //Unmapped traffic is not passed through the TUN interface in this mode.
+    public static boolean useDynamicCaptureFilters = false;
+
+    //Maximum number of frames read from a uplink pcap interface at once,
+    //frames of a batch are passed to the mapper without being copied by libpcap.
+    //Also used for batch reads of the TUN interface.
+    public static int pcapBatchSize = 64;
+
+    //Number of capture workers (threads) per uplink. Only used with
+    //CaptureBackend.PACKET_RING: each worker has its own ring and frames are
+    //distributed by flow hash (PACKET_FANOUT), so all packets of a connection
+    //are processed by the same worker.
+    public static int captureWorkers = 1;
+
+    //If true, all interfaces are read by a single EventLoop thread instead
+    //of one blocking thread per interface (eg. for small embedded gateways)
+    public static boolean useEventLoop = false;
+
+    //Number of TUN queues (IFF_MULTI_QUEUE), each queue is read by its own
+    //thread. Packets written to the TUN interface are spread by flow hash.
+    public static int tunQueues = 1;
+
+    //If true, the TUN interface (each queue) is read and written with
+    //io_uring (UringTUNIF), packets are submitted in batches instead of one
+    //system call per packet. Not used together with useEventLoop.
+    public static boolean useIoUring = false;
+
+    //If true, the TUN interface is accessed with the Foreign Function & Memory
+    //API (FfmTUNIF) and the JNI TUN wrapper is not extracted. Needs a JVM and
+    //build with Java 22 or newer (Maven profile "ffm") and a single TUN queue,
+    //otherwise the TUN wrapper is used.
+    public static boolean useFfmTun = false;
+
+    //If set, all packets of the uplink and TUN interfaces are dumped to
+    //rotating pcap files in this directory (one PcapDumper per interface).
+    //Dumping never blocks forwarding, packets are dropped if the disk is too slow.
+    public static String dumpDirectory = null;
+
+    //Only every dumpSampling-th packet accepted by dumpFilter is dumped
+    public static int dumpSampling = 1;
+
+    //Filter for dumped packets, null to dump all packets
+    public static PacketFilter dumpFilter = null;
+
+    //Directory in which the native libraries are extracted, null for
+    //$XDG_CACHE_HOME/gatewayconnectionmapper or ~/.cache/gatewayconnectionmapper.
+    //It has to be owned by the user running the mapper and must not be
+    //writable by others. Libraries are only extracted again if their
+    //content changed.
+    public static String libraryCacheDirectory = null;
+
+    //If true, the packets of each interface are processed by a Pipeline:
+    //capture, mapping and writing to the TUN interface run on three threads
+    //connected by queues, so a slow TUN write or mapping does not stall
+    //capturing. Not used together with useEventLoop.
+    public static boolean usePipeline = false;
+
+    //Number of packets each queue of a pipeline can buffer (power of two),
+    //captured packets are dropped if the queue to the map stage is full
+    public static int pipelineQueueSize = 4096;
+
+    //Maximum packet size in a pipeline, longer packets are dropped
+    public static int pipelineSlotSize = 2048;
+
+    //How the stages of a pipeline wait for packets
+    public static WaitStrategy pipelineWaitStrategy = WaitStrategy.BLOCKING;
+
+    //Number of mapping workers. If greater than 1, each interface is read
+    //by a dispatcher thread which passes the packets by flow hash to the
+    //workers (WorkerPool), so mapping uses several cores while the packets
+    //of a flow keep their order. Not used together with useEventLoop.
+    public static int mapperWorkers = 1;
+
+    //Number of packets the queue of each worker can buffer (power of two),
+    //packets are dropped if the queue is full
+    public static int workerQueueSize = 4096;
+
+    //How the workers wait for packets
+    public static WaitStrategy workerWaitStrategy = WaitStrategy.BLOCKING;
+
+    //If true, the packets of the uplinks are written to the TUN interface by
+    //a single TUNWriter thread in batches instead of by each uplink thread.
+    //Uplink threads wait up to TUNWriter.WRITE_TIMEOUT ms if the writer
+    //falls behind, then the packet is dropped.
+    //Not used together with useEventLoop or useIoUring.
+    public static boolean useTunWriter = false;
+
+    //Kind of threads running the interface loops, pipeline stages, workers,
+    //dumpers, capture filter updaters and the TUN writer, see ExecutionMode
+    public static ExecutionMode executionMode = ExecutionMode.PLATFORM_THREADS;
+
+    //Executor running the tasks if executionMode is EXECUTOR
+    public static ExecutorService taskExecutor = null;
+
+    //If true, packets of new flows are dropped before packets of
+    //established flows while the queues of the pipelines, workers or the
+    //TUNWriter exceed the thresholds of OverloadController.
+    //Needs usePipeline, mapperWorkers > 1 or useTunWriter.
+    public static boolean useOverloadControl = false;
+
+    //Interval in ms in which stop() wakes threads blocked in a read of the
+    //TUN interface, until all tasks have ended
+    public static int stopWakeupInterval = 100;
+
+    //Port of the datagrams which wake the TUN readers (discard)
+    private static final int WAKEUP_PORT = 9;
+
+    //Time a failed start() waits for the tasks it started, in ms
+    private static final long ABORT_TIMEOUT = 5000;
+
+    //Fanout group ids are shared by all processes of the network namespace,
+    //the low 4 bits count the groups of this process, the others are taken
+    //from the process id
+    private static final int FANOUT_PROCESS_ID = getProcessId() << 4;
+    private static final AtomicInteger fanoutGroup = new AtomicInteger();
     
     //From an external point of view the conversion will be transparent,
     //from an internal point of view all communication takes place between
@@ -87,12 +231,53 @@ public class ConnectionMapper {
     //please refer to CoAPHTTPGateway - Sequenzdiagramm.pdf
     //TCP packets: localhost(tunBoundIP) <--> tunVirtualTcpIP
     //UDP packets: localhost(tunBoundIP) <--> tunVirtualUdpIP
-    static String tunVirtualUdpIP;
-    public static String tunVirtualTcpIP;
+    //All addresses and ports are part of the current configuration snapshot,
+    //which is read once per packet and can be replaced at any time.
+    private static volatile MapperConfig config;
     
-    //List containing all local bound IP addresses
-    //these will be ignored while processing incoming traffic
-    private static List<InetAddress> localBoundIPs = new ArrayList<InetAddress>();
+    //Set containing all local bound IP addresses
+    //these will be ignored while processing incoming traffic.
+    //The set is immutable and replaced (copy-on-write) on changes,
+    //so lookups need no lock.
+    private static volatile IPv6AddressSet localBoundIPs = IPv6AddressSet.EMPTY;
+
+    //Uplink capture interfaces opened by start(), used for capture statistics
+    private static volatile List<FilterableIFReader> tcpPcapIFs;
+    private static volatile List<FilterableIFReader> udpPcapIFs;
+
+    //io_uring engines opened by start() if useIoUring is set, used for statistics
+    private static volatile List<UringTUNIF> uringTUNIFs;
+
+    //pcap dumpers started by start() if dumpDirectory is set, used for statistics
+    private static volatile List<PcapDumper> pcapDumpers;
+
+    //Event loop started by start() if useEventLoop is set
+    private static volatile EventLoop eventLoop;
+
+    //Pipelines started by start() if usePipeline is set, used for statistics
+    private static volatile List<Pipeline> pipelines;
+
+    //Worker pool started by start() if mapperWorkers > 1
+    private static volatile WorkerPool workerPool;
+
+    //TUN writer started by start() if useTunWriter is set
+    private static volatile TUNWriter tunWriter;
+
+    //Overload controller created by start() if useOverloadControl is set,
+    //null otherwise
+    private static volatile OverloadController overloadController;
+
+    //Tasks started by start(), shut down by stop()
+    private static volatile TaskGroup tasks;
+
+    //Interfaces opened by start(), closed by stop() after all tasks have ended
+    private static volatile List<Closeable> openIFs;
+
+    //Set by start(), reset by stop() once the mapper can be started again
+    private static final AtomicBoolean started = new AtomicBoolean(false);
+
+    //Durations of the phases of the last start()
+    private static volatile StartupTimer startupTimer;
     
     /**
      * Allocate/open the TUN interface.
@@ -118,14 +303,324 @@ public class ConnectionMapper {
      * @return bytes written
      */
     public native int tun_write(int fd, byte[] buffer, int nbytes);
+
+    /**
+     * Returns the current configuration snapshot.
+     * @return Current configuration, null if not started yet
+     */
+    public static MapperConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * Activates a new configuration snapshot. Running threads will use it
+     * for their next packet, there is no need to restart them.
+     * start() activates a configuration with the virtual server ports
+     * virtualUDPServerPort and virtualTCPServerPort, later changes can be
+     * made with setConfig(getConfig().withVirtualServerPorts(udpPort, tcpPort)).
+     * @param newConfig New configuration
+     */
+    public static void setConfig(MapperConfig newConfig) {
+        config = newConfig;
+        log.info("New configuration: " + newConfig);
+    }
     
+    /**
+     * Returns the event loop which reads all interfaces.
+     * @return event loop, null if useEventLoop was not set on start
+     */
+    public static EventLoop getEventLoop() {
+        return eventLoop;
+    }
+
+    /**
+     * Returns the overload controller which sheds new flows.
+     * @return overload controller, null if useOverloadControl was not set on start
+     */
+    public static OverloadController getOverloadController() {
+        return overloadController;
+    }
+
+    /**
+     * Sets the overload controller consulted for packets of new flows.
+     * @param controller overload controller, null to disable overload control
+     */
+    static void setOverloadController(OverloadController controller) {
+        overloadController = controller;
+    }
+
+    /**
+     * Returns the task group running the threads started by start().
+     * @return task group, null if not started
+     */
+    public static TaskGroup getTasks() {
+        return tasks;
+    }
+
+    /**
+     * Stops the GatewayConnectionMapper. The event loop, the TUN writer and
+     * the dumpers are shut down, all other tasks are interrupted. Threads
+     * blocked in a read of the TUN interface are woken by datagrams routed
+     * into it, capture threads end after their read timeout. Once all tasks
+     * have ended, the interfaces are closed and the mapper can be started
+     * again. If tasks are still running after timeout, the interfaces stay
+     * open and stop() can be called again.
+     * @param timeout maximum time to wait for the tasks in ms
+     * @return true if all tasks have ended, false on timeout
+     * @throws InterruptedException Will be thrown when the calling thread was interrupted
+     */
+    public static boolean stop(long timeout) throws InterruptedException {
+        TaskGroup group = tasks;
+        if (group == null) {
+            //start() failed before starting tasks
+            reset();
+            log.info("ConnectionMapper not started.");
+            return true;
+        }
+        EventLoop loop = eventLoop;
+        if (loop != null) {
+            loop.shutdown();
+        }
+        TUNWriter writer = tunWriter;
+        if (writer != null) {
+            writer.shutdown();
+        }
+        List<PcapDumper> dumpers = pcapDumpers;
+        if (dumpers != null) {
+            for (PcapDumper dumper : dumpers) {
+                dumper.shutdown();
+            }
+        }
+        group.shutdown();
+        if (!awaitTermination(group, timeout)) {
+            log.warn("GatewayConnectionMapper not stopped, interfaces stay open, tasks still running: "
+                    + group.getTaskNames());
+            return false;
+        }
+        reset();
+        log.info("GatewayConnectionMapper stopped.");
+        return true;
+    }
+
+    /**
+     * Waits until all tasks have ended and wakes the TUN readers every
+     * stopWakeupInterval ms meanwhile.
+     */
+    private static boolean awaitTermination(TaskGroup group, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (true) {
+            wakeTunReaders();
+            long remaining = deadline - System.currentTimeMillis();
+            if (group.waitForTasks(Math.max(0, Math.min(remaining, stopWakeupInterval)))) {
+                return true;
+            }
+            if (remaining <= stopWakeupInterval) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Wakes threads blocked in a read of the TUN interface, a blocked read
+     * does not end when the interface is closed. Sends a empty datagram
+     * per TUN queue to a unused address in the network of the TUN
+     * interface, each from another port so they are spread across the
+     * queues. The mapper ignores them.
+     */
+    private static void wakeTunReaders() {
+        MapperConfig current = config;
+        if (current == null) {
+            return;
+        }
+        for (int i = 0; i < Math.max(1, tunQueues); i++) {
+            DatagramSocket socket = null;
+            try {
+                socket = new DatagramSocket();
+                socket.send(new DatagramPacket(new byte[0], 0, getWakeupAddress(current), WAKEUP_PORT));
+            } catch (IOException e) {
+                log.debug("Could not wake TUN readers: " + e.getMessage());
+            } finally {
+                if (socket != null) {
+                    socket.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a address next to the virtual UDP address, which is neither
+     * bound to the TUN interface nor a virtual address, so packets to it
+     * are routed into the TUN interface and ignored by the mapper.
+     * @param config Current configuration
+     * @return unused address in the network of the TUN interface
+     * @throws UnknownHostException never, the address has 16 bytes
+     */
+    static InetAddress getWakeupAddress(MapperConfig config) throws UnknownHostException {
+        byte[] address = config.getTunVirtualUdpIP().getBytes();
+        byte last = address[15];
+        for (int i = 1; ; i++) {
+            address[15] = (byte) (last ^ i);
+            if (!config.getTunBoundIP().equals(address, 0) && !config.getTunVirtualTcpIP().equals(address, 0)) {
+                return InetAddress.getByAddress(address);
+            }
+        }
+    }
+
+    /**
+     * Closes the interfaces opened by start() in reverse order and clears
+     * the state of the last start, so the mapper can be started again.
+     * No task may run anymore.
+     */
+    private static void reset() {
+        List<Closeable> ifs = openIFs;
+        if (ifs != null) {
+            for (int i = ifs.size() - 1; i >= 0; i--) {
+                try {
+                    ifs.get(i).close();
+                } catch (IOException e) {
+                    log.warn("Error while closing interface: " + e.getMessage());
+                }
+            }
+        }
+        openIFs = null;
+        tcpPcapIFs = null;
+        udpPcapIFs = null;
+        uringTUNIFs = null;
+        pcapDumpers = null;
+        eventLoop = null;
+        pipelines = null;
+        workerPool = null;
+        tunWriter = null;
+        overloadController = null;
+        tasks = null;
+        started.set(false);
+    }
+
+    private static void addCloseables(List<Closeable> opened, List<?> ifs) {
+        for (Object netIf : ifs) {
+            if (netIf instanceof Closeable) {
+                opened.add((Closeable) netIf);
+            }
+        }
+    }
+
+    /**
+     * Returns the duration of each phase of the last start, eg. library
+     * extraction, interface discovery and opening the interfaces.
+     * @return duration in ns by phase name, in order of the phases, empty if
+     * not started yet
+     */
+    public static Map<String, Long> getStartupTimings() {
+        StartupTimer timer = startupTimer;
+        if (timer == null) {
+            return Collections.emptyMap();
+        }
+        return timer.getTimings();
+    }
+
+    /**
+     * Logs the capture statistics (received and dropped frames) of both
+     * uplink interfaces. Drops indicate a too small PcapIF.BUFFER_SIZE.
+     * If io_uring is used, the system calls per TUN packet are logged too,
+     * if packets are dumped the written and dropped packets of each dumper,
+     * if pipelines are used the queued and dropped packets of each pipeline,
+     * if workers are used the queue depth and mapped packets of each worker,
+     * if a TUNWriter is used its batches and stalled writes,
+     * if overload control is used the shed new flows.
+     */
+    public static void logCaptureStatistics() {
+        List<FilterableIFReader> tcpPcaps = tcpPcapIFs;
+        List<FilterableIFReader> udpPcaps = udpPcapIFs;
+        if (tcpPcaps == null || udpPcaps == null) {
+            log.info("No capture statistics available, ConnectionMapper not started.");
+            return;
+        }
+        for (IFReader pcap : tcpPcaps) {
+            logCaptureStatistics(pcap);
+        }
+        for (IFReader pcap : udpPcaps) {
+            logCaptureStatistics(pcap);
+        }
+        List<UringTUNIF> uringTuns = uringTUNIFs;
+        if (uringTuns != null) {
+            for (UringTUNIF uringTun : uringTuns) {
+                uringTun.logStatistics();
+            }
+        }
+        List<PcapDumper> dumpers = pcapDumpers;
+        if (dumpers != null) {
+            for (PcapDumper dumper : dumpers) {
+                dumper.logStatistics();
+            }
+        }
+        List<Pipeline> stages = pipelines;
+        if (stages != null) {
+            for (Pipeline pipeline : stages) {
+                pipeline.logStatistics();
+            }
+        }
+        WorkerPool pool = workerPool;
+        if (pool != null) {
+            pool.logStatistics();
+        }
+        TUNWriter writer = tunWriter;
+        if (writer != null) {
+            writer.logStatistics();
+        }
+        OverloadController overload = overloadController;
+        if (overload != null) {
+            overload.logStatistics();
+        }
+    }
+
+    private static void logCaptureStatistics(IFReader captureIF) {
+        if (captureIF instanceof PcapIF) {
+            ((PcapIF) captureIF).logStatistics();
+        } else if (captureIF instanceof PacketRingIF) {
+            ((PacketRingIF) captureIF).logStatistics();
+        }
+    }
+
+    /**
+     * Creates and starts a dumper writing to dumpDirectory.
+     * @param ifName name of the dumped interface, used as file prefix
+     * @param linkType link type of the dumped packets
+     * @param dumpers list to which the dumper is added
+     * @param group task group which runs the dumper
+     * @return started dumper
+     */
+    private static PcapDumper openDumper(String ifName, int linkType, List<PcapDumper> dumpers,
+            TaskGroup group) {
+        PcapDumper dumper = new PcapDumper(new File(dumpDirectory, ifName).getPath(), linkType);
+        group.execute(dumper);
+        dumpers.add(dumper);
+        return dumper;
+    }
+
+    /**
+     * Wraps interfaces with taps using dumpFilter and dumpSampling.
+     * @param ifs wrapped interfaces
+     * @param dumper dumper for the packets of all interfaces
+     * @return taps
+     */
+    @SuppressWarnings("unchecked")
+    private static <T extends IF> List<T> tap(List<T> ifs, PcapDumper dumper) {
+        List<T> taps = new ArrayList<T>();
+        for (T netIf : ifs) {
+            //TapIF implements all interfaces of the connection interfaces
+            taps.add((T) new TapIF(netIf, dumper, dumpFilter, dumpSampling));
+        }
+        return taps;
+    }
+
     /**
      * Starts the GatewayConnectionMapper.
      * The application which calls this function must have the right to
      * access TUN Interfaces. User with CAP_NET_ADMIN capability or
      * root under linux.
      * 
-     * @param tunWrapperPath path to the TUN wrapper C library
+     * @param tunWrapperPath path to the TUN wrapper C library, null to
+     * access the TUN interface with FfmTUNIF
      * @param tunBoundIP IP which is bound to the TUN interface
      * @param localUdpServerPort port on which the UDP server listens
      * @param localHttpServerPort port on which the TCP server listens
@@ -136,6 +631,8 @@ public class ConnectionMapper {
      * @param tcpNetIf ethernet interface to the TCP network
      * @param tcpNetIfMac mac address of tcpNetIf
      * @param tunNetIf tun interface name
+     * @param udpBackend capture implementation for udpNetIf
+     * @param tcpBackend capture implementation for tcpNetIf
      * @throws Exception will be thrown when starting fails
      */
     private static void start(String tunWrapperPath,
@@ -143,86 +640,300 @@ public class ConnectionMapper {
             String tunUdpIP, String tunTcpIP,
             String udpNetIf, String udpNetIfMac,
             String tcpNetIf, String tcpNetIfMac,
-            String tunNetIf) throws Exception {
+            String tunNetIf, CaptureBackend udpBackend, CaptureBackend tcpBackend) throws Exception {
+        StartupTimer timer = startupTimer;
+        TaskGroup group = new TaskGroup("GatewayConnectionMapper", executionMode, taskExecutor);
+        tasks = group;
+        List<Closeable> opened = new ArrayList<Closeable>();
+        openIFs = opened;
 
         //load TUN wrapper
-        System.load(tunWrapperPath);
+        if (tunWrapperPath != null) {
+            System.load(tunWrapperPath);
+        }
         
         
         //log = log4jLogger;
-        ConnectionMapper.tunBoundIP = tunBoundIP;
-        ConnectionMapper.localUdpServerPort = localUdpServerPort;
-        ConnectionMapper.localTcpServerPort = localHttpServerPort;
-        ConnectionMapper.tunVirtualUdpIP = tunUdpIP;
-        ConnectionMapper.tunVirtualTcpIP = tunTcpIP;
-
-
-        //create Pcap and TUN interfaces
-        PcapIF tcpPcap = new PcapIF(tcpNetIf);
-        byte[] tcpPcapmac = getHWaddrAsBytes(tcpNetIfMac);
-        PcapIF udpPcap = new PcapIF(udpNetIf);
-        byte[] udpPcapmac = getHWaddrAsBytes(udpNetIfMac);
-        TUNIF tun = new TUNIF(tunNetIf);
-        
-        //create threads
-        TcpNetIfPcapThread tcpThread =
-                new TcpNetIfPcapThread(tun, tcpPcap, tcpPcapmac);
-        UdpNetIfPcapThread udpThread =
-                new UdpNetIfPcapThread(tun, udpPcap, udpPcapmac);
-        TunNetIfThread tunThread = new TunNetIfThread(tun);
-        
-        //start threads
-        tcpThread.start();
-        udpThread.start();
-        tunThread.start();
+        setConfig(new MapperConfig(IPv6Address.getByName(tunBoundIP), localUdpServerPort, localHttpServerPort,
+                IPv6Address.getByName(tunUdpIP), IPv6Address.getByName(tunTcpIP),
+                virtualUDPServerPort, virtualTCPServerPort,
+                getHWaddrAsLong(getHWaddrAsBytes(udpNetIfMac)), getHWaddrAsLong(getHWaddrAsBytes(tcpNetIfMac))));
 
-        log.info("GatewayConnectionMapper started.");
-        
-        //TODO create function to stop connection mapper
-        //TODO prevent starting when ConnectionMapper already runs
+
+        if (useIoUring && useEventLoop) {
+            log.warn("io_uring is not supported by the event loop, TUN interface is read with read().");
+        }
+        boolean ioUring = useIoUring && !useEventLoop;
+        if ((usePipeline || mapperWorkers > 1) && useEventLoop) {
+            log.warn("Pipelines and workers are not supported by the event loop, "
+                    + "packets are processed by the event loop thread.");
+        } else if (usePipeline && mapperWorkers > 1) {
+            log.warn("Pipelines are not used together with workers.");
+        }
+
+        //load packet IO library if a ring, multi queue TUN interface,
+        //event loop or io_uring is used
+        if (udpBackend == CaptureBackend.PACKET_RING || tcpBackend == CaptureBackend.PACKET_RING
+                || tunQueues > 1 || useEventLoop || ioUring) {
+            System.load(extractLibrary("libPacketIOCdl").getAbsolutePath());
+        }
+        timer.phase("library loading");
+
+        //create capture and TUN interfaces
+        List<FilterableIFReader> tcpPcaps = openCaptureIFs(tcpNetIf, tcpBackend);
+        addCloseables(opened, tcpPcaps);
+        List<FilterableIFReader> udpPcaps = openCaptureIFs(udpNetIf, udpBackend);
+        addCloseables(opened, udpPcaps);
+        timer.phase("capture interfaces");
+        IFReadWriter tun;
+        List<IFReadWriter> tunQueueIFs = new ArrayList<IFReadWriter>();
+        if (tunWrapperPath == null) {
+            tun = TUNIF.openFfm(tunNetIf);
+            if (tun == null) {
+                throw new IOException("FfmTUNIF is not available.");
+            }
+            tunQueueIFs.add(tun);
+        } else {
+            TUNIF tunIF = tunQueues > 1 ? new TUNIF(tunNetIf, tunQueues) : new TUNIF(tunNetIf);
+            for (int i = 0; i < tunIF.getQueueCount(); i++) {
+                tunQueueIFs.add(tunIF.getQueue(i));
+            }
+            tun = tunIF;
+        }
+        addCloseables(opened, Collections.singletonList(tun));
+        timer.phase("TUN interface");
+        tcpPcapIFs = tcpPcaps;
+        udpPcapIFs = udpPcaps;
+        if (useCaptureFilters) {
+            for (FilterableIFReader tcpPcap : tcpPcaps) {
+                installCaptureFilter(tcpPcap, config.getTcpNetIfMac());
+                if (useDynamicCaptureFilters) {
+                    group.execute(new DynamicCaptureFilter(tcpPcap, true));
+                }
+            }
+            for (FilterableIFReader udpPcap : udpPcaps) {
+                installCaptureFilter(udpPcap, config.getUdpNetIfMac());
+                if (useDynamicCaptureFilters) {
+                    group.execute(new DynamicCaptureFilter(udpPcap, false));
+                }
+            }
+        }
+
+        timer.phase("capture filters");
+
+        //io_uring engines replace the TUN queues
+        if (ioUring) {
+            List<UringTUNIF> uringTuns = new ArrayList<UringTUNIF>();
+            for (IFReadWriter tunQueue : tunQueueIFs) {
+                UringTUNIF uringTun = new UringTUNIF(tunQueue);
+                opened.add(uringTun);
+                uringTuns.add(uringTun);
+            }
+            uringTUNIFs = uringTuns;
+            tunQueueIFs = new ArrayList<IFReadWriter>(uringTuns);
+        }
+
+        //mirror packets of all interfaces into pcap files, after the filters
+        //are installed so only forwarded frames are dumped
+        if (dumpDirectory != null) {
+            List<PcapDumper> dumpers = new ArrayList<PcapDumper>();
+            PcapDumper tunDumper = openDumper(tunNetIf, PcapDumper.LINKTYPE_RAW, dumpers, group);
+            tun = new TapIF(tun, tunDumper, dumpFilter, dumpSampling);
+            tunQueueIFs = tap(tunQueueIFs, tunDumper);
+            PcapDumper tcpDumper = openDumper(tcpNetIf, PcapDumper.LINKTYPE_ETHERNET, dumpers, group);
+            PcapDumper udpDumper = udpNetIf.equals(tcpNetIf) ? tcpDumper
+                    : openDumper(udpNetIf, PcapDumper.LINKTYPE_ETHERNET, dumpers, group);
+            tcpPcaps = tap(tcpPcaps, tcpDumper);
+            udpPcaps = tap(udpPcaps, udpDumper);
+            pcapDumpers = dumpers;
+        }
+
+        //new flows are shed if the queues behind the capture threads fill up
+        OverloadController overload = useOverloadControl ? new OverloadController() : null;
+        overloadController = overload;
+
+        //a single thread writes the packets of all uplinks to the TUN interface
+        IFWriter uplinkTun = tun;
+        if (useTunWriter) {
+            if (useEventLoop || ioUring) {
+                log.warn("TUNWriter is not used with the event loop or io_uring, which batch writes themselves.");
+            } else {
+                TUNWriter writer = new TUNWriter(tun);
+                group.execute(writer);
+                tunWriter = writer;
+                uplinkTun = writer;
+                if (overload != null) {
+                    overload.watch(writer.getQueue());
+                }
+            }
+        }
+
+        if (useEventLoop) {
+            //a single thread for all interfaces
+            EventLoop loop = new EventLoop();
+            for (FilterableIFReader tcpPcap : tcpPcaps) {
+                loop.addUplink(tcpPcap, tun, false);
+            }
+            for (FilterableIFReader udpPcap : udpPcaps) {
+                loop.addUplink(udpPcap, tun, true);
+            }
+            for (IFReadWriter tunQueue : tunQueueIFs) {
+                loop.addTun(tunQueue);
+            }
+            group.execute(loop);
+            eventLoop = loop;
+        } else if (mapperWorkers > 1) {
+            //each interface is read by a dispatcher, the packets are mapped
+            //by the workers. With io_uring each worker is assigned to a engine.
+            List<? extends IFWriter> workerTuns = ioUring ? tunQueueIFs : Collections.singletonList(uplinkTun);
+            WorkerPool pool = new WorkerPool(workerTuns, mapperWorkers);
+            for (FilterableIFReader tcpPcap : tcpPcaps) {
+                pool.addUplink(tcpPcap, false);
+            }
+            for (FilterableIFReader udpPcap : udpPcaps) {
+                pool.addUplink(udpPcap, true);
+            }
+            for (IFReadWriter tunQueue : tunQueueIFs) {
+                pool.addTun(tunQueue);
+            }
+            if (overload != null) {
+                for (FlowWorker flowWorker : pool.getWorkers()) {
+                    overload.watch(flowWorker.getQueue());
+                }
+            }
+            pool.start(group);
+            workerPool = pool;
+            log.info(mapperWorkers + " mapping workers started.");
+        } else {
+            //each TUN queue is read by its own thread,
+            //create and start threads, one per capture worker. Without io_uring
+            //uplink threads write to the TUN interface which spreads packets
+            //by flow hash, with io_uring each uplink thread is assigned to
+            //a engine, so its packets are batched by one engine.
+            //With usePipeline each of these threads is split into a pipeline.
+            List<Pipeline> stages = new ArrayList<Pipeline>();
+            int worker = 0;
+            for (FilterableIFReader tcpPcap : tcpPcaps) {
+                IFWriter writer = ioUring ? tunQueueIFs.get(worker++ % tunQueueIFs.size()) : uplinkTun;
+                if (usePipeline) {
+                    stages.add(Pipeline.createUplink(tcpPcap, writer, false));
+                } else {
+                    group.execute(new TcpNetIfPcapThread(writer, tcpPcap));
+                }
+            }
+            for (FilterableIFReader udpPcap : udpPcaps) {
+                IFWriter writer = ioUring ? tunQueueIFs.get(worker++ % tunQueueIFs.size()) : uplinkTun;
+                if (usePipeline) {
+                    stages.add(Pipeline.createUplink(udpPcap, writer, true));
+                } else {
+                    group.execute(new UdpNetIfPcapThread(writer, udpPcap));
+                }
+            }
+            for (IFReadWriter tunQueue : tunQueueIFs) {
+                if (usePipeline) {
+                    stages.add(Pipeline.createTun(tunQueue));
+                } else {
+                    group.execute(new TunNetIfThread(tunQueue));
+                }
+            }
+            for (Pipeline pipeline : stages) {
+                if (overload != null) {
+                    overload.watch(pipeline.getCapturedQueue());
+                    overload.watch(pipeline.getMappedQueue());
+                }
+                pipeline.start(group);
+            }
+            if (usePipeline) {
+                pipelines = stages;
+            }
+        }
+
+        if (overload != null && overload.getWatchedQueues() == 0) {
+            log.warn("Overload control needs usePipeline, mapperWorkers > 1 or useTunWriter, "
+                    + "no new flows will be shed.");
+        }
+
+        timer.phase("threads");
+        log.info("GatewayConnectionMapper started in " + timer + ", "
+                + group.getTaskNames().size() + " tasks on " + group.getMode() + ".");
     }
 
 
     public static void start(String udpNetworkInterfaceName, String tcpNetworkInterfaceName,
                              String tunNetworkInterfaceName, int udpServerPort, int tcpServerPort)
             throws URISyntaxException, SocketException, Exception {
+        start(udpNetworkInterfaceName, tcpNetworkInterfaceName, tunNetworkInterfaceName,
+                udpServerPort, tcpServerPort, CaptureBackend.PCAP, CaptureBackend.PCAP);
+    }
 
-        String TunWrapperLibraryName = "/libTUNWrapperCdl.so";
-        InputStream inputStream = ConnectionMapper.class.getResourceAsStream(TunWrapperLibraryName);
-        File libFile = File.createTempFile("libTunWrapperCdl", ".so");
+    /**
+     * Starts the GatewayConnectionMapper with the given capture implementations
+     * for the uplink interfaces.
+     * @param udpNetworkInterfaceName ethernet interface to the UDP network
+     * @param tcpNetworkInterfaceName ethernet interface to the TCP network
+     * @param tunNetworkInterfaceName tun interface name
+     * @param udpServerPort port on which the UDP server listens
+     * @param tcpServerPort port on which the TCP server listens
+     * @param udpBackend capture implementation for the UDP network interface
+     * @param tcpBackend capture implementation for the TCP network interface
+     * @throws IllegalStateException will be thrown when the mapper already runs
+     * @throws Exception will be thrown when starting fails, the interfaces
+     * opened so far are closed again
+     */
+    public static void start(String udpNetworkInterfaceName, String tcpNetworkInterfaceName,
+                             String tunNetworkInterfaceName, int udpServerPort, int tcpServerPort,
+                             CaptureBackend udpBackend, CaptureBackend tcpBackend)
+            throws URISyntaxException, SocketException, Exception {
+        if (!started.compareAndSet(false, true)) {
+            throw new IllegalStateException("GatewayConnectionMapper already runs, call stop() first.");
+        }
+        try {
+            startOnInterfaces(udpNetworkInterfaceName, tcpNetworkInterfaceName, tunNetworkInterfaceName,
+                    udpServerPort, tcpServerPort, udpBackend, tcpBackend);
+        } catch (Exception e) {
+            if (!stop(ABORT_TIMEOUT)) {
+                log.error("Tasks of the failed start are still running, stop() has to be called again.");
+            }
+            throw e;
+        }
+    }
+
+    private static void startOnInterfaces(String udpNetworkInterfaceName, String tcpNetworkInterfaceName,
+                             String tunNetworkInterfaceName, int udpServerPort, int tcpServerPort,
+                             CaptureBackend udpBackend, CaptureBackend tcpBackend)
+            throws URISyntaxException, SocketException, Exception {
 
-        log.info("Extract TUN wrapper library to path: " + libFile.getAbsolutePath());
-        FileOutputStream outputStream = new FileOutputStream(libFile);
+        StartupTimer timer = new StartupTimer();
+        startupTimer = timer;
 
-        int nextByte = inputStream.read();
-        while(nextByte != -1){
-            outputStream.write(nextByte);
-            nextByte = inputStream.read();
+        String tunWrapperPath = null;
+        if (useFfmTun && tunQueues == 1 && TUNIF.isFfmAvailable()) {
+            log.info("TUN interface is accessed with FfmTUNIF.");
+        } else {
+            if (useFfmTun) {
+                log.warn("FfmTUNIF is not available or tunQueues > 1, using the TUN wrapper.");
+            }
+            tunWrapperPath = extractLibrary("libTUNWrapperCdl").getAbsolutePath();
         }
+        timer.phase("library extraction");
 
-        inputStream.close();
-        outputStream.close();
+        //all interfaces are collected in one pass
+        Map<String, InterfaceInfo> interfaces = discoverInterfaces(udpNetworkInterfaceName,
+                tcpNetworkInterfaceName, tunNetworkInterfaceName);
 
-        log.debug("Path of library 'libTUNWrapperCdl.so': " + libFile.getAbsolutePath());
-        log.debug("File exists: " + libFile.exists());
-        
-        String cmd[] = {"chmod", "755", libFile.getAbsolutePath()};
-        Process p = Runtime.getRuntime().exec(cmd);
-        log.debug("chmod finished with code: " + p.waitFor());
-        
         //UDP network interface
-        NetworkInterface udpNetworkInterface = NetworkInterface.getByName(udpNetworkInterfaceName);
+        InterfaceInfo udpNetworkInterface = interfaces.get(udpNetworkInterfaceName);
         
-        List<Inet6Address> udpNetworkInterfaceIpv6Addresses = getGlobalUniqueIpv6Addresses(udpNetworkInterface);
+        List<Inet6Address> udpNetworkInterfaceIpv6Addresses = udpNetworkInterface.getGlobalAddresses();
         if(udpNetworkInterfaceIpv6Addresses.isEmpty()){
             throw new SocketException("No global unique IPv6Packet address for UDP network interface (" +
                 udpNetworkInterface.getName() + ").");
         }
 
-        localBoundIPs.addAll(udpNetworkInterfaceIpv6Addresses);
+        List<Inet6Address> boundIPs = new ArrayList<Inet6Address>(udpNetworkInterfaceIpv6Addresses);
 
         String udpNetworkInterfaceIpv6Address =
-                removeScopeAndShorten(getGlobalUniqueIpv6Addresses(udpNetworkInterface).get(0).getHostAddress());
+                removeScopeAndShorten(udpNetworkInterfaceIpv6Addresses.get(0).getHostAddress());
         log.debug("UDP network interface (" + udpNetworkInterface.getName() +
                 ") global unique Ipv6 address: " + udpNetworkInterfaceIpv6Address);
 
@@ -232,14 +943,14 @@ public class ConnectionMapper {
 
 
         //TCP network interface
-        NetworkInterface tcpNetworkInterface = NetworkInterface.getByName(tcpNetworkInterfaceName);
+        InterfaceInfo tcpNetworkInterface = interfaces.get(tcpNetworkInterfaceName);
 
-        List<Inet6Address> tcpNetworkInterfaceIpv6Addresses = getGlobalUniqueIpv6Addresses(tcpNetworkInterface);
+        List<Inet6Address> tcpNetworkInterfaceIpv6Addresses = tcpNetworkInterface.getGlobalAddresses();
         if(tcpNetworkInterfaceIpv6Addresses.isEmpty()){
             throw new SocketException("No global unique IPv6Packet address for TCPnetwork interface (" +
                     tcpNetworkInterface.getName() + ").");
         }
-        localBoundIPs.addAll(tcpNetworkInterfaceIpv6Addresses);
+        boundIPs.addAll(tcpNetworkInterfaceIpv6Addresses);
 
         String tcpNetworkInterfaceIpv6Address =
                 removeScopeAndShorten(tcpNetworkInterfaceIpv6Addresses.get(0).getHostAddress());
@@ -252,24 +963,23 @@ public class ConnectionMapper {
 
 
         //TUN network interface
-        NetworkInterface tunNetworkInterface = NetworkInterface.getByName(tunNetworkInterfaceName);
-        if(tunNetworkInterface == null){
-            throw new SocketException("Network interface does not exist: " + tunNetworkInterfaceName);
-        }
+        InterfaceInfo tunNetworkInterface = interfaces.get(tunNetworkInterfaceName);
 
-        List<Inet6Address> tunNetworkInterfaceIpv6Addresses = getGlobalUniqueIpv6Addresses(tunNetworkInterface);
+        List<Inet6Address> tunNetworkInterfaceIpv6Addresses = tunNetworkInterface.getGlobalAddresses();
         if(tunNetworkInterfaceIpv6Addresses.size() < 1){
             throw new SocketException("1 bound global unique IPv6Packet address for TUN network interface (" +
                     tcpNetworkInterface.getName() + ") necessary but only " +
                     tunNetworkInterfaceIpv6Addresses.size() + " are bound.");
         }
 
-        localBoundIPs.add(tunNetworkInterfaceIpv6Addresses.get(0));
+        boundIPs.add(tunNetworkInterfaceIpv6Addresses.get(0));
+        addLocalBoundIPs(boundIPs);
         
         String tunNetworkInterfaceIpv6Address =
                 removeScopeAndShorten(tunNetworkInterfaceIpv6Addresses.get(0).getHostAddress());
         log.debug("TUN network interface (" + tunNetworkInterface.getName() +
                 ") global unique Ipv6 address: " + tunNetworkInterfaceIpv6Address);
+        timer.phase("interface discovery");
 
         
         //virtual TUN interfaces
@@ -284,13 +994,118 @@ public class ConnectionMapper {
         log.debug("TUN TCP network interface global IPv6Packet address: " + tunTcpNetworkInterfaceIpv6Address);
         
 
-        start(libFile.getAbsolutePath(), tunNetworkInterfaceIpv6Address, udpServerPort, tcpServerPort,
+        start(tunWrapperPath, tunNetworkInterfaceIpv6Address, udpServerPort, tcpServerPort,
                 tunUdpNetworkInterfaceIpv6Address, tunTcpNetworkInterfaceIpv6Address,
                 udpNetworkInterfaceName, udpNetworkInterfaceHardwareAddress,
                 tcpNetworkInterfaceName, tcpNetworkInterfaceHardwareAddress,
-                tunNetworkInterfaceName);
+                tunNetworkInterfaceName, udpBackend, tcpBackend);
+    }
+
+    /**
+     * Extracts a native library from the jar into libraryCacheDirectory,
+     * a library which was extracted by a previous start is reused.
+     * @param libraryName name of the library without ".so" (eg. "libTUNWrapperCdl")
+     * @return extracted library
+     * @throws IOException Will be thrown when extracting failed
+     */
+    private static File extractLibrary(String libraryName) throws IOException {
+        File cacheDirectory = libraryCacheDirectory != null ? new File(libraryCacheDirectory)
+                : NativeLibrary.getDefaultCacheDirectory();
+        return NativeLibrary.extract(libraryName, cacheDirectory);
+    }
+
+    /**
+     * Collects the data of network interfaces with a single enumeration of
+     * all interfaces of the system.
+     * @param names interface names
+     * @return data by interface name
+     * @throws SocketException Will be thrown when a interface does not exist
+     */
+    private static Map<String, InterfaceInfo> discoverInterfaces(String... names) throws SocketException {
+        Set<String> missing = new HashSet<String>(Arrays.asList(names));
+        Map<String, InterfaceInfo> result = new HashMap<String, InterfaceInfo>();
+        Enumeration<NetworkInterface> networkInterfaces = NetworkInterface.getNetworkInterfaces();
+        while (networkInterfaces != null && networkInterfaces.hasMoreElements() && !missing.isEmpty()) {
+            NetworkInterface networkInterface = networkInterfaces.nextElement();
+            if (missing.remove(networkInterface.getName())) {
+                result.put(networkInterface.getName(), new InterfaceInfo(networkInterface.getName(),
+                        networkInterface.getHardwareAddress(), getGlobalUniqueIpv6Addresses(networkInterface)));
+            }
+        }
+        if (!missing.isEmpty()) {
+            throw new SocketException("Network interface does not exist: " + missing.iterator().next());
+        }
+        return result;
+    }
+
+    /**
+     * Opens the capture interfaces of a uplink, one per capture worker.
+     * @param ifName ethernet interface name
+     * @param backend capture implementation
+     * @return capture interfaces
+     * @throws IOException Will be thrown when opening failed
+     */
+    private static List<FilterableIFReader> openCaptureIFs(String ifName, CaptureBackend backend)
+            throws IOException {
+        List<FilterableIFReader> result = new ArrayList<FilterableIFReader>();
+        if (backend != CaptureBackend.PACKET_RING) {
+            if (captureWorkers > 1) {
+                log.warn("Multiple capture workers need CaptureBackend.PACKET_RING, using one for " + ifName);
+            }
+            result.add(new PcapIF(ifName));
+            return result;
+        }
+        if (captureWorkers <= 1) {
+            result.add(new PacketRingIF(ifName));
+            return result;
+        }
+        int group = (FANOUT_PROCESS_ID | fanoutGroup.getAndIncrement() & 0xF) & 0xFFFF;
+        try {
+            for (int i = 0; i < captureWorkers; i++) {
+                PacketRingIF ring = new PacketRingIF(ifName);
+                result.add(ring);
+                ring.joinFanout(group);
+            }
+        } catch (IOException e) {
+            //the caller only closes interfaces which were returned
+            for (FilterableIFReader ring : result) {
+                ((PacketRingIF) ring).close();
+            }
+            throw e;
+        }
+        log.info(captureWorkers + " capture workers on " + ifName + " (fanout group " + group + ")");
+        return result;
     }
     
+    /**
+     * Returns the id of this process.
+     * @return process id, a random number if it is not known
+     */
+    private static int getProcessId() {
+        //"pid@hostname" on all common JVMs
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        try {
+            return Integer.parseInt(name.substring(0, name.indexOf('@')));
+        } catch (RuntimeException e) {
+            return new Random().nextInt();
+        }
+    }
+
+    /**
+     * Installs the static capture filter on a uplink pcap interface.
+     * If this fails, all frames are captured and filtered in user space.
+     * @param pcap uplink capture interface
+     * @param netIfMac mac address of the uplink interface
+     */
+    private static void installCaptureFilter(FilterableIFReader pcap, long netIfMac) {
+        try {
+            pcap.setFilter(CaptureFilter.createStaticFilter(netIfMac, localBoundIPs));
+            pcap.setInboundOnly();
+        } catch (IOException e) {
+            log.warn("Capturing without kernel filter on " + pcap.getName() + ": " + e.getMessage());
+        }
+    }
+
     private static String removeScopeAndShorten(String address){
         String result;
         if(address.indexOf("%") > -1){
@@ -356,18 +1171,81 @@ public class ConnectionMapper {
     }
 
 
+    /**
+     * Adds addresses to the set of local bound IPs, eg. when a interface
+     * got a new address. Packets to these addresses will be ignored.
+     * @param addresses New local bound addresses
+     * @throws UnknownHostException Will be thrown when a address is no IPv6 address
+     */
+    public static synchronized void addLocalBoundIPs(Collection<? extends InetAddress> addresses)
+            throws UnknownHostException {
+        localBoundIPs = localBoundIPs.with(toIPv6Addresses(addresses));
+        log.debug("Local bound IPs: " + localBoundIPs);
+    }
+
+    /**
+     * Replaces the set of local bound IPs, eg. after interface addresses changed.
+     * The new set is built completely before it is published, so mapper
+     * threads never see a partial set. On errors the old set stays in use.
+     * @param addresses All local bound addresses
+     * @throws UnknownHostException Will be thrown when a address is no IPv6 address
+     */
+    public static synchronized void setLocalBoundIPs(Collection<? extends InetAddress> addresses)
+            throws UnknownHostException {
+        localBoundIPs = new IPv6AddressSet(toIPv6Addresses(addresses));
+        log.debug("Local bound IPs: " + localBoundIPs);
+    }
+
+    private static List<IPv6Address> toIPv6Addresses(Collection<? extends InetAddress> addresses)
+            throws UnknownHostException {
+        List<IPv6Address> result = new ArrayList<IPv6Address>(addresses.size());
+        for (InetAddress address : addresses) {
+            result.add(new IPv6Address(address));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the current set of local bound IPs.
+     * @return Immutable set of local bound IPs
+     */
+    public static IPv6AddressSet getLocalBoundIPs() {
+        return localBoundIPs;
+    }
+
     /**
      * Test if destination of an IPv6Packet packet is a local bound ip.
      * @param packet IPv6Packet packet
      * @return True if destination address is locally bound.
      */
-    public static synchronized boolean targetIsBoundIP(IPv6Packet packet) {
-        for (InetAddress a : localBoundIPs) {
-            if (a.equals(packet.getDestIP())) {
-                return true;
-            }
-        }
-        return false;
+    public static boolean targetIsBoundIP(IPv6Packet packet) {
+        return localBoundIPs.contains(packet.getDestIP().getAddress(), 0);
+    }
+
+    /**
+     * Test if destination of the IPv6Packet packet at buffer[offset] is a local bound ip.
+     * @param buffer Buffer containing the packet
+     * @param offset Index of the first IPv6Packet byte in buffer
+     * @return True if destination address is locally bound.
+     */
+    public static boolean targetIsBoundIP(byte[] buffer, int offset) {
+        return localBoundIPs.contains(buffer, offset + 24);
+    }
+
+    /**
+     * Test if the IPv6Packet packet at buffer[offset] will be ignored because
+     * its destination is link local, multicast or locally bound.
+     * @param buffer Buffer containing the packet (at least 40 bytes)
+     * @param offset Index of the first IPv6Packet byte in buffer
+     * @return True if the packet should be ignored
+     */
+    static boolean isIgnoredDestination(byte[] buffer, int offset) {
+        int first = buffer[offset + 24] & 0xFF;
+        int second = buffer[offset + 25] & 0xFF;
+        //ff00::/8 multicast, fe80::/10 link local
+        return first == 0xFF
+                || (first == 0xFE && (second & 0xC0) == 0x80)
+                || targetIsBoundIP(buffer, offset);
     }
     
     /**
@@ -380,66 +1258,132 @@ public class ConnectionMapper {
      * @throws Exception 
      */
     static void mapUDPNetIF(IFReader pcap, byte[] buffer, IFReadWriter tun, byte[] blockedSourceMac) throws Exception {
-        int bytesRead = pcap.read(buffer, buffer.length);
-        EthernetFrame frame = new EthernetFrame(buffer, bytesRead);
-        byte[] framePayload = frame.getPayload();
-        if (frame.isIPv6() && !byteArrayEquals(frame.getSourceMac(), blockedSourceMac)) {
-            //process incoming traffic only
-            IPv6Packet readPacket = null;
-            try {
-                readPacket = new IPv6Packet(framePayload);
-            } catch (Exception e) {
-                log.debug("UDP IF: Non IPv6Packet packet received. Will be ignored...");
-                //drop packet
-                return;
-            }
+        mapUDPNetIF(pcap, buffer, tun, getHWaddrAsLong(blockedSourceMac));
+    }
 
-            if (readPacket.getDestIP().isLinkLocalAddress() 
-                    || readPacket.getDestIP().isMulticastAddress() 
-                    || ConnectionMapper.targetIsBoundIP(readPacket)) {
-                //packet will be ignored because
-                //its destination is locally bound or not UDP
-                return;
-            }
-            
-            if (readPacket.isUDP()) {
-                ConnectionTable table = ConnectionTable.getInstance();
-                int mappedPort = table.getMappedPortFromUDPResponseForTCPRequest(readPacket);
-                if (readPacket.getDestPort() == ConnectionMapper
-                    .virtualUDPServerPort || mappedPort != -1) {
-                    //The read packet is either a new request with dest. port
-                    //virtualUDPServerPort or a packet associated to an existing
-                    //connection.
-                    int packetSourcePort;
-                    Request request;
-                    if (mappedPort == -1) {
-                        //UDP packet is a UDP request to a TCP server
-                        packetSourcePort = table.mapUdpRequest(readPacket);
-                        request = table.getUdpRequest(packetSourcePort);
-                    } else {
-                        //UDP packet it a UDP response to a TCP client
-                        packetSourcePort = mappedPort;
-                        request = table.getTcpRequest(mappedPort);
-                    }
+    /**
+     * Read a single IPv6Packet packet and modify its connection data. (UDP side)
+     * @param pcap UDP side pcap interface to read data from
+     * @param buffer Buffer in which the read data will be stored
+     * @param tun TUN interface to write the modified packet
+     * @param blockedSourceMac If the IPv6Packet packet has this source mac (as long), it will
+     * be ignored
+     * @throws Exception
+     */
+    static void mapUDPNetIF(IFReader pcap, byte[] buffer, IFReadWriter tun, long blockedSourceMac) throws Exception {
+        mapUDPNetIF(IFAdapter.bufferReader(pcap), ByteBuffer.wrap(buffer), IFAdapter.bufferReadWriter(tun),
+                config, blockedSourceMac);
+    }
+
+    /**
+     * Read a single IPv6Packet packet and modify its connection data. (UDP side)
+     * @param pcap UDP side pcap interface to read data from
+     * @param buffer Heap buffer in which the read frame will be stored at index 0
+     * @param tun TUN interface to write the modified packet
+     * @param config Configuration snapshot used for the packet
+     * @param blockedSourceMac If the IPv6Packet packet has this source mac (as long), it will
+     * be ignored
+     * @throws Exception
+     */
+    static void mapUDPNetIF(IFBufferReader pcap, ByteBuffer buffer, IFBufferWriter tun, MapperConfig config,
+            long blockedSourceMac) throws Exception {
+        buffer.clear();
+        int bytesRead = pcap.read(buffer);
+        mapUDPFrame(buffer.array(), bytesRead, tun, config, blockedSourceMac);
+    }
+
+    /**
+     * Modify the connection data of a single received ethernet frame. (UDP side)
+     * @param buffer Buffer containing the frame, its content will be modified
+     * @param bytesRead Length of the frame
+     * @param tun TUN interface to write the modified packet
+     * @param blockedSourceMac If the IPv6Packet packet has this source mac (as long), it will
+     * be ignored
+     * @throws Exception
+     */
+    static void mapUDPFrame(byte[] buffer, int bytesRead, IFBufferWriter tun, long blockedSourceMac) throws Exception {
+        mapUDPFrame(buffer, bytesRead, tun, config, blockedSourceMac);
+    }
 
-                    ConnectionMapper.log.debug("UDP IF: Incoming UDP packet mapped to " + request);
-                    //modify IPv6Packet packet
-                    readPacket.setSourceIP(InetAddress.getByName(ConnectionMapper.tunVirtualUdpIP));
-                    readPacket.setSourcePort(packetSourcePort);
-                    readPacket.setDestIP(InetAddress.getByName(ConnectionMapper.tunBoundIP));
-                    readPacket.setDestPort(request.getLocalUdpPort());
+    /**
+     * Modify the connection data of a single received ethernet frame. (UDP side)
+     * @param buffer Buffer containing the frame, its content will be modified
+     * @param bytesRead Length of the frame
+     * @param tun TUN interface to write the modified packet
+     * @param config Configuration snapshot used for the frame, the caller
+     * takes blockedSourceMac from the same snapshot
+     * @param blockedSourceMac If the IPv6Packet packet has this source mac (as long), it will
+     * be ignored
+     * @throws Exception
+     */
+    static void mapUDPFrame(byte[] buffer, int bytesRead, IFBufferWriter tun, MapperConfig config,
+            long blockedSourceMac) throws Exception {
+        //check type and source mac in place, dropped frames are never copied
+        EthernetFrameView frame = new EthernetFrameView(buffer, bytesRead);
+        if (!frame.isIPv6() || frame.getSourceMac() == blockedSourceMac) {
+            return;
+        }
+        //process incoming traffic only
+        int ipIndex = frame.getPayloadOffset();
+        int ipLength = IPv6Packet.getPacketLength(buffer, ipIndex, frame.getPayloadLength());
+        if (ipLength == -1) {
+            log.debug("UDP IF: Non IPv6Packet packet received. Will be ignored...");
+            //drop packet
+            return;
+        }
+
+        if (isIgnoredDestination(buffer, ipIndex)) {
+            //packet will be ignored because
+            //its destination is locally bound
+            return;
+        }
+
+        int transportHeader = IPv6Packet.findTransportHeader(buffer, ipIndex, ipLength);
+        if (transportHeader != -1 && IPv6Packet.getProtocol(transportHeader) == IPv6Packet.UDP) {
+            int udpIndex = ipIndex + IPv6Packet.getOffset(transportHeader);
+            ConnectionTable table = ConnectionTable.getInstance();
+            int mappedPort = table.getMappedPortFromUDPResponseForTCPRequest(buffer, ipIndex, udpIndex);
+            if (getUnsignedShort(buffer, udpIndex + 2) == config.getVirtualUDPServerPort() || mappedPort != -1) {
+                //The read packet is either a new request with dest. port
+                //virtualUDPServerPort or a packet associated to an existing
+                //connection.
+                IPv6Packet readPacket = new IPv6Packet(buffer, ipIndex, ipLength);
+                int packetSourcePort;
+                Request request;
+                if (mappedPort == -1) {
+                    //UDP packet is a UDP request to a TCP server
+                    if (shedNewFlow(table, readPacket, false)) {
+                        return;
+                    }
+                    packetSourcePort = table.mapUdpRequest(readPacket);
+                    request = table.getUdpRequest(packetSourcePort);
+                    //the response must pass the capture filter of the TCP uplink
+                    DynamicCaptureFilter.requestMapped(false);
+                } else {
+                    //UDP packet it a UDP response to a TCP client
+                    packetSourcePort = mappedPort;
+                    request = table.getTcpRequest(mappedPort);
                 }
+
+                ConnectionMapper.log.debug("UDP IF: Incoming UDP packet mapped to " + request);
+                //modify IPv6Packet packet
+                readPacket.setSourceIP(config.getTunVirtualUdpIP().getInetAddress());
+                readPacket.setSourcePort(packetSourcePort);
+                readPacket.setDestIP(config.getTunBoundIP().getInetAddress());
+                readPacket.setDestPort(request.getLocalUdpPort());
+
+                //send packet
+                tun.write(ByteBuffer.wrap(readPacket.encode()));
+                return;
             }
-            //If the packet does not carry UDP payload or it is neither
-            //targeted to a virtualUDPServerPort nor associated to an
-            //existing connection, it will written to the TUN interface without
-            //any modification. Afterwards the operating system will route
-            //the packet to its originally destination.
-            
-            //send packet
-            byte[] encodedPacket = readPacket.encode();
-            tun.write(encodedPacket, encodedPacket.length);
         }
+        //If the packet does not carry UDP payload or it is neither
+        //targeted to a virtualUDPServerPort nor associated to an
+        //existing connection, it will written to the TUN interface without
+        //any modification. Afterwards the operating system will route
+        //the packet to its originally destination.
+        //The original bytes are forwarded, nothing is decoded or re-encoded.
+        writeUnmodified(tun, buffer, ipIndex, ipLength);
     }
 
     /**
@@ -452,66 +1396,218 @@ public class ConnectionMapper {
      * @throws Exception 
      */
     static void mapTCPNetIF(IFReader pcap, byte[] buffer, IFReadWriter tun, byte[] blockedSourceMac) throws Exception {
-        int bytesRead = pcap.read(buffer, buffer.length);
-        EthernetFrame frame = new EthernetFrame(buffer, bytesRead);
-        byte[] framePayload = frame.getPayload();
-        if (frame.isIPv6() && !byteArrayEquals(frame.getSourceMac(), blockedSourceMac)) {
-            //process incoming traffic only
-            IPv6Packet readPacket = null;
-            try {
-                readPacket = new IPv6Packet(framePayload);
-            } catch (Exception e) {
-                log.debug("TCP IF: Non IPv6Packet packet received. Will be ignored...");
-                //drop packet
-                return;
-            }
-            
-            if (readPacket.getDestIP().isLinkLocalAddress() 
-                    || readPacket.getDestIP().isMulticastAddress() 
-                    || ConnectionMapper.targetIsBoundIP(readPacket)) {
-                //packet will be ignored because
-                //its destination is locally bound
-                return;
-            }
-            
-            if (readPacket.isTCP()) {
-                ConnectionTable table = ConnectionTable.getInstance();
+        mapTCPNetIF(pcap, buffer, tun, getHWaddrAsLong(blockedSourceMac));
+    }
+
+    /**
+     * Read a single IPv6Packet packet and modify its connection data. (TCP side)
+     * @param pcap TCP side pcap interface to read data from
+     * @param buffer Buffer in which the read data will be stored
+     * @param tun TUN interface to write the modified packet
+     * @param blockedSourceMac If the IPv6Packet packet has this source mac (as long), it will
+     * be ignored
+     * @throws Exception
+     */
+    static void mapTCPNetIF(IFReader pcap, byte[] buffer, IFReadWriter tun, long blockedSourceMac) throws Exception {
+        mapTCPNetIF(IFAdapter.bufferReader(pcap), ByteBuffer.wrap(buffer), IFAdapter.bufferReadWriter(tun),
+                config, blockedSourceMac);
+    }
+
+    /**
+     * Read a single IPv6Packet packet and modify its connection data. (TCP side)
+     * @param pcap TCP side pcap interface to read data from
+     * @param buffer Heap buffer in which the read frame will be stored at index 0
+     * @param tun TUN interface to write the modified packet
+     * @param config Configuration snapshot used for the packet
+     * @param blockedSourceMac If the IPv6Packet packet has this source mac (as long), it will
+     * be ignored
+     * @throws Exception
+     */
+    static void mapTCPNetIF(IFBufferReader pcap, ByteBuffer buffer, IFBufferWriter tun, MapperConfig config,
+            long blockedSourceMac) throws Exception {
+        buffer.clear();
+        int bytesRead = pcap.read(buffer);
+        mapTCPFrame(buffer.array(), bytesRead, tun, config, blockedSourceMac);
+    }
+
+    /**
+     * Modify the connection data of a single received ethernet frame. (TCP side)
+     * @param buffer Buffer containing the frame, its content will be modified
+     * @param bytesRead Length of the frame
+     * @param tun TUN interface to write the modified packet
+     * @param blockedSourceMac If the IPv6Packet packet has this source mac (as long), it will
+     * be ignored
+     * @throws Exception
+     */
+    static void mapTCPFrame(byte[] buffer, int bytesRead, IFBufferWriter tun, long blockedSourceMac) throws Exception {
+        mapTCPFrame(buffer, bytesRead, tun, config, blockedSourceMac);
+    }
+
+    /**
+     * Modify the connection data of a single received ethernet frame. (TCP side)
+     * @param buffer Buffer containing the frame, its content will be modified
+     * @param bytesRead Length of the frame
+     * @param tun TUN interface to write the modified packet
+     * @param config Configuration snapshot used for the frame, the caller
+     * takes blockedSourceMac from the same snapshot
+     * @param blockedSourceMac If the IPv6Packet packet has this source mac (as long), it will
+     * be ignored
+     * @throws Exception
+     */
+    static void mapTCPFrame(byte[] buffer, int bytesRead, IFBufferWriter tun, MapperConfig config,
+            long blockedSourceMac) throws Exception {
+        //check type and source mac in place, dropped frames are never copied
+        EthernetFrameView frame = new EthernetFrameView(buffer, bytesRead);
+        if (!frame.isIPv6() || frame.getSourceMac() == blockedSourceMac) {
+            return;
+        }
+        //process incoming traffic only
+        int ipIndex = frame.getPayloadOffset();
+        int ipLength = IPv6Packet.getPacketLength(buffer, ipIndex, frame.getPayloadLength());
+        if (ipLength == -1) {
+            log.debug("TCP IF: Non IPv6Packet packet received. Will be ignored...");
+            //drop packet
+            return;
+        }
+
+        if (isIgnoredDestination(buffer, ipIndex)) {
+            //packet will be ignored because
+            //its destination is locally bound
+            return;
+        }
+
+        int transportHeader = IPv6Packet.findTransportHeader(buffer, ipIndex, ipLength);
+        if (transportHeader != -1 && IPv6Packet.getProtocol(transportHeader) == IPv6Packet.TCP) {
+            int tcpIndex = ipIndex + IPv6Packet.getOffset(transportHeader);
+            ConnectionTable table = ConnectionTable.getInstance();
+            int mappedPort = table.getMappedPortFromTCPResponseForUDPRequest(buffer, ipIndex, tcpIndex);
+            if (getUnsignedShort(buffer, tcpIndex + 2) == config.getVirtualTCPServerPort() || mappedPort != -1) {
+                //The read packet is either a new request with dest. port
+                //virtualTCPServerPort or a packet associated to an existing
+                //connection.
+                IPv6Packet readPacket = new IPv6Packet(buffer, ipIndex, ipLength);
                 ConnectionMapper.log.debug("TCP IF: TCP packet received: " + readPacket);
-                int mappedPort = table.getMappedPortFromTCPResponseForUDPRequest(readPacket);
-                if (readPacket.getDestPort() == ConnectionMapper
-                    .virtualTCPServerPort || mappedPort != -1) {
-                    //The read packet is either a new request with dest. port
-                    //virtualTCPServerPort or a packet associated to an existing
-                    //connection.
-                    int packetSourcePort;
-                    Request request;
-                    if (mappedPort == -1) {
-                        //TCP packet is TCP request to a UDP server
-                        packetSourcePort = table.mapTcpRequest(readPacket);
-                        request = table.getTcpRequest(packetSourcePort);
-                    } else {
-                        //TCP packet is a TCP response to a UDP client
-                        packetSourcePort = mappedPort;
-                        request = table.getUdpRequest(mappedPort);
+                int packetSourcePort;
+                Request request;
+                if (mappedPort == -1) {
+                    //TCP packet is TCP request to a UDP server
+                    if (shedNewFlow(table, readPacket, true)) {
+                        return;
                     }
-
-                    ConnectionMapper.log.debug("TCP IF: Incoming TCP packet mapped to " + request);
-                    //modify IPv6Packet packet
-                    readPacket.setSourceIP(InetAddress.getByName(ConnectionMapper.tunVirtualTcpIP));
-                    readPacket.setSourcePort(packetSourcePort);
-                    readPacket.setDestIP(InetAddress.getByName(ConnectionMapper.tunBoundIP));
-                    readPacket.setDestPort(request.getLocalTcpPort());
+                    packetSourcePort = table.mapTcpRequest(readPacket);
+                    request = table.getTcpRequest(packetSourcePort);
+                    //the response must pass the capture filter of the UDP uplink
+                    DynamicCaptureFilter.requestMapped(true);
+                } else {
+                    //TCP packet is a TCP response to a UDP client
+                    packetSourcePort = mappedPort;
+                    request = table.getUdpRequest(mappedPort);
                 }
+
+                ConnectionMapper.log.debug("TCP IF: Incoming TCP packet mapped to " + request);
+                //modify IPv6Packet packet
+                readPacket.setSourceIP(config.getTunVirtualTcpIP().getInetAddress());
+                readPacket.setSourcePort(packetSourcePort);
+                readPacket.setDestIP(config.getTunBoundIP().getInetAddress());
+                readPacket.setDestPort(request.getLocalTcpPort());
+
+                //send packet
+                tun.write(ByteBuffer.wrap(readPacket.encode()));
+                return;
             }
-            //If the packet does not carry TCP payload or it is neither
-            //targeted to a virtualTCPServerPort nor associated to an
-            //existing connection, it will written to the TUN interface without
-            //any modification. Afterwards the operating system will route
-            //the packet to its originally destination.
-            
-            //send packet
-            byte[] encodedPacket = readPacket.encode();
-            tun.write(encodedPacket, encodedPacket.length);
+        }
+        //If the packet does not carry TCP payload or it is neither
+        //targeted to a virtualTCPServerPort nor associated to an
+        //existing connection, it will written to the TUN interface without
+        //any modification. Afterwards the operating system will route
+        //the packet to its originally destination.
+        //The original bytes are forwarded, nothing is decoded or re-encoded.
+        writeUnmodified(tun, buffer, ipIndex, ipLength);
+    }
+
+    /**
+     * Decides whether a request is dropped because the mapper is overloaded.
+     * Only requests of new flows are dropped, requests of flows which are
+     * already in the ConnectionTable are always mapped.
+     * @param table ConnectionTable
+     * @param packet Request to a virtual server port
+     * @param tcp true for a TCP request, false for a UDP request
+     * @return true if the request has to be dropped
+     */
+    static boolean shedNewFlow(ConnectionTable table, IPv6Packet packet, boolean tcp) {
+        OverloadController overload = overloadController;
+        if (overload == null || !overload.isOverloaded()) {
+            return false;
+        }
+        int mappedPort = tcp ? table.getMappedPortFromTcpRequest(packet)
+                : table.getMappedPortFromUdpRequest(packet);
+        if (mappedPort != -1) {
+            //established flow
+            return false;
+        }
+        overload.shed(tcp);
+        log.debug((tcp ? "TCP" : "UDP") + " IF: Overloaded, request of new flow dropped: " + packet);
+        return true;
+    }
+
+    /**
+     * Checks whether a captured uplink frame is a request of a new flow, ie.
+     * a request to the virtual server port whose flow is neither a response
+     * nor in the ConnectionTable. Nothing is decoded, so frames can be
+     * classified before they are queued.
+     * @param buffer Buffer containing the frame, it may be truncated after
+     * the transport header
+     * @param length Number of bytes of the frame in buffer
+     * @param udp true for a frame of the UDP uplink, false for the TCP uplink
+     * @return true for requests of new flows, false for all other frames
+     */
+    static boolean isNewFlowRequest(byte[] buffer, int length, boolean udp) {
+        MapperConfig config = ConnectionMapper.config;
+        EthernetFrameView frame = new EthernetFrameView(buffer, length);
+        int ipIndex = frame.getPayloadOffset();
+        int ipLength = frame.getPayloadLength();
+        if (!frame.isIPv6() || ipLength < 40 || (buffer[ipIndex] & 0xF0) != 0x60) {
+            return false;
+        }
+        int transportHeader = IPv6Packet.findTransportHeader(buffer, ipIndex, ipLength);
+        if (transportHeader == -1
+                || IPv6Packet.getProtocol(transportHeader) != (udp ? IPv6Packet.UDP : IPv6Packet.TCP)) {
+            return false;
+        }
+        int transportIndex = ipIndex + IPv6Packet.getOffset(transportHeader);
+        int destPort = getUnsignedShort(buffer, transportIndex + 2);
+        ConnectionTable table = ConnectionTable.getInstance();
+        if (udp) {
+            return destPort == config.getVirtualUDPServerPort()
+                    && table.getMappedPortFromUDPResponseForTCPRequest(buffer, ipIndex, transportIndex) == -1
+                    && table.getMappedPortFromUdpRequest(buffer, ipIndex, transportIndex) == -1;
+        }
+        return destPort == config.getVirtualTCPServerPort()
+                && table.getMappedPortFromTCPResponseForUDPRequest(buffer, ipIndex, transportIndex) == -1
+                && table.getMappedPortFromTcpRequest(buffer, ipIndex, transportIndex) == -1;
+    }
+
+    /**
+     * Writes a received IPv6Packet packet unmodified to the TUN interface.
+     * The packet is passed to the TUN interface as a slice of the receive
+     * buffer without decoding, re-encoding or moving it.
+     * @param tun TUN interface to write the packet
+     * @param buffer Receive buffer
+     * @param ipIndex Index of the IPv6Packet packet in buffer
+     * @param ipLength Length of the IPv6Packet packet
+     */
+    static void writeUnmodified(IFBufferWriter tun, byte[] buffer, int ipIndex, int ipLength) {
+        tun.write(ByteBuffer.wrap(buffer, ipIndex, ipLength));
+    }
+
+    /**
+     * Sends the packets queued by a TUN interface which writes in batches.
+     * Has to be called after each batch of packets.
+     * @param tun TUN interface
+     */
+    static void flush(IFWriter tun) {
+        if (tun instanceof IFBatchWriter) {
+            ((IFBatchWriter) tun).flush();
         }
     }
     
@@ -522,10 +1618,43 @@ public class ConnectionMapper {
      * @throws Exception 
      */
     static void mapTUNNetIF(IFReadWriter tun, byte[] buffer) throws Exception {
-        int bytesRead = tun.read(buffer, buffer.length);
+        mapTUNNetIF(IFAdapter.bufferReadWriter(tun), ByteBuffer.wrap(buffer));
+    }
+
+    /**
+     * Read a single IPv6Packet packet and modify its connection data. (TUN interface)
+     * @param tun TUN interface
+     * @param buffer Heap buffer in which the read packet will be stored at index 0
+     * @throws Exception
+     */
+    static void mapTUNNetIF(IFBufferReadWriter tun, ByteBuffer buffer) throws Exception {
+        buffer.clear();
+        int bytesRead = tun.read(buffer);
+        mapTUNPacket(buffer.array(), bytesRead, tun);
+    }
+
+    /**
+     * Modify the connection data of a single IPv6Packet packet read from
+     * the TUN interface.
+     * @param buffer Buffer containing the packet at index 0
+     * @param bytesRead Length of the packet
+     * @param tun TUN interface to write the modified packet
+     * @throws Exception
+     */
+    static void mapTUNPacket(byte[] buffer, int bytesRead, IFBufferWriter tun) throws Exception {
+        MapperConfig config = ConnectionMapper.config;
+        if (bytesRead < 40) {
+            return;
+        }
+        //compare destination in place, other packets are not decoded at all
+        boolean toVirtualTcpIP = config.getTunVirtualTcpIP().equals(buffer, 24);
+        boolean toVirtualUdpIP = !toVirtualTcpIP && config.getTunVirtualUdpIP().equals(buffer, 24);
+        if (!toVirtualTcpIP && !toVirtualUdpIP) {
+            return;
+        }
         IPv6Packet readPacket = new IPv6Packet(buffer, bytesRead);
         final ConnectionTable table = ConnectionTable.getInstance();
-        if (readPacket.getDestIP().equals(InetAddress.getByName(ConnectionMapper.tunVirtualTcpIP))) {
+        if (toVirtualTcpIP) {
             //readPacket contains TCP data
             Request request = table.getRequest(readPacket.getDestPort());
             if (request == null) {
@@ -535,7 +1664,7 @@ public class ConnectionMapper {
                         + " Maybe caused by gateway restart?");
                 return;
             }
-            if (readPacket.getSourcePort() != ConnectionMapper.localTcpServerPort) {
+            if (readPacket.getSourcePort() != config.getLocalTcpServerPort()) {
                 //readPacket is associated, but the local source port from readpacket
                 //differs from the default. For example local TCP clients will
                 //use different ports for every connection.
@@ -559,11 +1688,10 @@ public class ConnectionMapper {
                 readPacket.setSourceIP(request.getSourceIP());
                 readPacket.setSourcePort(request.getLocalTcpPort());
                 readPacket.setDestIP(request.getDestIP());
-                readPacket.setDestPort(ConnectionMapper.virtualTCPServerPort);
+                readPacket.setDestPort(config.getVirtualTCPServerPort());
             }
-            byte[] encodedPacket = readPacket.encode();
-            tun.write(encodedPacket, encodedPacket.length);
-        } else if (readPacket.getDestIP().equals(InetAddress.getByName(ConnectionMapper.tunVirtualUdpIP))) {
+            tun.write(ByteBuffer.wrap(readPacket.encode()));
+        } else {
             //readPacket contains UDP data
             Request request = table.getRequest(readPacket.getDestPort());
             if (request == null) {
@@ -573,7 +1701,7 @@ public class ConnectionMapper {
                         + " Maybe caused by gateway restart?");
                 return;
             }
-            if (readPacket.getSourcePort() != ConnectionMapper.localUdpServerPort) {
+            if (readPacket.getSourcePort() != config.getLocalUdpServerPort()) {
                 //readPacket is associated, but the local source port from readpacket
                 //differs from the default. For example local TCP clients will
                 //use different ports for every connection.
@@ -597,10 +1725,9 @@ public class ConnectionMapper {
                 readPacket.setSourceIP(request.getSourceIP());
                 readPacket.setSourcePort(request.getSourcePort());
                 readPacket.setDestIP(request.getDestIP());
-                readPacket.setDestPort(ConnectionMapper.virtualUDPServerPort);
+                readPacket.setDestPort(config.getVirtualUDPServerPort());
             }
-            byte[] encodedPacket = readPacket.encode();
-            tun.write(encodedPacket, encodedPacket.length);
+            tun.write(ByteBuffer.wrap(readPacket.encode()));
         }
     }
 
@@ -613,85 +1740,3 @@ public class ConnectionMapper {
         start("eth1", "eth0", "tun0", 5683, 80);
     }
 }
-/**
- * This thread reads data from a network interface and sends it after modifying
- * source and destination.
- */
-class TcpNetIfPcapThread extends Thread {
-    IFReadWriter tun;
-    IFReader pcap;
-    byte[] blockedSourceMac;
-
-    public TcpNetIfPcapThread(IFReadWriter tun, IFReader pcap,
-            byte[] blockedSourceMac) {
-        this.tun = tun;
-        this.pcap = pcap;
-        this.blockedSourceMac = blockedSourceMac;
-    }
-
-    @Override
-    public void run() {
-        byte[] buffer = new byte[1900];
-        while (true) {
-            try {
-                ConnectionMapper.mapTCPNetIF(pcap, buffer, tun, blockedSourceMac);
-            } catch (Exception ex) {
-                ConnectionMapper.log.error("TcpNetIfPcapThread: " + ex);
-            }
-        }
-    }
-}
-
-/**
- * This thread reads data from a network interface and sends it after modifying
- * source and destination.
- */
-class UdpNetIfPcapThread extends Thread {
-    IFReadWriter tun;
-    IFReader pcap;
-    byte[] blockedSourceMac;
-
-    public UdpNetIfPcapThread(IFReadWriter tun, IFReader pcap,
-            byte[] blockedSourceMac) {
-        this.tun = tun;
-        this.pcap = pcap;
-        this.blockedSourceMac = blockedSourceMac;
-    }
-
-    @Override
-    public void run() {
-        byte[] buffer = new byte[1900];
-        while (true) {
-            try {
-                ConnectionMapper.mapUDPNetIF(pcap, buffer, tun, blockedSourceMac);
-            } catch (Exception ex) {
-                ConnectionMapper.log.error("UdpNetIfPcapThread: " + ex.getStackTrace());
-            }
-        }
-    }
-}
-
-/**
- * This thread reads data from a network interface and sends it after modifying
- * source and destination.
- */
-class TunNetIfThread extends Thread {
-
-    IFReadWriter tun;
-
-    public TunNetIfThread(IFReadWriter tun) {
-        this.tun = tun;
-    }
-
-    @Override
-    public void run() {
-        byte[] buffer = new byte[1900];
-        while (true) {
-            try {
-                ConnectionMapper.mapTUNNetIF(tun, buffer);
-            } catch (Exception ex) {
-                ConnectionMapper.log.error("TunNetIfThread: " + ex);
-            }
-        }
-    }
-}
\ No newline at end of file
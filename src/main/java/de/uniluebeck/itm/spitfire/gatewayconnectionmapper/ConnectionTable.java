@@ -24,16 +24,29 @@
  */
 package de.uniluebeck.itm.spitfire.gatewayconnectionmapper;
 
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.protocol.IPv6Address;
 import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.protocol.IPv6Packet;
 
 import java.net.InetAddress;
-import java.util.LinkedList;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static de.uniluebeck.itm.spitfire.gatewayconnectionmapper.protocol.Tools.getLong;
+import static de.uniluebeck.itm.spitfire.gatewayconnectionmapper.protocol.Tools.getUnsignedShort;
 
 /**
  * This class manages and offers all information to map connections
  * to a unique port and restore them.
+ * All lookups are lock-free hash lookups, so the table can be used by
+ * many capture and TUN threads at the same time. Only creating and
+ * removing connections is serialized.
  *
  * @author Stefan Hueske
  */
@@ -52,17 +65,29 @@ public class ConnectionTable {
      * "GatewayConnectionMapper - Sequenzdiagramm.pdf"
      */
 
-    //List of TCP requests
-    private List<Request> tcpRequests = new LinkedList<Request>();
+    //TCP requests by (source IP, source port, dest IP)
+    private final ConcurrentMap<FlowKey, Request> tcpRequests = new ConcurrentHashMap<FlowKey, Request>();
+
+    //UDP requests by (source IP, source port, dest IP)
+    private final ConcurrentMap<FlowKey, Request> udpRequests = new ConcurrentHashMap<FlowKey, Request>();
+
+    //TCP and UDP requests by mapped port, mapped ports are unique to both
+    private final ConcurrentMap<Integer, Request> requestsByMappedPort = new ConcurrentHashMap<Integer, Request>();
 
-    //List of UDP requests
-    private List<Request> udpRequests = new LinkedList<Request>();
+    //UDP requests by local TCP port, if several requests use the same
+    //port the oldest one is used
+    private final ConcurrentMap<Integer, UdpRequest> udpRequestsByLocalTcpPort =
+            new ConcurrentHashMap<Integer, UdpRequest>();
     
     //ListCleaner removes outdated requests from both lists
     private ListCleaner listCleaner = new ListCleaner(this);
     
+    //Incremented whenever a connection is added or removed or its local
+    //ports change, used to detect changes (eg. for capture filters)
+    private static final AtomicInteger modificationCount = new AtomicInteger();
+
     //singleton
-    private static ConnectionTable instance;
+    private static volatile ConnectionTable instance;
     Random random = new Random();
 
     private ConnectionTable() {
@@ -73,10 +98,17 @@ public class ConnectionTable {
      * @return Global ConnectionTable instance
      */
     public static ConnectionTable getInstance() {
-        if (instance == null) {
-            instance = new ConnectionTable();
+        ConnectionTable table = instance;
+        if (table == null) {
+            synchronized (ConnectionTable.class) {
+                table = instance;
+                if (table == null) {
+                    table = new ConnectionTable();
+                    instance = table;
+                }
+            }
         }
-        return instance;
+        return table;
     }
 
     /**
@@ -103,7 +135,7 @@ public class ConnectionTable {
      * @return unique local port ('mapped port') if exists, -1 else
      */
     public int getMappedPortFromTcpRequest(IPv6Packet packet) {
-        return getMappedPortFromRequest(tcpRequests, packet);
+        return getMappedPort(tcpRequests, FlowKey.fromRequest(packet));
     }
 
     /**
@@ -112,7 +144,29 @@ public class ConnectionTable {
      * @return unique local port ('mapped port') if exists, -1 else
      */
     public int getMappedPortFromUdpRequest(IPv6Packet packet) {
-        return getMappedPortFromRequest(udpRequests, packet);
+        return getMappedPort(udpRequests, FlowKey.fromRequest(packet));
+    }
+
+    /**
+     * Get mapped port for a tcp request without decoding the packet.
+     * @param buffer Buffer containing a IPv6Packet packet with TCP payload
+     * @param ipIndex Index of the IPv6Packet packet in buffer
+     * @param tcpIndex Index of the TCP header in buffer
+     * @return unique local port ('mapped port') if exists, -1 else
+     */
+    public int getMappedPortFromTcpRequest(byte[] buffer, int ipIndex, int tcpIndex) {
+        return getMappedPort(tcpRequests, FlowKey.fromRequest(buffer, ipIndex, getUnsignedShort(buffer, tcpIndex)));
+    }
+
+    /**
+     * Get mapped port for a udp request without decoding the packet.
+     * @param buffer Buffer containing a IPv6Packet packet with UDP payload
+     * @param ipIndex Index of the IPv6Packet packet in buffer
+     * @param udpIndex Index of the UDP header in buffer
+     * @return unique local port ('mapped port') if exists, -1 else
+     */
+    public int getMappedPortFromUdpRequest(byte[] buffer, int ipIndex, int udpIndex) {
+        return getMappedPort(udpRequests, FlowKey.fromRequest(buffer, ipIndex, getUnsignedShort(buffer, udpIndex)));
     }
 
     /**
@@ -121,7 +175,7 @@ public class ConnectionTable {
      * @return unique local port ('mapped port') if exists, -1 else
      */
     public int getMappedPortFromUDPResponseForTCPRequest(IPv6Packet packet) {
-        return getMappedPortFromResponse(tcpRequests, packet);
+        return getMappedPort(tcpRequests, FlowKey.fromResponse(packet, packet.getDestPort()));
     }
 
     /**
@@ -134,11 +188,36 @@ public class ConnectionTable {
         if (orgRequest == null) {
             return -1;
         }
-        int orgDestPort = packet.getDestPort();
-        packet.setDestPort(orgRequest.getSourcePort());
-        int mappedPort = getMappedPortFromResponse(udpRequests, packet);
-        packet.setDestPort(orgDestPort);
-        return mappedPort;
+        return getMappedPort(udpRequests, FlowKey.fromResponse(packet, orgRequest.getSourcePort()));
+    }
+
+    /**
+     * Get mapped port for a UDPResponse for a TCPRequest without decoding
+     * the packet.
+     * @param buffer Buffer containing a IPv6Packet packet with UDP payload
+     * @param ipIndex Index of the IPv6Packet packet in buffer
+     * @param udpIndex Index of the UDP header in buffer
+     * @return unique local port ('mapped port') if exists, -1 else
+     */
+    public int getMappedPortFromUDPResponseForTCPRequest(byte[] buffer, int ipIndex, int udpIndex) {
+        return getMappedPort(tcpRequests,
+                FlowKey.fromResponse(buffer, ipIndex, getUnsignedShort(buffer, udpIndex + 2)));
+    }
+
+    /**
+     * Get mapped port for a TCPResponse for a UDPRequest without decoding
+     * the packet.
+     * @param buffer Buffer containing a IPv6Packet packet with TCP payload
+     * @param ipIndex Index of the IPv6Packet packet in buffer
+     * @param tcpIndex Index of the TCP header in buffer
+     * @return unique local port ('mapped port') if exists, -1 else
+     */
+    public int getMappedPortFromTCPResponseForUDPRequest(byte[] buffer, int ipIndex, int tcpIndex) {
+        UdpRequest orgRequest = getUDPRequestFromLocalTcpPort(getUnsignedShort(buffer, tcpIndex + 2));
+        if (orgRequest == null) {
+            return -1;
+        }
+        return getMappedPort(udpRequests, FlowKey.fromResponse(buffer, ipIndex, orgRequest.getSourcePort()));
     }
 
     /**
@@ -148,13 +227,7 @@ public class ConnectionTable {
      * @return UdpRequest if exists, null else
      */
     private UdpRequest getUDPRequestFromLocalTcpPort(int localTcpPort) {
-        for (Request request : udpRequests) {
-            UdpRequest udpRequest = (UdpRequest) request;
-            if (udpRequest.getLocalTcpPort() == localTcpPort) {
-                return udpRequest;
-            }
-        }
-        return null;
+        return udpRequestsByLocalTcpPort.get(localTcpPort);
     }
 
     /**
@@ -163,7 +236,8 @@ public class ConnectionTable {
      * @return TcpRequest if exists, null else
      */
     public TcpRequest getTcpRequest(int mappedPort) {
-        return (TcpRequest) getRequest(tcpRequests, mappedPort);
+        Request request = requestsByMappedPort.get(mappedPort);
+        return request instanceof TcpRequest ? (TcpRequest) request : null;
     }
 
     /**
@@ -172,7 +246,8 @@ public class ConnectionTable {
      * @return UdpRequest if exists, null else
      */
     public UdpRequest getUdpRequest(int mappedPort) {
-        return (UdpRequest) getRequest(udpRequests, mappedPort);
+        Request request = requestsByMappedPort.get(mappedPort);
+        return request instanceof UdpRequest ? (UdpRequest) request : null;
     }
 
     /**
@@ -183,79 +258,83 @@ public class ConnectionTable {
      * @return Request object instanceof UdpRequest or TcpRequest (if exists, null else)
      */
     public Request getRequest(int mappedPort) {
-        Request request = getTcpRequest(mappedPort);
-        if (request != null) {
-            return request;
-        }
-        request = getUdpRequest(mappedPort);
-        if (request != null) {
-            return request;
-        }
-        return null;
+        return requestsByMappedPort.get(mappedPort);
     }
     
     /**
      * Map a request. This means: Looking if the request already exists if
      * not, a new entry will be generated.
-     * @param requestList TCP or UDP request list
+     * @param requests TCP or UDP requests
      * @param packet IPv6Packet packet
      * @param isTCP true if it is the TCP request list
      * @return mapped port
      */
-    private synchronized int mapRequest(List<Request> requestList, IPv6Packet packet,
+    private int mapRequest(ConcurrentMap<FlowKey, Request> requests, IPv6Packet packet,
             boolean isTCP) {
-        int port = getMappedPortFromRequest(requestList, packet);
-        if (port == -1) {
-            port = getFreePort();
-            requestList.add(isTCP ? new TcpRequest(packet, port) : new UdpRequest(packet, port));
+        FlowKey key = FlowKey.fromRequest(packet);
+        int port = getMappedPort(requests, key);
+        if (port != -1) {
+            return port;
+        }
+        //new connections are rare, they are created under a lock so
+        //mapped ports stay unique
+        synchronized (this) {
+            port = getMappedPort(requests, key);
+            if (port == -1) {
+                port = getFreePort();
+                Request request = isTCP ? new TcpRequest(packet, port) : new UdpRequest(packet, port);
+                requestsByMappedPort.put(port, request);
+                if (!isTCP) {
+                    udpRequestsByLocalTcpPort.putIfAbsent(request.getLocalTcpPort(), (UdpRequest) request);
+                }
+                requests.put(key, request);
+                modificationCount.incrementAndGet();
+            }
+            return port;
         }
-        return port;
     }
 
     /**
-     * 
-     * @param requestList
-     * @param packet
-     * @return 
+     * Get a snapshot of all TCP requests.
+     * @return Copy of the TCP request list
      */
-    private synchronized static int getMappedPortFromRequest(List<Request> requestList,
-            IPv6Packet packet) {
-        for (Request r : requestList) {
-            if (r.getSourcePort() == packet.getSourcePort() &&
-                    r.getSourceIP().equals(packet.getSourceIP()) &&
-                    r.getDestIP().equals(packet.getDestIP()) ) {
-                r.updateLastUsed();
-                return r.getMappedPort();
-            }
-        }
-        return -1;
+    public List<Request> getTcpRequests() {
+        return new ArrayList<Request>(tcpRequests.values());
     }
 
-    private synchronized static int getMappedPortFromResponse(List<Request> list,
-            IPv6Packet p) {
-        for (Request r : list) {
-            if (r.getSourceIP().equals(p.getDestIP()) &&
-                    r.getSourcePort() == p.getDestPort() &&
-                    r.getDestIP().equals(p.getSourceIP()) ) {
-                r.updateLastUsed();
-                return r.getMappedPort();
-            }
-        }
-        return -1;
+    /**
+     * Get a snapshot of all UDP requests.
+     * @return Copy of the UDP request list
+     */
+    public List<Request> getUdpRequests() {
+        return new ArrayList<Request>(udpRequests.values());
     }
 
+    /**
+     * Get the number of modifications (new or removed connections,
+     * changed local ports) since start. Can be used to detect changes.
+     * @return Modification count
+     */
+    public static int getModificationCount() {
+        return modificationCount.get();
+    }
 
-    private synchronized static Request getRequest(List<Request> list,
-            int mappedPort) {
-        for (Request r : list) {
-            if (r.getMappedPort() == mappedPort) {
-                return r;
-            }
+    /**
+     * Looks up a request and marks it as used.
+     * @param requests TCP or UDP requests
+     * @param key flow of the request
+     * @return mapped port if exists, -1 else
+     */
+    private static int getMappedPort(ConcurrentMap<FlowKey, Request> requests, FlowKey key) {
+        Request r = requests.get(key);
+        if (r == null) {
+            return -1;
         }
-        return null;
+        r.updateLastUsed();
+        return r.getMappedPort();
     }
 
-    private synchronized int getFreePort() {
+    private int getFreePort() {
         int res;
         do {
             res = (int) (Math.random() * 65535 + 1);
@@ -263,9 +342,110 @@ public class ConnectionTable {
         return res;
     }
 
-    private synchronized boolean isFreePort(int port) {
-        return getRequest(tcpRequests, port) == null &&
-                getRequest(udpRequests, port) == null;
+    private boolean isFreePort(int port) {
+        return !requestsByMappedPort.containsKey(port);
+    }
+
+    /**
+     * Updates the local TCP port index after the local TCP port of a
+     * UdpRequest changed.
+     * @param request changed request
+     * @param oldPort previous local TCP port
+     */
+    private synchronized void localTcpPortChanged(UdpRequest request, int oldPort) {
+        if (udpRequestsByLocalTcpPort.remove(oldPort, request)) {
+            indexLocalTcpPort(oldPort);
+        }
+        if (requestsByMappedPort.get(request.getMappedPort()) != request) {
+            //request was removed in the meantime
+            return;
+        }
+        UdpRequest indexed = udpRequestsByLocalTcpPort.get(request.getLocalTcpPort());
+        if (indexed == null || request.created < indexed.created) {
+            udpRequestsByLocalTcpPort.put(request.getLocalTcpPort(), request);
+        }
+    }
+
+    /**
+     * Indexes the oldest remaining UdpRequest with the given local TCP
+     * port, after the indexed one was removed or changed.
+     * @param localTcpPort local TCP port
+     */
+    private void indexLocalTcpPort(int localTcpPort) {
+        UdpRequest oldest = null;
+        for (Request r : udpRequests.values()) {
+            if (r.getLocalTcpPort() == localTcpPort
+                    && (oldest == null || r.created < oldest.created)) {
+                oldest = (UdpRequest) r;
+            }
+        }
+        if (oldest != null) {
+            udpRequestsByLocalTcpPort.putIfAbsent(localTcpPort, oldest);
+        }
+    }
+
+    /**
+     * Key of a connection: client address and port and server address.
+     * A request packet has the client as source, a response packet as
+     * destination.
+     */
+    private static final class FlowKey {
+        private final long clientHigh;
+        private final long clientLow;
+        private final int clientPort;
+        private final long serverHigh;
+        private final long serverLow;
+
+        private FlowKey(long clientHigh, long clientLow, int clientPort, long serverHigh, long serverLow) {
+            this.clientHigh = clientHigh;
+            this.clientLow = clientLow;
+            this.clientPort = clientPort;
+            this.serverHigh = serverHigh;
+            this.serverLow = serverLow;
+        }
+
+        static FlowKey fromRequest(IPv6Packet p) {
+            byte[] client = p.getSourceIP().getAddress();
+            byte[] server = p.getDestIP().getAddress();
+            return new FlowKey(getLong(client, 0), getLong(client, 8), p.getSourcePort(),
+                    getLong(server, 0), getLong(server, 8));
+        }
+
+        static FlowKey fromRequest(byte[] buffer, int ipIndex, int clientPort) {
+            return new FlowKey(getLong(buffer, ipIndex + 8), getLong(buffer, ipIndex + 16), clientPort,
+                    getLong(buffer, ipIndex + 24), getLong(buffer, ipIndex + 32));
+        }
+
+        static FlowKey fromResponse(IPv6Packet p, int clientPort) {
+            byte[] client = p.getDestIP().getAddress();
+            byte[] server = p.getSourceIP().getAddress();
+            return new FlowKey(getLong(client, 0), getLong(client, 8), clientPort,
+                    getLong(server, 0), getLong(server, 8));
+        }
+
+        static FlowKey fromResponse(byte[] buffer, int ipIndex, int clientPort) {
+            return new FlowKey(getLong(buffer, ipIndex + 24), getLong(buffer, ipIndex + 32), clientPort,
+                    getLong(buffer, ipIndex + 8), getLong(buffer, ipIndex + 16));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof FlowKey)) {
+                return false;
+            }
+            FlowKey k = (FlowKey) o;
+            return clientLow == k.clientLow && clientPort == k.clientPort && serverLow == k.serverLow
+                    && clientHigh == k.clientHigh && serverHigh == k.serverHigh;
+        }
+
+        @Override
+        public int hashCode() {
+            long h = clientLow * 31 + clientHigh;
+            h = h * 31 + serverLow;
+            h = h * 31 + serverHigh;
+            h = h * 31 + clientPort;
+            return (int) (h ^ (h >>> 32));
+        }
     }
 
     /**
@@ -287,14 +467,22 @@ public class ConnectionTable {
         InetAddress destIP;
         int destPort;
 
+        //Pre-parsed addresses to compare against undecoded packets
+        IPv6Address sourceAddress;
+        IPv6Address destAddress;
+
         //last used (system time in ms)
-        long lastUsed;
+        volatile long lastUsed;
+
+        //creation order, used to prefer older requests
+        final long created;
+        private static final AtomicLong createdCounter = new AtomicLong();
 
         //this port is set when the local gateway socket creates a new TCP/UDP
         //connection on a new port, otherwise it will be the local TCP/UDP
         //server port.
-        int localTcpPort = ConnectionMapper.localTcpServerPort;
-        int localUdpPort = ConnectionMapper.localUdpServerPort;
+        volatile int localTcpPort;
+        volatile int localUdpPort;
 
         /**
          * Create a new Request.
@@ -303,6 +491,7 @@ public class ConnectionTable {
          * @param sourcePort
          * @param destIP
          * @param destPort
+         * @throws IllegalStateException if no configuration is set
          */
         public Request(int mappedPort, InetAddress sourceIP, int sourcePort,
                 InetAddress destIP, int destPort) {
@@ -311,7 +500,25 @@ public class ConnectionTable {
             this.sourcePort = sourcePort;
             this.destIP = destIP;
             this.destPort = destPort;
+            this.sourceAddress = toIPv6Address(sourceIP);
+            this.destAddress = toIPv6Address(destIP);
+            MapperConfig config = ConnectionMapper.getConfig();
+            if (config == null) {
+                throw new IllegalStateException("No configuration set, call ConnectionMapper.start() "
+                        + "or ConnectionMapper.setConfig() before creating requests.");
+            }
+            this.localTcpPort = config.getLocalTcpServerPort();
+            this.localUdpPort = config.getLocalUdpServerPort();
             lastUsed = System.currentTimeMillis();
+            created = createdCounter.incrementAndGet();
+        }
+
+        private static IPv6Address toIPv6Address(InetAddress address) {
+            try {
+                return new IPv6Address(address);
+            } catch (UnknownHostException e) {
+                throw new IllegalArgumentException(e.getMessage());
+            }
         }
 
         /**
@@ -396,7 +603,15 @@ public class ConnectionTable {
          * which will be used to communicate with the gateways TCP socket.
          */
         public void setLocalTcpPort(int localTcpPort) {
-            this.localTcpPort = localTcpPort;
+            if (this.localTcpPort != localTcpPort) {
+                int oldPort = this.localTcpPort;
+                this.localTcpPort = localTcpPort;
+                ConnectionTable table = instance;
+                if (this instanceof UdpRequest && table != null) {
+                    table.localTcpPortChanged((UdpRequest) this, oldPort);
+                }
+                modificationCount.incrementAndGet();
+            }
         }
 
         /**
@@ -413,7 +628,10 @@ public class ConnectionTable {
          * which will be used to communicate with the gateways UDP socket.
          */
         public void setLocalUdpPort(int localUdpPort) {
-            this.localUdpPort = localUdpPort;
+            if (this.localUdpPort != localUdpPort) {
+                this.localUdpPort = localUdpPort;
+                modificationCount.incrementAndGet();
+            }
         }
 
         /*
@@ -467,14 +685,21 @@ public class ConnectionTable {
     }
 
     /**
-     * Remove all outdated items in list.
-     * @param list list to check
+     * Remove all outdated items in requests.
+     * @param requests requests to check
      */
-    private static synchronized void cleanList(List<Request> list) {
-        for (int i = list.size() - 1; i >= 0; i--) {
-            Request r = list.get(i);
+    private synchronized void cleanList(ConcurrentMap<FlowKey, Request> requests) {
+        Iterator<Request> iterator = requests.values().iterator();
+        while (iterator.hasNext()) {
+            Request r = iterator.next();
             if (r.isTimedOut()) {
-                list.remove(i);
+                iterator.remove();
+                requestsByMappedPort.remove(r.getMappedPort(), r);
+                if (r instanceof UdpRequest
+                        && udpRequestsByLocalTcpPort.remove(r.getLocalTcpPort(), r)) {
+                    indexLocalTcpPort(r.getLocalTcpPort());
+                }
+                modificationCount.incrementAndGet();
                 ConnectionMapper.log.debug("TABLE: Connection timed out: " + r);
             }
         }
@@ -495,8 +720,8 @@ public class ConnectionTable {
         public void run() {
             while (true) {
                 try {
-                    cleanList(table.tcpRequests);
-                    cleanList(table.udpRequests);
+                    table.cleanList(table.tcpRequests);
+                    table.cleanList(table.udpRequests);
                     Thread.sleep(INTERVALL);
                 } catch (InterruptedException ex) {
                     ConnectionMapper.log.fatal("Exception in List cleaner: " + ex);
@@ -0,0 +1,196 @@
+/**
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.uniluebeck.itm.spitfire.gatewayconnectionmapper;
+
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.FilterableIFReader;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static de.uniluebeck.itm.spitfire.gatewayconnectionmapper.ConnectionTable.*;
+
+/**
+ * This task keeps the BPF filter of a uplink pcap interface in sync with
+ * the ConnectionTable. The filter only accepts packets which can actually
+ * be mapped (requests to the virtual server port and responses of active
+ * connections), all other traffic on a shared uplink stays in the kernel.
+ * If there are too many connections or the generated filter can not be
+ * installed, the static filter (see CaptureFilter) will be used instead
+ * until the number of connections drops again.
+ * The task only builds the filter expression, it is compiled and installed
+ * by the thread reading the interface (see FilterableIFReader.requestFilter),
+ * so a libpcap handle is never used by two threads at once. The mapping
+ * threads wake the task when a new request is mapped, removed connections
+ * and configuration changes are picked up within CHECK_INTERVALL ms.
+ */
+public class DynamicCaptureFilter implements NamedTask {
+
+    //Interval to check the ConnectionTable for removed connections and the
+    //configuration for changes (in ms), new connections are installed at once
+    public static int CHECK_INTERVALL = 1000;
+
+    //Maximum number of connections in a filter,
+    //the kernel limits BPF programs to 4096 instructions
+    public static int MAX_CONNECTIONS = 100;
+
+    //Maximum length of a filter expression
+    public static int MAX_FILTER_LENGTH = 16 * 1024;
+
+    private final FilterableIFReader pcap;
+    private final boolean tcpUplink;
+
+    //Running filters, woken by the mapping threads when a request is mapped
+    private static final List<DynamicCaptureFilter> FILTERS = new CopyOnWriteArrayList<DynamicCaptureFilter>();
+
+    private volatile boolean running = true;
+    //read without lock by the mapping threads, written by the filter thread
+    private volatile int requestedModificationCount = -1;
+    private volatile MapperConfig requestedConfig;
+    private boolean staticFilterRequested = false;
+    //monitor the filter thread waits on, kept apart from this object so the
+    //mapping threads never wait for a filter which is built
+    private final Object wakeup = new Object();
+
+    /**
+     * Create a new filter updater.
+     * @param pcap uplink pcap interface
+     * @param tcpUplink true for the TCP uplink, false for the UDP uplink
+     */
+    public DynamicCaptureFilter(FilterableIFReader pcap, boolean tcpUplink) {
+        this.pcap = pcap;
+        this.tcpUplink = tcpUplink;
+    }
+
+    @Override
+    public String getTaskName() {
+        return "DynamicCaptureFilter-" + pcap.getName();
+    }
+
+    @Override
+    public void run() {
+        FILTERS.add(this);
+        try {
+            while (running) {
+                try {
+                    update();
+                    synchronized (wakeup) {
+                        if (running && !isChanged()) {
+                            wakeup.wait(CHECK_INTERVALL);
+                        }
+                    }
+                } catch (InterruptedException ex) {
+                    running = false;
+                } catch (Exception ex) {
+                    ConnectionMapper.log.error("DynamicCaptureFilter " + pcap.getName() + ": " + ex);
+                }
+            }
+        } finally {
+            FILTERS.remove(this);
+        }
+    }
+
+    /**
+     * Wakes the filters of the uplinks on which the responses of a mapped
+     * request arrive, if the ConnectionTable changed. Called by the mapping
+     * threads after each mapped request.
+     * @param tcpRequest true after a TCP request, false after a UDP request
+     */
+    static void requestMapped(boolean tcpRequest) {
+        for (DynamicCaptureFilter filter : FILTERS) {
+            //UDP requests are answered on the TCP uplink and vice versa
+            if (filter.tcpUplink != tcpRequest && filter.isChanged()) {
+                filter.wakeUp();
+            }
+        }
+    }
+
+    /**
+     * Returns true if the ConnectionTable or the configuration changed
+     * since the last filter was requested. Only reads two fields.
+     */
+    private boolean isChanged() {
+        return ConnectionTable.getModificationCount() != requestedModificationCount
+                || ConnectionMapper.getConfig() != requestedConfig;
+    }
+
+    private void wakeUp() {
+        synchronized (wakeup) {
+            wakeup.notifyAll();
+        }
+    }
+
+    /**
+     * Stops updating the filter. The last installed filter stays active.
+     */
+    public void shutdown() {
+        running = false;
+        wakeUp();
+    }
+
+    /**
+     * Requests a new filter if the ConnectionTable or the configuration
+     * changed. Called by the filter thread only.
+     */
+    void update() {
+        int modificationCount = ConnectionTable.getModificationCount();
+        MapperConfig config = ConnectionMapper.getConfig();
+        if (modificationCount == requestedModificationCount && config == requestedConfig) {
+            return;
+        }
+        ConnectionTable table = ConnectionTable.getInstance();
+        //UDP requests are answered on the TCP uplink and vice versa
+        List<Request> requests = tcpUplink ? table.getUdpRequests() : table.getTcpRequests();
+        String staticFilter = CaptureFilter.createStaticFilter(
+                tcpUplink ? config.getTcpNetIfMac() : config.getUdpNetIfMac(),
+                ConnectionMapper.getLocalBoundIPs());
+        String filter = null;
+        //why the static filter is used instead of a dynamic one
+        String reason;
+        if (requests.size() <= MAX_CONNECTIONS) {
+            filter = tcpUplink
+                    ? CaptureFilter.createTcpFlowFilter(config, ConnectionMapper.getLocalBoundIPs(), requests)
+                    : CaptureFilter.createUdpFlowFilter(config, ConnectionMapper.getLocalBoundIPs(), requests);
+            reason = "filter too long (" + filter.length() + " characters)";
+            if (filter.length() > MAX_FILTER_LENGTH) {
+                filter = null;
+            }
+        } else {
+            reason = "too many connections (" + requests.size() + ")";
+        }
+        if (filter != null) {
+            //the reading thread falls back to the static filter if the
+            //dynamic one is rejected by the compiler or by setsockopt
+            pcap.requestFilter(filter, staticFilter);
+            staticFilterRequested = false;
+        } else if (!staticFilterRequested || config != requestedConfig) {
+            ConnectionMapper.log.warn("No dynamic filter on " + pcap.getName() + ", " + reason
+                    + ", using static filter.");
+            pcap.requestFilter(staticFilter, null);
+            staticFilterRequested = true;
+        }
+        requestedModificationCount = modificationCount;
+        requestedConfig = config;
+    }
+}
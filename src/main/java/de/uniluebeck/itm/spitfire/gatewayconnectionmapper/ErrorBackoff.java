@@ -0,0 +1,115 @@
+/**
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.uniluebeck.itm.spitfire.gatewayconnectionmapper;
+
+/**
+ * Slows down a interface loop whose reads fail repeatedly, eg. because the
+ * interface went down. The loop waits after each failed read, the wait
+ * doubles with every further error up to a maximum. Only the first error
+ * of a series is logged, then a summary every LOG_INTERVAL ms and when
+ * reading works again.
+ */
+class ErrorBackoff {
+
+    //Maximum wait after a failed read (in ms)
+    static final long MAX_WAIT = 1000;
+
+    //Interval in which a series of errors is summarized in the log (in ms)
+    static final long LOG_INTERVAL = 60000;
+
+    private final String name;
+    private final long maxWait;
+    private int errors = 0;
+    private long wait = 0;
+    private long loggedAt = 0;
+
+    /**
+     * @param name name of the loop, used in log messages
+     */
+    ErrorBackoff(String name) {
+        this(name, MAX_WAIT);
+    }
+
+    /**
+     * @param name name of the loop, used in log messages
+     * @param maxWait maximum wait after a failed read in ms
+     */
+    ErrorBackoff(String name, long maxWait) {
+        this.name = name;
+        this.maxWait = maxWait;
+    }
+
+    /**
+     * Logs the error if necessary and waits before the next read. If the
+     * thread is interrupted while waiting, its interrupt flag is set again.
+     * @param ex error of the read
+     */
+    void failed(Exception ex) {
+        errors++;
+        long now = System.currentTimeMillis();
+        if (errors == 1) {
+            ConnectionMapper.log.error(name + ": " + ex);
+            loggedAt = now;
+        } else if (now - loggedAt >= LOG_INTERVAL) {
+            ConnectionMapper.log.error(name + ": " + errors + " failed reads, last error: " + ex);
+            loggedAt = now;
+        }
+        wait = Math.min(maxWait, wait == 0 ? 1 : wait * 2);
+        try {
+            Thread.sleep(wait);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Ends a series of errors after a successful read.
+     */
+    void succeeded() {
+        if (errors > 0) {
+            if (errors > 1) {
+                ConnectionMapper.log.info(name + ": reading works again after " + errors + " failed reads.");
+            }
+            errors = 0;
+            wait = 0;
+        }
+    }
+
+    /**
+     * Returns the number of failed reads of the current series.
+     * @return errors since the last successful read
+     */
+    int getErrors() {
+        return errors;
+    }
+
+    /**
+     * Returns the wait after the last failed read.
+     * @return wait in ms, 0 after a successful read
+     */
+    long getWait() {
+        return wait;
+    }
+}
@@ -0,0 +1,315 @@
+/**
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.uniluebeck.itm.spitfire.gatewayconnectionmapper;
+
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.IFAdapter;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.IFBatchReader;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.IFBufferReadWriter;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.IFBufferReader;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.IFBufferWriter;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.IFReadWriter;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.IFReader;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.SelectableIF;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This thread reads all interfaces (uplinks and TUN queues) instead of one
+ * blocking thread per interface. The interfaces are switched to
+ * non-blocking mode and multiplexed with epoll, each readable interface is
+ * drained in batches of up to BATCH_SIZE packets. Interfaces without a
+ * selectable file descriptor (PcapIF) are polled every POLL_INTERVALL ms.
+ * The native library libPacketIOCdl.so has to be loaded before the loop is run.
+ */
+public class EventLoop implements NamedTask {
+
+    //Maximum number of packets read from a interface per wakeup,
+    //other interfaces are served before the rest is read
+    public static int BATCH_SIZE = 64;
+
+    //Interval to poll interfaces without selectable file descriptor (in ms)
+    public static int POLL_INTERVALL = 10;
+
+    //epoll token of the wakeup eventfd
+    private static final int WAKEUP_TOKEN = -1;
+
+    private final List<Source> sources = new ArrayList<Source>();
+    private final List<Source> polledSources = new ArrayList<Source>();
+    private volatile boolean running = true;
+    //guards wakeupFd, so shutdown() never signals a closed (and maybe
+    //reused) file descriptor
+    private final Object wakeupLock = new Object();
+    private int wakeupFd = -1;
+
+    /**
+     * Create a new event loop without interfaces.
+     */
+    public EventLoop() {
+    }
+
+    @Override
+    public String getTaskName() {
+        return "EventLoop";
+    }
+
+    /**
+     * Adds a uplink capture interface. Must be called before the loop is run.
+     * @param pcap capture interface, has to implement SelectableIF
+     * @param tun TUN interface to write the modified packets
+     * @param udp true for the UDP uplink, false for the TCP uplink
+     * @throws IOException Will be thrown when pcap can not be switched to non-blocking mode
+     */
+    public synchronized void addUplink(IFReader pcap, IFReadWriter tun, boolean udp) throws IOException {
+        add(new UplinkSource(pcap, tun, udp));
+    }
+
+    /**
+     * Adds a TUN interface (or queue). Must be called before the loop is run.
+     * @param tun TUN interface, has to implement SelectableIF
+     * @throws IOException Will be thrown when tun can not be switched to non-blocking mode
+     */
+    public synchronized void addTun(IFReadWriter tun) throws IOException {
+        add(new TunSource(tun));
+    }
+
+    private void add(Source source) throws IOException {
+        if (!(source.getInterface() instanceof SelectableIF)) {
+            throw new IllegalArgumentException(source.getInterface().getName()
+                    + " can not be read without blocking");
+        }
+        SelectableIF selectable = (SelectableIF) source.getInterface();
+        selectable.setNonBlocking();
+        if (selectable.getSelectableFd() >= 0) {
+            sources.add(source);
+        } else {
+            polledSources.add(source);
+        }
+    }
+
+    @Override
+    public void run() {
+        List<Source> selected;
+        synchronized (this) {
+            selected = new ArrayList<Source>(sources);
+        }
+        int epollFd = -1;
+        try {
+            epollFd = epollCreate();
+            int fd = eventfdCreate();
+            synchronized (wakeupLock) {
+                wakeupFd = fd;
+            }
+            epollAdd(epollFd, fd, WAKEUP_TOKEN);
+            for (int i = 0; i < selected.size(); i++) {
+                epollAdd(epollFd, ((SelectableIF) selected.get(i).getInterface()).getSelectableFd(), i);
+            }
+            ConnectionMapper.log.info("EventLoop started: " + selected.size() + " selectable and "
+                    + polledSources.size() + " polled interfaces");
+            int[] ready = new int[selected.size() + 1];
+            boolean polledPending = false;
+            while (running) {
+                //wait for ever if nothing has to be polled, do not wait
+                //if polled interfaces had more data
+                int timeout = polledSources.isEmpty() ? -1 : (polledPending ? 0 : POLL_INTERVALL);
+                int count = epollWait(epollFd, ready, timeout);
+                for (int i = 0; i < count; i++) {
+                    if (ready[i] == WAKEUP_TOKEN) {
+                        eventfdClear(fd);
+                    } else {
+                        selected.get(ready[i]).drain();
+                    }
+                }
+                polledPending = poll();
+            }
+        } catch (IOException e) {
+            ConnectionMapper.log.fatal("EventLoop: " + e.getMessage());
+        } finally {
+            int fd;
+            synchronized (wakeupLock) {
+                fd = wakeupFd;
+                wakeupFd = -1;
+            }
+            //no shutdown() can signal fd anymore
+            if (fd >= 0) {
+                closeFd(fd);
+            }
+            if (epollFd >= 0) {
+                closeFd(epollFd);
+            }
+        }
+        ConnectionMapper.log.info("EventLoop stopped.");
+    }
+
+    /**
+     * Drains all interfaces without selectable file descriptor.
+     * @return true if a interface delivered a full batch, so more data may
+     * be available
+     */
+    boolean poll() {
+        boolean pending = false;
+        for (Source source : polledSources) {
+            if (source.drain() >= BATCH_SIZE) {
+                pending = true;
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Stops the event loop. The interfaces are not closed.
+     */
+    public void shutdown() {
+        running = false;
+        synchronized (wakeupLock) {
+            if (wakeupFd >= 0) {
+                eventfdSignal(wakeupFd);
+            }
+        }
+    }
+
+    /**
+     * A interface which is read by the event loop.
+     */
+    abstract static class Source {
+        //Buffer for a single packet
+        final byte[] buffer = new byte[1900];
+        final ByteBuffer packet = ByteBuffer.wrap(buffer);
+
+        /**
+         * Reads and processes up to BATCH_SIZE packets.
+         * @return number of packets read
+         */
+        abstract int drain();
+
+        abstract IFReader getInterface();
+    }
+
+    /**
+     * A uplink capture interface.
+     */
+    static class UplinkSource extends Source {
+        private final IFReader pcap;
+        private final IFBufferReader reader;
+        private final IFBufferWriter tun;
+        private final boolean udp;
+        private final NetIfFrameHandler handler;
+
+        UplinkSource(IFReader pcap, IFReadWriter tun, boolean udp) {
+            this.pcap = pcap;
+            this.reader = IFAdapter.bufferReader(pcap);
+            this.tun = IFAdapter.bufferReadWriter(tun);
+            this.udp = udp;
+            this.handler = IFAdapter.canReadBatches(pcap) ? new NetIfFrameHandler(this.tun, udp, buffer) : null;
+        }
+
+        @Override
+        int drain() {
+            MapperConfig config = ConnectionMapper.getConfig();
+            long blockedSourceMac = udp ? config.getUdpNetIfMac() : config.getTcpNetIfMac();
+            try {
+                if (handler != null) {
+                    handler.setConfig(config);
+                    return ((IFBatchReader) pcap).read(handler, BATCH_SIZE);
+                }
+                int packets = 0;
+                while (packets < BATCH_SIZE) {
+                    packet.clear();
+                    int bytesRead = reader.read(packet);
+                    if (bytesRead <= 0) {
+                        break;
+                    }
+                    packets++;
+                    if (udp) {
+                        ConnectionMapper.mapUDPFrame(buffer, bytesRead, tun, config, blockedSourceMac);
+                    } else {
+                        ConnectionMapper.mapTCPFrame(buffer, bytesRead, tun, config, blockedSourceMac);
+                    }
+                }
+                return packets;
+            } catch (Exception ex) {
+                ConnectionMapper.log.error("EventLoop " + pcap.getName() + ": " + ex);
+                return 0;
+            }
+        }
+
+        @Override
+        IFReader getInterface() {
+            return pcap;
+        }
+    }
+
+    /**
+     * A TUN interface or queue.
+     */
+    static class TunSource extends Source {
+        private final IFReadWriter tunIF;
+        private final IFBufferReadWriter tun;
+
+        TunSource(IFReadWriter tun) {
+            this.tunIF = tun;
+            this.tun = IFAdapter.bufferReadWriter(tun);
+        }
+
+        @Override
+        int drain() {
+            int packets = 0;
+            while (packets < BATCH_SIZE) {
+                packet.clear();
+                int bytesRead = tun.read(packet);
+                if (bytesRead <= 0) {
+                    break;
+                }
+                packets++;
+                try {
+                    ConnectionMapper.mapTUNPacket(buffer, bytesRead, tun);
+                } catch (Exception ex) {
+                    ConnectionMapper.log.error("EventLoop " + tun.getName() + ": " + ex);
+                }
+            }
+            return packets;
+        }
+
+        @Override
+        IFReader getInterface() {
+            return tunIF;
+        }
+    }
+
+    private static native int epollCreate() throws IOException;
+
+    private static native void epollAdd(int epollFd, int fd, int token) throws IOException;
+
+    private static native int epollWait(int epollFd, int[] tokens, int timeout) throws IOException;
+
+    private static native int eventfdCreate() throws IOException;
+
+    private static native void eventfdSignal(int fd);
+
+    private static native void eventfdClear(int fd);
+
+    private static native void closeFd(int fd);
+}
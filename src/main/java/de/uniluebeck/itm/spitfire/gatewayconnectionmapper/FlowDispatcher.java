@@ -0,0 +1,124 @@
+/**
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.uniluebeck.itm.spitfire.gatewayconnectionmapper;
+
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.IFAdapter;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.IFBatchReader;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.IFBufferReader;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.IFReader;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.PacketHandler;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads a interface and passes each packet to the queue of the worker
+ * selected by its flow hash. Packets are dropped if the queue is full, so
+ * a busy worker does not stall reading. While the mapper is overloaded,
+ * requests of new flows on a uplink are dropped before they take a queue
+ * slot (see OverloadController).
+ */
+class FlowDispatcher implements NamedTask, PacketHandler {
+    private final String taskName;
+    private final IFReader source;
+    private final int tag;
+    private final FlowWorker[] workers;
+    //workers which got packets since the last signal
+    private final boolean[] pending;
+    private final byte[] scratch = new byte[OverloadController.CLASSIFY_LENGTH];
+    //overload controller if new flows are shed in the current batch, null otherwise
+    private OverloadController shedding;
+
+    FlowDispatcher(IFReader source, int tag, FlowWorker[] workers) {
+        this.taskName = "FlowDispatcher-" + source.getName();
+        this.source = source;
+        this.tag = tag;
+        this.workers = workers;
+        this.pending = new boolean[workers.length];
+    }
+
+    @Override
+    public String getTaskName() {
+        return taskName;
+    }
+
+    @Override
+    public void run() {
+        if (IFAdapter.canReadBatches(source)) {
+            readBatches((IFBatchReader) source);
+            return;
+        }
+        IFBufferReader reader = IFAdapter.bufferReader(source);
+        ByteBuffer packet = ByteBuffer.allocate(ConnectionMapper.pipelineSlotSize);
+        while (!Thread.currentThread().isInterrupted()) {
+            packet.clear();
+            if (reader.read(packet) > 0) {
+                packet.flip();
+                updateShedding();
+                handlePacket(packet);
+                signalWorkers();
+            }
+        }
+    }
+
+    private void readBatches(IFBatchReader reader) {
+        ErrorBackoff backoff = new ErrorBackoff("FlowDispatcher");
+        while (!Thread.currentThread().isInterrupted()) {
+            updateShedding();
+            try {
+                reader.read(this, ConnectionMapper.pcapBatchSize);
+                backoff.succeeded();
+            } catch (Exception ex) {
+                backoff.failed(ex);
+            }
+            signalWorkers();
+        }
+    }
+
+    /**
+     * Evaluates the overload state, once per batch.
+     */
+    private void updateShedding() {
+        shedding = tag == WorkerPool.TUN_PACKET ? null : OverloadController.getShedding();
+    }
+
+    @Override
+    public void handlePacket(ByteBuffer packet) {
+        if (shedding != null && !shedding.admit(packet, tag == WorkerPool.UDP_FRAME, scratch)) {
+            return;
+        }
+        int worker = WorkerPool.workerFor(packet, tag, workers.length);
+        workers[worker].getQueue().offer(packet, tag);
+        pending[worker] = true;
+    }
+
+    private void signalWorkers() {
+        for (int i = 0; i < pending.length; i++) {
+            if (pending[i]) {
+                pending[i] = false;
+                workers[i].getQueue().signal();
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.uniluebeck.itm.spitfire.gatewayconnectionmapper;
+
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.IFAdapter;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.IFBufferWriter;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.IFWriter;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.PacketHandler;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.PacketQueue;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Maps the packets of its queue and writes them to the TUN interface.
+ */
+class FlowWorker implements NamedTask, PacketHandler {
+    private final String taskName;
+    private final int index;
+    private final PacketQueue queue;
+    private final IFBufferWriter tun;
+    private final NetIfFrameHandler tcpHandler;
+    private final NetIfFrameHandler udpHandler;
+    private final TunPacketHandler tunHandler;
+    private volatile long processed = 0;
+    private volatile int maxQueueDepth = 0;
+
+    FlowWorker(int index, PacketQueue queue, IFWriter tun) {
+        this.taskName = "FlowWorker-" + index;
+        this.index = index;
+        this.queue = queue;
+        this.tun = IFAdapter.bufferWriter(tun);
+        this.tcpHandler = new NetIfFrameHandler(tun, false, new byte[1900]);
+        this.udpHandler = new NetIfFrameHandler(tun, true, new byte[1900]);
+        this.tunHandler = new TunPacketHandler(tun, new byte[1900]);
+    }
+
+    @Override
+    public String getTaskName() {
+        return taskName;
+    }
+
+    @Override
+    public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            MapperConfig config = ConnectionMapper.getConfig();
+            tcpHandler.setConfig(config);
+            udpHandler.setConfig(config);
+            int depth = queue.size();
+            if (depth > maxQueueDepth) {
+                maxQueueDepth = depth;
+            }
+            try {
+                int mapped = queue.take(this, ConnectionMapper.pcapBatchSize, WorkerPool.WORKER_TIMEOUT);
+                if (mapped > 0) {
+                    processed += mapped;
+                }
+            } catch (Exception ex) {
+                ConnectionMapper.log.error("FlowWorker: " + ex);
+            }
+            ConnectionMapper.flush(tun);
+        }
+    }
+
+    @Override
+    public void handlePacket(ByteBuffer packet) {
+        switch (queue.peekTag()) {
+            case WorkerPool.TCP_FRAME:
+                tcpHandler.handlePacket(packet);
+                break;
+            case WorkerPool.UDP_FRAME:
+                udpHandler.handlePacket(packet);
+                break;
+            default:
+                tunHandler.handlePacket(packet);
+        }
+    }
+
+    int getIndex() {
+        return index;
+    }
+
+    PacketQueue getQueue() {
+        return queue;
+    }
+
+    /**
+     * Returns the number of packets taken from the queue.
+     * @return mapped packets
+     */
+    long getProcessed() {
+        return processed;
+    }
+
+    /**
+     * Returns the largest queue depth seen before a batch.
+     * @return maximum queue depth
+     */
+    int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.uniluebeck.itm.spitfire.gatewayconnectionmapper;
+
+import java.net.Inet6Address;
+import java.util.List;
+
+/**
+ * Snapshot of the data of a network interface which is needed by
+ * ConnectionMapper.start(), collected once when the mapper starts.
+ */
+class InterfaceInfo {
+    private final String name;
+    private final byte[] hardwareAddress;
+    private final List<Inet6Address> globalAddresses;
+
+    /**
+     * @param name interface name
+     * @param hardwareAddress mac address, null if the interface has none (eg. TUN)
+     * @param globalAddresses global unique IPv6 addresses of the interface
+     */
+    InterfaceInfo(String name, byte[] hardwareAddress, List<Inet6Address> globalAddresses) {
+        this.name = name;
+        this.hardwareAddress = hardwareAddress;
+        this.globalAddresses = globalAddresses;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    byte[] getHardwareAddress() {
+        return hardwareAddress;
+    }
+
+    List<Inet6Address> getGlobalAddresses() {
+        return globalAddresses;
+    }
+}
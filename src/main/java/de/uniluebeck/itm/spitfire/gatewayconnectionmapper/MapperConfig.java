@@ -0,0 +1,177 @@
+/**
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.uniluebeck.itm.spitfire.gatewayconnectionmapper;
+
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.protocol.IPv6Address;
+
+import java.net.UnknownHostException;
+
+/**
+ * Immutable snapshot of the runtime configuration of the ConnectionMapper.
+ * All values are parsed once when the snapshot is created, so the threads
+ * processing packets never parse strings. A new snapshot can be activated at
+ * any time with ConnectionMapper.setConfig(), running threads pick it up
+ * with their next packet.
+ */
+public final class MapperConfig {
+
+    //Default virtual server ports, used by ConnectionMapper.start()
+    public static final int DEFAULT_VIRTUAL_UDP_SERVER_PORT = 5683;
+    public static final int DEFAULT_VIRTUAL_TCP_SERVER_PORT = 80;
+
+    //Has to be the same IP owned by the tun interface
+    private final IPv6Address tunBoundIP;
+
+    //Virtual IP addresses in the tunBoundIP network
+    //TCP packets: localhost(tunBoundIP) <--> tunVirtualTcpIP
+    //UDP packets: localhost(tunBoundIP) <--> tunVirtualUdpIP
+    private final IPv6Address tunVirtualUdpIP;
+    private final IPv6Address tunVirtualTcpIP;
+
+    //UDP and TCP server ports of the gateway
+    private final int localUdpServerPort;
+    private final int localTcpServerPort;
+
+    //Virtual Server Ports
+    private final int virtualUDPServerPort;
+    private final int virtualTCPServerPort;
+
+    //Mac addresses of the UDP/TCP network interfaces (lower 48 bits),
+    //frames sent from these addresses will be ignored
+    private final long udpNetIfMac;
+    private final long tcpNetIfMac;
+
+    /**
+     * Create a new configuration.
+     * @param tunBoundIP IP which is bound to the TUN interface
+     * @param localUdpServerPort port on which the UDP server listens
+     * @param localTcpServerPort port on which the TCP server listens
+     * @param tunVirtualUdpIP UDP specific ip address in the tunBoundIP network
+     * @param tunVirtualTcpIP TCP specific ip address in the tunBoundIP network
+     * @param virtualUDPServerPort UDP port which is mapped to the TCP server
+     * @param virtualTCPServerPort TCP port which is mapped to the UDP server
+     * @param udpNetIfMac mac address of the UDP network interface
+     * @param tcpNetIfMac mac address of the TCP network interface
+     */
+    public MapperConfig(IPv6Address tunBoundIP, int localUdpServerPort, int localTcpServerPort,
+            IPv6Address tunVirtualUdpIP, IPv6Address tunVirtualTcpIP,
+            int virtualUDPServerPort, int virtualTCPServerPort,
+            long udpNetIfMac, long tcpNetIfMac) {
+        this.tunBoundIP = tunBoundIP;
+        this.localUdpServerPort = localUdpServerPort;
+        this.localTcpServerPort = localTcpServerPort;
+        this.tunVirtualUdpIP = tunVirtualUdpIP;
+        this.tunVirtualTcpIP = tunVirtualTcpIP;
+        this.virtualUDPServerPort = virtualUDPServerPort;
+        this.virtualTCPServerPort = virtualTCPServerPort;
+        this.udpNetIfMac = udpNetIfMac;
+        this.tcpNetIfMac = tcpNetIfMac;
+    }
+
+    /**
+     * Create a new configuration with the default virtual server ports
+     * and without network interface mac addresses.
+     * @param tunBoundIP IP which is bound to the TUN interface
+     * @param localUdpServerPort port on which the UDP server listens
+     * @param localTcpServerPort port on which the TCP server listens
+     * @param tunVirtualUdpIP UDP specific ip address in the tunBoundIP network
+     * @param tunVirtualTcpIP TCP specific ip address in the tunBoundIP network
+     * @throws UnknownHostException Will be thrown when a address is invalid
+     */
+    public MapperConfig(String tunBoundIP, int localUdpServerPort, int localTcpServerPort,
+            String tunVirtualUdpIP, String tunVirtualTcpIP) throws UnknownHostException {
+        this(IPv6Address.getByName(tunBoundIP), localUdpServerPort, localTcpServerPort,
+                IPv6Address.getByName(tunVirtualUdpIP), IPv6Address.getByName(tunVirtualTcpIP),
+                DEFAULT_VIRTUAL_UDP_SERVER_PORT, DEFAULT_VIRTUAL_TCP_SERVER_PORT, 0, 0);
+    }
+
+    /**
+     * Returns a copy of this configuration with new virtual server ports.
+     * @param virtualUDPServerPort UDP port which is mapped to the TCP server
+     * @param virtualTCPServerPort TCP port which is mapped to the UDP server
+     * @return New configuration
+     */
+    public MapperConfig withVirtualServerPorts(int virtualUDPServerPort, int virtualTCPServerPort) {
+        return new MapperConfig(tunBoundIP, localUdpServerPort, localTcpServerPort,
+                tunVirtualUdpIP, tunVirtualTcpIP, virtualUDPServerPort, virtualTCPServerPort,
+                udpNetIfMac, tcpNetIfMac);
+    }
+
+    /**
+     * Returns a copy of this configuration with new network interface mac addresses.
+     * @param udpNetIfMac mac address of the UDP network interface
+     * @param tcpNetIfMac mac address of the TCP network interface
+     * @return New configuration
+     */
+    public MapperConfig withNetIfMacs(long udpNetIfMac, long tcpNetIfMac) {
+        return new MapperConfig(tunBoundIP, localUdpServerPort, localTcpServerPort,
+                tunVirtualUdpIP, tunVirtualTcpIP, virtualUDPServerPort, virtualTCPServerPort,
+                udpNetIfMac, tcpNetIfMac);
+    }
+
+    public IPv6Address getTunBoundIP() {
+        return tunBoundIP;
+    }
+
+    public IPv6Address getTunVirtualUdpIP() {
+        return tunVirtualUdpIP;
+    }
+
+    public IPv6Address getTunVirtualTcpIP() {
+        return tunVirtualTcpIP;
+    }
+
+    public int getLocalUdpServerPort() {
+        return localUdpServerPort;
+    }
+
+    public int getLocalTcpServerPort() {
+        return localTcpServerPort;
+    }
+
+    public int getVirtualUDPServerPort() {
+        return virtualUDPServerPort;
+    }
+
+    public int getVirtualTCPServerPort() {
+        return virtualTCPServerPort;
+    }
+
+    public long getUdpNetIfMac() {
+        return udpNetIfMac;
+    }
+
+    public long getTcpNetIfMac() {
+        return tcpNetIfMac;
+    }
+
+    @Override
+    public String toString() {
+        return "MapperConfig: tun " + tunBoundIP + " (udp " + tunVirtualUdpIP + ", tcp " + tunVirtualTcpIP
+                + "), local ports udp " + localUdpServerPort + " tcp " + localTcpServerPort
+                + ", virtual ports udp " + virtualUDPServerPort + " tcp " + virtualTCPServerPort
+                + ", macs udp " + Long.toHexString(udpNetIfMac) + " tcp " + Long.toHexString(tcpNetIfMac);
+    }
+}
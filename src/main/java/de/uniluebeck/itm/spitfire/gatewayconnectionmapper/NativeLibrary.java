@@ -0,0 +1,326 @@
+/**
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.uniluebeck.itm.spitfire.gatewayconnectionmapper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+
+/**
+ * Extracts native libraries from the jar into a cache directory.
+ * Each library is stored in a subdirectory named after the SHA-256 hash
+ * of its content, so it is only written once per version and restarts
+ * reuse the extracted file. A cached file is only reused if its content
+ * still matches the hash.
+ * The libraries are loaded by the (privileged) mapper, so the cache
+ * directory and its subdirectories have to be owned by the current user
+ * and must not be writable by others, otherwise no other user can replace
+ * a library after it was verified. Missing directories are created with
+ * mode 0700. If the owner and permissions can not be checked (no POSIX file
+ * system or Java 6), each library is extracted to a new temporary file.
+ */
+class NativeLibrary {
+
+    //Size of the chunks in which libraries are read
+    private static final int CHUNK_SIZE = 64 * 1024;
+    //Number of hex digits of the hash used as directory name
+    private static final int HASH_DIGITS = 16;
+
+    private NativeLibrary() {
+    }
+
+    /**
+     * Returns the default cache directory, a private directory of the
+     * current user in $XDG_CACHE_HOME or ~/.cache.
+     * @return cache directory
+     */
+    static File getDefaultCacheDirectory() {
+        String cacheHome = System.getenv("XDG_CACHE_HOME");
+        //relative paths are invalid according to the XDG specification
+        File base = cacheHome != null && new File(cacheHome).isAbsolute() ? new File(cacheHome)
+                : new File(System.getProperty("user.home"), ".cache");
+        return new File(base, "gatewayconnectionmapper");
+    }
+
+    /**
+     * Extracts a native library from the jar into the cache directory,
+     * if it is not cached already.
+     * @param libraryName name of the library without ".so" (eg. "libTUNWrapperCdl")
+     * @param cacheDirectory cache directory
+     * @return extracted library
+     * @throws IOException Will be thrown when extracting failed or the
+     * cache directory is not private
+     */
+    static File extract(String libraryName, File cacheDirectory) throws IOException {
+        InputStream inputStream = ConnectionMapper.class.getResourceAsStream("/" + libraryName + ".so");
+        if (inputStream == null) {
+            throw new IOException("Library not found: " + libraryName + ".so");
+        }
+        try {
+            return extract(libraryName, inputStream, cacheDirectory);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Stores a native library in the cache directory, if it is not cached
+     * already.
+     * @param libraryName name of the library without ".so"
+     * @param inputStream content of the library
+     * @param cacheDirectory cache directory
+     * @return extracted library
+     * @throws IOException Will be thrown when extracting failed or the
+     * cache directory is not private
+     */
+    static File extract(String libraryName, InputStream inputStream, File cacheDirectory)
+            throws IOException {
+        byte[] content = readAll(inputStream);
+        if (!canCheckOwner()) {
+            ConnectionMapper.log.warn("Owner of " + cacheDirectory.getAbsolutePath()
+                    + " can not be checked, library " + libraryName + " is extracted to a temporary file.");
+            return extractTemporary(libraryName, content);
+        }
+        String hash = hash(content);
+        PrivateFiles.createDirectory(cacheDirectory);
+        File directory = new File(cacheDirectory, hash.substring(0, HASH_DIGITS));
+        PrivateFiles.createDirectory(directory);
+        File libFile = new File(directory, libraryName + ".so");
+        //nobody else can write to the directory, so the checked file is loaded
+        if (libFile.length() == content.length && PrivateFiles.isPrivateFile(libFile)
+                && hash.equals(hash(libFile))) {
+            ConnectionMapper.log.debug("Library " + libraryName + " is cached: " + libFile.getAbsolutePath());
+            return libFile;
+        }
+        //write to a temporary file first, so a concurrently started process
+        //never loads a partly written library
+        File tmpFile = File.createTempFile(libraryName, ".tmp", directory);
+        try {
+            write(tmpFile, content);
+            //only the owner can reach the file, the directory is private
+            if (!tmpFile.setExecutable(true, true)) {
+                throw new IOException("Could not set permissions of " + tmpFile.getAbsolutePath());
+            }
+            //a library of another process may have been renamed in between
+            libFile.delete();
+            if (!tmpFile.renameTo(libFile)) {
+                throw new IOException("Could not move library to " + libFile.getAbsolutePath());
+            }
+        } finally {
+            tmpFile.delete();
+        }
+        ConnectionMapper.log.info("Extracted library " + libraryName + " to path: " + libFile.getAbsolutePath());
+        return libFile;
+    }
+
+    private static boolean canCheckOwner() {
+        try {
+            return PrivateFiles.isSupported();
+        } catch (LinkageError e) {
+            //java.nio.file is not available (Java 6)
+            return false;
+        }
+    }
+
+    /**
+     * Extracts a library to a new temporary file with a random name, which
+     * is deleted when the JVM exits.
+     */
+    private static File extractTemporary(String libraryName, byte[] content) throws IOException {
+        File libFile = File.createTempFile(libraryName, ".so");
+        libFile.deleteOnExit();
+        //only the owner may write, the file is created exclusively
+        if (!libFile.setWritable(false, false) || !libFile.setWritable(true, true)
+                || !libFile.setExecutable(true, false)) {
+            throw new IOException("Could not set permissions of " + libFile.getAbsolutePath());
+        }
+        write(libFile, content);
+        ConnectionMapper.log.info("Extracted library " + libraryName + " to path: " + libFile.getAbsolutePath());
+        return libFile;
+    }
+
+    private static void write(File file, byte[] content) throws IOException {
+        FileOutputStream outputStream = new FileOutputStream(file);
+        try {
+            FileChannel channel = outputStream.getChannel();
+            ByteBuffer buffer = ByteBuffer.wrap(content);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    private static byte[] readAll(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream(CHUNK_SIZE);
+        byte[] chunk = new byte[CHUNK_SIZE];
+        int read;
+        while ((read = inputStream.read(chunk)) != -1) {
+            result.write(chunk, 0, read);
+        }
+        return result.toByteArray();
+    }
+
+    /**
+     * Returns the SHA-256 hash of a file.
+     * @param file file
+     * @return hash as hex string, null if the file can not be read
+     */
+    private static String hash(File file) {
+        try {
+            FileInputStream inputStream = new FileInputStream(file);
+            try {
+                byte[] content = readAll(inputStream);
+                return hash(content);
+            } finally {
+                inputStream.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static String hash(byte[] content) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            //every Java platform has to support SHA-256
+            throw new IllegalStateException(e);
+        }
+        digest.update(content);
+        StringBuilder result = new StringBuilder();
+        for (byte b : digest.digest()) {
+            result.append(Integer.toHexString((b & 0xFF) + 0x100).substring(1));
+        }
+        return result.toString();
+    }
+
+    /**
+     * Checks owner and permissions of the cache with java.nio.file. The
+     * class is only loaded on Java 7 or newer.
+     */
+    private static class PrivateFiles {
+
+        //rwx------
+        private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rwx------");
+
+        /**
+         * Returns true if owner and permissions of files can be checked.
+         * @return false without a POSIX file system
+         */
+        static boolean isSupported() {
+            return FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+        }
+
+        /**
+         * Creates a directory with mode 0700 if it does not exist and checks
+         * that it is a private directory of the current user.
+         * @param directory directory
+         * @throws IOException Will be thrown when the directory can not be
+         * created or is not private
+         */
+        static void createDirectory(File directory) throws IOException {
+            Path path = directory.toPath();
+            if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+                File parent = directory.getAbsoluteFile().getParentFile();
+                if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+                    throw new IOException("Could not create library cache directory: " + parent.getAbsolutePath());
+                }
+                try {
+                    //created with its final permissions, there is no window in which
+                    //others could write to it
+                    Files.createDirectory(path, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+                } catch (FileAlreadyExistsException e) {
+                    //created concurrently, checked below
+                }
+            }
+            PosixFileAttributes attributes = readAttributes(path);
+            if (!attributes.isDirectory()) {
+                throw new IOException("Library cache is not a directory: " + path);
+            }
+            checkPrivate(path, attributes);
+        }
+
+        /**
+         * Returns true if a file is a regular file of the current user which
+         * can not be written by others.
+         * @param file file
+         * @return false if the file does not exist or is not private
+         */
+        static boolean isPrivateFile(File file) {
+            try {
+                PosixFileAttributes attributes = readAttributes(file.toPath());
+                if (!attributes.isRegularFile()) {
+                    return false;
+                }
+                checkPrivate(file.toPath(), attributes);
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        private static PosixFileAttributes readAttributes(Path path) throws IOException {
+            //symbolic links are not followed, a link is neither a directory nor a regular file
+            return Files.getFileAttributeView(path, PosixFileAttributeView.class, LinkOption.NOFOLLOW_LINKS)
+                    .readAttributes();
+        }
+
+        private static void checkPrivate(Path path, PosixFileAttributes attributes) throws IOException {
+            UserPrincipal user = path.getFileSystem().getUserPrincipalLookupService()
+                    .lookupPrincipalByName(System.getProperty("user.name"));
+            if (!attributes.owner().equals(user)) {
+                throw new IOException("Library cache " + path + " is owned by " + attributes.owner()
+                        + ", not by " + user + ".");
+            }
+            Set<PosixFilePermission> permissions = attributes.permissions();
+            if (permissions.contains(PosixFilePermission.GROUP_WRITE)
+                    || permissions.contains(PosixFilePermission.OTHERS_WRITE)) {
+                throw new IOException("Library cache " + path + " is writable by others: "
+                        + PosixFilePermissions.toString(permissions));
+            }
+        }
+    }
+}
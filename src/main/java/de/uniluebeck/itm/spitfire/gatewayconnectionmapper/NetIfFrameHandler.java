@@ -0,0 +1,89 @@
+/**
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.uniluebeck.itm.spitfire.gatewayconnectionmapper;
+
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.IFAdapter;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.IFBufferWriter;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.IFWriter;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.PacketHandler;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.protocol.EthernetFrameView;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Passes frames read in batches from a uplink interface to the mapper.
+ * Only the ethernet header is copied first, frames which are no IPv6 or
+ * have the blocked source mac are dropped before their payload is copied
+ * out of the interface buffer.
+ */
+class NetIfFrameHandler implements PacketHandler {
+    private final IFBufferWriter tun;
+    private final boolean udp;
+    private final byte[] buffer;
+    private MapperConfig config;
+    private long blockedSourceMac;
+
+    /**
+     * @param tun TUN interface to write the modified packets
+     * @param udp true for the UDP side, false for the TCP side
+     * @param buffer Buffer in which each frame will be copied
+     */
+    NetIfFrameHandler(IFWriter tun, boolean udp, byte[] buffer) {
+        this.tun = IFAdapter.bufferWriter(tun);
+        this.udp = udp;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Sets the configuration snapshot used for the next frames, eg. before
+     * each batch. Frames from the mac address of the uplink are ignored.
+     * @param config Configuration snapshot
+     */
+    void setConfig(MapperConfig config) {
+        this.config = config;
+        this.blockedSourceMac = udp ? config.getUdpNetIfMac() : config.getTcpNetIfMac();
+    }
+
+    @Override
+    public void handlePacket(ByteBuffer packet) {
+        int length = Math.min(packet.remaining(), buffer.length);
+        int headerLength = Math.min(length, EthernetFrameView.HEADER_LENGTH);
+        packet.get(buffer, 0, headerLength);
+        EthernetFrameView frame = new EthernetFrameView(buffer, length);
+        if (!frame.isIPv6() || frame.getSourceMac() == blockedSourceMac) {
+            return;
+        }
+        packet.get(buffer, headerLength, length - headerLength);
+        try {
+            if (udp) {
+                ConnectionMapper.mapUDPFrame(buffer, length, tun, config, blockedSourceMac);
+            } else {
+                ConnectionMapper.mapTCPFrame(buffer, length, tun, config, blockedSourceMac);
+            }
+        } catch (Exception ex) {
+            ConnectionMapper.log.error("NetIfFrameHandler: " + ex);
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/**
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.uniluebeck.itm.spitfire.gatewayconnectionmapper;
+
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.PacketQueue;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Detects when the mapper falls behind and sheds packets of new flows
+ * first. New flows are requests to the virtual server ports which are not
+ * in the ConnectionTable yet, ie. packets which would call mapTcpRequest or
+ * mapUdpRequest. Packets of established flows are never shed, so a SYN
+ * storm or a burst of CoAP retransmissions can not starve them. Shed
+ * requests are retransmitted by their clients.
+ * Capture stages and flow dispatchers classify uplink frames with admit()
+ * before they are queued, so new flows never take the queue slots
+ * established flows need. The map stage sheds the remaining ones
+ * (eg. if only the TUNWriter queue is watched).
+ * The mapper is overloaded if a watched queue is filled above
+ * HIGH_WATERMARK or its oldest packet waits longer than MAX_DELAY. It stays
+ * overloaded until all watched queues are filled below LOW_WATERMARK and
+ * their oldest packets wait less than MAX_DELAY / 2.
+ * The state is evaluated once per captured batch and for each request to
+ * the virtual server ports which reaches the map stage.
+ */
+public class OverloadController {
+
+    //Fraction of a queue's capacity above which new flows are shed
+    public static double HIGH_WATERMARK = 0.75;
+    //Fraction of a queue's capacity below which all queues have to drain
+    //before new flows are admitted again
+    public static double LOW_WATERMARK = 0.25;
+    //Maximum time the oldest packet of a queue may wait (in ms), 0 to
+    //watch the queue depth only
+    public static int MAX_DELAY = 20;
+
+    //Number of bytes of a frame copied to classify it, enough for the
+    //ethernet, IPv6 and transport header and some extension headers.
+    //Frames whose transport header lies behind it are always admitted.
+    static final int CLASSIFY_LENGTH = 256;
+
+    private final double highWatermark;
+    private final double lowWatermark;
+    private final long maxDelay;
+    private final List<PacketQueue> queues = new CopyOnWriteArrayList<PacketQueue>();
+
+    private final AtomicBoolean overloaded = new AtomicBoolean(false);
+    private final AtomicLong overloadPeriods = new AtomicLong();
+    private final AtomicLong shedTcpRequests = new AtomicLong();
+    private final AtomicLong shedUdpRequests = new AtomicLong();
+
+    /**
+     * Create a new controller with the default thresholds (HIGH_WATERMARK,
+     * LOW_WATERMARK, MAX_DELAY).
+     */
+    public OverloadController() {
+        this(HIGH_WATERMARK, LOW_WATERMARK, MAX_DELAY);
+    }
+
+    /**
+     * Create a new controller.
+     * @param highWatermark fraction of a queue's capacity above which new
+     * flows are shed
+     * @param lowWatermark fraction of a queue's capacity below which all
+     * queues have to drain before new flows are admitted again
+     * @param maxDelay maximum time the oldest packet of a queue may wait
+     * (in ms), 0 to watch the queue depth only
+     */
+    public OverloadController(double highWatermark, double lowWatermark, int maxDelay) {
+        if (lowWatermark > highWatermark) {
+            throw new IllegalArgumentException("Low watermark " + lowWatermark
+                    + " is above high watermark " + highWatermark);
+        }
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+        this.maxDelay = TimeUnit.MILLISECONDS.toNanos(maxDelay);
+    }
+
+    /**
+     * Watches the depth of a queue in front of or behind the mapping stage.
+     * If MAX_DELAY is set, the queue timestamps its packets from now on.
+     * @param queue watched queue
+     */
+    public void watch(PacketQueue queue) {
+        if (maxDelay > 0) {
+            queue.setTimestamped(true);
+        }
+        queues.add(queue);
+    }
+
+    /**
+     * Returns the number of watched queues.
+     * @return watched queues
+     */
+    public int getWatchedQueues() {
+        return queues.size();
+    }
+
+    /**
+     * Evaluates the watched queues and returns true if new flows have to
+     * be shed.
+     * @return true if the mapper is overloaded
+     */
+    public boolean isOverloaded() {
+        boolean aboveHigh = false;
+        boolean belowLow = true;
+        for (PacketQueue queue : queues) {
+            int size = queue.size();
+            long age = maxDelay > 0 ? queue.getHeadAge() : 0;
+            if (size > queue.getCapacity() * highWatermark || (maxDelay > 0 && age > maxDelay)) {
+                aboveHigh = true;
+                belowLow = false;
+                break;
+            }
+            if (size > queue.getCapacity() * lowWatermark || (maxDelay > 0 && age > maxDelay / 2)) {
+                belowLow = false;
+            }
+        }
+        if (aboveHigh) {
+            if (overloaded.compareAndSet(false, true)) {
+                overloadPeriods.incrementAndGet();
+                ConnectionMapper.log.warn("Overload: shedding new flows.");
+            }
+        } else if (belowLow && overloaded.compareAndSet(true, false)) {
+            ConnectionMapper.log.info("Overload ended, shed TCP requests " + shedTcpRequests.get()
+                    + ", shed UDP requests " + shedUdpRequests.get() + ".");
+        }
+        return overloaded.get();
+    }
+
+    /**
+     * Returns the overload controller of the mapper if new flows have to
+     * be shed, evaluates its state.
+     * @return overload controller, null if new flows are admitted
+     */
+    static OverloadController getShedding() {
+        OverloadController controller = ConnectionMapper.getOverloadController();
+        return controller != null && controller.isOverloaded() ? controller : null;
+    }
+
+    /**
+     * Decides whether a captured uplink frame is queued. Requests of new
+     * flows are shed, all other frames are admitted. Call only while the
+     * mapper is overloaded.
+     * @param frame ethernet frame between position and limit, position and
+     * limit are not changed
+     * @param udp true for a frame of the UDP uplink, false for the TCP uplink
+     * @param scratch buffer of CLASSIFY_LENGTH bytes owned by the calling thread
+     * @return false if the frame has to be dropped
+     */
+    boolean admit(ByteBuffer frame, boolean udp, byte[] scratch) {
+        int length = Math.min(frame.remaining(), scratch.length);
+        int position = frame.position();
+        frame.get(scratch, 0, length);
+        frame.position(position);
+        if (!ConnectionMapper.isNewFlowRequest(scratch, length, udp)) {
+            return true;
+        }
+        shed(!udp);
+        return false;
+    }
+
+    /**
+     * Counts a shed packet of a new flow.
+     * @param tcp true for a TCP request, false for a UDP request
+     */
+    void shed(boolean tcp) {
+        if (tcp) {
+            shedTcpRequests.incrementAndGet();
+        } else {
+            shedUdpRequests.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the number of shed packets of new TCP flows.
+     * @return shed TCP requests
+     */
+    public long getShedTcpRequests() {
+        return shedTcpRequests.get();
+    }
+
+    /**
+     * Returns the number of shed packets of new UDP flows.
+     * @return shed UDP requests
+     */
+    public long getShedUdpRequests() {
+        return shedUdpRequests.get();
+    }
+
+    /**
+     * Returns how often the mapper became overloaded.
+     * @return number of overload periods
+     */
+    public long getOverloadPeriods() {
+        return overloadPeriods.get();
+    }
+
+    /**
+     * Logs the shed packets and the overload periods.
+     */
+    public void logStatistics() {
+        ConnectionMapper.log.info("Overload control: " + queues.size() + " watched queues, "
+                + overloadPeriods.get() + " overload periods, shed TCP requests " + shedTcpRequests.get()
+                + ", shed UDP requests " + shedUdpRequests.get() + (overloaded.get() ? ", overloaded" : "")
+                + ".");
+    }
+}
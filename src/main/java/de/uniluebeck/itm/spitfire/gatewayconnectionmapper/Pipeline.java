@@ -0,0 +1,142 @@
+/**
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.uniluebeck.itm.spitfire.gatewayconnectionmapper;
+
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.IFReadWriter;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.IFReader;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.IFWriter;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.LoopbackIF;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.PacketQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Processes the packets of one interface in three stages, each running on
+ * its own thread: the capture stage reads the interface, the map stage
+ * classifies and maps the packets (TcpNetIfPcapThread, UdpNetIfPcapThread
+ * or TunNetIfThread) and the write stage writes them to the TUN interface.
+ * The stages are connected by pre-allocated SPSC PacketQueues. The capture
+ * stage never waits for the other stages, packets are dropped if the map
+ * stage falls behind, so the kernel capture buffer does not overflow.
+ */
+class Pipeline {
+
+    //Maximum time a stage waits for packets before it checks again (in ns)
+    static final long STAGE_TIMEOUT = TimeUnit.SECONDS.toNanos(1);
+
+    private final String name;
+    private final PacketQueue captured;
+    private final PacketQueue mapped;
+    private final CaptureStage capture;
+    private final Runnable mapStage;
+    private final WriteStage write;
+
+    /**
+     * @param source interface read by the capture stage
+     * @param destination interface written by the write stage
+     * @param captured queue between capture and map stage
+     * @param mapped queue between map and write stage
+     * @param mapStage loop of the map stage
+     * @param tag kind of packets read from source, WorkerPool.TCP_FRAME,
+     * UDP_FRAME or TUN_PACKET
+     */
+    private Pipeline(IFReader source, IFWriter destination, PacketQueue captured, PacketQueue mapped,
+            Runnable mapStage, int tag) {
+        this.name = source.getName();
+        this.captured = captured;
+        this.mapped = mapped;
+        this.capture = new CaptureStage(source, captured, tag);
+        this.mapStage = mapStage;
+        this.write = new WriteStage(mapped, destination, name);
+    }
+
+    private static PacketQueue createQueue() {
+        return new PacketQueue(ConnectionMapper.pipelineQueueSize, ConnectionMapper.pipelineSlotSize, false,
+                ConnectionMapper.pipelineWaitStrategy, true);
+    }
+
+    /**
+     * Creates a pipeline for a uplink capture interface.
+     * @param pcap uplink capture interface
+     * @param tun TUN interface to write the modified packets
+     * @param udp true for the UDP uplink, false for the TCP uplink
+     * @return pipeline, not started yet
+     */
+    static Pipeline createUplink(IFReader pcap, IFWriter tun, boolean udp) {
+        PacketQueue captured = createQueue();
+        PacketQueue mapped = createQueue();
+        //the map stage reads from the first and writes to the second queue
+        LoopbackIF stage = new LoopbackIF(pcap.getName(), captured, mapped, true);
+        Runnable mapStage = udp ? new UdpNetIfPcapThread(stage, stage) : new TcpNetIfPcapThread(stage, stage);
+        return new Pipeline(pcap, tun, captured, mapped, mapStage,
+                udp ? WorkerPool.UDP_FRAME : WorkerPool.TCP_FRAME);
+    }
+
+    /**
+     * Creates a pipeline for a TUN interface (or queue).
+     * @param tun TUN interface which is read and written
+     * @return pipeline, not started yet
+     */
+    static Pipeline createTun(IFReadWriter tun) {
+        PacketQueue captured = createQueue();
+        PacketQueue mapped = createQueue();
+        LoopbackIF stage = new LoopbackIF(tun.getName(), captured, mapped, true);
+        return new Pipeline(tun, tun, captured, mapped, new TunNetIfThread(stage), WorkerPool.TUN_PACKET);
+    }
+
+    /**
+     * Runs the stages as tasks of a task group.
+     * @param tasks group which runs the stages
+     */
+    void start(TaskGroup tasks) {
+        tasks.execute(capture);
+        tasks.execute(mapStage, "Pipeline-map-" + name);
+        tasks.execute(write);
+    }
+
+    /**
+     * Returns the queue between capture and map stage.
+     * @return queue of captured packets
+     */
+    PacketQueue getCapturedQueue() {
+        return captured;
+    }
+
+    /**
+     * Returns the queue between map and write stage.
+     * @return queue of mapped packets
+     */
+    PacketQueue getMappedQueue() {
+        return mapped;
+    }
+
+    /**
+     * Logs the queued and dropped packets of both queues.
+     */
+    void logStatistics() {
+        ConnectionMapper.log.info("Pipeline " + name + ": captured queue " + captured.size() + "/"
+                + captured.getCapacity() + ", dropped " + captured.getDropped() + ", mapped queue "
+                + mapped.size() + "/" + mapped.getCapacity() + ", dropped " + mapped.getDropped());
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.uniluebeck.itm.spitfire.gatewayconnectionmapper;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Measures the duration of the phases of ConnectionMapper.start().
+ */
+class StartupTimer {
+    private final long start = System.nanoTime();
+    private long phaseStart = start;
+    //duration of each finished phase in ns, in order of the phases
+    private final Map<String, Long> timings = new LinkedHashMap<String, Long>();
+
+    /**
+     * Ends the current phase, the next phase starts now.
+     * @param name name of the ended phase
+     */
+    synchronized void phase(String name) {
+        long now = System.nanoTime();
+        timings.put(name, now - phaseStart);
+        phaseStart = now;
+    }
+
+    /**
+     * Returns the durations of all finished phases.
+     * @return duration in ns by phase name, in order of the phases
+     */
+    synchronized Map<String, Long> getTimings() {
+        return Collections.unmodifiableMap(new LinkedHashMap<String, Long>(timings));
+    }
+
+    /**
+     * Returns the time since the timer was created.
+     * @return elapsed time in ns
+     */
+    long getElapsed() {
+        return System.nanoTime() - start;
+    }
+
+    private static String toMillis(long nanos) {
+        return String.format("%.1f ms", nanos / 1e6);
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder result = new StringBuilder(toMillis(getElapsed()));
+        String separator = " (";
+        for (Map.Entry<String, Long> timing : timings.entrySet()) {
+            result.append(separator).append(timing.getKey()).append(' ').append(toMillis(timing.getValue()));
+            separator = ", ";
+        }
+        return timings.isEmpty() ? result.toString() : result.append(')').toString();
+    }
+}
@@ -0,0 +1,306 @@
+/**
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.uniluebeck.itm.spitfire.gatewayconnectionmapper;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Runs the interface loops and auxiliary threads of the mapper on platform
+ * threads, virtual threads or a ExecutorService (see ExecutionMode) and
+ * manages their lifecycle: shutdown() interrupts all running tasks,
+ * awaitTermination() waits until they have ended. Tasks are expected to
+ * end when they are interrupted.
+ * Virtual threads are created by reflection, so the mapper still runs on
+ * older Java versions.
+ */
+public class TaskGroup {
+
+    //Thread.ofVirtual(), Thread.Builder.name(String) and
+    //Thread.Builder.start(Runnable), null before Java 21
+    private static final Method OF_VIRTUAL;
+    private static final Method BUILDER_NAME;
+    private static final Method BUILDER_START;
+
+    static {
+        Method ofVirtual = null;
+        Method builderName = null;
+        Method builderStart = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            //Java 19 and 20 throw UnsupportedOperationException
+            //if preview features are disabled
+            ofVirtual.invoke(null);
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            builderName = builder.getMethod("name", String.class);
+            builderStart = builder.getMethod("start", Runnable.class);
+        } catch (Exception ex) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = builderName;
+        BUILDER_START = builderStart;
+    }
+
+    private final String name;
+    private final ExecutionMode mode;
+    private final ExecutorService executor;
+
+    //tasks which are scheduled or running, a task removes itself when it ends
+    private final Set<Task> tasks = new LinkedHashSet<Task>();
+    private boolean shutdown = false;
+
+    /**
+     * Create a new task group.
+     * @param name name of the group, used for logging
+     * @param mode kind of threads on which the tasks are run, platform
+     * threads are used if virtual threads are not available
+     * @param executor executor which runs the tasks if mode is EXECUTOR,
+     * ignored otherwise
+     */
+    public TaskGroup(String name, ExecutionMode mode, ExecutorService executor) {
+        if (mode == ExecutionMode.EXECUTOR && executor == null) {
+            throw new IllegalArgumentException("ExecutionMode.EXECUTOR needs a executor.");
+        }
+        if (mode == ExecutionMode.VIRTUAL_THREADS && !isVirtualThreadsAvailable()) {
+            ConnectionMapper.log.warn("Virtual threads are not available on Java "
+                    + System.getProperty("java.version") + ", " + name + " uses platform threads.");
+            mode = ExecutionMode.PLATFORM_THREADS;
+        }
+        this.name = name;
+        this.mode = mode;
+        this.executor = executor;
+    }
+
+    /**
+     * Returns true if this Java version supports virtual threads.
+     * @return true on Java 21 or newer
+     */
+    public static boolean isVirtualThreadsAvailable() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Runs the run() method of a thread which was not started. Its name,
+     * daemon flag and priority are used for the thread running it, as far
+     * as the execution mode allows.
+     * @param task thread which is run by this group, must not be started
+     * @throws IllegalStateException Will be thrown when the group is shut down
+     */
+    public void execute(Thread task) {
+        execute(task, task.getName(), task.isDaemon(), task.getPriority());
+    }
+
+    /**
+     * Runs a named task on a new platform thread, a new virtual thread or
+     * the executor, depending on the execution mode.
+     * @param task task which is run by this group
+     * @throws IllegalStateException Will be thrown when the group is shut down
+     */
+    public void execute(NamedTask task) {
+        execute(task, task.getTaskName());
+    }
+
+    /**
+     * Runs a task on a new platform thread, a new virtual thread or the
+     * executor, depending on the execution mode.
+     * @param task task which is run by this group
+     * @param taskName name of the thread running the task
+     * @throws IllegalStateException Will be thrown when the group is shut down
+     */
+    public void execute(Runnable task, String taskName) {
+        execute(task, taskName, false, Thread.NORM_PRIORITY);
+    }
+
+    private synchronized void execute(Runnable target, String taskName, boolean daemon, int priority) {
+        if (shutdown) {
+            throw new IllegalStateException("Task group " + name + " is shut down.");
+        }
+        Task task = new Task(target, taskName);
+        tasks.add(task);
+        try {
+            if (mode == ExecutionMode.EXECUTOR) {
+                executor.execute(task);
+            } else if (mode == ExecutionMode.VIRTUAL_THREADS) {
+                startVirtual(task, taskName);
+            } else {
+                Thread thread = new Thread(task, taskName);
+                thread.setDaemon(daemon);
+                thread.setPriority(priority);
+                thread.start();
+            }
+        } catch (RuntimeException ex) {
+            tasks.remove(task);
+            throw ex;
+        }
+    }
+
+    private static void startVirtual(Runnable task, String taskName) {
+        try {
+            Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), taskName);
+            BUILDER_START.invoke(builder, task);
+        } catch (InvocationTargetException ex) {
+            throw new IllegalStateException("Error while starting virtual thread " + taskName,
+                    ex.getCause());
+        } catch (IllegalAccessException ex) {
+            throw new IllegalStateException("Error while starting virtual thread " + taskName, ex);
+        }
+    }
+
+    /**
+     * Stops accepting tasks and interrupts all running tasks. Tasks which
+     * have not started yet will not run.
+     */
+    public synchronized void shutdown() {
+        if (!shutdown) {
+            shutdown = true;
+            ConnectionMapper.log.info("Shutting down " + tasks.size() + " tasks of " + name + ".");
+        }
+        for (Task task : tasks) {
+            task.interrupt();
+        }
+    }
+
+    /**
+     * Waits until all tasks have ended.
+     * @param timeout maximum time to wait in ms
+     * @return true if all tasks have ended, false on timeout
+     * @throws InterruptedException Will be thrown when the waiting thread was interrupted
+     */
+    public synchronized boolean awaitTermination(long timeout) throws InterruptedException {
+        if (waitForTasks(timeout)) {
+            return true;
+        }
+        ConnectionMapper.log.warn(name + ": tasks still running: " + getTaskNames());
+        return false;
+    }
+
+    /**
+     * Waits until all tasks have ended, without a warning on timeout.
+     * @param timeout maximum time to wait in ms
+     * @return true if all tasks have ended, false on timeout
+     * @throws InterruptedException Will be thrown when the waiting thread was interrupted
+     */
+    synchronized boolean waitForTasks(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!tasks.isEmpty()) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if shutdown() was called.
+     * @return true if the group is shut down
+     */
+    public synchronized boolean isShutdown() {
+        return shutdown;
+    }
+
+    /**
+     * Returns the execution mode, PLATFORM_THREADS if virtual threads
+     * were requested but are not available.
+     * @return execution mode of the tasks
+     */
+    public ExecutionMode getMode() {
+        return mode;
+    }
+
+    /**
+     * Returns the names of all scheduled or running tasks.
+     * @return task names in order of execution
+     */
+    public synchronized List<String> getTaskNames() {
+        List<String> names = new ArrayList<String>();
+        for (Task task : tasks) {
+            names.add(task.name);
+        }
+        return names;
+    }
+
+    private synchronized boolean begin(Task task, Thread thread) {
+        if (shutdown) {
+            end(task);
+            return false;
+        }
+        task.thread = thread;
+        return true;
+    }
+
+    private synchronized void end(Task task) {
+        task.thread = null;
+        tasks.remove(task);
+        notifyAll();
+    }
+
+    /**
+     * Runs a task of this group and removes it when it ends.
+     */
+    private class Task implements Runnable {
+        private final Runnable target;
+        private final String name;
+        //thread running the task, guarded by the group
+        private Thread thread;
+
+        Task(Runnable target, String name) {
+            this.target = target;
+            this.name = name;
+        }
+
+        @Override
+        public void run() {
+            Thread current = Thread.currentThread();
+            if (!begin(this, current)) {
+                return;
+            }
+            //executor threads are renamed while they run the task
+            String threadName = current.getName();
+            current.setName(name);
+            try {
+                target.run();
+            } catch (Throwable ex) {
+                ConnectionMapper.log.error(TaskGroup.this.name + ": task " + name + " failed: " + ex, ex);
+            } finally {
+                current.setName(threadName);
+                end(this);
+            }
+        }
+
+        void interrupt() {
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+    }
+}
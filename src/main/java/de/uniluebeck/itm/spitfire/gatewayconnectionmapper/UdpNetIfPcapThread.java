@@ -0,0 +1,83 @@
+/**
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.uniluebeck.itm.spitfire.gatewayconnectionmapper;
+
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.IFAdapter;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.IFBatchReader;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.IFBufferReader;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.IFBufferWriter;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.IFReader;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.IFWriter;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This thread reads data from a network interface and sends it after modifying
+ * source and destination.
+ */
+class UdpNetIfPcapThread extends Thread {
+    IFBufferWriter tun;
+    IFBufferReader pcap;
+    boolean batches;
+
+    public UdpNetIfPcapThread(IFWriter tun, IFReader pcap) {
+        this.tun = IFAdapter.bufferWriter(tun);
+        this.pcap = IFAdapter.bufferReader(pcap);
+        this.batches = IFAdapter.canReadBatches(pcap);
+    }
+
+    @Override
+    public void run() {
+        byte[] buffer = new byte[1900];
+        if (batches) {
+            readBatches((IFBatchReader) pcap, new NetIfFrameHandler(tun, true, buffer));
+            return;
+        }
+        ByteBuffer packet = ByteBuffer.wrap(buffer);
+        while (!Thread.currentThread().isInterrupted()) {
+            MapperConfig config = ConnectionMapper.getConfig();
+            try {
+                ConnectionMapper.mapUDPNetIF(pcap, packet, tun, config, config.getUdpNetIfMac());
+            } catch (Exception ex) {
+                ConnectionMapper.log.error("UdpNetIfPcapThread: " + ex.getStackTrace());
+            }
+            ConnectionMapper.flush(tun);
+        }
+    }
+
+    private void readBatches(IFBatchReader reader, NetIfFrameHandler handler) {
+        ErrorBackoff backoff = new ErrorBackoff("UdpNetIfPcapThread");
+        while (!Thread.currentThread().isInterrupted()) {
+            handler.setConfig(ConnectionMapper.getConfig());
+            try {
+                reader.read(handler, ConnectionMapper.pcapBatchSize);
+                backoff.succeeded();
+            } catch (Exception ex) {
+                backoff.failed(ex);
+            }
+            ConnectionMapper.flush(tun);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/**
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.uniluebeck.itm.spitfire.gatewayconnectionmapper;
+
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.IFReader;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.IFWriter;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.PacketQueue;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.TUNIF;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.protocol.IPv6Packet;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spreads the mapping work over several worker threads. Each interface is
+ * read by a FlowDispatcher which passes every packet to the worker selected
+ * by its flow hash, so all packets of a flow are mapped by the same worker
+ * and keep their order. Uplink frames are hashed by addresses, next header
+ * and ports, TUN packets by their destination port, which is the mapped
+ * port of mapped connections.
+ * Each worker has its own queue and buffers and maps the packets like
+ * TcpNetIfPcapThread, UdpNetIfPcapThread and TunNetIfThread.
+ */
+class WorkerPool {
+
+    //Tags of the packets in the worker queues
+    static final int TCP_FRAME = 0;
+    static final int UDP_FRAME = 1;
+    static final int TUN_PACKET = 2;
+
+    //Maximum time a worker waits for packets before it checks again (in ns)
+    static final long WORKER_TIMEOUT = TimeUnit.SECONDS.toNanos(1);
+
+    private static final int ETHERNET_HEADER_LENGTH = 14;
+
+    private final FlowWorker[] workers;
+    private final List<FlowDispatcher> dispatchers = new ArrayList<FlowDispatcher>();
+
+    /**
+     * Create a new pool, the queues are configured by workerQueueSize,
+     * pipelineSlotSize and workerWaitStrategy of ConnectionMapper.
+     * @param tuns TUN interfaces (or queues or io_uring engines) to write
+     * the modified packets, worker i writes to tuns[i % tuns.size()]
+     * @param workerCount number of workers
+     */
+    WorkerPool(List<? extends IFWriter> tuns, int workerCount) {
+        workers = new FlowWorker[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            PacketQueue queue = new PacketQueue(ConnectionMapper.workerQueueSize, ConnectionMapper.pipelineSlotSize,
+                    true, ConnectionMapper.workerWaitStrategy, true);
+            workers[i] = new FlowWorker(i, queue, tuns.get(i % tuns.size()));
+        }
+    }
+
+    /**
+     * Adds a uplink capture interface. Must be called before start().
+     * @param pcap capture interface
+     * @param udp true for the UDP uplink, false for the TCP uplink
+     */
+    void addUplink(IFReader pcap, boolean udp) {
+        dispatchers.add(new FlowDispatcher(pcap, udp ? UDP_FRAME : TCP_FRAME, workers));
+    }
+
+    /**
+     * Adds a TUN interface (or queue). Must be called before start().
+     * @param tun TUN interface
+     */
+    void addTun(IFReader tun) {
+        dispatchers.add(new FlowDispatcher(tun, TUN_PACKET, workers));
+    }
+
+    /**
+     * Runs all workers and dispatchers as tasks of a task group.
+     * @param tasks group which runs the workers and dispatchers
+     */
+    void start(TaskGroup tasks) {
+        for (FlowWorker worker : workers) {
+            tasks.execute(worker);
+        }
+        for (FlowDispatcher dispatcher : dispatchers) {
+            tasks.execute(dispatcher);
+        }
+    }
+
+    /**
+     * Calculates the flow hash of a packet.
+     * @param packet frame or packet between position and limit
+     * @param tag TCP_FRAME, UDP_FRAME or TUN_PACKET
+     * @return flow hash
+     */
+    static int flowHash(ByteBuffer packet, int tag) {
+        if (tag == TUN_PACKET) {
+            int p = packet.position();
+            if (packet.remaining() < 44) {
+                return 0;
+            }
+            int nextHeader = packet.get(p + 6) & 0xFF;
+            if (nextHeader != IPv6Packet.TCP && nextHeader != IPv6Packet.UDP) {
+                return nextHeader;
+            }
+            //destination port, mix all bits into the high bits
+            int port = (packet.get(p + 42) & 0xFF) << 8 | (packet.get(p + 43) & 0xFF);
+            int h = port * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+        if (packet.remaining() < ETHERNET_HEADER_LENGTH) {
+            return 0;
+        }
+        ByteBuffer ipPacket = packet.duplicate();
+        ipPacket.position(packet.position() + ETHERNET_HEADER_LENGTH);
+        return TUNIF.flowHash(ipPacket);
+    }
+
+    /**
+     * Returns the worker which maps the packets of a flow.
+     * @param packet frame or packet between position and limit
+     * @param tag TCP_FRAME, UDP_FRAME or TUN_PACKET
+     * @param workerCount number of workers
+     * @return index of the worker
+     */
+    static int workerFor(ByteBuffer packet, int tag, int workerCount) {
+        return (flowHash(packet, tag) & 0x7FFFFFFF) % workerCount;
+    }
+
+    /**
+     * Returns the number of queued packets of each worker.
+     * @return queue depth by worker index
+     */
+    int[] getQueueDepths() {
+        int[] depths = new int[workers.length];
+        for (int i = 0; i < workers.length; i++) {
+            depths[i] = workers[i].getQueue().size();
+        }
+        return depths;
+    }
+
+    /**
+     * Returns the workers.
+     * @return workers by index
+     */
+    FlowWorker[] getWorkers() {
+        return workers;
+    }
+
+    /**
+     * Logs the queue depth, the mapped and the dropped packets of each worker.
+     */
+    void logStatistics() {
+        for (FlowWorker worker : workers) {
+            PacketQueue queue = worker.getQueue();
+            ConnectionMapper.log.info("Worker " + worker.getIndex() + ": queue " + queue.size() + "/"
+                    + queue.getCapacity() + ", max queue " + worker.getMaxQueueDepth() + ", mapped "
+                    + worker.getProcessed() + ", dropped " + queue.getDropped());
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Copies packets passed by a IFBatchReader into consecutive buffers of a
+ * array, used to implement IFBufferReader.read(ByteBuffer[], int, int)
+ * with a IFBatchReader.
+ */
+class BufferArrayHandler implements PacketHandler {
+    private final ByteBuffer[] buffers;
+    private int next;
+    private int count = 0;
+
+    /**
+     * @param buffers buffers in which the packets will be stored
+     * @param offset index of the buffer for the first packet
+     */
+    BufferArrayHandler(ByteBuffer[] buffers, int offset) {
+        this.buffers = buffers;
+        this.next = offset;
+    }
+
+    @Override
+    public void handlePacket(ByteBuffer packet) {
+        ByteBuffer buffer = buffers[next++];
+        if (packet.remaining() > buffer.remaining()) {
+            //truncate
+            ByteBuffer truncated = packet.duplicate();
+            truncated.limit(truncated.position() + buffer.remaining());
+            buffer.put(truncated);
+        } else {
+            buffer.put(packet);
+        }
+        count++;
+    }
+
+    /**
+     * Returns the number of packets stored.
+     * @return number of packets
+     */
+    int getCount() {
+        return count;
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces;
+
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.ConnectionMapper;
+import java.io.IOException;
+
+/**
+ * A filter passed to FilterableIFReader.requestFilter(), which waits until
+ * the thread reading the interface installs it.
+ */
+class FilterRequest {
+    private final String expression;
+    private final String fallback;
+
+    FilterRequest(String expression, String fallback) {
+        this.expression = expression;
+        this.fallback = fallback;
+    }
+
+    /**
+     * Installs the filter, or the fallback filter if it is rejected.
+     * @param pcap interface on which the filter is installed
+     */
+    void install(FilterableIFReader pcap) {
+        try {
+            pcap.setFilter(expression);
+            return;
+        } catch (IOException e) {
+            if (fallback == null) {
+                ConnectionMapper.log.error("Filter for " + pcap.getName() + " rejected: " + e.getMessage());
+                return;
+            }
+            //message contains the error of the compiler or of setsockopt
+            ConnectionMapper.log.warn("Filter for " + pcap.getName() + " rejected: " + e.getMessage()
+                    + ", using fallback filter.");
+        }
+        try {
+            pcap.setFilter(fallback);
+        } catch (IOException e) {
+            ConnectionMapper.log.error("Fallback filter for " + pcap.getName() + " rejected: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/**
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces;
+
+import java.io.IOException;
+
+/**
+ * Capture interface which can drop unwanted frames in the kernel.
+ */
+public interface FilterableIFReader extends IFReader {
+    /**
+     * Compiles a BPF filter expression and installs it in the kernel. Frames
+     * which do not match the filter will not be copied to user space.
+     * Must not be called while another thread reads this interface, use
+     * requestFilter() instead.
+     * @param expression Filter expression in pcap-filter syntax
+     * @throws IOException Will be thrown when compiling or installing failed
+     */
+    public void setFilter(String expression) throws IOException;
+
+    /**
+     * Requests a new filter, which is installed by the thread reading this
+     * interface before its next read, so the capture handle is never used
+     * by two threads at once. A request which was not installed yet is
+     * replaced. Errors are logged.
+     * @param expression Filter expression in pcap-filter syntax
+     * @param fallback Filter expression which is installed instead if
+     * expression is rejected, null for none
+     */
+    public void requestFilter(String expression, String fallback);
+
+    /**
+     * Captures only frames received by the interface, frames sent by the
+     * system itself (eg. packets routed from the TUN interface) are ignored.
+     * @throws IOException Will be thrown when the direction can not be set
+     */
+    public void setInboundOnly() throws IOException;
+}
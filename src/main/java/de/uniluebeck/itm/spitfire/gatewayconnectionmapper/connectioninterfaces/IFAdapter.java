@@ -0,0 +1,326 @@
+/**
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces;
+
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.ConnectionMapper;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Adapter which makes any interface usable with the ByteBuffer API
+ * (IFBufferReader, IFBufferWriter) and the byte array API.
+ * Buffer reads and writes of interfaces which only implement the byte
+ * array API are passed straight through if the packet is stored at index 0
+ * of a heap buffer, otherwise the packet is copied through a scratch array.
+ * All other capabilities of the wrapped interface (batch reads and writes,
+ * filters, event loop) are passed through, so the adapter can be used
+ * instead of the wrapped interface everywhere.
+ */
+public class IFAdapter implements IFBufferReadWriter, IFBatchReader, IFBatchWriter, FilterableIFReader, SelectableIF {
+
+    //Size of the scratch arrays, no packet is longer
+    private static final int MAX_PACKET_SIZE = 64 * 1024;
+
+    //scratch arrays for packets which are not stored at index 0 of a heap
+    //buffer, writers may be called by several threads at the same time
+    private static final ThreadLocal<byte[]> SCRATCH = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[MAX_PACKET_SIZE];
+        }
+    };
+
+    private final IF delegate;
+    //buffer for batch reads of interfaces which can only read single
+    //packets, only used by the reading thread
+    private ByteBuffer readBuffer;
+
+    /**
+     * Create a new adapter.
+     * @param delegate wrapped interface
+     */
+    public IFAdapter(IF delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Returns reader itself if it implements IFBufferReader, a adapter
+     * otherwise.
+     * @param reader interface
+     * @return reader with ByteBuffer API
+     */
+    public static IFBufferReader bufferReader(IFReader reader) {
+        if (reader instanceof IFBufferReader) {
+            return (IFBufferReader) reader;
+        }
+        return new IFAdapter(reader);
+    }
+
+    /**
+     * Returns writer itself if it implements IFBufferWriter, a adapter
+     * otherwise.
+     * @param writer interface
+     * @return writer with ByteBuffer API
+     */
+    public static IFBufferWriter bufferWriter(IFWriter writer) {
+        if (writer instanceof IFBufferWriter) {
+            return (IFBufferWriter) writer;
+        }
+        return new IFAdapter(writer);
+    }
+
+    /**
+     * Returns readWriter itself if it implements IFBufferReadWriter, a
+     * adapter otherwise.
+     * @param readWriter interface
+     * @return interface with ByteBuffer API
+     */
+    public static IFBufferReadWriter bufferReadWriter(IFReadWriter readWriter) {
+        if (readWriter instanceof IFBufferReadWriter) {
+            return (IFBufferReadWriter) readWriter;
+        }
+        return new IFAdapter(readWriter);
+    }
+
+    /**
+     * Checks if a interface reads batches itself. Adapters implement
+     * IFBatchReader in any case, but only read single packets if the wrapped
+     * interface can not read batches.
+     * @param netIf interface
+     * @return true if netIf or the interface wrapped by it reads batches
+     */
+    public static boolean canReadBatches(IF netIf) {
+        while (netIf instanceof IFAdapter) {
+            netIf = ((IFAdapter) netIf).getDelegate();
+        }
+        return netIf instanceof IFBatchReader;
+    }
+
+    /**
+     * Reads a single packet into buffer with the byte array API of reader.
+     * @param reader interface
+     * @param buffer buffer in which the packet will be stored
+     * @return bytes read, 0 if nothing was read, -1 if reading failed
+     */
+    static int read(IFReader reader, ByteBuffer buffer) {
+        if (buffer.hasArray() && buffer.arrayOffset() + buffer.position() == 0) {
+            int length = reader.read(buffer.array(), buffer.remaining());
+            if (length > 0) {
+                buffer.position(length);
+            }
+            return length;
+        }
+        byte[] scratch = SCRATCH.get();
+        int length = reader.read(scratch, Math.min(buffer.remaining(), scratch.length));
+        if (length > 0) {
+            buffer.put(scratch, 0, length);
+        }
+        return length;
+    }
+
+    /**
+     * Writes a single packet with the byte array API of writer.
+     * @param writer interface
+     * @param packet buffer containing the packet between position and limit
+     * @return bytes written, -1 if writing failed
+     */
+    static int write(IFWriter writer, ByteBuffer packet) {
+        int length = packet.remaining();
+        byte[] array;
+        if (packet.hasArray() && packet.arrayOffset() + packet.position() == 0) {
+            array = packet.array();
+        } else {
+            array = length <= MAX_PACKET_SIZE ? SCRATCH.get() : new byte[length];
+            packet.duplicate().get(array, 0, length);
+        }
+        int written = writer.write(array, length);
+        if (written >= 0) {
+            packet.position(packet.limit());
+        }
+        return written;
+    }
+
+    @Override
+    public int read(byte[] buffer, int nbytes) {
+        return ((IFReader) delegate).read(buffer, nbytes);
+    }
+
+    @Override
+    public int read(ByteBuffer buffer) {
+        return readDelegate(buffer);
+    }
+
+    //not overridden by subclasses, so they see each packet once
+    private int readDelegate(ByteBuffer buffer) {
+        if (delegate instanceof IFBufferReader) {
+            return ((IFBufferReader) delegate).read(buffer);
+        }
+        return read((IFReader) delegate, buffer);
+    }
+
+    /**
+     * Reads up to length packets. If the wrapped interface can not read
+     * batches, a single packet is read.
+     * @param buffers buffers in which the packets will be stored
+     * @param offset index of the first buffer
+     * @param length maximum number of packets to read
+     * @return number of packets read
+     * @throws IOException Will be thrown when reading failed
+     */
+    @Override
+    public int read(ByteBuffer[] buffers, int offset, int length) throws IOException {
+        if (delegate instanceof IFBufferReader) {
+            return ((IFBufferReader) delegate).read(buffers, offset, length);
+        }
+        if (delegate instanceof IFBatchReader) {
+            BufferArrayHandler handler = new BufferArrayHandler(buffers, offset);
+            ((IFBatchReader) delegate).read(handler, length);
+            return handler.getCount();
+        }
+        if (length == 0) {
+            return 0;
+        }
+        int bytesRead = read((IFReader) delegate, buffers[offset]);
+        if (bytesRead < 0) {
+            throw new IOException("Error while reading from " + getName());
+        }
+        return bytesRead > 0 ? 1 : 0;
+    }
+
+    /**
+     * Reads a batch of packets. If the wrapped interface can not read
+     * batches, a single packet is read.
+     * @param handler handler for the read packets
+     * @param maxPackets maximum number of packets to read
+     * @return number of packets passed to handler
+     * @throws IOException Will be thrown when reading failed
+     */
+    @Override
+    public int read(PacketHandler handler, int maxPackets) throws IOException {
+        if (delegate instanceof IFBatchReader) {
+            return ((IFBatchReader) delegate).read(handler, maxPackets);
+        }
+        if (readBuffer == null) {
+            readBuffer = ByteBuffer.allocate(MAX_PACKET_SIZE);
+        }
+        ByteBuffer buffer = readBuffer;
+        buffer.clear();
+        int length = readDelegate(buffer);
+        if (length < 0) {
+            throw new IOException("Error while reading from " + getName());
+        }
+        if (length > 0) {
+            buffer.flip();
+            handler.handlePacket(buffer);
+            return 1;
+        }
+        return 0;
+    }
+
+    @Override
+    public int write(byte[] buffer, int nbytes) {
+        return ((IFWriter) delegate).write(buffer, nbytes);
+    }
+
+    @Override
+    public int write(ByteBuffer packet) {
+        if (delegate instanceof IFBufferWriter) {
+            return ((IFBufferWriter) delegate).write(packet);
+        }
+        return write((IFWriter) delegate, packet);
+    }
+
+    @Override
+    public int write(ByteBuffer[] packets, int offset, int length) {
+        if (delegate instanceof IFBufferWriter) {
+            return ((IFBufferWriter) delegate).write(packets, offset, length);
+        }
+        for (int i = 0; i < length; i++) {
+            if (write((IFWriter) delegate, packets[offset + i]) < 0) {
+                return i;
+            }
+        }
+        return length;
+    }
+
+    @Override
+    public int flush() {
+        if (delegate instanceof IFBatchWriter) {
+            return ((IFBatchWriter) delegate).flush();
+        }
+        return 0;
+    }
+
+    @Override
+    public void setFilter(String expression) throws IOException {
+        if (!(delegate instanceof FilterableIFReader)) {
+            throw new IOException(getName() + " does not support capture filters.");
+        }
+        ((FilterableIFReader) delegate).setFilter(expression);
+    }
+
+    @Override
+    public void requestFilter(String expression, String fallback) {
+        if (!(delegate instanceof FilterableIFReader)) {
+            ConnectionMapper.log.warn(getName() + " does not support capture filters.");
+            return;
+        }
+        ((FilterableIFReader) delegate).requestFilter(expression, fallback);
+    }
+
+    @Override
+    public void setInboundOnly() throws IOException {
+        if (!(delegate instanceof FilterableIFReader)) {
+            throw new IOException(getName() + " does not support capture filters.");
+        }
+        ((FilterableIFReader) delegate).setInboundOnly();
+    }
+
+    @Override
+    public int getSelectableFd() {
+        return delegate instanceof SelectableIF ? ((SelectableIF) delegate).getSelectableFd() : -1;
+    }
+
+    @Override
+    public void setNonBlocking() throws IOException {
+        if (!(delegate instanceof SelectableIF)) {
+            throw new IOException(getName() + " can not be read without blocking.");
+        }
+        ((SelectableIF) delegate).setNonBlocking();
+    }
+
+    /**
+     * Returns the wrapped interface.
+     * @return wrapped interface
+     */
+    public IF getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public String getName() {
+        return delegate.getName();
+    }
+}
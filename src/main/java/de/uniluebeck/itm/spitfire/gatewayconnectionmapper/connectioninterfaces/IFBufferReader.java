@@ -0,0 +1,59 @@
+/**
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Interface which has the capability to read packets into ByteBuffers.
+ * Unlike read(byte[], int) the packets can be stored anywhere in a buffer,
+ * eg. in direct buffers or slices of a larger buffer.
+ * Use IFAdapter.bufferReader() to read from interfaces which only
+ * implement IFReader.
+ */
+public interface IFBufferReader extends IFReader {
+    /**
+     * Reads a single packet into buffer. The packet is stored at the
+     * position of buffer, which is advanced by the number of bytes read.
+     * Packets longer than the remaining bytes of buffer are truncated.
+     * @param buffer buffer in which the packet will be stored
+     * @return bytes read, 0 if nothing was read (eg. because of a timeout),
+     * -1 if reading failed
+     */
+    public int read(ByteBuffer buffer);
+
+    /**
+     * Reads up to length packets, one packet into each buffer starting
+     * at buffers[offset]. The position of each filled buffer is advanced
+     * by the length of its packet.
+     * @param buffers buffers in which the packets will be stored
+     * @param offset index of the first buffer
+     * @param length maximum number of packets to read
+     * @return number of packets read, 0 if none were available
+     * @throws IOException Will be thrown when reading failed
+     */
+    public int read(ByteBuffer[] buffers, int offset, int length) throws IOException;
+}
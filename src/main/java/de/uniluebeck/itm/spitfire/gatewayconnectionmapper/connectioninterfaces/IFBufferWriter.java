@@ -0,0 +1,55 @@
+/**
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Interface which has the capability to write packets from ByteBuffers.
+ * Unlike write(byte[], int) the packets can be located anywhere in a
+ * buffer, eg. in direct buffers or slices of a larger buffer.
+ * Use IFAdapter.bufferReadWriter() to write to interfaces which only
+ * implement IFWriter.
+ */
+public interface IFBufferWriter extends IFWriter {
+    /**
+     * Writes the bytes between position and limit of packet as a single
+     * packet. On success the position is set to the limit.
+     * @param packet buffer containing the packet
+     * @return bytes actually written, -1 if writing failed
+     */
+    public int write(ByteBuffer packet);
+
+    /**
+     * Writes length packets, each buffer starting at packets[offset]
+     * contains a single packet between its position and limit. The position
+     * of each written buffer is set to its limit.
+     * @param packets buffers containing the packets
+     * @param offset index of the first buffer
+     * @param length number of packets to write
+     * @return number of packets written, less than length if writing failed
+     */
+    public int write(ByteBuffer[] packets, int offset, int length);
+}
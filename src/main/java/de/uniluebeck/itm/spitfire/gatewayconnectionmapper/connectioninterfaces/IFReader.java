@@ -34,7 +34,8 @@ public abstract interface IFReader extends IF {
      * Reads max nbytes into buffer.
      * @param buffer byte buffer
      * @param nbytes buffer size
-     * @return bytes actually read
+     * @return bytes actually read, 0 if nothing was read (eg. because of
+     * a timeout), -1 if reading failed
      */
     public abstract int read(byte[] buffer, int nbytes);
 }
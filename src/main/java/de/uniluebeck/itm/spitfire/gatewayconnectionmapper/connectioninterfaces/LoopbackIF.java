@@ -0,0 +1,271 @@
+/**
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory interface which reads packets from one PacketQueue and writes
+ * packets to another one. Two LoopbackIFs created by createPair() are
+ * connected with each other, packets written to one of them can be read
+ * from the other one. Can replace Pcap and TUN interfaces in tests and
+ * benchmarks of the whole mapper including its threads.
+ * In batched mode a parked reader is woken up by flush() or at the end of
+ * a write of a ByteBuffer array, not by every single packet.
+ */
+public class LoopbackIF implements IFBufferReadWriter, IFBatchReader, IFBatchWriter, SelectableIF {
+
+    //Default settings used by createPair(String, String)
+    //Number of packets each direction can buffer, has to be a power of two
+    public static int CAPACITY = 4096;
+    //Maximum packet size in bytes
+    public static int SLOT_SIZE = 2048;
+    //Maximum time in ms a read waits for a packet
+    public static int READ_TIMEOUT = 1000;
+    //Maximum time in ms a write waits for a free slot, the packet is
+    //dropped afterwards
+    public static int WRITE_TIMEOUT = 1000;
+
+    private final String name;
+    private final PacketQueue in;
+    private final PacketQueue out;
+    private final boolean batched;
+    private volatile long readTimeout = TimeUnit.MILLISECONDS.toNanos(READ_TIMEOUT);
+    private final long writeTimeout = TimeUnit.MILLISECONDS.toNanos(WRITE_TIMEOUT);
+
+    /**
+     * Create a new loopback interface.
+     * @param name name of the interface
+     * @param in queue from which packets are read, this interface has to be
+     * its only consumer
+     * @param out queue to which packets are written
+     * @param batched if true, readers of out are only woken up by flush()
+     * and after writes of ByteBuffer arrays, out has to be a batched queue
+     */
+    public LoopbackIF(String name, PacketQueue in, PacketQueue out, boolean batched) {
+        this.name = name;
+        this.in = in;
+        this.out = out;
+        this.batched = batched;
+    }
+
+    /**
+     * Creates two connected interfaces with the default settings
+     * (CAPACITY, SLOT_SIZE), several threads may write to each of them,
+     * readers are parked while no packets are available.
+     * @param nameA name of the first interface
+     * @param nameB name of the second interface
+     * @return both interfaces, packets written to one of them can be read
+     * from the other one
+     */
+    public static LoopbackIF[] createPair(String nameA, String nameB) {
+        return createPair(nameA, nameB, WaitStrategy.BLOCKING, false);
+    }
+
+    /**
+     * Creates two connected interfaces with the default settings
+     * (CAPACITY, SLOT_SIZE), several threads may write to each of them.
+     * @param nameA name of the first interface
+     * @param nameB name of the second interface
+     * @param waitStrategy how readers wait for packets and writers for free
+     * slots
+     * @param batched if true, readers are only woken up by flush() and after
+     * writes of ByteBuffer arrays
+     * @return both interfaces, packets written to one of them can be read
+     * from the other one
+     */
+    public static LoopbackIF[] createPair(String nameA, String nameB, WaitStrategy waitStrategy,
+            boolean batched) {
+        PacketQueue aToB = new PacketQueue(CAPACITY, SLOT_SIZE, true, waitStrategy, batched);
+        PacketQueue bToA = new PacketQueue(CAPACITY, SLOT_SIZE, true, waitStrategy, batched);
+        return new LoopbackIF[]{
+            new LoopbackIF(nameA, bToA, aToB, batched),
+            new LoopbackIF(nameB, aToB, bToA, batched)
+        };
+    }
+
+    /**
+     * Read a single packet, waits up to READ_TIMEOUT ms for it.
+     * Packets longer than nbytes will be truncated.
+     * @param buffer buffer in which the read data will be stored
+     * @param nbytes buffer size
+     * @return bytes read, 0 on timeout, -1 if the interface was closed
+     */
+    @Override
+    public int read(byte[] buffer, int nbytes) {
+        return in.take(ByteBuffer.wrap(buffer, 0, nbytes), readTimeout);
+    }
+
+    /**
+     * Read a single packet into buffer at its position, waits up to
+     * READ_TIMEOUT ms for it. Packets longer than the remaining bytes will be
+     * truncated.
+     * @param buffer buffer in which the read data will be stored
+     * @return bytes read, 0 on timeout, -1 if the interface was closed
+     */
+    @Override
+    public int read(ByteBuffer buffer) {
+        return in.take(buffer, readTimeout);
+    }
+
+    /**
+     * Reads up to length packets into consecutive buffers, waits up to
+     * READ_TIMEOUT ms for the first one.
+     * @param buffers buffers in which the packets will be stored
+     * @param offset index of the buffer for the first packet
+     * @param length maximum number of packets
+     * @return number of packets read, 0 on timeout or if the interface was
+     * closed
+     */
+    @Override
+    public int read(ByteBuffer[] buffers, int offset, int length) {
+        BufferArrayHandler handler = new BufferArrayHandler(buffers, offset);
+        in.take(handler, length, readTimeout);
+        return handler.getCount();
+    }
+
+    /**
+     * Passes up to maxPackets packets to handler, waits up to READ_TIMEOUT ms
+     * for the first one. The packets are views on the slots of the queue.
+     * @param handler handler for the read packets
+     * @param maxPackets maximum number of packets to read
+     * @return number of packets passed to handler, 0 on timeout or if the
+     * interface was closed
+     */
+    @Override
+    public int read(PacketHandler handler, int maxPackets) {
+        return Math.max(0, in.take(handler, maxPackets, readTimeout));
+    }
+
+    /**
+     * Write a single packet, waits up to WRITE_TIMEOUT ms for a free slot.
+     * @param buffer buffer containing the packet at index 0
+     * @param nbytes length of the packet
+     * @return bytes written, -1 if the packet was dropped
+     */
+    @Override
+    public int write(byte[] buffer, int nbytes) {
+        return out.put(buffer, 0, nbytes, writeTimeout) ? nbytes : -1;
+    }
+
+    /**
+     * Write a single packet, waits up to WRITE_TIMEOUT ms for a free slot.
+     * @param packet packet between position and limit, the position is set
+     * to the limit if it was written
+     * @return bytes written, -1 if the packet was dropped
+     */
+    @Override
+    public int write(ByteBuffer packet) {
+        int length = packet.remaining();
+        if (!out.put(packet, writeTimeout)) {
+            return -1;
+        }
+        packet.position(packet.limit());
+        return length;
+    }
+
+    /**
+     * Writes up to length packets, a parked reader is woken up once after
+     * the last one.
+     * @param packets packets between position and limit, the positions of
+     * written packets are set to their limits
+     * @param offset index of the first packet
+     * @param length number of packets
+     * @return number of packets written, stops at the first dropped packet
+     */
+    @Override
+    public int write(ByteBuffer[] packets, int offset, int length) {
+        int written = 0;
+        while (written < length && write(packets[offset + written]) >= 0) {
+            written++;
+        }
+        out.signal();
+        return written;
+    }
+
+    /**
+     * Wakes up a parked reader, required after writes in batched mode.
+     * @return 0, writes to a loopback interface do not fail later
+     */
+    @Override
+    public int flush() {
+        if (batched) {
+            out.signal();
+        }
+        return 0;
+    }
+
+    /**
+     * Packets are not backed by a file descriptor, so a loopback interface
+     * has to be polled by a event loop.
+     * @return -1
+     */
+    @Override
+    public int getSelectableFd() {
+        return -1;
+    }
+
+    /**
+     * Reads return 0 immediately if no packet is available.
+     */
+    @Override
+    public void setNonBlocking() {
+        readTimeout = 0;
+    }
+
+    /**
+     * Closes the queue this interface writes to, the connected interface
+     * returns -1 (0 for batches) once all written packets were read.
+     */
+    public void close() {
+        out.close();
+    }
+
+    /**
+     * Returns the queue from which this interface reads.
+     * @return incoming queue
+     */
+    public PacketQueue getInputQueue() {
+        return in;
+    }
+
+    /**
+     * Returns the queue to which this interface writes.
+     * @return outgoing queue
+     */
+    public PacketQueue getOutputQueue() {
+        return out;
+    }
+
+    /**
+     * Returns the name of the interface.
+     * @return interface name
+     */
+    @Override
+    public String getName() {
+        return name;
+    }
+}
@@ -0,0 +1,553 @@
+/**
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded lock-free queue of packets for a single consumer thread and one
+ * (SPSC) or many (MPSC) producer threads.
+ * The packets are copied into pre-allocated slots of a single buffer, so
+ * no memory is allocated per packet. Consumers can read the packets in
+ * batches as views on the slots (drain/take with a PacketHandler) without
+ * copying them.
+ * Threads wait for packets or free slots according to the WaitStrategy.
+ * In batched mode producers do not wake up a parked consumer on every
+ * packet, they have to call signal() after each batch.
+ * Each packet can carry a tag (eg. the interface it was read from), which
+ * the consumer gets with peekTag().
+ * If timestamps are enabled, the time the oldest packet waits is available
+ * with getHeadAge().
+ */
+public class PacketQueue {
+
+    //Number of checks before a YIELDING or BLOCKING thread yields or parks
+    private static final int SPIN_ROUNDS = 100;
+    //Time a BLOCKING producer waits for a free slot before it checks again (in ns)
+    private static final long PRODUCER_PARK = 50000L;
+
+    private final int capacity;
+    private final int slotSize;
+    private final boolean multiProducer;
+    private final WaitStrategy waitStrategy;
+    private final boolean batched;
+
+    //every slot has a sequence number, slot i is free for the producer of
+    //position p if its sequence is p, it contains the packet of position p
+    //if its sequence is p + 1
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final byte[] data;
+    //one view on data per slot which is passed to handlers
+    private final ByteBuffer[] views;
+    private final int[] lengths;
+    private final int[] tags;
+    //System.nanoTime() when the packet was queued, only set if timestamped
+    private final long[] times;
+    private volatile boolean timestamped = false;
+    private final AtomicLong tail = new AtomicLong();
+    //position of the consumer, only written by the consumer thread
+    private volatile long head = 0;
+
+    //consumer thread while it is parked, null otherwise
+    private volatile Thread parkedConsumer;
+    private volatile boolean closed = false;
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Create a new queue.
+     * @param capacity number of slots, has to be a power of two
+     * @param slotSize maximum packet size in bytes
+     * @param multiProducer false if only a single thread writes to the
+     * queue (SPSC), true if several threads write to it (MPSC)
+     * @param waitStrategy how threads wait for packets and free slots
+     * @param batched if true, producers have to call signal() after each
+     * batch of packets to wake up a parked consumer
+     */
+    public PacketQueue(int capacity, int slotSize, boolean multiProducer, WaitStrategy waitStrategy,
+            boolean batched) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity has to be a power of two: " + capacity);
+        }
+        this.capacity = capacity;
+        this.slotSize = slotSize;
+        this.multiProducer = multiProducer;
+        this.waitStrategy = waitStrategy;
+        this.batched = batched;
+        this.mask = capacity - 1;
+        this.sequences = new AtomicLongArray(capacity);
+        this.data = new byte[capacity * slotSize];
+        this.views = new ByteBuffer[capacity];
+        this.lengths = new int[capacity];
+        this.tags = new int[capacity];
+        this.times = new long[capacity];
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+            views[i] = ByteBuffer.wrap(data, i * slotSize, slotSize).slice();
+        }
+    }
+
+    /**
+     * Claims the next free slot.
+     * @return position of the slot, -1 if the queue is full
+     */
+    private long claim() {
+        if (!multiProducer) {
+            long position = tail.get();
+            if (sequences.get((int) (position & mask)) != position) {
+                return -1;
+            }
+            tail.lazySet(position + 1);
+            return position;
+        }
+        while (true) {
+            long position = tail.get();
+            long difference = sequences.get((int) (position & mask)) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    return position;
+                }
+            } else if (difference < 0) {
+                //the slot still contains a packet of the last round
+                return -1;
+            }
+            //else another producer claimed the slot, try again
+        }
+    }
+
+    /**
+     * Claims the next free slot, waits if the queue is full.
+     * @return position of the slot, -1 on timeout, interrupt or if the queue was closed
+     */
+    private long claim(long timeoutNanos) {
+        long position = claim();
+        if (position >= 0 || timeoutNanos <= 0) {
+            return position;
+        }
+        //a parked consumer has to empty the queue
+        signal();
+        long deadline = deadline(timeoutNanos);
+        for (int round = 0; ; round++) {
+            position = claim();
+            if (position >= 0 || closed) {
+                return position;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || Thread.currentThread().isInterrupted()) {
+                return -1;
+            }
+            if (round >= SPIN_ROUNDS) {
+                if (waitStrategy == WaitStrategy.YIELDING) {
+                    Thread.yield();
+                } else if (waitStrategy == WaitStrategy.BLOCKING) {
+                    LockSupport.parkNanos(this, Math.min(remaining, PRODUCER_PARK));
+                }
+            }
+        }
+    }
+
+    private void publish(long position, int length, int tag) {
+        int index = (int) (position & mask);
+        lengths[index] = length;
+        tags[index] = tag;
+        if (timestamped) {
+            times[index] = System.nanoTime();
+        }
+        sequences.set(index, position + 1);
+        if (!batched) {
+            signal();
+        }
+    }
+
+    /**
+     * Copies a packet into the queue without waiting.
+     * @param packet packet between position and limit, position and limit
+     * are not changed
+     * @return false if the packet was dropped because the queue is full,
+     * closed or the packet is longer than a slot
+     */
+    public boolean offer(ByteBuffer packet) {
+        return put(packet, 0, 0);
+    }
+
+    /**
+     * Copies a tagged packet into the queue without waiting.
+     * @param packet packet between position and limit, position and limit
+     * are not changed
+     * @param tag tag of the packet, see peekTag()
+     * @return false if the packet was dropped because the queue is full,
+     * closed or the packet is longer than a slot
+     */
+    public boolean offer(ByteBuffer packet, int tag) {
+        return put(packet, tag, 0);
+    }
+
+    /**
+     * Copies a packet into the queue, waits up to timeoutNanos for a free slot.
+     * @param packet packet between position and limit, position and limit
+     * are not changed
+     * @param timeoutNanos maximum time to wait, Long.MAX_VALUE to wait until
+     * the queue is closed
+     * @return false if the packet was dropped because of a timeout, because
+     * the queue is closed or the packet is longer than a slot
+     */
+    public boolean put(ByteBuffer packet, long timeoutNanos) {
+        return put(packet, 0, timeoutNanos);
+    }
+
+    /**
+     * Copies a tagged packet into the queue, waits up to timeoutNanos for a
+     * free slot.
+     * @param packet packet between position and limit, position and limit
+     * are not changed
+     * @param tag tag of the packet, see peekTag()
+     * @param timeoutNanos maximum time to wait, Long.MAX_VALUE to wait until
+     * the queue is closed
+     * @return false if the packet was dropped because of a timeout, because
+     * the queue is closed or the packet is longer than a slot
+     */
+    public boolean put(ByteBuffer packet, int tag, long timeoutNanos) {
+        int length = packet.remaining();
+        long position = length <= slotSize && !closed ? claim(timeoutNanos) : -1;
+        if (position < 0) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        packet.duplicate().get(data, (int) (position & mask) * slotSize, length);
+        publish(position, length, tag);
+        return true;
+    }
+
+    /**
+     * Copies a packet into the queue without waiting.
+     * @param buffer buffer containing the packet
+     * @param offset offset of the packet in buffer
+     * @param length length of the packet
+     * @return false if the packet was dropped because the queue is full,
+     * closed or the packet is longer than a slot
+     */
+    public boolean offer(byte[] buffer, int offset, int length) {
+        return put(buffer, offset, length, 0);
+    }
+
+    /**
+     * Copies a packet into the queue, waits up to timeoutNanos for a free slot.
+     * @param buffer buffer containing the packet
+     * @param offset offset of the packet in buffer
+     * @param length length of the packet
+     * @param timeoutNanos maximum time to wait, Long.MAX_VALUE to wait until
+     * the queue is closed
+     * @return false if the packet was dropped because of a timeout, because
+     * the queue is closed or the packet is longer than a slot
+     */
+    public boolean put(byte[] buffer, int offset, int length, long timeoutNanos) {
+        long position = length <= slotSize && !closed ? claim(timeoutNanos) : -1;
+        if (position < 0) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        System.arraycopy(buffer, offset, data, (int) (position & mask) * slotSize, length);
+        publish(position, length, 0);
+        return true;
+    }
+
+    /**
+     * Wakes up the consumer if it is parked. Has to be called by producers
+     * after each batch in batched mode.
+     */
+    public void signal() {
+        Thread consumer = parkedConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    private boolean isAvailable() {
+        return sequences.get((int) (head & mask)) == head + 1;
+    }
+
+    /**
+     * Waits until a packet is available.
+     * @return 1 if a packet is available, 0 on timeout or interrupt, -1 if
+     * the queue is closed and empty
+     */
+    private int await(long timeoutNanos) {
+        if (isAvailable()) {
+            return 1;
+        }
+        long deadline = deadline(timeoutNanos);
+        for (int round = 0; ; round++) {
+            if (isAvailable()) {
+                return 1;
+            }
+            if (closed) {
+                return -1;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || Thread.currentThread().isInterrupted()) {
+                return 0;
+            }
+            if (round >= SPIN_ROUNDS) {
+                if (waitStrategy == WaitStrategy.YIELDING) {
+                    Thread.yield();
+                } else if (waitStrategy == WaitStrategy.BLOCKING) {
+                    parkedConsumer = Thread.currentThread();
+                    //check again, a producer may have published before
+                    //parkedConsumer was set
+                    if (!isAvailable() && !closed) {
+                        LockSupport.parkNanos(this, remaining);
+                    }
+                    parkedConsumer = null;
+                }
+            }
+        }
+    }
+
+    private static long deadline(long timeoutNanos) {
+        long now = System.nanoTime();
+        //avoid overflows for Long.MAX_VALUE
+        return timeoutNanos > Long.MAX_VALUE / 2 ? now + Long.MAX_VALUE / 2 : now + timeoutNanos;
+    }
+
+    /**
+     * Returns the tag of the next packet. Within drain() this is the tag of
+     * the packet passed to the handler. May only be called by the consumer
+     * thread.
+     * @return tag of the next packet, 0 for untagged packets or if the
+     * queue is empty
+     */
+    public int peekTag() {
+        return isAvailable() ? tags[(int) (head & mask)] : 0;
+    }
+
+    /**
+     * Copies the next packet into buffer without waiting. May only be
+     * called by the consumer thread.
+     * @param buffer buffer in which the packet will be stored at its
+     * position, packets longer than the remaining bytes are truncated
+     * @return bytes read, 0 if the queue is empty
+     */
+    public int poll(ByteBuffer buffer) {
+        if (!isAvailable()) {
+            return 0;
+        }
+        int index = (int) (head & mask);
+        int length = Math.min(lengths[index], buffer.remaining());
+        buffer.put(data, index * slotSize, length);
+        releaseHead();
+        return length;
+    }
+
+    /**
+     * Copies the next packet into buffer, waits up to timeoutNanos for it.
+     * May only be called by the consumer thread.
+     * @param buffer buffer in which the packet will be stored at its
+     * position, packets longer than the remaining bytes are truncated
+     * @param timeoutNanos maximum time to wait, Long.MAX_VALUE to wait until
+     * the queue is closed
+     * @return bytes read, 0 on timeout, -1 if the queue is closed and empty
+     */
+    public int take(ByteBuffer buffer, long timeoutNanos) {
+        int result = await(timeoutNanos);
+        return result <= 0 ? result : poll(buffer);
+    }
+
+    /**
+     * Passes up to maxPackets packets to handler without waiting. The
+     * packets are views on the slots which are reused after the handler
+     * returns. May only be called by the consumer thread.
+     * @param handler handler for the packets
+     * @param maxPackets maximum number of packets
+     * @return number of packets passed to handler
+     */
+    public int drain(PacketHandler handler, int maxPackets) {
+        int count = 0;
+        while (count < maxPackets && isAvailable()) {
+            int index = (int) (head & mask);
+            ByteBuffer view = views[index];
+            view.clear();
+            view.limit(lengths[index]);
+            try {
+                handler.handlePacket(view);
+            } finally {
+                releaseHead();
+            }
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Waits up to timeoutNanos for packets and passes up to maxPackets of
+     * them to handler, see drain(). May only be called by the consumer thread.
+     * @param handler handler for the packets
+     * @param maxPackets maximum number of packets
+     * @param timeoutNanos maximum time to wait, Long.MAX_VALUE to wait until
+     * the queue is closed
+     * @return number of packets passed to handler, 0 on timeout, -1 if the
+     * queue is closed and empty
+     */
+    public int take(PacketHandler handler, int maxPackets, long timeoutNanos) {
+        int result = await(timeoutNanos);
+        return result <= 0 ? result : drain(handler, maxPackets);
+    }
+
+    /**
+     * Waits up to timeoutNanos for packets and stores views on the slots of
+     * up to maxPackets consecutive packets in packets, without removing them
+     * from the queue. The slots are not reused until release() is called,
+     * so a batch can be passed on without copying. May only be called by the
+     * consumer thread.
+     * @param packets array for the views, views of a previous call are
+     * overwritten
+     * @param maxPackets maximum number of packets, at most packets.length
+     * @param timeoutNanos maximum time to wait, Long.MAX_VALUE to wait until
+     * the queue is closed
+     * @return number of views stored, 0 on timeout, -1 if the queue is
+     * closed and empty
+     */
+    public int peek(ByteBuffer[] packets, int maxPackets, long timeoutNanos) {
+        int result = await(timeoutNanos);
+        if (result <= 0) {
+            return result;
+        }
+        int count = 0;
+        long position = head;
+        while (count < maxPackets) {
+            int index = (int) (position & mask);
+            if (sequences.get(index) != position + 1) {
+                break;
+            }
+            ByteBuffer view = views[index];
+            view.clear();
+            view.limit(lengths[index]);
+            packets[count++] = view;
+            position++;
+        }
+        return count;
+    }
+
+    /**
+     * Removes packets returned by peek() from the queue, their slots can be
+     * reused afterwards. May only be called by the consumer thread.
+     * @param count number of packets, at most the number returned by peek()
+     */
+    public void release(int count) {
+        for (int i = 0; i < count; i++) {
+            releaseHead();
+        }
+    }
+
+    private void releaseHead() {
+        long position = head;
+        //free the slot for the next round
+        sequences.set((int) (position & mask), position + mask + 1);
+        head = position + 1;
+    }
+
+    /**
+     * Closes the queue. Waiting threads return, packets which are already
+     * queued can still be read.
+     */
+    public void close() {
+        closed = true;
+        signal();
+    }
+
+    /**
+     * Returns true if the queue was closed.
+     * @return true if closed
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Returns the number of queued packets. The value is only a snapshot
+     * if other threads use the queue at the same time.
+     * @return number of queued packets
+     */
+    public int size() {
+        long size = tail.get() - head;
+        return (int) Math.max(0, Math.min(size, capacity));
+    }
+
+    /**
+     * Enables or disables timestamps, see getHeadAge(). Costs a
+     * System.nanoTime() call per queued packet.
+     * @param timestamped true to timestamp each queued packet
+     */
+    public void setTimestamped(boolean timestamped) {
+        this.timestamped = timestamped;
+    }
+
+    /**
+     * Returns how long the oldest packet waits in the queue. The value is
+     * only a estimate if other threads use the queue at the same time.
+     * @return time since the oldest packet was queued in ns, 0 if the queue
+     * is empty or timestamps are disabled
+     */
+    public long getHeadAge() {
+        if (!timestamped) {
+            return 0;
+        }
+        long position = head;
+        int index = (int) (position & mask);
+        if (sequences.get(index) != position + 1) {
+            return 0;
+        }
+        //packets queued before timestamps were enabled have no time
+        long time = times[index];
+        return time == 0 ? 0 : Math.max(0, System.nanoTime() - time);
+    }
+
+    /**
+     * Returns the number of slots.
+     * @return capacity
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the maximum packet size.
+     * @return slot size in bytes
+     */
+    public int getSlotSize() {
+        return slotSize;
+    }
+
+    /**
+     * Returns the number of packets which were not queued because the
+     * queue was full, closed or the packet too long.
+     * @return dropped packets
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+}
@@ -0,0 +1,398 @@
+/**
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces;
+
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.ConnectionMapper;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.jnetpcap.Pcap;
+import org.jnetpcap.PcapBpfProgram;
+
+/**
+ * This class represents a capture interface which reads ethernet frames
+ * directly from a AF_PACKET socket with a memory mapped TPACKET_V3 RX ring.
+ * The kernel fills whole blocks of frames, all frames of a block are passed
+ * to the handler as views on the ring without any copying. Only IPv6 frames
+ * are captured.
+ * Several rings on the same interface can share its traffic by joining
+ * the same fanout group, all frames of a flow are read by the same ring.
+ * The native library libPacketIOCdl.so has to be loaded before use.
+ */
+public class PacketRingIF implements IFBatchReader, FilterableIFReader, SelectableIF, Closeable {
+
+    //Default ring settings used by PacketRingIF(String)
+    //Size of a block in bytes, has to be a multiple of the page size
+    public static int BLOCK_SIZE = 1 << 20;
+    //Number of blocks in the ring
+    public static int BLOCK_COUNT = 16;
+    //Maximum size of a frame slot (frame plus headers)
+    public static int FRAME_SIZE = 2048;
+    //Time in ms after which the kernel passes a block which is not full
+    public static int BLOCK_TIMEOUT = 1;
+    //Timeout in ms of a single read
+    public static int READ_TIMEOUT = 1000;
+
+    //Offsets in struct tpacket_block_desc
+    private static final int BLOCK_NUM_PKTS = 12;
+    private static final int BLOCK_OFFSET_TO_FIRST_PKT = 16;
+    //Offsets in struct tpacket3_hdr
+    private static final int PKT_NEXT_OFFSET = 0;
+    private static final int PKT_SNAPLEN = 12;
+    private static final int PKT_MAC = 24;
+    //struct sockaddr_ll follows the aligned tpacket3_hdr,
+    //sll_pkttype is at offset 10
+    private static final int PKT_PKTTYPE = 48 + 10;
+    private static final int PACKET_OUTGOING = 4;
+    //Snaplen and link type used to compile filters
+    private static final int FILTER_SNAPLEN = 64 * 1024;
+    private static final int DLT_EN10MB = 1;
+
+    String name;
+    private final long handle;
+    private final ByteBuffer ring;
+    //view on ring which is passed to the handler
+    private final ByteBuffer frame;
+    private final int blockSize;
+    private final int blockCount;
+    private volatile boolean inboundOnly = false;
+    private volatile int readTimeout = READ_TIMEOUT;
+    //set by close() under cursorLock
+    private volatile boolean closed = false;
+
+    //guards the read position below, never held while waiting for a block
+    private final Object cursorLock = new Object();
+    //block which is read at the moment
+    private int block = 0;
+    //packets of the current block which have not been read yet, -1 if
+    //the current block was not passed by the kernel yet
+    private int remaining = -1;
+    //offset of the next packet in ring
+    private int packetOffset;
+
+    /**
+     * Create a new ring interface with the default settings
+     * (BLOCK_SIZE, BLOCK_COUNT, FRAME_SIZE, BLOCK_TIMEOUT).
+     * @param ifName ethernet interfaces system name (eg. "eth0")
+     * @throws IOException Will be thrown when opening failed
+     */
+    public PacketRingIF(String ifName) throws IOException {
+        this(ifName, BLOCK_SIZE, BLOCK_COUNT, FRAME_SIZE, BLOCK_TIMEOUT);
+    }
+
+    /**
+     * Create a new ring interface.
+     * @param ifName ethernet interfaces system name (eg. "eth0")
+     * @param blockSize size of a block in bytes, multiple of the page size
+     * @param blockCount number of blocks
+     * @param frameSize maximum size of a frame slot
+     * @param blockTimeout time in ms after which a block which is not
+     * full is passed to user space
+     * @throws IOException Will be thrown when opening failed
+     */
+    public PacketRingIF(String ifName, int blockSize, int blockCount, int frameSize, int blockTimeout)
+            throws IOException {
+        this(ifName, ringOpen(ifName, blockSize, blockCount, frameSize, blockTimeout), blockSize, blockCount);
+        ConnectionMapper.log.debug("Packet ring IF " + ifName + " opened: " + blockCount + " blocks of "
+                + blockSize + " bytes");
+    }
+
+    private PacketRingIF(String ifName, long handle, int blockSize, int blockCount) {
+        this(ifName, handle, ringBuffer(handle), blockSize, blockCount);
+    }
+
+    /**
+     * Create a ring interface on a existing ring, eg. for tests.
+     * @param ifName interface name
+     * @param handle native ring handle
+     * @param ring memory of the ring
+     * @param blockSize size of a block in bytes
+     * @param blockCount number of blocks
+     */
+    PacketRingIF(String ifName, long handle, ByteBuffer ring, int blockSize, int blockCount) {
+        this.name = ifName;
+        this.handle = handle;
+        this.ring = ring.order(ByteOrder.nativeOrder());
+        //frames are in network byte order
+        this.frame = ring.duplicate().order(ByteOrder.BIG_ENDIAN);
+        this.blockSize = blockSize;
+        this.blockCount = blockCount;
+    }
+
+    /**
+     * Reads all frames of the current block, at most maxPackets.
+     * The frames are passed to handler as views on the ring.
+     * @param handler handler for the read frames
+     * @param maxPackets maximum number of frames to read
+     * @return number of frames read, 0 on timeout
+     * @throws IOException Will be thrown when reading failed or the ring is closed
+     */
+    @Override
+    public int read(PacketHandler handler, int maxPackets) throws IOException {
+        int current;
+        boolean ready;
+        synchronized (cursorLock) {
+            checkOpen();
+            current = block;
+            ready = remaining != -1;
+        }
+        //wait without lock, so setFilter() and close() are not blocked
+        if (!ready && !waitForBlock(current, readTimeout)) {
+            return 0;
+        }
+        synchronized (cursorLock) {
+            checkOpen();
+            if (block != current) {
+                //the block was read by another thread
+                return 0;
+            }
+            if (remaining == -1) {
+                int blockOffset = block * blockSize;
+                remaining = ring.getInt(blockOffset + BLOCK_NUM_PKTS);
+                packetOffset = blockOffset + ring.getInt(blockOffset + BLOCK_OFFSET_TO_FIRST_PKT);
+            }
+            int read = 0;
+            while (remaining > 0 && read < maxPackets) {
+                int offset = packetOffset;
+                packetOffset += ring.getInt(offset + PKT_NEXT_OFFSET);
+                remaining--;
+                if (inboundOnly && ring.get(offset + PKT_PKTTYPE) == PACKET_OUTGOING) {
+                    continue;
+                }
+                int start = offset + (ring.getShort(offset + PKT_MAC) & 0xFFFF);
+                frame.clear();
+                frame.position(start);
+                frame.limit(start + ring.getInt(offset + PKT_SNAPLEN));
+                handler.handlePacket(frame);
+                read++;
+            }
+            if (remaining == 0) {
+                //all frames are processed, return the block to the kernel
+                releaseBlock(block);
+                block = (block + 1) % blockCount;
+                remaining = -1;
+            }
+            return read;
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Packet ring IF " + name + " is closed");
+        }
+    }
+
+    /**
+     * Read data. Data will contain a ethernet frame.
+     * Frames longer than nbytes will be truncated.
+     * @param buffer buffer in which the read data will be stored
+     * @param nbytes buffer size
+     * @return bytes read, 0 on timeout, -1 on error
+     */
+    @Override
+    public int read(final byte[] buffer, final int nbytes) {
+        final int[] length = new int[1];
+        try {
+            read(new PacketHandler() {
+                @Override
+                public void handlePacket(ByteBuffer packet) {
+                    length[0] = Math.min(packet.remaining(), nbytes);
+                    packet.get(buffer, 0, length[0]);
+                }
+            }, 1);
+        } catch (IOException e) {
+            ConnectionMapper.log.error("Error while reading from " + name + ": " + e.getMessage());
+            return -1;
+        }
+        return length[0];
+    }
+
+    /**
+     * Compiles a BPF filter expression and attaches it to the socket.
+     * Needs no lock, the kernel replaces the filter of the socket atomically,
+     * so the filter can be changed while another thread reads the ring.
+     * @param expression Filter expression in pcap-filter syntax
+     * @throws IOException Will be thrown when compiling or installing failed
+     */
+    @Override
+    public void setFilter(String expression) throws IOException {
+        checkOpen();
+        PcapBpfProgram program = new PcapBpfProgram();
+        //netmask is only used for IPv4 broadcast checks
+        if (Pcap.compileNoPcap(FILTER_SNAPLEN, DLT_EN10MB, program, expression, 1, 0xFFFFFF00) != Pcap.OK) {
+            throw new IOException("Error while compiling filter '" + expression + "' for " + name);
+        }
+        try {
+            long[] instructions = new long[program.getInstructionCount()];
+            for (int i = 0; i < instructions.length; i++) {
+                instructions[i] = program.getInstruction(i);
+            }
+            ringSetFilter(handle, instructions);
+        } finally {
+            Pcap.freecode(program);
+        }
+        ConnectionMapper.log.debug("Packet ring IF " + name + ": filter installed: " + expression);
+    }
+
+    /**
+     * Installs the filter at once. Unlike a libpcap handle, the socket
+     * filter can be replaced while another thread reads the ring, so a
+     * reader waiting for a block does not delay the new filter.
+     * @param expression Filter expression in pcap-filter syntax
+     * @param fallback Filter expression which is installed instead if
+     * expression is rejected, null for none
+     */
+    @Override
+    public void requestFilter(String expression, String fallback) {
+        new FilterRequest(expression, fallback).install(this);
+    }
+
+    /**
+     * Captures only frames received by the interface, frames sent by the
+     * system itself are skipped while reading the ring.
+     */
+    @Override
+    public void setInboundOnly() {
+        inboundOnly = true;
+    }
+
+    /**
+     * Joins a PACKET_FANOUT group in flow hash mode. The frames of the
+     * interface are distributed among all rings of the group, all frames
+     * of a flow are passed to the same ring.
+     * @param group fanout group id (0 - 65535), unique per interface
+     * @throws IOException Will be thrown when joining failed
+     */
+    public void joinFanout(int group) throws IOException {
+        ringJoinFanout(handle, group);
+        ConnectionMapper.log.debug("Packet ring IF " + name + " joined fanout group " + group);
+    }
+
+    /**
+     * Returns the socket, it becomes readable when the kernel passed a block.
+     * @return file descriptor of the socket
+     */
+    @Override
+    public int getSelectableFd() {
+        return ringFd(handle);
+    }
+
+    /**
+     * Reads return 0 immediately if no block is ready.
+     */
+    @Override
+    public void setNonBlocking() {
+        readTimeout = 0;
+    }
+
+    /**
+     * Returns the capture statistics since the last call.
+     * @return received frames, dropped frames and number of times the
+     * ring was full
+     * @throws IOException Will be thrown when the statistics are not available
+     */
+    public long[] getStatistics() throws IOException {
+        long[] statistics = new long[3];
+        ringStatistics(handle, statistics);
+        return statistics;
+    }
+
+    /**
+     * Logs the capture statistics since the last call.
+     */
+    public void logStatistics() {
+        try {
+            long[] stats = getStatistics();
+            ConnectionMapper.log.info("Packet ring IF " + name + ": received " + stats[0]
+                    + ", dropped " + stats[1] + ", ring full " + stats[2] + " times");
+        } catch (IOException e) {
+            ConnectionMapper.log.warn(e.getMessage());
+        }
+    }
+
+    /**
+     * Closes the socket and unmaps the ring. No thread may wait for a
+     * block at the same time, later reads throw a IOException.
+     */
+    @Override
+    public void close() {
+        synchronized (cursorLock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            ringClose(handle);
+        }
+    }
+
+    /**
+     * Waits until the kernel passed a block to user space.
+     * @param block index of the block
+     * @param timeout timeout in ms
+     * @return true if the block is ready
+     * @throws IOException Will be thrown when waiting failed
+     */
+    boolean waitForBlock(int block, int timeout) throws IOException {
+        return ringWait(handle, block, timeout);
+    }
+
+    /**
+     * Returns a block to the kernel.
+     * @param block index of the block
+     */
+    void releaseBlock(int block) {
+        ringRelease(handle, block);
+    }
+
+    /**
+     * Returns the name of the ethernet interface.
+     * @return ethernet interface name
+     */
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    private static native long ringOpen(String ifName, int blockSize, int blockCount, int frameSize,
+            int blockTimeout) throws IOException;
+
+    private static native ByteBuffer ringBuffer(long handle);
+
+    private static native boolean ringWait(long handle, int block, int timeout) throws IOException;
+
+    private static native void ringRelease(long handle, int block);
+
+    private static native void ringSetFilter(long handle, long[] instructions) throws IOException;
+
+    private static native int ringFd(long handle);
+
+    private static native void ringJoinFanout(long handle, int group) throws IOException;
+
+    private static native void ringStatistics(long handle, long[] result) throws IOException;
+
+    private static native void ringClose(long handle);
+}
@@ -0,0 +1,403 @@
+/**
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces;
+
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.ConnectionMapper;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.NamedTask;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This thread writes the packets passed by taps (TapIF) to rotating pcap
+ * files (prefix-0.pcap, prefix-1.pcap, ...), only the last FILE_COUNT
+ * files are kept. A new run continues after the highest index found in
+ * the directory, so files of earlier runs are not overwritten and count
+ * towards FILE_COUNT.
+ * Packets are copied into a bounded lock-free ring which is drained by
+ * this thread. If the ring is full (the disk can not keep up), packets are
+ * dropped instead of blocking the forwarding threads.
+ * All packets of a dumper have the same link type, use a dumper per
+ * interface.
+ */
+public class PcapDumper implements NamedTask {
+
+    //Default settings used by PcapDumper(String, int)
+    //Number of packets the ring can hold, has to be a power of two
+    public static int RING_SIZE = 4096;
+    //Maximum number of bytes dumped per packet
+    public static int SNAPLEN = 2048;
+    //A new file is started when a file reaches this size in bytes
+    public static long FILE_SIZE = 64 * 1024 * 1024;
+    //Number of files which are kept
+    public static int FILE_COUNT = 10;
+
+    //Link types of the dumped packets
+    public static final int LINKTYPE_ETHERNET = 1;
+    //Raw IPv4 or IPv6 packets (TUN interface)
+    public static final int LINKTYPE_RAW = 101;
+
+    //pcap magic number for nanosecond timestamps
+    private static final int PCAP_NSEC_MAGIC = 0xA1B23C4D;
+    private static final int PCAP_HEADER_LENGTH = 24;
+    private static final int RECORD_HEADER_LENGTH = 16;
+    //Time to wait if the ring is empty (in ns)
+    private static final long IDLE_WAIT = 1000000L;
+    //Time to wait after a disk error before a new file is opened (in ns)
+    private static final long RETRY_WAIT = 1000000000L;
+
+    private final String filePrefix;
+    private final int linkType;
+    private final int snaplen;
+    private final long fileSize;
+    private final int fileCount;
+
+    //ring: every slot has a sequence number, slot i is free for the
+    //producer of position p if its sequence is p, it contains the packet
+    //of position p if its sequence is p + 1
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final byte[][] data;
+    private final int[] lengths;
+    private final int[] originalLengths;
+    private final long[] timestamps;
+    private final AtomicLong tail = new AtomicLong();
+    //only used by this thread
+    private long head = 0;
+
+    //wall clock time in ns at baseNanos (System.nanoTime)
+    private final long baseWallNanos = System.currentTimeMillis() * 1000000L;
+    private final long baseNanos = System.nanoTime();
+
+    private volatile boolean running = true;
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile long written = 0;
+
+    //current file, only used by this thread
+    private OutputStream out;
+    private long outSize;
+    //index of the next file, -1 until the existing files were scanned
+    private int fileIndex = -1;
+    //indices of the kept files, oldest first
+    private final LinkedList<Integer> files = new LinkedList<Integer>();
+    private long retryAt = 0;
+    private final byte[] recordHeader = new byte[RECORD_HEADER_LENGTH];
+    private final ByteBuffer recordHeaderBuffer = ByteBuffer.wrap(recordHeader).order(ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * Create a new dumper with the default settings
+     * (RING_SIZE, SNAPLEN, FILE_SIZE, FILE_COUNT).
+     * @param filePrefix path and name of the files without "-index.pcap"
+     * @param linkType link type of the dumped packets (eg. LINKTYPE_ETHERNET)
+     */
+    public PcapDumper(String filePrefix, int linkType) {
+        this(filePrefix, linkType, RING_SIZE, SNAPLEN, FILE_SIZE, FILE_COUNT);
+    }
+
+    /**
+     * Create a new dumper.
+     * @param filePrefix path and name of the files without "-index.pcap"
+     * @param linkType link type of the dumped packets (eg. LINKTYPE_ETHERNET)
+     * @param ringSize number of packets the ring can hold, a power of two
+     * @param snaplen maximum number of bytes dumped per packet
+     * @param fileSize size in bytes after which a new file is started
+     * @param fileCount number of files which are kept
+     */
+    public PcapDumper(String filePrefix, int linkType, int ringSize, int snaplen, long fileSize, int fileCount) {
+        if (Integer.bitCount(ringSize) != 1) {
+            throw new IllegalArgumentException("Ring size has to be a power of two: " + ringSize);
+        }
+        this.filePrefix = filePrefix;
+        this.linkType = linkType;
+        this.snaplen = snaplen;
+        this.fileSize = fileSize;
+        this.fileCount = fileCount;
+        this.mask = ringSize - 1;
+        this.sequences = new AtomicLongArray(ringSize);
+        this.data = new byte[ringSize][snaplen];
+        this.lengths = new int[ringSize];
+        this.originalLengths = new int[ringSize];
+        this.timestamps = new long[ringSize];
+        for (int i = 0; i < ringSize; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Copies a packet into the ring. Never blocks, may be called by
+     * several threads at the same time.
+     * @param packet packet between position and limit, position and limit
+     * are not changed
+     * @return false if the packet was dropped because the ring is full
+     */
+    public boolean offer(ByteBuffer packet) {
+        int index = claim();
+        if (index < 0) {
+            return false;
+        }
+        int length = Math.min(packet.remaining(), snaplen);
+        ByteBuffer source = packet.duplicate();
+        source.get(data[index], 0, length);
+        publish(index, length, packet.remaining());
+        return true;
+    }
+
+    /**
+     * Copies a packet into the ring. Never blocks, may be called by
+     * several threads at the same time.
+     * @param buffer buffer containing the packet
+     * @param offset offset of the packet in buffer
+     * @param length length of the packet
+     * @return false if the packet was dropped because the ring is full
+     */
+    public boolean offer(byte[] buffer, int offset, int length) {
+        int index = claim();
+        if (index < 0) {
+            return false;
+        }
+        int captured = Math.min(length, snaplen);
+        System.arraycopy(buffer, offset, data[index], 0, captured);
+        publish(index, captured, length);
+        return true;
+    }
+
+    /**
+     * Claims the next free slot.
+     * @return index of the slot, -1 if the ring is full
+     */
+    private int claim() {
+        while (true) {
+            long position = tail.get();
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    return index;
+                }
+            } else if (difference < 0) {
+                //the slot still contains a packet of the last round
+                dropped.incrementAndGet();
+                return -1;
+            }
+            //else another producer claimed the slot, try the next one
+        }
+    }
+
+    private void publish(int index, int length, int originalLength) {
+        lengths[index] = length;
+        originalLengths[index] = originalLength;
+        timestamps[index] = baseWallNanos + (System.nanoTime() - baseNanos);
+        //the slot belongs to position sequence - 1 until now
+        sequences.set(index, sequences.get(index) + 1);
+    }
+
+    @Override
+    public String getTaskName() {
+        return "PcapDumper " + filePrefix;
+    }
+
+    @Override
+    public void run() {
+        ConnectionMapper.log.info("PcapDumper " + filePrefix + " started.");
+        while (true) {
+            int index = (int) (head & mask);
+            if (sequences.get(index) != head + 1) {
+                //ring is empty
+                if (!running) {
+                    break;
+                }
+                flush();
+                LockSupport.parkNanos(IDLE_WAIT);
+                continue;
+            }
+            write(data[index], lengths[index], originalLengths[index], timestamps[index]);
+            //free the slot for the next round
+            sequences.set(index, head + mask + 1);
+            head++;
+        }
+        close();
+        ConnectionMapper.log.info("PcapDumper " + filePrefix + " stopped.");
+    }
+
+    /**
+     * Writes a record, starts a new file if necessary. Packets which can
+     * not be written are counted as dropped.
+     */
+    private void write(byte[] packet, int length, int originalLength, long timestamp) {
+        try {
+            if (out != null && outSize + RECORD_HEADER_LENGTH + length > fileSize) {
+                close();
+            }
+            if (out == null) {
+                if (System.nanoTime() - retryAt < 0) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+                open();
+            }
+            recordHeaderBuffer.clear();
+            recordHeaderBuffer.putInt((int) (timestamp / 1000000000L));
+            recordHeaderBuffer.putInt((int) (timestamp % 1000000000L));
+            recordHeaderBuffer.putInt(length);
+            recordHeaderBuffer.putInt(originalLength);
+            out.write(recordHeader);
+            out.write(packet, 0, length);
+            outSize += RECORD_HEADER_LENGTH + length;
+            written++;
+        } catch (IOException e) {
+            ConnectionMapper.log.error("PcapDumper " + filePrefix + ": " + e.getMessage());
+            dropped.incrementAndGet();
+            close();
+            retryAt = System.nanoTime() + RETRY_WAIT;
+        }
+    }
+
+    private File file(int index) {
+        return new File(filePrefix + "-" + index + ".pcap");
+    }
+
+    /**
+     * Collects the files of earlier runs and sets fileIndex after the
+     * highest index.
+     */
+    private void scanFiles() {
+        File prefix = new File(filePrefix).getAbsoluteFile();
+        String name = prefix.getName() + "-";
+        String[] names = prefix.getParentFile().list();
+        List<Integer> indices = new ArrayList<Integer>();
+        if (names != null) {
+            for (String fileName : names) {
+                if (fileName.startsWith(name) && fileName.endsWith(".pcap")) {
+                    try {
+                        indices.add(Integer.parseInt(
+                                fileName.substring(name.length(), fileName.length() - ".pcap".length())));
+                    } catch (NumberFormatException e) {
+                        //file of another dumper, eg. prefix-a-0.pcap
+                    }
+                }
+            }
+        }
+        Collections.sort(indices);
+        files.addAll(indices);
+        fileIndex = indices.isEmpty() ? 0 : indices.get(indices.size() - 1) + 1;
+    }
+
+    private void open() throws IOException {
+        if (fileIndex < 0) {
+            scanFiles();
+        }
+        while (!files.isEmpty() && files.size() >= fileCount) {
+            File old = file(files.removeFirst());
+            if (old.exists() && !old.delete()) {
+                ConnectionMapper.log.warn("PcapDumper " + filePrefix + ": can not delete " + old);
+            }
+        }
+        File file = file(fileIndex);
+        files.add(fileIndex);
+        fileIndex++;
+        out = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+        ByteBuffer header = ByteBuffer.allocate(PCAP_HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(PCAP_NSEC_MAGIC);
+        header.putShort((short) 2).putShort((short) 4);
+        header.putInt(0).putInt(0);
+        header.putInt(snaplen).putInt(linkType);
+        out.write(header.array());
+        outSize = PCAP_HEADER_LENGTH;
+        ConnectionMapper.log.debug("PcapDumper " + filePrefix + ": writing " + file);
+    }
+
+    private void flush() {
+        if (out != null) {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                ConnectionMapper.log.error("PcapDumper " + filePrefix + ": " + e.getMessage());
+                close();
+                retryAt = System.nanoTime() + RETRY_WAIT;
+            }
+        }
+    }
+
+    private void close() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                ConnectionMapper.log.error("PcapDumper " + filePrefix + ": " + e.getMessage());
+            }
+            out = null;
+        }
+    }
+
+    /**
+     * Stops the dumper after all packets in the ring were written.
+     */
+    public void shutdown() {
+        running = false;
+    }
+
+    /**
+     * Returns the number of packets which were dropped because the ring
+     * was full or the disk failed.
+     * @return dropped packets
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Returns the number of packets written to the files.
+     * @return written packets
+     */
+    public long getWritten() {
+        return written;
+    }
+
+    /**
+     * Logs the number of written and dropped packets.
+     */
+    public void logStatistics() {
+        ConnectionMapper.log.info("PcapDumper " + filePrefix + ": written " + written + ", dropped " + dropped.get());
+    }
+
+    /**
+     * Returns the link type of the dumped packets.
+     * @return link type
+     */
+    public int getLinkType() {
+        return linkType;
+    }
+}
@@ -0,0 +1,475 @@
+/**
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces;
+
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.ConnectionMapper;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class represents a capture interface which replays the ethernet
+ * frames of a pcap or pcapng file, eg. to drive the mapper with captured
+ * production traffic without root rights or real network interfaces.
+ * The file is memory mapped, frames are passed to the handler as views on
+ * the mapped file without any copying.
+ * Frames are replayed as fast as possible (speed 0) or with the gaps of
+ * their timestamps divided by speed (1 replays the original timing, 2
+ * twice as fast). In loop mode the file is replayed again and again.
+ * After the last frame reads behave like a idle interface.
+ * Files larger than 2 GiB are not supported.
+ */
+public class PcapFileIF implements IFBatchReader, SelectableIF {
+
+    //Replay speed which replays the frames as fast as possible
+    public static final double AS_FAST_AS_POSSIBLE = 0;
+    //Time in ms a blocking read waits after the last frame was replayed
+    public static int IDLE_TIMEOUT = 100;
+
+    //pcap magic numbers (big endian) for microsecond and nanosecond timestamps
+    private static final int PCAP_MAGIC = 0xA1B2C3D4;
+    private static final int PCAP_MAGIC_SWAPPED = 0xD4C3B2A1;
+    private static final int PCAP_NSEC_MAGIC = 0xA1B23C4D;
+    private static final int PCAP_NSEC_MAGIC_SWAPPED = 0x4D3CB2A1;
+    private static final int PCAP_HEADER_LENGTH = 24;
+    private static final int PCAP_LINKTYPE_OFFSET = 20;
+    private static final int PCAP_RECORD_HEADER_LENGTH = 16;
+    //pcapng block types
+    private static final int SECTION_HEADER_BLOCK = 0x0A0D0D0A;
+    private static final int INTERFACE_DESCRIPTION_BLOCK = 1;
+    private static final int PACKET_BLOCK = 2;
+    private static final int SIMPLE_PACKET_BLOCK = 3;
+    private static final int ENHANCED_PACKET_BLOCK = 6;
+    private static final int BYTE_ORDER_MAGIC = 0x1A2B3C4D;
+    private static final int IF_TSRESOL = 9;
+    private static final int LINKTYPE_ETHERNET = 1;
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    String name;
+    private final ByteBuffer file;
+    //view on file which is passed to the handler, frames are in network byte order
+    private final ByteBuffer frame;
+    private final boolean pcapng;
+    private final double speed;
+    private final boolean loop;
+    private volatile boolean nonBlocking = false;
+
+    //nanoseconds per timestamp unit of the pcap file or of each
+    //interface of the current pcapng section
+    private long pcapNanosPerUnit;
+    private final List<Double> interfaceNanosPerUnit = new ArrayList<Double>();
+
+    //offset of the next record or block
+    private int offset;
+    //frame which was parsed but not replayed yet
+    private boolean pending = false;
+    private int frameStart;
+    private int frameLength;
+    private long timestamp;
+    //timestamp of the previous frame and the time it was due (System.nanoTime)
+    private boolean started = false;
+    private long previousTimestamp;
+    private long previousDue;
+    //frames of the current pass through the file
+    private long passPackets = 0;
+    private volatile long packets = 0;
+    private volatile long loops = 0;
+    private volatile boolean finished = false;
+
+    /**
+     * Opens a file which is replayed once as fast as possible.
+     * @param fileName pcap or pcapng file
+     * @throws IOException Will be thrown when the file can not be read
+     */
+    public PcapFileIF(String fileName) throws IOException {
+        this(fileName, AS_FAST_AS_POSSIBLE, false);
+    }
+
+    /**
+     * Opens a file for replay.
+     * @param fileName pcap or pcapng file
+     * @param speed 0 to replay as fast as possible, otherwise the original
+     * timing is replayed speed times faster
+     * @param loop if true, the file is replayed again after the last frame
+     * @throws IOException Will be thrown when the file can not be read
+     */
+    public PcapFileIF(String fileName, double speed, boolean loop) throws IOException {
+        this(fileName, map(fileName), speed, loop);
+    }
+
+    /**
+     * Create a replay interface on a file which is already in memory, eg. for tests.
+     * @param name name of the interface
+     * @param file content of the file
+     * @param speed 0 to replay as fast as possible, otherwise the original
+     * timing is replayed speed times faster
+     * @param loop if true, the file is replayed again after the last frame
+     * @throws IOException Will be thrown when the content is no pcap or pcapng file
+     */
+    PcapFileIF(String name, ByteBuffer file, double speed, boolean loop) throws IOException {
+        if (speed < 0) {
+            throw new IllegalArgumentException("Negative replay speed: " + speed);
+        }
+        this.name = name;
+        this.file = file;
+        this.frame = file.duplicate().order(ByteOrder.BIG_ENDIAN);
+        this.speed = speed;
+        this.loop = loop;
+        if (file.limit() < 4) {
+            throw new IOException(name + " is no pcap or pcapng file");
+        }
+        file.order(ByteOrder.BIG_ENDIAN);
+        int magic = file.getInt(0);
+        if (magic == SECTION_HEADER_BLOCK) {
+            pcapng = true;
+        } else {
+            pcapng = false;
+            if (magic == PCAP_MAGIC || magic == PCAP_NSEC_MAGIC) {
+                file.order(ByteOrder.BIG_ENDIAN);
+            } else if (magic == PCAP_MAGIC_SWAPPED || magic == PCAP_NSEC_MAGIC_SWAPPED) {
+                file.order(ByteOrder.LITTLE_ENDIAN);
+            } else {
+                throw new IOException(name + " is no pcap or pcapng file");
+            }
+            if (file.limit() < PCAP_HEADER_LENGTH) {
+                throw new IOException(name + " is truncated");
+            }
+            pcapNanosPerUnit = magic == PCAP_NSEC_MAGIC || magic == PCAP_NSEC_MAGIC_SWAPPED ? 1 : 1000;
+            checkLinkType(file.getInt(PCAP_LINKTYPE_OFFSET));
+        }
+        offset = firstRecord();
+        ConnectionMapper.log.debug("Pcap file IF " + name + " opened: " + (pcapng ? "pcapng" : "pcap")
+                + ", " + file.limit() + " bytes, speed " + speed + (loop ? ", loop" : ""));
+    }
+
+    private static ByteBuffer map(String fileName) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(fileName, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(fileName + " is larger than 2 GiB");
+            }
+            //the mapping stays valid after the file is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            file.close();
+        }
+    }
+
+    private void checkLinkType(int linkType) {
+        if (linkType != LINKTYPE_ETHERNET) {
+            ConnectionMapper.log.warn("Pcap file IF " + name + ": link type " + linkType
+                    + " is no ethernet, frames will not be mapped");
+        }
+    }
+
+    private int firstRecord() {
+        return pcapng ? 0 : PCAP_HEADER_LENGTH;
+    }
+
+    /**
+     * Replays the next frames, at most maxPackets. Frames are passed to
+     * handler as views on the mapped file. A blocking read waits until the
+     * next frame is due, frames which are due are returned without waiting
+     * for later frames.
+     * @param handler handler for the read frames
+     * @param maxPackets maximum number of frames to read
+     * @return number of frames read, 0 if no frame is due (non-blocking)
+     * or all frames were replayed
+     * @throws IOException Will be thrown when the file is corrupt
+     */
+    @Override
+    public synchronized int read(PacketHandler handler, int maxPackets) throws IOException {
+        int read = 0;
+        while (read < maxPackets) {
+            if (!pending && !nextFrame()) {
+                if (read == 0 && !nonBlocking) {
+                    //idle interface
+                    sleep(IDLE_TIMEOUT * 1000000L);
+                }
+                break;
+            }
+            pending = true;
+            if (speed != AS_FAST_AS_POSSIBLE) {
+                long due = due();
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    if (read > 0 || nonBlocking) {
+                        break;
+                    }
+                    sleep(wait);
+                }
+                previousTimestamp = timestamp;
+                previousDue = due;
+            }
+            pending = false;
+            frame.clear();
+            frame.position(frameStart);
+            frame.limit(frameStart + frameLength);
+            handler.handlePacket(frame);
+            read++;
+        }
+        packets += read;
+        return read;
+    }
+
+    /**
+     * Returns the time (System.nanoTime) at which the pending frame is due.
+     */
+    private long due() {
+        if (!started) {
+            started = true;
+            previousTimestamp = timestamp;
+            previousDue = System.nanoTime();
+        }
+        //timestamps which go backwards (eg. next loop) are replayed at once
+        long gap = Math.max(0, timestamp - previousTimestamp);
+        return previousDue + (long) (gap / speed);
+    }
+
+    private static void sleep(long nanos) {
+        long end = System.nanoTime() + nanos;
+        while (nanos > 0) {
+            LockSupport.parkNanos(nanos);
+            nanos = end - System.nanoTime();
+        }
+    }
+
+    /**
+     * Parses the next frame, starts the next loop at the end of the file.
+     * @return false if all frames were replayed
+     */
+    private boolean nextFrame() throws IOException {
+        if (finished) {
+            return false;
+        }
+        while (true) {
+            boolean found = pcapng ? nextPcapngFrame() : nextPcapFrame();
+            if (found) {
+                passPackets++;
+                return true;
+            }
+            //end of file, a file without frames is not looped
+            if (!loop || passPackets == 0) {
+                finished = true;
+                ConnectionMapper.log.debug("Pcap file IF " + name + ": all frames replayed");
+                return false;
+            }
+            offset = firstRecord();
+            passPackets = 0;
+            loops++;
+        }
+    }
+
+    private boolean nextPcapFrame() throws IOException {
+        if (offset + PCAP_RECORD_HEADER_LENGTH > file.limit()) {
+            return false;
+        }
+        long seconds = file.getInt(offset) & 0xFFFFFFFFL;
+        long fraction = file.getInt(offset + 4) & 0xFFFFFFFFL;
+        int capturedLength = file.getInt(offset + 8);
+        int start = offset + PCAP_RECORD_HEADER_LENGTH;
+        if (capturedLength < 0 || capturedLength > file.limit() - start) {
+            throw new IOException(name + " is truncated or corrupt at offset " + offset);
+        }
+        timestamp = seconds * NANOS_PER_SECOND + fraction * pcapNanosPerUnit;
+        frameStart = start;
+        frameLength = capturedLength;
+        offset = start + capturedLength;
+        return true;
+    }
+
+    private boolean nextPcapngFrame() throws IOException {
+        while (offset + 12 <= file.limit()) {
+            int blockOffset = offset;
+            int type = file.getInt(blockOffset);
+            if (type == SECTION_HEADER_BLOCK) {
+                //a new section may have a different byte order
+                file.order(ByteOrder.BIG_ENDIAN);
+                if (file.getInt(blockOffset + 8) != BYTE_ORDER_MAGIC) {
+                    file.order(ByteOrder.LITTLE_ENDIAN);
+                }
+                interfaceNanosPerUnit.clear();
+            }
+            int length = file.getInt(blockOffset + 4);
+            if (length < 12 || length % 4 != 0 || length > file.limit() - blockOffset) {
+                throw new IOException(name + " is truncated or corrupt at offset " + blockOffset);
+            }
+            offset = blockOffset + length;
+            //block body without trailing length
+            int end = blockOffset + length - 4;
+            switch (type) {
+                case INTERFACE_DESCRIPTION_BLOCK:
+                    checkLinkType(file.getShort(blockOffset + 8) & 0xFFFF);
+                    interfaceNanosPerUnit.add(parseTimestampResolution(blockOffset + 16, end));
+                    break;
+                case ENHANCED_PACKET_BLOCK:
+                    return packetBlock(blockOffset, file.getInt(blockOffset + 8), end);
+                case PACKET_BLOCK:
+                    return packetBlock(blockOffset, file.getShort(blockOffset + 8) & 0xFFFF, end);
+                case SIMPLE_PACKET_BLOCK:
+                    //no timestamp, replayed together with the previous frame
+                    frameStart = blockOffset + 12;
+                    frameLength = Math.min(file.getInt(blockOffset + 8), end - frameStart);
+                    return true;
+                default:
+                    //statistics, name resolution, custom blocks...
+                    break;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parses a (enhanced) packet block, both have the same layout after
+     * the interface id.
+     */
+    private boolean packetBlock(int blockOffset, int interfaceId, int end) throws IOException {
+        if (interfaceId < 0 || interfaceId >= interfaceNanosPerUnit.size()) {
+            throw new IOException(name + ": unknown interface " + interfaceId + " at offset " + blockOffset);
+        }
+        long units = ((file.getInt(blockOffset + 12) & 0xFFFFFFFFL) << 32) | (file.getInt(blockOffset + 16) & 0xFFFFFFFFL);
+        int capturedLength = file.getInt(blockOffset + 20);
+        frameStart = blockOffset + 28;
+        if (capturedLength < 0 || capturedLength > end - frameStart) {
+            throw new IOException(name + " is corrupt at offset " + blockOffset);
+        }
+        frameLength = capturedLength;
+        double nanosPerUnit = interfaceNanosPerUnit.get(interfaceId);
+        if (nanosPerUnit >= 1 && nanosPerUnit == Math.rint(nanosPerUnit)) {
+            timestamp = units * (long) nanosPerUnit;
+        } else {
+            timestamp = (long) (units * nanosPerUnit);
+        }
+        return true;
+    }
+
+    /**
+     * Reads the if_tsresol option of a interface description block.
+     * @return nanoseconds per timestamp unit, default microseconds
+     */
+    private double parseTimestampResolution(int optionOffset, int end) {
+        while (optionOffset + 4 <= end) {
+            int code = file.getShort(optionOffset) & 0xFFFF;
+            int length = file.getShort(optionOffset + 2) & 0xFFFF;
+            if (code == 0) {
+                break;
+            }
+            if (code == IF_TSRESOL && length >= 1) {
+                int resolution = file.get(optionOffset + 4);
+                if ((resolution & 0x80) != 0) {
+                    //negative power of two
+                    return NANOS_PER_SECOND / Math.pow(2, resolution & 0x7F);
+                }
+                return NANOS_PER_SECOND / Math.pow(10, resolution);
+            }
+            optionOffset += 4 + ((length + 3) & ~3);
+        }
+        return 1000;
+    }
+
+    /**
+     * Read data. Data will contain a ethernet frame.
+     * Frames longer than nbytes will be truncated.
+     * @param buffer buffer in which the read data will be stored
+     * @param nbytes buffer size
+     * @return bytes read, 0 if no frame is due or all frames were
+     * replayed, -1 on error
+     */
+    @Override
+    public int read(final byte[] buffer, final int nbytes) {
+        final int[] length = new int[1];
+        try {
+            read(new PacketHandler() {
+                @Override
+                public void handlePacket(ByteBuffer packet) {
+                    length[0] = Math.min(packet.remaining(), nbytes);
+                    packet.get(buffer, 0, length[0]);
+                }
+            }, 1);
+        } catch (IOException e) {
+            ConnectionMapper.log.error("Error while reading from " + name + ": " + e.getMessage());
+            return -1;
+        }
+        return length[0];
+    }
+
+    /**
+     * A file has no file descriptor which becomes readable, it has to be
+     * polled by a event loop.
+     * @return -1
+     */
+    @Override
+    public int getSelectableFd() {
+        return -1;
+    }
+
+    /**
+     * Reads return 0 immediately if no frame is due.
+     */
+    @Override
+    public void setNonBlocking() {
+        nonBlocking = true;
+    }
+
+    /**
+     * Returns the number of replayed frames.
+     * @return replayed frames
+     */
+    public long getPacketCount() {
+        return packets;
+    }
+
+    /**
+     * Returns how often the file was replayed completely (loop mode).
+     * @return number of completed loops
+     */
+    public long getLoopCount() {
+        return loops;
+    }
+
+    /**
+     * Checks if all frames were replayed (never true in loop mode).
+     * @return true if all frames were replayed
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Returns the name of the file.
+     * @return file name
+     */
+    @Override
+    public String getName() {
+        return name;
+    }
+}
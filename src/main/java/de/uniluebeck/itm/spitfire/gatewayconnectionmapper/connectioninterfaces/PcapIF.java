@@ -25,57 +25,279 @@
 package de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces;
 
 import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.ConnectionMapper;
+import java.io.Closeable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
 
+import org.jnetpcap.ByteBufferHandler;
 import org.jnetpcap.Pcap;
+import org.jnetpcap.PcapBpfProgram;
 import org.jnetpcap.PcapHeader;
+import org.jnetpcap.PcapStat;
 import org.jnetpcap.nio.JBuffer;
+import org.jnetpcap.nio.JMemory;
 
 /**
  * This class represents a Pcap interface which has the capability to read data
  * from a systems ethernet interface.
  * The read data will contain a ethernet frame.
+ * Packets can be read one by one or in batches with pcap_dispatch, which
+ * passes them to a handler without copying.
  *
  * @author Stefan Hueske
  */
-public class PcapIF implements IFReader {
+public class PcapIF implements IFBatchReader, FilterableIFReader, SelectableIF, Closeable {
+
+    //Default capture settings used by PcapIF(String)
+    //Maximum captured bytes per frame, 64 KiB captures all frames without truncation
+    public static int SNAPLEN = 64 * 1024;
+    //Size of the kernel capture buffer in bytes, frames are dropped when it is full
+    public static int BUFFER_SIZE = 4 * 1024 * 1024;
+    //Read timeout in ms, 0 means no timeout
+    public static int TIMEOUT = 0;
+    //If true, frames are delivered as soon as they arrive instead of when
+    //the kernel buffer block is full or the timeout expires
+    public static boolean IMMEDIATE = true;
+
+    //jnetpcap has no binding for pcap_set_immediate_mode, immediate
+    //delivery is approximated by the shortest possible read timeout
+    private static final int IMMEDIATE_TIMEOUT = 1;
+
+    //Return values of pcap_next_ex
+    private static final int NEXT_EX_OK = 1;
+    private static final int NEXT_EX_TIMEOUT = 0;
 
     String name;
     Pcap pcap;
 
+    //filter requested by another thread, installed by the reading thread
+    private final AtomicReference<FilterRequest> pendingFilter = new AtomicReference<FilterRequest>();
+
+    //Header and buffer are peered to libpcap's memory by nextEx,
+    //they are reused for every read
+    private final PcapHeader header = new PcapHeader(JMemory.Type.POINTER);
+    private final JBuffer packet = new JBuffer(JMemory.Type.POINTER);
+
+    //Forwards packets of pcap_dispatch to the PacketHandler passed as user data
+    private static final ByteBufferHandler<PacketHandler> DISPATCHER = new ByteBufferHandler<PacketHandler>() {
+        @Override
+        public void nextPacket(PcapHeader header, ByteBuffer buffer, PacketHandler handler) {
+            handler.handlePacket(buffer);
+        }
+    };
+
     /**
-     * Create a new Pcap interface.
+     * Create a new Pcap interface with the default capture settings
+     * (SNAPLEN, BUFFER_SIZE, TIMEOUT, IMMEDIATE).
      * @param ifName ethernet interfaces system name (eg. "eth0")
      * @throws IOException Will be thrown when opening failed
      */
     public PcapIF(String ifName) throws IOException {
+        this(ifName, SNAPLEN, BUFFER_SIZE, TIMEOUT, IMMEDIATE);
+    }
+
+    /**
+     * Create a new Pcap interface.
+     * @param ifName ethernet interfaces system name (eg. "eth0")
+     * @param snaplen maximum captured bytes per frame
+     * @param bufferSize size of the kernel capture buffer in bytes
+     * @param timeout read timeout in ms, 0 means no timeout
+     * @param immediate if true, frames are delivered as soon as they arrive
+     * @throws IOException Will be thrown when opening failed
+     */
+    public PcapIF(String ifName, int snaplen, int bufferSize, int timeout, boolean immediate)
+            throws IOException {
         this.name = ifName;
         StringBuilder errbuf = new StringBuilder(); // for error messages
-        int snaplen = 64 * 1024;           // Capture all packets, no trucation
-        int flags = Pcap.MODE_PROMISCUOUS; // capture all packets
-        int timeout = 0;
-        pcap = Pcap.openLive(ifName, snaplen, flags, timeout, errbuf);
+        pcap = Pcap.create(ifName, errbuf);
         if (pcap == null) {
-            ConnectionMapper.log.error("Error while opening device for capture: "
-                    + errbuf.toString());
+            throw new IOException("Error while opening device for capture: " + errbuf.toString());
+        }
+        if (immediate && (timeout == 0 || timeout > IMMEDIATE_TIMEOUT)) {
+            timeout = IMMEDIATE_TIMEOUT;
+        }
+        //settings can only be changed before activation
+        if (pcap.setSnaplen(snaplen) != Pcap.OK
+                || pcap.setPromisc(Pcap.MODE_PROMISCUOUS) != Pcap.OK // capture all packets
+                || pcap.setTimeout(timeout) != Pcap.OK
+                || pcap.setBufferSize(bufferSize) != Pcap.OK) {
+            String error = pcap.getErr();
+            pcap.close();
+            throw new IOException("Error while configuring " + ifName + ": " + error);
+        }
+        int result = pcap.activate();
+        if (result < 0) {
+            String error = pcap.getErr();
+            pcap.close();
+            throw new IOException("Error while activating " + ifName + " (" + result + "): " + error);
+        }
+        if (result > 0) {
+            //eg. promiscuous mode not supported
+            ConnectionMapper.log.warn("Warning while activating " + ifName + " (" + result + "): "
+                    + pcap.getErr());
+        }
+        ConnectionMapper.log.debug("Pcap IF " + ifName + " activated: snaplen " + snaplen
+                + ", buffer size " + bufferSize + ", timeout " + timeout);
+    }
+
+    /**
+     * Compiles a BPF filter expression and installs it in the kernel. Frames
+     * which do not match the filter will not be copied to user space.
+     * @param expression Filter expression in pcap-filter syntax
+     * @throws IOException Will be thrown when compiling or installing failed
+     */
+    @Override
+    public synchronized void setFilter(String expression) throws IOException {
+        PcapBpfProgram program = new PcapBpfProgram();
+        //netmask is only used for IPv4 broadcast checks
+        if (pcap.compile(program, expression, 1, 0xFFFFFF00) != Pcap.OK) {
+            throw new IOException("Error while compiling filter '" + expression + "' for "
+                    + name + ": " + pcap.getErr());
+        }
+        try {
+            if (pcap.setFilter(program) != Pcap.OK) {
+                throw new IOException("Error while installing filter for " + name + ": " + pcap.getErr());
+            }
+        } finally {
+            //the kernel keeps its own copy of the program
+            Pcap.freecode(program);
+        }
+        ConnectionMapper.log.debug("Pcap IF " + name + ": filter installed: " + expression);
+    }
+
+    /**
+     * Requests a new filter, which is installed before the next read. A
+     * reader waiting in pcap_dispatch is woken by pcap_breakloop, a reader
+     * waiting in pcap_next_ex installs the filter after the read timeout.
+     * libpcap handles must not be used by two threads at once, except for
+     * pcap_breakloop.
+     * @param expression Filter expression in pcap-filter syntax
+     * @param fallback Filter expression which is installed instead if
+     * expression is rejected, null for none
+     */
+    @Override
+    public void requestFilter(String expression, String fallback) {
+        pendingFilter.set(new FilterRequest(expression, fallback));
+        pcap.breakloop();
+    }
+
+    private void installPendingFilter() {
+        FilterRequest request = pendingFilter.getAndSet(null);
+        if (request != null) {
+            request.install(this);
+        }
+    }
+
+    /**
+     * Captures only frames received by the interface, frames sent by the
+     * system itself (eg. packets routed from the TUN interface) are ignored.
+     * @throws IOException Will be thrown when the direction can not be set
+     */
+    @Override
+    public void setInboundOnly() throws IOException {
+        if (pcap.setDirection(Pcap.Direction.IN) != Pcap.OK) {
+            throw new IOException("Error while setting capture direction for " + name + ": " + pcap.getErr());
+        }
+    }
+
+    /**
+     * jnetpcap has no binding for pcap_get_selectable_fd, so a Pcap
+     * interface has to be polled by a event loop.
+     * @return -1
+     */
+    @Override
+    public int getSelectableFd() {
+        return -1;
+    }
+
+    /**
+     * Switches to non-blocking mode, reads return 0 if no frame is buffered.
+     * @throws IOException Will be thrown when the mode can not be set
+     */
+    @Override
+    public void setNonBlocking() throws IOException {
+        StringBuilder errbuf = new StringBuilder();
+        if (pcap.setNonBlock(1, errbuf) != Pcap.OK) {
+            throw new IOException("Error while setting non-blocking mode for " + name + ": " + errbuf);
         }
     }
 
     /**
      * Read data. Data will contain a ethernet frame.
+     * Frames longer than nbytes will be truncated.
      * @param buffer buffer in which the read data will be stored
      * @param nbytes buffer size
-     * @return bytes read
+     * @return bytes read, 0 on timeout, -1 on error
      */
     @Override
     public int read(byte[] buffer, int nbytes) {
-        JBuffer buf = new JBuffer(buffer);
-        PcapHeader header = new PcapHeader();
-        pcap.nextEx(header, buf);
-        for (int i = 0; i < buf.size(); i++) {
-            buffer[i] = buf.getByte(i);
+        if (pendingFilter.get() != null) {
+            installPendingFilter();
+        }
+        int result = pcap.nextEx(header, packet);
+        if (result == NEXT_EX_OK) {
+            int length = Math.min(header.caplen(), nbytes);
+            packet.getByteArray(0, buffer, 0, length);
+            return length;
+        }
+        if (result == NEXT_EX_TIMEOUT) {
+            return 0;
+        }
+        ConnectionMapper.log.error("Error while reading from " + name + ": " + pcap.getErr());
+        return -1;
+    }
+
+    /**
+     * Reads up to maxPackets ethernet frames with a single pcap_dispatch call.
+     * The frames are passed to handler as views on libpcap's buffer.
+     * @param handler handler for the read frames
+     * @param maxPackets maximum number of frames to read
+     * @return number of frames passed to handler, 0 on timeout
+     * @throws IOException Will be thrown when reading failed
+     */
+    @Override
+    public int read(PacketHandler handler, int maxPackets) throws IOException {
+        if (pendingFilter.get() != null) {
+            installPendingFilter();
+        }
+        int result = pcap.dispatch(maxPackets, DISPATCHER, handler);
+        if (result < 0) {
+            //-2: loop was terminated by breakloop
+            if (result == -2) {
+                return 0;
+            }
+            throw new IOException("Error while reading from " + name + ": " + pcap.getErr());
+        }
+        return result;
+    }
+
+    /**
+     * Returns the capture statistics of this interface since it was activated.
+     * Use the drop counts to size BUFFER_SIZE.
+     * @return received frames, frames dropped because the capture buffer was
+     * full and frames dropped by the network interface
+     * @throws IOException Will be thrown when the statistics are not available
+     */
+    public PcapStat getStatistics() throws IOException {
+        PcapStat stats = new PcapStat();
+        if (pcap.stats(stats) != Pcap.OK) {
+            throw new IOException("Error while reading statistics of " + name + ": " + pcap.getErr());
+        }
+        return stats;
+    }
+
+    /**
+     * Logs the capture statistics of this interface.
+     */
+    public void logStatistics() {
+        try {
+            PcapStat stats = getStatistics();
+            ConnectionMapper.log.info("Pcap IF " + name + ": received " + stats.getRecv()
+                    + ", dropped " + stats.getDrop() + ", dropped by interface " + stats.getIfDrop());
+        } catch (IOException e) {
+            ConnectionMapper.log.warn(e.getMessage());
         }
-        return buf.size();
     }
 
     /**
@@ -86,4 +308,12 @@ public class PcapIF implements IFReader {
     public String getName() {
         return name;
     }
+
+    /**
+     * Closes the capture handle. No thread may read at the same time.
+     */
+    @Override
+    public void close() {
+        pcap.close();
+    }
 }
\ No newline at end of file
@@ -26,6 +26,12 @@ package de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces;
 
 import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.ConnectionMapper;
 import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.protocol.IPv6Packet;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import org.apache.log4j.Logger;
 
 /**
@@ -34,19 +40,31 @@ import org.apache.log4j.Logger;
  * If you intend to send data to "localhost" or "::1" you should send it
  * to a address which is bound to the TUN interface instead.
  * All written data (if valid) will be routed by the operating system.
+ * A TUN interface can have several queues (IFF_MULTI_QUEUE), each of them
+ * is read by its own thread (see getQueue()). Packets written to this
+ * interface are spread across the queues by flow hash.
+ * Packets in ByteBuffers are passed to the TUN wrapper if they are stored
+ * at index 0 of a heap buffer, packets in direct buffers, at other offsets
+ * and batches are read and written by libPacketIOCdl.so if it is loaded.
  *
  * @author Stefan Hueske
  */
-public class TUNIF implements IFReadWriter {
+public class TUNIF implements IFBufferReadWriter, SelectableIF, Closeable {
 
     private static Logger log = Logger.getLogger(TUNIF.class.getName());
+
+    //false if libPacketIOCdl.so is not loaded, ByteBuffers are then copied
+    //and passed to the TUN wrapper
+    private static volatile boolean nativeBuffers = true;
     
     //system name of the TUN interface
     String interfaceName;
     //instance of connection mapper is only needed to call native methods
     ConnectionMapper connectionMapper = new ConnectionMapper();
-    //file descriptor for TUN interface
+    //file descriptor for TUN interface (first queue)
     int fileDescriptor;
+    //file descriptors of all queues
+    int[] fileDescriptors;
 
     /**
      * Create a new TUN interface.
@@ -57,11 +75,261 @@ public class TUNIF implements IFReadWriter {
         //allocate TUN interface
         fileDescriptor = connectionMapper.tun_alloc(tunIF);
         log.debug("TUN interface has fileDescriptor: " + fileDescriptor);
-        
+        fileDescriptors = new int[] {fileDescriptor};
+    }
+
+    /**
+     * Create a new multi queue TUN interface. The native library
+     * libPacketIOCdl.so has to be loaded. If the interface already exists,
+     * it has to be created with multi queue support
+     * (eg. "ip tuntap add dev tun0 mode tun multi_queue").
+     * @param tunIF system name of the TUN interface
+     * @param queues number of queues
+     * @throws IOException Will be thrown when a queue can not be opened
+     */
+    public TUNIF(String tunIF, int queues) throws IOException {
+        this.interfaceName = tunIF;
+        fileDescriptors = new int[queues];
+        for (int i = 0; i < queues; i++) {
+            fileDescriptors[i] = tunAllocQueue(tunIF);
+        }
+        fileDescriptor = fileDescriptors[0];
+        log.debug("TUN interface has " + queues + " queues, fileDescriptors: "
+                + Arrays.toString(fileDescriptors));
+    }
+
+    /**
+     * Checks if FfmTUNIF can be used. It is only built with a JDK 22 or newer
+     * (Maven profile "ffm") and only runs on such a JVM.
+     * @return true if FfmTUNIF is available
+     */
+    public static boolean isFfmAvailable() {
+        return getFfmConstructor() != null;
+    }
+
+    /**
+     * Opens a TUN interface with FfmTUNIF, which accesses the interface with
+     * the Foreign Function & Memory API instead of the JNI TUN wrapper.
+     * @param tunIF system name of the TUN interface
+     * @return TUN interface, null if FfmTUNIF is not available
+     * @throws IOException Will be thrown when the interface can not be opened
+     */
+    public static IFReadWriter openFfm(String tunIF) throws IOException {
+        Constructor<?> constructor = getFfmConstructor();
+        if (constructor == null) {
+            return null;
+        }
+        try {
+            return (IFReadWriter) constructor.newInstance(tunIF);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Error while opening " + tunIF + ": " + e.getCause());
+        } catch (InstantiationException e) {
+            throw new IOException("Error while opening " + tunIF + ": " + e);
+        } catch (IllegalAccessException e) {
+            throw new IOException("Error while opening " + tunIF + ": " + e);
+        }
+    }
+
+    private static Constructor<?> getFfmConstructor() {
+        try {
+            return Class.forName(TUNIF.class.getPackage().getName() + ".FfmTUNIF").getConstructor(String.class);
+        } catch (ClassNotFoundException e) {
+            //not built
+            return null;
+        } catch (LinkageError e) {
+            //built for a newer JVM
+            return null;
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the number of queues.
+     * @return number of queues
+     */
+    public int getQueueCount() {
+        return fileDescriptors.length;
+    }
+
+    /**
+     * Returns a single queue of this interface. Packets read from the queue
+     * should be processed by one thread per queue, packets written to the
+     * queue will be processed by the system like packets written to any
+     * other queue.
+     * @param index index of the queue
+     * @return queue
+     */
+    public Queue getQueue(int index) {
+        return new Queue(index);
+    }
+
+    /**
+     * Returns the first queue as selectable file descriptor.
+     * @return file descriptor of the first queue
+     */
+    @Override
+    public int getSelectableFd() {
+        return fileDescriptor;
+    }
+
+    /**
+     * Switches all queues to non-blocking mode. The native library
+     * libPacketIOCdl.so has to be loaded.
+     * @throws IOException Will be thrown when the mode can not be set
+     */
+    @Override
+    public void setNonBlocking() throws IOException {
+        for (int fd : fileDescriptors) {
+            tunSetNonBlocking(fd);
+        }
+    }
+
+    /**
+     * Closes all queues. No thread may read or write at the same time.
+     * The TUN wrapper can not close the interface, without
+     * libPacketIOCdl.so it stays open until the process exits.
+     */
+    @Override
+    public void close() {
+        try {
+            for (int fd : fileDescriptors) {
+                tunClose(fd);
+            }
+        } catch (UnsatisfiedLinkError e) {
+            log.debug("libPacketIOCdl.so not loaded, " + interfaceName + " stays open.");
+        }
+    }
+
+    /**
+     * A single queue of a TUN interface.
+     */
+    public class Queue implements IFBufferReadWriter, SelectableIF {
+        private final int index;
+        private final int queueDescriptor;
+
+        Queue(int index) {
+            this.index = index;
+            this.queueDescriptor = fileDescriptors[index];
+        }
+
+        @Override
+        public int read(byte[] buffer, int nbytes) {
+            return connectionMapper.tun_read(queueDescriptor, buffer, nbytes);
+        }
+
+        @Override
+        public int read(ByteBuffer buffer) {
+            return TUNIF.this.read(queueDescriptor, buffer, this);
+        }
+
+        @Override
+        public int read(ByteBuffer[] buffers, int offset, int length) throws IOException {
+            return readSingle(queueDescriptor, buffers, offset, length, this);
+        }
+
+        @Override
+        public int write(byte[] buffer, int nbytes) {
+            return connectionMapper.tun_write(queueDescriptor, buffer, nbytes);
+        }
+
+        @Override
+        public int write(ByteBuffer packet) {
+            return TUNIF.this.write(queueDescriptor, packet, this);
+        }
+
+        @Override
+        public int write(ByteBuffer[] packets, int offset, int length) {
+            return writeBatch(packets, offset, length, queueDescriptor, this);
+        }
+
+        @Override
+        public int getSelectableFd() {
+            return queueDescriptor;
+        }
+
+        @Override
+        public void setNonBlocking() throws IOException {
+            tunSetNonBlocking(queueDescriptor);
+        }
+
+        @Override
+        public String getName() {
+            return interfaceName + "#" + index;
+        }
     }
 
     /**
-     * Read data. Data will contain a IP packet.
+     * Calculates a hash of the flow (addresses, next header and ports)
+     * of a IPv6Packet packet. All packets of a flow have the same hash.
+     * @param buffer buffer containing the IPv6Packet packet at index 0
+     * @param nbytes length of the packet
+     * @return flow hash
+     */
+    static int flowHash(byte[] buffer, int nbytes) {
+        return flowHash(ByteBuffer.wrap(buffer, 0, nbytes));
+    }
+
+    /**
+     * Calculates a hash of the flow (addresses, next header and ports)
+     * of a IPv6Packet packet stored between position and limit of packet.
+     * All packets of a flow have the same hash.
+     * @param packet buffer containing the IPv6Packet packet
+     * @return flow hash
+     */
+    public static int flowHash(ByteBuffer packet) {
+        int p = packet.position();
+        int nbytes = packet.remaining();
+        if (nbytes < 40) {
+            return 0;
+        }
+        int nextHeader = packet.get(p + 6) & 0xFF;
+        long h = getBigEndianLong(packet, p + 8) ^ (getBigEndianLong(packet, p + 16) * 31)
+                ^ (getBigEndianLong(packet, p + 24) * 961) ^ (getBigEndianLong(packet, p + 32) * 29791) ^ nextHeader;
+        if ((nextHeader == IPv6Packet.TCP || nextHeader == IPv6Packet.UDP) && nbytes >= 44) {
+            //source and destination port
+            h ^= ((packet.get(p + 40) & 0xFFL) << 24) | ((packet.get(p + 41) & 0xFFL) << 16)
+                    | ((packet.get(p + 42) & 0xFFL) << 8) | (packet.get(p + 43) & 0xFFL);
+        }
+        //mix all bits into the low bits
+        h *= 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    //big endian like Tools.getLong, independent of the byte order of buffer
+    private static long getBigEndianLong(ByteBuffer buffer, int index) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (buffer.get(index + i) & 0xFFL);
+        }
+        return value;
+    }
+
+    /**
+     * Returns the queue a packet is written to.
+     * @param buffer buffer containing the IPv6Packet packet at index 0
+     * @param nbytes length of the packet
+     * @return file descriptor of the queue
+     */
+    private int queueFor(byte[] buffer, int nbytes) {
+        if (fileDescriptors.length == 1) {
+            return fileDescriptor;
+        }
+        return fileDescriptors[(flowHash(buffer, nbytes) & 0x7FFFFFFF) % fileDescriptors.length];
+    }
+
+    private int queueFor(ByteBuffer packet) {
+        if (fileDescriptors.length == 1) {
+            return fileDescriptor;
+        }
+        return fileDescriptors[(flowHash(packet) & 0x7FFFFFFF) % fileDescriptors.length];
+    }
+
+    /**
+     * Read data from the first queue. Data will contain a IP packet.
      * @param buffer buffer in which the read data will be stored
      * @param nbytes buffer size
      * @return bytes read
@@ -88,7 +356,168 @@ public class TUNIF implements IFReadWriter {
      */
     @Override
     public int write(byte[] buffer, int nbytes) {
-        return connectionMapper.tun_write(fileDescriptor, buffer, nbytes);
+        return connectionMapper.tun_write(queueFor(buffer, nbytes), buffer, nbytes);
+    }
+
+    /**
+     * Reads a IP packet from the first queue into buffer.
+     * @param buffer buffer in which the packet will be stored
+     * @return bytes read, -1 on error
+     */
+    @Override
+    public int read(ByteBuffer buffer) {
+        return read(fileDescriptor, buffer, this);
+    }
+
+    /**
+     * Reads a single IP packet from the first queue, TUN interfaces are
+     * read packet by packet.
+     * @param buffers buffers in which the packet will be stored
+     * @param offset index of the buffer
+     * @param length maximum number of packets to read
+     * @return number of packets read
+     * @throws IOException Will be thrown when reading failed
+     */
+    @Override
+    public int read(ByteBuffer[] buffers, int offset, int length) throws IOException {
+        return readSingle(fileDescriptor, buffers, offset, length, this);
+    }
+
+    /**
+     * Writes the IP packet between position and limit of packet to the
+     * queue of its flow.
+     * @param packet buffer containing the IP packet
+     * @return bytes actually written, -1 on error
+     */
+    @Override
+    public int write(ByteBuffer packet) {
+        return write(queueFor(packet), packet, this);
+    }
+
+    /**
+     * Writes IP packets with a single call into libPacketIOCdl.so, each
+     * packet is written to the queue of its flow.
+     * @param packets buffers containing the IP packets
+     * @param offset index of the first buffer
+     * @param length number of packets
+     * @return number of packets written
+     */
+    @Override
+    public int write(ByteBuffer[] packets, int offset, int length) {
+        return writeBatch(packets, offset, length, -1, this);
+    }
+
+    private int read(int fd, ByteBuffer buffer, IFReader fallback) {
+        if (buffer.hasArray() && buffer.arrayOffset() + buffer.position() == 0) {
+            return IFAdapter.read(fallback, buffer);
+        }
+        if (nativeBuffers && (buffer.isDirect() || buffer.hasArray())) {
+            try {
+                int result = buffer.isDirect()
+                        ? tunReadDirect(fd, buffer, buffer.position(), buffer.remaining())
+                        : tunReadArray(fd, buffer.array(), buffer.arrayOffset() + buffer.position(),
+                                buffer.remaining());
+                if (result < 0) {
+                    log.error("Error while reading from " + interfaceName + ": errno " + -result);
+                    return -1;
+                }
+                buffer.position(buffer.position() + result);
+                return result;
+            } catch (UnsatisfiedLinkError e) {
+                disableNativeBuffers(e);
+            }
+        }
+        return IFAdapter.read(fallback, buffer);
+    }
+
+    private int readSingle(int fd, ByteBuffer[] buffers, int offset, int length, IFReader fallback)
+            throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        int result = read(fd, buffers[offset], fallback);
+        if (result < 0) {
+            throw new IOException("Error while reading from " + interfaceName);
+        }
+        return result > 0 ? 1 : 0;
+    }
+
+    private int write(int fd, ByteBuffer packet, IFWriter fallback) {
+        if (packet.hasArray() && packet.arrayOffset() + packet.position() == 0) {
+            return IFAdapter.write(fallback, packet);
+        }
+        if (nativeBuffers && (packet.isDirect() || packet.hasArray())) {
+            try {
+                int result = packet.isDirect()
+                        ? tunWrite(fd, packet, packet.position(), packet.remaining())
+                        : tunWrite(fd, packet.array(), packet.arrayOffset() + packet.position(),
+                                packet.remaining());
+                if (result < 0) {
+                    log.error("Error while writing to " + interfaceName + ": errno " + -result);
+                    return -1;
+                }
+                packet.position(packet.limit());
+                return result;
+            } catch (UnsatisfiedLinkError e) {
+                disableNativeBuffers(e);
+            }
+        }
+        return IFAdapter.write(fallback, packet);
+    }
+
+    /**
+     * Writes a batch of packets.
+     * @param fd queue of all packets, -1 to choose the queue by flow hash
+     */
+    private int writeBatch(ByteBuffer[] packets, int offset, int length, int fd, IFBufferWriter fallback) {
+        if (nativeBuffers && length > 0) {
+            int[] fds = new int[length];
+            Object[] objects = new Object[length];
+            int[] offsets = new int[length];
+            int[] lengths = new int[length];
+            for (int i = 0; i < length; i++) {
+                ByteBuffer packet = packets[offset + i];
+                if (packet.isDirect()) {
+                    objects[i] = packet;
+                    offsets[i] = packet.position();
+                } else if (packet.hasArray()) {
+                    objects[i] = packet.array();
+                    offsets[i] = packet.arrayOffset() + packet.position();
+                } else {
+                    //read-only heap buffer
+                    objects = null;
+                    break;
+                }
+                fds[i] = fd == -1 ? queueFor(packet) : fd;
+                lengths[i] = packet.remaining();
+            }
+            if (objects != null) {
+                try {
+                    int written = tunWriteBatch(fds, objects, offsets, lengths, length);
+                    if (written < 0) {
+                        log.error("Error while writing to " + interfaceName + ": errno " + -written);
+                        return 0;
+                    }
+                    for (int i = 0; i < written; i++) {
+                        packets[offset + i].position(packets[offset + i].limit());
+                    }
+                    return written;
+                } catch (UnsatisfiedLinkError e) {
+                    disableNativeBuffers(e);
+                }
+            }
+        }
+        for (int i = 0; i < length; i++) {
+            if (fallback.write(packets[offset + i]) < 0) {
+                return i;
+            }
+        }
+        return length;
+    }
+
+    private static void disableNativeBuffers(UnsatisfiedLinkError e) {
+        nativeBuffers = false;
+        log.debug("libPacketIOCdl.so not loaded, ByteBuffers are copied: " + e.getMessage());
     }
 
     /**
@@ -99,7 +528,23 @@ public class TUNIF implements IFReadWriter {
      */
     public int write(IPv6Packet packet) throws Exception {
         byte[] encodedPacket = packet.encode();
-        return connectionMapper.tun_write(fileDescriptor, encodedPacket,
-                encodedPacket.length);
+        return write(encodedPacket, encodedPacket.length);
     }
+
+    private static native int tunAllocQueue(String dev) throws IOException;
+
+    private static native void tunSetNonBlocking(int fd) throws IOException;
+
+    private static native void tunClose(int fd);
+
+    //read/write functions of libPacketIOCdl.so return bytes transferred,
+    //0 if no packet is available and -errno on errors
+    private static native int tunReadDirect(int fd, ByteBuffer buffer, int position, int length);
+
+    private static native int tunReadArray(int fd, byte[] array, int offset, int length);
+
+    //packet is a direct ByteBuffer or a byte array
+    private static native int tunWrite(int fd, Object packet, int offset, int length);
+
+    private static native int tunWriteBatch(int[] fds, Object[] packets, int[] offsets, int[] lengths, int count);
 }
@@ -0,0 +1,296 @@
+/**
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces;
+
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.ConnectionMapper;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.NamedTask;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This thread is the only writer of a TUN interface. Other threads pass
+ * their packets through a bounded MPSC PacketQueue, the packets are
+ * written in batches with a single write of a ByteBuffer array (one
+ * system call per batch with TUNIF, spread over the queues of a multi
+ * queue TUN interface by flow hash).
+ * If the queue is full, writers wait up to WRITE_TIMEOUT ms (backpressure)
+ * before the packet is dropped, getStalls() counts the writes which had
+ * to wait. The writers are usually capture threads, while they wait the
+ * kernel buffers their frames and drops them once its buffer is full, so
+ * the timeout only has to bridge short stalls of the TUN interface.
+ * If the TUN interface rejects a packet of a batch, only this packet is
+ * dropped and the rest of the batch is written again.
+ */
+public class TUNWriter implements NamedTask, IFBufferWriter, IFBatchWriter {
+
+    //Default settings used by TUNWriter(IFWriter)
+    //Number of packets the queue can buffer, has to be a power of two
+    public static int QUEUE_SIZE = 4096;
+    //Maximum packet size in bytes
+    public static int SLOT_SIZE = 2048;
+    //Maximum number of packets written at once
+    public static int BATCH_SIZE = 64;
+    //Maximum time in ms a writer waits for a free slot, the packet is
+    //dropped afterwards. Capture threads do not read their interface while
+    //they wait, longer timeouts only move the drops into the kernel.
+    public static int WRITE_TIMEOUT = 5;
+
+    //Time the writer thread waits for packets before it checks again (in ns)
+    private static final long IDLE_TIMEOUT = TimeUnit.SECONDS.toNanos(1);
+
+    private final IFBufferWriter tun;
+    private final PacketQueue queue;
+    private final int batchSize;
+    private final long writeTimeout;
+
+    private final AtomicLong stalls = new AtomicLong();
+    private volatile long written = 0;
+    private volatile long batches = 0;
+    private volatile long failed = 0;
+
+    /**
+     * Create a new writer with the default settings (QUEUE_SIZE, SLOT_SIZE,
+     * BATCH_SIZE, WRITE_TIMEOUT), readers are parked while the queue is empty.
+     * @param tun TUN interface
+     */
+    public TUNWriter(IFWriter tun) {
+        this(tun, QUEUE_SIZE, SLOT_SIZE, BATCH_SIZE, WRITE_TIMEOUT, WaitStrategy.BLOCKING);
+    }
+
+    /**
+     * Create a new writer.
+     * @param tun TUN interface
+     * @param queueSize number of packets the queue can buffer, a power of two
+     * @param slotSize maximum packet size in bytes
+     * @param batchSize maximum number of packets written at once
+     * @param writeTimeout maximum time in ms a writer waits for a free slot
+     * @param waitStrategy how the writer thread waits for packets and
+     * writers wait for free slots
+     */
+    public TUNWriter(IFWriter tun, int queueSize, int slotSize, int batchSize, int writeTimeout,
+            WaitStrategy waitStrategy) {
+        this.tun = IFAdapter.bufferWriter(tun);
+        this.queue = new PacketQueue(queueSize, slotSize, true, waitStrategy, true);
+        this.batchSize = batchSize;
+        this.writeTimeout = TimeUnit.MILLISECONDS.toNanos(writeTimeout);
+    }
+
+    @Override
+    public String getName() {
+        return tun.getName();
+    }
+
+    @Override
+    public String getTaskName() {
+        return "TUNWriter-" + tun.getName();
+    }
+
+    @Override
+    public void run() {
+        ByteBuffer[] packets = new ByteBuffer[batchSize];
+        while (!Thread.currentThread().isInterrupted()) {
+            int count = queue.peek(packets, batchSize, IDLE_TIMEOUT);
+            if (count < 0) {
+                break;
+            }
+            if (count == 0) {
+                continue;
+            }
+            writeBatch(packets, count);
+            if (tun instanceof IFBatchWriter) {
+                failed += ((IFBatchWriter) tun).flush();
+            }
+            queue.release(count);
+            batches++;
+        }
+    }
+
+    /**
+     * Writes count packets. A packet which is rejected by the TUN interface
+     * is dropped, the packets after it are written again.
+     */
+    private void writeBatch(ByteBuffer[] packets, int count) {
+        int start = 0;
+        while (start < count) {
+            int result = Math.max(tun.write(packets, start, count - start), 0);
+            if (result == count - start) {
+                written += result;
+                return;
+            }
+            //the positions of written packets are set to their limits
+            int rejected = start;
+            while (rejected < count && !packets[rejected].hasRemaining()) {
+                rejected++;
+            }
+            if (rejected == count) {
+                //all packets were passed on, but some of them failed
+                written += result;
+                failed += count - start - result;
+                return;
+            }
+            written += rejected - start;
+            failed++;
+            start = rejected + 1;
+        }
+    }
+
+    /**
+     * Queues a packet, waits up to WRITE_TIMEOUT ms if the queue is full.
+     * @param packet packet between position and limit, the position is set
+     * to the limit if it was queued
+     * @return bytes queued, -1 if the packet was dropped
+     */
+    @Override
+    public int write(ByteBuffer packet) {
+        int length = packet.remaining();
+        countStall();
+        if (!queue.put(packet, writeTimeout)) {
+            return -1;
+        }
+        packet.position(packet.limit());
+        return length;
+    }
+
+    /**
+     * Queues a packet, waits up to WRITE_TIMEOUT ms if the queue is full.
+     * @param buffer buffer containing the packet at index 0
+     * @param nbytes length of the packet
+     * @return bytes queued, -1 if the packet was dropped
+     */
+    @Override
+    public int write(byte[] buffer, int nbytes) {
+        countStall();
+        if (!queue.put(buffer, 0, nbytes, writeTimeout)) {
+            return -1;
+        }
+        return nbytes;
+    }
+
+    private void countStall() {
+        //a snapshot is precise enough for the statistics
+        if (queue.size() >= queue.getCapacity()) {
+            stalls.incrementAndGet();
+        }
+    }
+
+    /**
+     * Queues up to length packets and wakes up the writer thread.
+     * @param packets packets between position and limit, the positions of
+     * queued packets are set to their limits
+     * @param offset index of the first packet
+     * @param length number of packets
+     * @return number of packets queued, stops at the first dropped packet
+     */
+    @Override
+    public int write(ByteBuffer[] packets, int offset, int length) {
+        int queued = 0;
+        while (queued < length && write(packets[offset + queued]) >= 0) {
+            queued++;
+        }
+        queue.signal();
+        return queued;
+    }
+
+    /**
+     * Wakes up the writer thread, has to be called after each batch of
+     * writes.
+     * @return 0, the packets are written later by the writer thread
+     */
+    @Override
+    public int flush() {
+        queue.signal();
+        return 0;
+    }
+
+    /**
+     * Stops the thread after the queued packets are written, further
+     * writes are dropped.
+     */
+    public void shutdown() {
+        queue.close();
+    }
+
+    /**
+     * Returns the queue of packets which wait to be written, eg. to watch
+     * its depth.
+     * @return queue of this writer
+     */
+    public PacketQueue getQueue() {
+        return queue;
+    }
+
+    /**
+     * Returns the number of packets which wait to be written.
+     * @return queued packets
+     */
+    public int getPending() {
+        return queue.size();
+    }
+
+    /**
+     * Returns the number of writes which had to wait for a free slot.
+     * @return stalled writes
+     */
+    public long getStalls() {
+        return stalls.get();
+    }
+
+    /**
+     * Returns the number of packets which were dropped because the queue
+     * was full or the packet too long.
+     * @return dropped packets
+     */
+    public long getDropped() {
+        return queue.getDropped();
+    }
+
+    /**
+     * Returns the number of packets which the TUN interface rejected.
+     * @return failed packets
+     */
+    public long getFailed() {
+        return failed;
+    }
+
+    /**
+     * Returns the number of packets written to the TUN interface.
+     * @return written packets
+     */
+    public long getWritten() {
+        return written;
+    }
+
+    /**
+     * Logs the written, failed, dropped and stalled writes and the average
+     * batch size.
+     */
+    public void logStatistics() {
+        long batchCount = batches;
+        ConnectionMapper.log.info("TUN writer " + getName() + ": written " + written + ", failed " + failed
+                + ", dropped " + getDropped() + ", stalled " + getStalls() + ", packets per batch "
+                + (batchCount == 0 ? 0 : written / batchCount) + ", pending " + getPending());
+    }
+}
@@ -0,0 +1,200 @@
+/**
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decorator which mirrors all packets read from and written to a interface
+ * into a PcapDumper. Written packets are mirrored after the write
+ * succeeded, packets which could not be written are not dumped.
+ * Mirroring only copies the packet into the dumpers
+ * ring, if the ring is full the packet is not dumped, reading and writing
+ * is never blocked by the dumper.
+ * All capabilities of the wrapped interface (batch reads and writes,
+ * filters, event loop) are passed through, see IFAdapter.
+ */
+public class TapIF extends IFAdapter {
+
+    private final PcapDumper dumper;
+    private final PacketFilter filter;
+    private final int sampling;
+    //counts the accepted packets for sampling, increments by concurrent
+    //writers may be lost which only shifts the sample
+    private int accepted = 0;
+
+    /**
+     * Create a new tap which dumps all packets.
+     * @param delegate wrapped interface
+     * @param dumper dumper for the packets
+     */
+    public TapIF(IF delegate, PcapDumper dumper) {
+        this(delegate, dumper, null, 1);
+    }
+
+    /**
+     * Create a new tap.
+     * @param delegate wrapped interface
+     * @param dumper dumper for the packets
+     * @param filter only packets accepted by filter are dumped, null to
+     * dump all packets
+     * @param sampling only every sampling-th accepted packet is dumped,
+     * 1 to dump all accepted packets
+     */
+    public TapIF(IF delegate, PcapDumper dumper, PacketFilter filter, int sampling) {
+        super(delegate);
+        if (sampling < 1) {
+            throw new IllegalArgumentException("Sampling has to be at least 1: " + sampling);
+        }
+        this.dumper = dumper;
+        this.filter = filter;
+        this.sampling = sampling;
+    }
+
+    /**
+     * Passes a packet to the dumper if it is accepted by the filter and
+     * selected by sampling.
+     * @param packet packet between position and limit
+     */
+    void mirror(ByteBuffer packet) {
+        if (filter != null && !filter.accept(packet)) {
+            return;
+        }
+        if (sampling > 1) {
+            int count = accepted + 1;
+            accepted = count == sampling ? 0 : count;
+            if (count != sampling) {
+                return;
+            }
+        }
+        dumper.offer(packet);
+    }
+
+    void mirror(byte[] buffer, int length) {
+        if (filter != null || sampling > 1) {
+            mirror(ByteBuffer.wrap(buffer, 0, length));
+        } else {
+            dumper.offer(buffer, 0, length);
+        }
+    }
+
+    /**
+     * Mirrors the packet stored in buffer between start and its position.
+     */
+    private void mirror(ByteBuffer buffer, int start) {
+        mirror(buffer, start, buffer.position());
+    }
+
+    /**
+     * Mirrors the packet stored in buffer between start and end.
+     */
+    private void mirror(ByteBuffer buffer, int start, int end) {
+        ByteBuffer packet = buffer.duplicate();
+        packet.limit(end);
+        packet.position(start);
+        mirror(packet);
+    }
+
+    @Override
+    public int read(byte[] buffer, int nbytes) {
+        int length = super.read(buffer, nbytes);
+        if (length > 0) {
+            mirror(buffer, length);
+        }
+        return length;
+    }
+
+    @Override
+    public int read(ByteBuffer buffer) {
+        int start = buffer.position();
+        int length = super.read(buffer);
+        if (length > 0) {
+            mirror(buffer, start);
+        }
+        return length;
+    }
+
+    @Override
+    public int read(ByteBuffer[] buffers, int offset, int length) throws IOException {
+        int[] starts = new int[length];
+        for (int i = 0; i < length; i++) {
+            starts[i] = buffers[offset + i].position();
+        }
+        int packets = super.read(buffers, offset, length);
+        for (int i = 0; i < packets; i++) {
+            mirror(buffers[offset + i], starts[i]);
+        }
+        return packets;
+    }
+
+    @Override
+    public int read(final PacketHandler handler, int maxPackets) throws IOException {
+        return super.read(new PacketHandler() {
+            @Override
+            public void handlePacket(ByteBuffer packet) {
+                mirror(packet);
+                handler.handlePacket(packet);
+            }
+        }, maxPackets);
+    }
+
+    @Override
+    public int write(byte[] buffer, int nbytes) {
+        int written = super.write(buffer, nbytes);
+        if (written > 0) {
+            mirror(buffer, nbytes);
+        }
+        return written;
+    }
+
+    @Override
+    public int write(ByteBuffer packet) {
+        int start = packet.position();
+        int end = packet.limit();
+        int written = super.write(packet);
+        if (written > 0) {
+            mirror(packet, start, end);
+        }
+        return written;
+    }
+
+    @Override
+    public int write(ByteBuffer[] packets, int offset, int length) {
+        int[] starts = new int[length];
+        for (int i = 0; i < length; i++) {
+            starts[i] = packets[offset + i].position();
+        }
+        int written = super.write(packets, offset, length);
+        //the position of each written packet is set to its limit
+        for (int i = 0; i < length; i++) {
+            ByteBuffer packet = packets[offset + i];
+            if (starts[i] < packet.limit() && packet.position() == packet.limit()) {
+                mirror(packet, starts[i], packet.limit());
+            }
+        }
+        return written;
+    }
+}
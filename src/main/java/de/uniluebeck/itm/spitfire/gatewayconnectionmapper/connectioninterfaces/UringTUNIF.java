@@ -0,0 +1,684 @@
+/**
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces;
+
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.ConnectionMapper;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+
+/**
+ * This class reads and writes a TUN interface (or a single queue of it)
+ * with io_uring instead of one read or write system call per packet.
+ * Reads and writes use separate rings with registered buffers, so the
+ * reading thread never blocks writing threads:
+ * READ_SLOTS reads are always in flight. Completed reads are passed to the
+ * handler as views on the registered buffer and queued again, the queued
+ * reads are submitted with the next wait for completions.
+ * Written packets are copied to a free slot and queued, they are submitted
+ * together on flush() or when WRITE_BATCH packets are queued. flush() waits
+ * for the completions with the same system call and returns the number of
+ * packets which could not be written. Writers which never call flush()
+ * are not batched, their packets are sent and completed at once.
+ * Under load a single system call submits many packets, so there is well
+ * below one system call per packet.
+ * The native library libPacketIOCdl.so has to be loaded before use.
+ */
+public class UringTUNIF implements IFBufferReadWriter, IFBatchReader, IFBatchWriter, Closeable {
+
+    //Default settings used by UringTUNIF(IFReadWriter)
+    //Number of reads which are in flight at the same time
+    public static int READ_SLOTS = 64;
+    //Number of written packets which may be in flight, writers wait for
+    //completions if all slots are used
+    public static int WRITE_SLOTS = 256;
+    //Minimum size of a slot in bytes, slots are enlarged to the MTU of the
+    //TUN interface. Read packets which fill a whole slot may be truncated and
+    //are dropped, larger written packets are written without io_uring.
+    public static int SLOT_SIZE = 2048;
+    //Queued packets are submitted when this many packets are queued,
+    //even if flush() was not called
+    public static int WRITE_BATCH = 32;
+
+    private final String name;
+    //used for packets which do not fit in a slot
+    private final IFWriter tun;
+    private final int fd;
+    private final int slotSize;
+
+    //read side, guarded by readLock
+    private final Object readLock = new Object();
+    private final long readRing;
+    //one view on the registered buffer per slot
+    private final ByteBuffer[] readViews;
+    //pairs of slot and result of reaped but unprocessed completions
+    private final int[] readCompletions;
+    private int readCount = 0;
+    private int readCursor = 0;
+    //reads which were queued but not submitted yet
+    private int queuedReads = 0;
+    private boolean armed = false;
+
+    //write side, guarded by writeLock
+    private final Object writeLock = new Object();
+    private final long writeRing;
+    private final ByteBuffer writeBuffer;
+    private final int[] freeWriteSlots;
+    private int freeCount;
+    private final int[] writeCompletions;
+    private int queuedWrites = 0;
+    //sequence number of the packet in each slot, assigns completions to writes
+    private final long[] slotSequences;
+    private long writeSequence = 0;
+    //failed writes which were not returned by flush() yet
+    private int unreportedFailures = 0;
+    //threads which call flush(), their writes are batched
+    private final ThreadLocal<Boolean> batchWriters = new ThreadLocal<Boolean>();
+
+    //statistics
+    private volatile long packetsRead = 0;
+    private volatile long readSubmits = 0;
+    private volatile long packetsWritten = 0;
+    private volatile long writeSubmits = 0;
+    private volatile long failedWrites = 0;
+    private volatile long oversizedReads = 0;
+
+    /**
+     * Create a new io_uring engine with the default settings
+     * (READ_SLOTS, WRITE_SLOTS, SLOT_SIZE or the MTU of the TUN interface).
+     * @param tun TUN interface or queue, has to implement SelectableIF
+     * @throws IOException Will be thrown when the rings can not be set up
+     */
+    public UringTUNIF(IFReadWriter tun) throws IOException {
+        this(tun, READ_SLOTS, WRITE_SLOTS, slotSizeFor(tun.getName()));
+    }
+
+    /**
+     * Create a new io_uring engine.
+     * @param tun TUN interface or queue, has to implement SelectableIF
+     * @param readSlots number of reads in flight
+     * @param writeSlots number of writes in flight
+     * @param slotSize size of a slot in bytes
+     * @throws IOException Will be thrown when the rings can not be set up
+     */
+    public UringTUNIF(IFReadWriter tun, int readSlots, int writeSlots, int slotSize) throws IOException {
+        this(tun, descriptorOf(tun), openRings(readSlots, writeSlots, slotSize), readSlots, writeSlots, slotSize);
+        ConnectionMapper.log.debug("io_uring TUN IF " + name + " opened: " + readSlots + " read and "
+                + writeSlots + " write slots of " + slotSize + " bytes");
+    }
+
+    private UringTUNIF(IFReadWriter tun, int fd, long[] rings, int readSlots, int writeSlots, int slotSize) {
+        this(tun, fd, rings[0], uringBuffer(rings[0]), readSlots, rings[1], uringBuffer(rings[1]),
+                writeSlots, slotSize);
+    }
+
+    /**
+     * Create a engine on existing rings, eg. for tests.
+     * @param tun TUN interface
+     * @param fd file descriptor which is read and written
+     * @param readRing native handle of the read ring
+     * @param readBuffer registered buffer of the read ring
+     * @param readSlots number of read slots
+     * @param writeRing native handle of the write ring
+     * @param writeBuffer registered buffer of the write ring
+     * @param writeSlots number of write slots
+     * @param slotSize size of a slot in bytes
+     */
+    UringTUNIF(IFWriter tun, int fd, long readRing, ByteBuffer readBuffer, int readSlots,
+            long writeRing, ByteBuffer writeBuffer, int writeSlots, int slotSize) {
+        this.name = tun.getName();
+        this.tun = tun;
+        this.fd = fd;
+        this.slotSize = slotSize;
+        this.readRing = readRing;
+        this.readViews = new ByteBuffer[readSlots];
+        for (int i = 0; i < readSlots; i++) {
+            readBuffer.clear();
+            readBuffer.position(i * slotSize);
+            readBuffer.limit((i + 1) * slotSize);
+            readViews[i] = readBuffer.slice();
+        }
+        this.readCompletions = new int[2 * readSlots];
+        this.writeRing = writeRing;
+        this.writeBuffer = writeBuffer;
+        this.freeWriteSlots = new int[writeSlots];
+        for (int i = 0; i < writeSlots; i++) {
+            freeWriteSlots[i] = i;
+        }
+        this.freeCount = writeSlots;
+        this.writeCompletions = new int[2 * writeSlots];
+        this.slotSequences = new long[writeSlots];
+    }
+
+    /**
+     * Returns a slot size larger than the MTU of a interface, at least
+     * SLOT_SIZE. A read which fills a whole slot may be truncated, so
+     * the slot has to be larger than the largest packet.
+     * @param name name of the TUN interface
+     * @return slot size in bytes
+     */
+    static int slotSizeFor(String name) {
+        try {
+            NetworkInterface netIf = NetworkInterface.getByName(name);
+            if (netIf != null && netIf.getMTU() >= SLOT_SIZE) {
+                //multiple of 64 bytes, larger than the MTU
+                return (netIf.getMTU() + 64) & ~63;
+            }
+        } catch (SocketException e) {
+            ConnectionMapper.log.warn("MTU of " + name + " unknown, using slots of " + SLOT_SIZE + " bytes: "
+                    + e.getMessage());
+        }
+        return SLOT_SIZE;
+    }
+
+    private static int descriptorOf(IFReadWriter tun) {
+        if (!(tun instanceof SelectableIF) || ((SelectableIF) tun).getSelectableFd() < 0) {
+            throw new IllegalArgumentException(tun.getName() + " has no file descriptor");
+        }
+        return ((SelectableIF) tun).getSelectableFd();
+    }
+
+    private static long[] openRings(int readSlots, int writeSlots, int slotSize) throws IOException {
+        long readRing = uringOpen(readSlots, slotSize);
+        try {
+            return new long[] {readRing, uringOpen(writeSlots, slotSize)};
+        } catch (IOException e) {
+            uringClose(readRing);
+            throw e;
+        }
+    }
+
+    /**
+     * Waits until at least one packet was read and passes the read packets,
+     * at most maxPackets, to handler as views on the registered buffer.
+     * @param handler handler for the read packets
+     * @param maxPackets maximum number of packets to read
+     * @return number of packets passed to handler
+     * @throws IOException Will be thrown when reading failed
+     */
+    @Override
+    public int read(PacketHandler handler, int maxPackets) throws IOException {
+        synchronized (readLock) {
+            if (!armed) {
+                for (int slot = 0; slot < readViews.length; slot++) {
+                    queueRead(slot);
+                }
+                armed = true;
+            }
+            while (readCursor == readCount) {
+                waitForReads();
+            }
+            int read = 0;
+            while (read < maxPackets && readCursor < readCount) {
+                int slot = readCompletions[2 * readCursor];
+                int result = readCompletions[2 * readCursor + 1];
+                readCursor++;
+                try {
+                    if (result >= slotSize) {
+                        //the packet may have been truncated to the slot
+                        oversizedReads++;
+                        ConnectionMapper.log.error("Dropped packet from " + name + ", larger than "
+                                + (slotSize - 1) + " bytes");
+                    } else if (result > 0) {
+                        ByteBuffer packet = readViews[slot];
+                        packet.clear();
+                        packet.limit(result);
+                        handler.handlePacket(packet);
+                        read++;
+                    } else if (result < 0) {
+                        ConnectionMapper.log.error("Error while reading from " + name + ": errno " + -result);
+                    }
+                } finally {
+                    //the slot is free again
+                    queueRead(slot);
+                }
+            }
+            packetsRead += read;
+            return read;
+        }
+    }
+
+    /**
+     * Read data. Data will contain a IP packet.
+     * Packets longer than nbytes will be truncated.
+     * @param buffer buffer in which the read data will be stored
+     * @param nbytes buffer size
+     * @return bytes read, -1 on error
+     */
+    @Override
+    public int read(final byte[] buffer, final int nbytes) {
+        final int[] length = new int[1];
+        try {
+            read(new PacketHandler() {
+                @Override
+                public void handlePacket(ByteBuffer packet) {
+                    length[0] = Math.min(packet.remaining(), nbytes);
+                    packet.get(buffer, 0, length[0]);
+                }
+            }, 1);
+        } catch (IOException e) {
+            ConnectionMapper.log.error("Error while reading from " + name + ": " + e.getMessage());
+            return -1;
+        }
+        return length[0];
+    }
+
+    /**
+     * Reads a IP packet into buffer.
+     * @param buffer buffer in which the packet will be stored
+     * @return bytes read, -1 on error
+     */
+    @Override
+    public int read(ByteBuffer buffer) {
+        int start = buffer.position();
+        try {
+            read(new ByteBuffer[] {buffer}, 0, 1);
+            return buffer.position() - start;
+        } catch (IOException e) {
+            ConnectionMapper.log.error("Error while reading from " + name + ": " + e.getMessage());
+            return -1;
+        }
+    }
+
+    /**
+     * Reads up to length completed IP packets, one into each buffer.
+     * @param buffers buffers in which the packets will be stored
+     * @param offset index of the first buffer
+     * @param length maximum number of packets to read
+     * @return number of packets read
+     * @throws IOException Will be thrown when reading failed
+     */
+    @Override
+    public int read(ByteBuffer[] buffers, int offset, int length) throws IOException {
+        BufferArrayHandler handler = new BufferArrayHandler(buffers, offset);
+        read(handler, length);
+        return handler.getCount();
+    }
+
+    private void queueRead(int slot) throws IOException {
+        while (!prepare(readRing, false, slot, slotSize)) {
+            submitReads(0);
+        }
+        queuedReads++;
+    }
+
+    /**
+     * Reaps the completed reads. If there are none, the queued reads are
+     * submitted and the thread waits for a completion with the same
+     * system call.
+     */
+    private void waitForReads() throws IOException {
+        readCursor = 0;
+        readCount = reap(readRing, readCompletions);
+        if (readCount == 0) {
+            submitReads(1);
+            readCount = reap(readRing, readCompletions);
+        } else if (queuedReads * 2 >= readViews.length) {
+            //do not let the number of reads in flight run low
+            submitReads(0);
+        }
+    }
+
+    private void submitReads(int minComplete) throws IOException {
+        queuedReads -= submit(readRing, minComplete);
+        readSubmits++;
+    }
+
+    /**
+     * Queues a IP packet. It is sent on the next flush() or when
+     * WRITE_BATCH packets are queued, if this thread calls flush().
+     * Otherwise it is sent at once.
+     * @param buffer byte buffer with data (IP packet)
+     * @param nbytes number of bytes which should be written from buffer
+     * @return nbytes, -1 on error
+     */
+    @Override
+    public int write(byte[] buffer, int nbytes) {
+        if (nbytes > slotSize) {
+            //keep the order of the packets
+            submitQueuedWrites();
+            return tun.write(buffer, nbytes);
+        }
+        synchronized (writeLock) {
+            return finishWrite(queueWrite(buffer, null, nbytes), nbytes);
+        }
+    }
+
+    /**
+     * Queues the IP packet between position and limit of packet. It is
+     * sent on the next flush() or when WRITE_BATCH packets are queued,
+     * if this thread calls flush(). Otherwise it is sent at once.
+     * @param packet buffer containing the IP packet
+     * @return length of the packet, -1 on error
+     */
+    @Override
+    public int write(ByteBuffer packet) {
+        int nbytes = packet.remaining();
+        if (nbytes > slotSize) {
+            submitQueuedWrites();
+            return writeDirectly(packet);
+        }
+        synchronized (writeLock) {
+            int result = finishWrite(queueWrite(null, packet, nbytes), nbytes);
+            if (result >= 0) {
+                packet.position(packet.limit());
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Writes IP packets, each buffer contains one packet. The packets are
+     * submitted together and their completions are awaited with a single
+     * system call. Unlike other writers, packets after a failed packet are
+     * still written.
+     * @param packets buffers containing the IP packets
+     * @param offset index of the first buffer
+     * @param length number of packets
+     * @return number of packets written, length minus the failed packets
+     */
+    @Override
+    public int write(ByteBuffer[] packets, int offset, int length) {
+        synchronized (writeLock) {
+            long firstSequence = writeSequence;
+            int failed = 0;
+            for (int i = 0; i < length; i++) {
+                ByteBuffer packet = packets[offset + i];
+                int nbytes = packet.remaining();
+                if (nbytes > slotSize) {
+                    submitQueuedWrites();
+                    if (writeDirectly(packet) < 0) {
+                        failed++;
+                    }
+                } else if (queueWrite(null, packet, nbytes) < 0) {
+                    failed++;
+                } else {
+                    packet.position(packet.limit());
+                }
+            }
+            try {
+                failed += completeWrites(firstSequence);
+            } catch (IOException e) {
+                ConnectionMapper.log.error("Error while writing to " + name + ": " + e.getMessage());
+                return 0;
+            }
+            return length - failed;
+        }
+    }
+
+    private int writeDirectly(ByteBuffer packet) {
+        if (tun instanceof IFBufferWriter) {
+            return ((IFBufferWriter) tun).write(packet);
+        }
+        return IFAdapter.write(tun, packet);
+    }
+
+    /**
+     * Copies a packet (array or packet) into a free slot and queues it.
+     * @return sequence number of the packet, -1 on error
+     */
+    private long queueWrite(byte[] array, ByteBuffer packet, int nbytes) {
+        synchronized (writeLock) {
+            try {
+                if (freeCount == 0) {
+                    reapWrites(writeSequence);
+                }
+                while (freeCount == 0) {
+                    //all slots are in flight, submit the queued packets and wait
+                    submitWrites(1);
+                    reapWrites(writeSequence);
+                }
+                int slot = freeWriteSlots[--freeCount];
+                writeBuffer.clear();
+                writeBuffer.position(slot * slotSize);
+                if (array != null) {
+                    writeBuffer.put(array, 0, nbytes);
+                } else {
+                    writeBuffer.put(packet.duplicate());
+                }
+                while (!prepare(writeRing, true, slot, nbytes)) {
+                    submitWrites(0);
+                }
+                long sequence = writeSequence++;
+                slotSequences[slot] = sequence;
+                queuedWrites++;
+                packetsWritten++;
+                return sequence;
+            } catch (IOException e) {
+                ConnectionMapper.log.error("Error while writing to " + name + ": " + e.getMessage());
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Sends a queued packet at once if this thread does not call flush(),
+     * otherwise only if WRITE_BATCH packets are queued.
+     * @param sequence sequence number of the queued packet, -1 if it
+     * could not be queued
+     * @param nbytes length of the packet
+     * @return nbytes, -1 on error
+     */
+    private int finishWrite(long sequence, int nbytes) {
+        if (sequence < 0) {
+            return -1;
+        }
+        try {
+            if (batchWriters.get() == null) {
+                //nobody would submit the packet
+                return completeWrites(sequence) == 0 ? nbytes : -1;
+            }
+            if (queuedWrites >= WRITE_BATCH) {
+                submitWrites(0);
+            }
+            return nbytes;
+        } catch (IOException e) {
+            ConnectionMapper.log.error("Error while writing to " + name + ": " + e.getMessage());
+            return -1;
+        }
+    }
+
+    /**
+     * Submits all queued packets and waits for the completions of all
+     * writes with a single system call. The writes of a TUN interface
+     * complete immediately. Marks the calling thread as batch writer, its
+     * following writes are queued until the next flush().
+     * @return number of packets which could not be written since the
+     * last flush()
+     */
+    @Override
+    public int flush() {
+        synchronized (writeLock) {
+            if (batchWriters.get() == null) {
+                batchWriters.set(Boolean.TRUE);
+            }
+            try {
+                completeWrites(writeSequence);
+            } catch (IOException e) {
+                ConnectionMapper.log.error("Error while writing to " + name + ": " + e.getMessage());
+            }
+            int failed = unreportedFailures;
+            unreportedFailures = 0;
+            return failed;
+        }
+    }
+
+    /**
+     * Submits the queued packets, before a packet is written directly.
+     */
+    private void submitQueuedWrites() {
+        synchronized (writeLock) {
+            try {
+                if (queuedWrites > 0) {
+                    submitWrites(0);
+                }
+            } catch (IOException e) {
+                ConnectionMapper.log.error("Error while writing to " + name + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Submits the queued packets and waits until all writes are completed.
+     * @param firstSequence first sequence number the caller reports itself
+     * @return number of failed writes with at least this sequence number
+     */
+    private int completeWrites(long firstSequence) throws IOException {
+        int inFlight = freeWriteSlots.length - freeCount;
+        if (inFlight == 0) {
+            return 0;
+        }
+        submitWrites(inFlight);
+        return reapWrites(firstSequence);
+    }
+
+    private void submitWrites(int minComplete) throws IOException {
+        queuedWrites -= submit(writeRing, minComplete);
+        writeSubmits++;
+    }
+
+    /**
+     * Frees the slots of completed writes. Failed writes of packets
+     * before firstSequence are reported by the next flush().
+     * @param firstSequence first sequence number the caller reports itself
+     * @return number of failed writes with at least this sequence number
+     */
+    private int reapWrites(long firstSequence) {
+        int count = reap(writeRing, writeCompletions);
+        int failed = 0;
+        int unreported = 0;
+        int errno = 0;
+        for (int i = 0; i < count; i++) {
+            int slot = writeCompletions[2 * i];
+            int result = writeCompletions[2 * i + 1];
+            if (result < 0) {
+                errno = -result;
+                if (slotSequences[slot] >= firstSequence) {
+                    failed++;
+                } else {
+                    unreported++;
+                }
+            }
+            freeWriteSlots[freeCount++] = slot;
+        }
+        if (errno != 0) {
+            unreportedFailures += unreported;
+            failedWrites += failed + unreported;
+            ConnectionMapper.log.error((failed + unreported) + " packets could not be written to " + name
+                    + ": errno " + errno);
+        }
+        return failed;
+    }
+
+    /**
+     * Returns the statistics since the engine was opened.
+     * @return packets read, read submissions (system calls), packets
+     * written, write submissions (system calls), failed writes and
+     * dropped oversized reads
+     */
+    public long[] getStatistics() {
+        return new long[] {packetsRead, readSubmits, packetsWritten, writeSubmits, failedWrites, oversizedReads};
+    }
+
+    /**
+     * Logs the statistics since the engine was opened.
+     */
+    public void logStatistics() {
+        long[] stats = getStatistics();
+        ConnectionMapper.log.info("io_uring TUN IF " + name + ": read " + stats[0] + " packets with "
+                + stats[1] + " system calls, wrote " + stats[2] + " packets with " + stats[3] + " system calls, "
+                + stats[4] + " writes failed, " + stats[5] + " oversized packets dropped");
+    }
+
+    /**
+     * Closes both rings, the TUN interface is not closed. No thread may
+     * read or write at the same time.
+     */
+    @Override
+    public void close() {
+        synchronized (readLock) {
+            synchronized (writeLock) {
+                uringClose(readRing);
+                uringClose(writeRing);
+            }
+        }
+    }
+
+    /**
+     * Queues a read or write of a slot.
+     * @param ring native ring handle
+     * @param write true for a write, false for a read
+     * @param slot index of the slot
+     * @param length bytes to read or write
+     * @return false if the submission queue is full
+     */
+    boolean prepare(long ring, boolean write, int slot, int length) {
+        return uringPrepare(ring, write, fd, slot, length);
+    }
+
+    /**
+     * Submits all queued requests and waits for completions.
+     * @param ring native ring handle
+     * @param minComplete number of completions to wait for
+     * @return number of submitted requests
+     * @throws IOException Will be thrown when submitting failed
+     */
+    int submit(long ring, int minComplete) throws IOException {
+        return uringSubmit(ring, minComplete);
+    }
+
+    /**
+     * Reaps the available completions.
+     * @param ring native ring handle
+     * @param completions pairs of slot and result (bytes or -errno)
+     * @return number of completions
+     */
+    int reap(long ring, int[] completions) {
+        return uringReap(ring, completions);
+    }
+
+    /**
+     * Returns the name of the TUN interface.
+     * @return systems TUN interface name
+     */
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    private static native long uringOpen(int slots, int slotSize) throws IOException;
+
+    private static native ByteBuffer uringBuffer(long handle);
+
+    private static native boolean uringPrepare(long handle, boolean write, int fd, int slot, int length);
+
+    private static native int uringSubmit(long handle, int minComplete) throws IOException;
+
+    private static native int uringReap(long handle, int[] completions);
+
+    private static native void uringClose(long handle);
+}
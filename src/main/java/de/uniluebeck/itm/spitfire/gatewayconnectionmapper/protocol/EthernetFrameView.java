@@ -0,0 +1,125 @@
+/**
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.uniluebeck.itm.spitfire.gatewayconnectionmapper.protocol;
+
+/**
+ * This class is a read-only view on a ethernet frame inside a receive buffer.
+ * Unlike {@link EthernetFrame} nothing is copied, type and mac addresses are
+ * read in place. This allows to drop unwanted frames (eg. ARP or frames sent
+ * by the gateway itself) before any decoding takes place.
+ */
+public class EthernetFrameView {
+
+    //Length of the ethernet header (destination mac, source mac, type)
+    public static final int HEADER_LENGTH = 14;
+
+    //Ethernet type of IPv6
+    public static final int IPv6_TYPE = 0x86DD;
+
+    private final byte[] buffer;
+    private final int length;
+
+    /**
+     * Create a new view on the first length bytes of buffer.
+     * @param buffer Buffer containing a ethernet frame at index 0
+     * @param length Number of valid bytes in buffer
+     */
+    public EthernetFrameView(byte[] buffer, int length) {
+        this.buffer = buffer;
+        this.length = length;
+    }
+
+    /**
+     * Returns true if the frame is long enough to contain a ethernet header.
+     * @return True if the header can be read, false else
+     */
+    public boolean isComplete() {
+        return length >= HEADER_LENGTH;
+    }
+
+    /**
+     * Returns the ethernet type.
+     * @return Type as int
+     */
+    public int getType() {
+        return ((buffer[12] & 0xFF) << 8) | (buffer[13] & 0xFF);
+    }
+
+    /**
+     * Returns true if the frame is complete and type is 0x86DD.
+     * @return True if IPv6, false else
+     */
+    public boolean isIPv6() {
+        return isComplete() && getType() == IPv6_TYPE;
+    }
+
+    /**
+     * Returns the destination mac as long (lower 48 bits).
+     * @return Destination mac as long
+     */
+    public long getDestinationMac() {
+        return Tools.getHWaddrAsLong(buffer, 0);
+    }
+
+    /**
+     * Returns the source mac as long (lower 48 bits).
+     * @return Source mac as long
+     */
+    public long getSourceMac() {
+        return Tools.getHWaddrAsLong(buffer, 6);
+    }
+
+    /**
+     * Returns the index of the payload (IP packet) in the underlying buffer.
+     * @return Payload index
+     */
+    public int getPayloadOffset() {
+        return HEADER_LENGTH;
+    }
+
+    /**
+     * Returns the payload length.
+     * @return Payload length, 0 if the frame is incomplete
+     */
+    public int getPayloadLength() {
+        return Math.max(length - HEADER_LENGTH, 0);
+    }
+
+    /**
+     * Returns the underlying buffer.
+     * @return Buffer containing this frame
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    @Override
+    public String toString() {
+        if (!isComplete()) {
+            return "Ethernet: incomplete frame (" + length + " bytes)";
+        }
+        return "Ethernet: " + Long.toHexString(getSourceMac()) + " -> " + Long.toHexString(getDestinationMac());
+    }
+}
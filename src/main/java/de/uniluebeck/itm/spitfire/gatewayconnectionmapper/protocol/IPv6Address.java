@@ -0,0 +1,130 @@
+/**
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.uniluebeck.itm.spitfire.gatewayconnectionmapper.protocol;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+
+/**
+ * This class represents a immutable, pre-parsed IPv6 address.
+ * Besides the InetAddress the address is kept as two longs (high and low
+ * 64 bits), so it can be compared against a packet inside a receive buffer
+ * without decoding or allocating anything.
+ */
+public final class IPv6Address {
+
+    private final InetAddress inetAddress;
+    private final byte[] bytes;
+    private final long high;
+    private final long low;
+
+    /**
+     * Create a new instance from a InetAddress.
+     * @param inetAddress IPv6 address
+     * @throws UnknownHostException Will be thrown when inetAddress is no IPv6 address
+     */
+    public IPv6Address(InetAddress inetAddress) throws UnknownHostException {
+        this.bytes = inetAddress.getAddress();
+        if (bytes.length != 16) {
+            throw new UnknownHostException("No IPv6 address: " + inetAddress.getHostAddress());
+        }
+        //drop scope information, it is not part of a packet
+        this.inetAddress = InetAddress.getByAddress(bytes);
+        this.high = Tools.getLong(bytes, 0);
+        this.low = Tools.getLong(bytes, 8);
+    }
+
+    /**
+     * Parses a IPv6 address.
+     * @param address IPv6 address as String (eg. "fd00::33")
+     * @return Parsed address
+     * @throws UnknownHostException Will be thrown when address is no valid IPv6 address
+     */
+    public static IPv6Address getByName(String address) throws UnknownHostException {
+        return new IPv6Address(InetAddress.getByName(address));
+    }
+
+    /**
+     * Returns the address as InetAddress.
+     * @return Address as InetAddress
+     */
+    public InetAddress getInetAddress() {
+        return inetAddress;
+    }
+
+    /**
+     * Returns the address as byte array.
+     * @return Copy of the 16 address bytes
+     */
+    public byte[] getBytes() {
+        return Tools.copyArray(bytes);
+    }
+
+    /**
+     * Returns the high 64 bits of the address.
+     * @return First 8 address bytes as long
+     */
+    public long getHigh() {
+        return high;
+    }
+
+    /**
+     * Returns the low 64 bits of the address.
+     * @return Last 8 address bytes as long
+     */
+    public long getLow() {
+        return low;
+    }
+
+    /**
+     * Compares this address against 16 bytes inside data.
+     * @param data Data containing a address (eg. a received packet)
+     * @param index Index of the first address byte in data
+     * @return True if equal, false else
+     */
+    public boolean equals(byte[] data, int index) {
+        return Tools.getLong(data, index + 8) == low && Tools.getLong(data, index) == high;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof IPv6Address)) {
+            return false;
+        }
+        IPv6Address other = (IPv6Address) o;
+        return high == other.high && low == other.low;
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(bytes);
+    }
+
+    @Override
+    public String toString() {
+        return inetAddress.getHostAddress();
+    }
+}
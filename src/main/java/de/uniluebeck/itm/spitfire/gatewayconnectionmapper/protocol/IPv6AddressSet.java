@@ -0,0 +1,165 @@
+/**
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.uniluebeck.itm.spitfire.gatewayconnectionmapper.protocol;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Immutable set of IPv6 addresses, optimized for lookups of addresses inside
+ * a receive buffer. The addresses are stored as pairs of longs in one
+ * open-addressed (linear probing) table, so a lookup reads one or two cache
+ * lines and neither allocates nor locks. Modifications create a new set
+ * (copy-on-write), readers therefore only need a volatile reference.
+ * The unspecified address (::) is used to mark free slots and can not be
+ * stored in this set.
+ */
+public final class IPv6AddressSet {
+
+    //Empty set
+    public static final IPv6AddressSet EMPTY = new IPv6AddressSet(new ArrayList<IPv6Address>());
+
+    //high and low part of slot i are stored at 2 * i and 2 * i + 1
+    private final long[] table;
+    private final int mask;
+    private final List<IPv6Address> addresses;
+
+    /**
+     * Create a new set.
+     * @param addresses Addresses contained in this set, duplicates and :: are ignored
+     */
+    public IPv6AddressSet(Collection<IPv6Address> addresses) {
+        //load factor <= 0.5 keeps probe sequences short
+        int capacity = 4;
+        while (capacity < addresses.size() * 2) {
+            capacity <<= 1;
+        }
+        table = new long[capacity * 2];
+        mask = capacity - 1;
+        List<IPv6Address> stored = new ArrayList<IPv6Address>(addresses.size());
+        for (IPv6Address address : addresses) {
+            if (insert(address.getHigh(), address.getLow())) {
+                stored.add(address);
+            }
+        }
+        this.addresses = stored;
+    }
+
+    private boolean insert(long high, long low) {
+        if (high == 0 && low == 0) {
+            return false;
+        }
+        int slot = slot(high, low);
+        while (table[slot * 2] != 0 || table[slot * 2 + 1] != 0) {
+            if (table[slot * 2] == high && table[slot * 2 + 1] == low) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        table[slot * 2] = high;
+        table[slot * 2 + 1] = low;
+        return true;
+    }
+
+    private int slot(long high, long low) {
+        long h = high * 0x9E3779B97F4A7C15L ^ low;
+        h ^= h >>> 32;
+        h *= 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & mask;
+    }
+
+    /**
+     * Tests if a address is contained in this set.
+     * @param high High 64 bits of the address
+     * @param low Low 64 bits of the address
+     * @return True if contained, false else
+     */
+    public boolean contains(long high, long low) {
+        int slot = slot(high, low);
+        while (true) {
+            long h = table[slot * 2];
+            long l = table[slot * 2 + 1];
+            if (h == high && l == low) {
+                return h != 0 || l != 0;
+            }
+            if (h == 0 && l == 0) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Tests if the 16 bytes at data[index] are a address contained in this set.
+     * @param data Data containing a address (eg. a received packet)
+     * @param index Index of the first address byte in data
+     * @return True if contained, false else
+     */
+    public boolean contains(byte[] data, int index) {
+        return contains(Tools.getLong(data, index), Tools.getLong(data, index + 8));
+    }
+
+    /**
+     * Tests if a address is contained in this set.
+     * @param address Address to look for
+     * @return True if contained, false else
+     */
+    public boolean contains(IPv6Address address) {
+        return contains(address.getHigh(), address.getLow());
+    }
+
+    /**
+     * Returns a new set containing all addresses of this set and the passed ones.
+     * @param toAdd Addresses to add
+     * @return New set
+     */
+    public IPv6AddressSet with(Collection<IPv6Address> toAdd) {
+        List<IPv6Address> all = new ArrayList<IPv6Address>(addresses);
+        all.addAll(toAdd);
+        return new IPv6AddressSet(all);
+    }
+
+    /**
+     * Returns all addresses of this set.
+     * @return Copy of the contained addresses
+     */
+    public List<IPv6Address> getAddresses() {
+        return new ArrayList<IPv6Address>(addresses);
+    }
+
+    /**
+     * Returns the number of addresses in this set.
+     * @return Number of addresses
+     */
+    public int size() {
+        return addresses.size();
+    }
+
+    @Override
+    public String toString() {
+        return addresses.toString();
+    }
+}
@@ -36,16 +36,36 @@ import static de.uniluebeck.itm.spitfire.gatewayconnectionmapper.protocol.Tools.
 * a UDP or TCP header.
 * Also checksum recalculation will happen automatically
 * for UDP and TCP payload.
+* Hop-by-hop, routing and destination options extension headers are
+* skipped to find the UDP or TCP header, see {@link #findTransportHeader}.
 *
 * @author Stefan Hueske
 */
 public class IPv6Packet {
 
+    //Protocol numbers used while walking the extension header chain
+    public static final int HOP_BY_HOP_OPTIONS = 0;
+    public static final int TCP = 6;
+    public static final int UDP = 17;
+    public static final int ROUTING = 43;
+    public static final int FRAGMENT = 44;
+    public static final int NO_NEXT_HEADER = 59;
+    public static final int DESTINATION_OPTIONS = 60;
+
+    //Maximum number of extension headers which will be skipped
+    public static final int MAX_EXTENSION_HEADERS = 8;
+
     InetAddress sourceIP;
     InetAddress destIP;
     private byte[] payload;
+    //next header field of the fixed header
     int nextHeader;
 
+    //Upper layer protocol and index of its header in payload
+    //(greater than 0 if extension headers are present)
+    int transportProtocol;
+    int transportOffset;
+
     //Port fields are only valid for UDP and TCP payload, otherwise -1
     int sourcePort;
     int destPort;
@@ -61,15 +81,56 @@ public class IPv6Packet {
      * @throws Exception Will be thrown when decoding fails
      */
     public IPv6Packet(byte[] data) throws Exception {
-        sourceIP = InetAddress.getByAddress(getBytes(data, 22 - 14, 16));
-        destIP = InetAddress.getByAddress(getBytes(data, 38 - 14, 16));
-        payload = getBytes(data, 54 - 14, getUnsignedInt(getBytes(data, 18 - 14, 2)));
-        nextHeader = getUnsignedInt(getBytes(data, 20 - 14, 1));
-        originalHeader = getBytes(data, 0, 40);
+        this(data, 0, data.length);
+    }
+
+    /**
+     * Create a new instance by decoding a passed IPv6Packet byte array.
+     * @param buffer IPv6Packet byte array
+     * @param nBytes Reads only the first n bytes from buffer
+     * @throws Exception Will be thrown when decoding fails
+     */
+    public IPv6Packet(byte[] buffer, int nBytes) throws Exception {
+        this(buffer, 0, nBytes);
+    }
+
+    /**
+     * Create a new instance by decoding a IPv6Packet which is located
+     * somewhere inside buffer (eg. the payload of a received ethernet frame).
+     * Only the decoded fields are copied, buffer itself is left untouched.
+     * @param buffer Buffer containing the IPv6Packet
+     * @param offset Index of the first IPv6Packet byte in buffer
+     * @param length Number of valid bytes starting at offset
+     * @throws Exception Will be thrown when decoding fails
+     */
+    public IPv6Packet(byte[] buffer, int offset, int length) throws Exception {
+        if (length < 40) {
+            throw new Exception("IPv6Packet too short: " + length + " bytes");
+        }
+        int payloadLength = getUnsignedInt(getBytes(buffer, offset + 18 - 14, 2));
+        if (40 + payloadLength > length) {
+            throw new Exception("IPv6Packet truncated: payload length " + payloadLength
+                    + ", but only " + (length - 40) + " bytes available");
+        }
+        sourceIP = InetAddress.getByAddress(getBytes(buffer, offset + 22 - 14, 16));
+        destIP = InetAddress.getByAddress(getBytes(buffer, offset + 38 - 14, 16));
+        payload = getBytes(buffer, offset + 54 - 14, payloadLength);
+        nextHeader = buffer[offset + 20 - 14] & 0xFF;
+        originalHeader = getBytes(buffer, offset, 40);
+
+        int transportHeader = findTransportHeader(buffer, offset, 40 + payloadLength);
+        if (transportHeader == -1) {
+            //malformed extension header chain, treat packet as opaque
+            transportProtocol = NO_NEXT_HEADER;
+            transportOffset = 0;
+        } else {
+            transportProtocol = getProtocol(transportHeader);
+            transportOffset = getOffset(transportHeader) - 40;
+        }
 
         if (isTCP() || isUDP()) {
-            sourcePort = getUnsignedInt(getBytes(data, 54 - 14, 2));
-            destPort = getUnsignedInt(getBytes(data, 56 - 14, 2));
+            sourcePort = getUnsignedInt(getBytes(buffer, offset + 40 + transportOffset, 2));
+            destPort = getUnsignedInt(getBytes(buffer, offset + 42 + transportOffset, 2));
         } else {
             sourcePort = -1;
             destPort = -1;
@@ -77,13 +138,78 @@ public class IPv6Packet {
     }
 
     /**
-     * Create a new instance by decoding a passed IPv6Packet byte array.
-     * @param buffer IPv6Packet byte array
-     * @param nBytes Reads only the first n bytes from buffer
-     * @throws Exception Will be thrown when decoding fails
+     * Returns the length (header and payload) of the IPv6Packet packet at
+     * buffer[offset] as announced by its header. Trailing bytes (eg. ethernet
+     * padding) are not part of the packet.
+     * @param buffer Buffer containing the IPv6Packet
+     * @param offset Index of the first IPv6Packet byte in buffer
+     * @param length Number of valid bytes starting at offset
+     * @return Packet length, -1 if it is no complete IPv6Packet packet
      */
-    public IPv6Packet(byte[] buffer, int nBytes) throws Exception {
-        this(getBytes(buffer, 0, nBytes));
+    public static int getPacketLength(byte[] buffer, int offset, int length) {
+        if (length < 40 || (buffer[offset] & 0xF0) != 0x60) {
+            return -1;
+        }
+        int packetLength = 40 + getUnsignedShort(buffer, offset + 4);
+        return packetLength <= length ? packetLength : -1;
+    }
+
+    /**
+     * Walks the extension header chain of the IPv6 packet at buffer[offset]
+     * to find the upper layer header. Hop-by-hop, routing (without segments
+     * left) and destination options headers are skipped, at most
+     * MAX_EXTENSION_HEADERS of them. The walk stops at every other header,
+     * including fragment and authentication headers, since these packets
+     * can not be rewritten. Nothing is allocated.
+     * @param buffer Buffer containing the IPv6Packet
+     * @param offset Index of the first IPv6Packet byte in buffer
+     * @param length Length of the IPv6Packet (header and payload)
+     * @return Protocol and offset (relative to the start of the packet) of the
+     * upper layer header, decode with {@link #getProtocol} and {@link #getOffset}.
+     * -1 if the chain or the TCP/UDP header is truncated.
+     */
+    public static int findTransportHeader(byte[] buffer, int offset, int length) {
+        if (length < 40) {
+            return -1;
+        }
+        int protocol = buffer[offset + 6] & 0xFF;
+        int index = 40;
+        for (int i = 0; i < MAX_EXTENSION_HEADERS; i++) {
+            if (protocol != HOP_BY_HOP_OPTIONS && protocol != ROUTING && protocol != DESTINATION_OPTIONS) {
+                break;
+            }
+            if (index + 8 > length) {
+                return -1;
+            }
+            if (protocol == ROUTING && buffer[offset + index + 3] != 0) {
+                //segments left: destination is not the final one
+                break;
+            }
+            protocol = buffer[offset + index] & 0xFF;
+            index += ((buffer[offset + index + 1] & 0xFF) + 1) * 8;
+        }
+        if ((protocol == TCP && index + 20 > length) || (protocol == UDP && index + 8 > length)) {
+            return -1;
+        }
+        return (index << 8) | protocol;
+    }
+
+    /**
+     * Returns the protocol from a result of findTransportHeader.
+     * @param transportHeader Result of findTransportHeader (not -1)
+     * @return Upper layer protocol number
+     */
+    public static int getProtocol(int transportHeader) {
+        return transportHeader & 0xFF;
+    }
+
+    /**
+     * Returns the header offset from a result of findTransportHeader.
+     * @param transportHeader Result of findTransportHeader (not -1)
+     * @return Offset of the upper layer header relative to the start of the packet
+     */
+    public static int getOffset(int transportHeader) {
+        return transportHeader >>> 8;
     }
 
     /**
@@ -98,18 +224,18 @@ public class IPv6Packet {
         insertBytes(res, destIP.getAddress(), 38 - 14, 16);
         insertBytes(res, payload, 40, payload.length);
         if(isTCP() || isUDP()) {
-            insertBytes(res, getBytesFromInt(sourcePort), 40, 2);
-            insertBytes(res, getBytesFromInt(destPort), 42, 2);
+            insertBytes(res, getBytesFromInt(sourcePort), 40 + transportOffset, 2);
+            insertBytes(res, getBytesFromInt(destPort), 42 + transportOffset, 2);
         }
         //payload length
         insertBytes(res, getBytesFromInt(payload.length), 18 - 14, 2);
         if (isTCP()) {
             //insert checksum
-            insertBytes(res, calculateTCPchecksum(this), 70 - 14, 2);
+            insertBytes(res, calculateTCPchecksum(this), 70 - 14 + transportOffset, 2);
         }
         if (isUDP()) {
             //insert checksum
-            insertBytes(res, calculateUDPchecksum(this), 60 - 14, 2);
+            insertBytes(res, calculateUDPchecksum(this), 60 - 14 + transportOffset, 2);
         }
 
         return res;
@@ -190,19 +316,35 @@ public class IPv6Packet {
     }
 
     /**
-     * Returns true if the next header field is 6.
+     * Returns true if the upper layer protocol is 6.
      * @return True if payload contains TCP data.
      */
     public boolean isTCP() {
-        return nextHeader == 6;
+        return transportProtocol == TCP;
     }
 
     /**
-     * Returns true if the next header field is 17.
+     * Returns true if the upper layer protocol is 17.
      * @return True if payload contains UDP data.
      */
     public boolean isUDP() {
-        return nextHeader == 17;
+        return transportProtocol == UDP;
+    }
+
+    /**
+     * Returns the upper layer protocol found behind all extension headers.
+     * @return Upper layer protocol as int
+     */
+    public int getTransportProtocol() {
+        return transportProtocol;
+    }
+
+    /**
+     * Returns the index of the upper layer header in payload.
+     * @return 0 if there are no extension headers, their length else
+     */
+    public int getTransportOffset() {
+        return transportOffset;
     }
 
     /**
@@ -231,10 +373,14 @@ public class IPv6Packet {
 
     /**
      * Sets a new next header field.
+     * If there are no extension headers this is also the upper layer protocol.
      * @param nextHeader New next header as int
      */
     public void setNextHeader(int nextHeader) {
         this.nextHeader = nextHeader;
+        if (transportOffset == 0) {
+            transportProtocol = nextHeader;
+        }
     }
 
     /**
@@ -247,17 +393,17 @@ public class IPv6Packet {
         if (!p.isTCP()) {
             throw new Exception("IPv6Packet Packet must contain TCP payload for this operation! " + p);
         }
+        byte[] tcpData = getBytes(p.getPayload(), p.transportOffset, p.getPayload().length - p.transportOffset);
         int padding = 0;
-        if (p.getPayload().length % 2 != 0) {
+        if (tcpData.length % 2 != 0) {
             padding = 1;
         }
-        byte[] pseudoheader = new byte[40 + p.getPayload().length + padding];
-        byte[] tcpData = p.getPayload();
+        byte[] pseudoheader = new byte[40 + tcpData.length + padding];
         insertBytes(pseudoheader, tcpData, 40, tcpData.length);
         insertBytes(pseudoheader, p.getSourceIP().getAddress(), 0, 16);
         insertBytes(pseudoheader, p.getDestIP().getAddress(), 16, 16);
         insertBytes(pseudoheader, getBytesFromInt(tcpData.length), 32, 4);
-        insertBytes(pseudoheader, getBytesFromInt(p.getNextHeader()), 39, 1);
+        insertBytes(pseudoheader, getBytesFromInt(p.getTransportProtocol()), 39, 1);
         insertBytes(pseudoheader, getBytesFromInt(p.getSourcePort()), 40, 2);
         insertBytes(pseudoheader, getBytesFromInt(p.getDestPort()), 42, 2);
 
@@ -313,19 +459,19 @@ public class IPv6Packet {
         if (!p.isUDP()) {
             throw new Exception("IPv6Packet Packet must contain UDP payload for this operation! " + p);
         }
+        byte[] udpData = getBytes(p.getPayload(), p.transportOffset, p.getPayload().length - p.transportOffset);
         int padding = 0;
-        if (p.getPayload().length % 2 != 0) {
+        if (udpData.length % 2 != 0) {
             padding = 1;
         }
-        byte[] pseudoheader = new byte[40 + p.getPayload().length + padding];
-        byte[] udpData = p.getPayload();
+        byte[] pseudoheader = new byte[40 + udpData.length + padding];
         insertBytes(pseudoheader, udpData, 40, udpData.length);
         insertBytes(pseudoheader, p.getSourceIP().getAddress(), 0, 16);
         insertBytes(pseudoheader, p.getDestIP().getAddress(), 16, 16);
         insertBytes(pseudoheader, getBytesFromInt(p.getSourcePort()), 40, 2);
         insertBytes(pseudoheader, getBytesFromInt(p.getDestPort()), 42, 2);
         insertBytes(pseudoheader, getBytesFromInt(udpData.length), 32, 4);
-        insertBytes(pseudoheader, getBytesFromInt(p.getNextHeader()), 39, 1);
+        insertBytes(pseudoheader, getBytesFromInt(p.getTransportProtocol()), 39, 1);
         byte[] checksum = new byte[2];
         insertBytes(pseudoheader, checksum, 46, 2);
         int res = 0;
@@ -129,6 +129,61 @@ public class Tools {
         return res;
     }
 
+    /**
+     * Returns the passed MAC/hardware address as long (lower 48 bits).
+     * @param hwAddr MAC/HWaddr as byte array
+     * @return Converted MAC/HWaddr as long
+     * @throws Exception Will be thrown when the passed hwAddr is invalid
+     */
+    public static long getHWaddrAsLong(byte[] hwAddr) throws Exception {
+        if (hwAddr.length != 6) {
+            throw new Exception("Invalid mac address: " + getBytesAsString(hwAddr));
+        }
+        return getHWaddrAsLong(hwAddr, 0);
+    }
+
+    /**
+     * Reads a MAC/hardware address from data without copying it.
+     * @param data Data containing the address
+     * @param index Index of the first address byte in data
+     * @return MAC/HWaddr as long (lower 48 bits)
+     */
+    public static long getHWaddrAsLong(byte[] data, int index) {
+        return ((long) (data[index] & 0xFF) << 40)
+                | ((long) (data[index + 1] & 0xFF) << 32)
+                | ((long) (data[index + 2] & 0xFF) << 24)
+                | ((long) (data[index + 3] & 0xFF) << 16)
+                | ((long) (data[index + 4] & 0xFF) << 8)
+                | ((long) (data[index + 5] & 0xFF));
+    }
+
+    /**
+     * Reads 8 bytes (big endian) from data without copying them.
+     * @param data Data to read from
+     * @param index Index of the first byte in data
+     * @return Read bytes as long
+     */
+    public static long getLong(byte[] data, int index) {
+        return ((long) (data[index] & 0xFF) << 56)
+                | ((long) (data[index + 1] & 0xFF) << 48)
+                | ((long) (data[index + 2] & 0xFF) << 40)
+                | ((long) (data[index + 3] & 0xFF) << 32)
+                | ((long) (data[index + 4] & 0xFF) << 24)
+                | ((long) (data[index + 5] & 0xFF) << 16)
+                | ((long) (data[index + 6] & 0xFF) << 8)
+                | ((long) (data[index + 7] & 0xFF));
+    }
+
+    /**
+     * Reads a unsigned 16 bit value (big endian) from data without copying it.
+     * @param data Data to read from
+     * @param index Index of the first byte in data
+     * @return Read value as int
+     */
+    public static int getUnsignedShort(byte[] data, int index) {
+        return ((data[index] & 0xFF) << 8) | (data[index + 1] & 0xFF);
+    }
+
     /**
      * Returns the passed MAC/hardware address as String.
      * @param hwAddr hwAddr MAC/HWaddr as byte array
@@ -149,6 +204,22 @@ public class Tools {
         return res.toString();
     }
 
+    /**
+     * Returns the passed MAC/hardware address as String.
+     * @param hwAddr MAC/HWaddr as long (lower 48 bits)
+     * @return Converted MAC/HWaddr as String (eg. "08:00:27:00:26:c3")
+     */
+    public static String getHWaddrAsString(long hwAddr) {
+        StringBuilder res = new StringBuilder();
+        for (int i = 5; i >= 0; i--) {
+            res.append(getByteAsString((byte) (hwAddr >>> (i * 8))));
+            if (i != 0) {
+                res.append(":");
+            }
+        }
+        return res.toString();
+    }
+
     /*public static void main(String[] args) throws Exception {
         String s = "60 00 00 00 00 28 06 40  fc 00 00 00 00 00 00 0000 00 00 00 00 00 00 22  fc 00 00 00 00 00 00 00 00 00 00 00 00 00 00 11  d2 2d 1f 90 cf ec c7 7600 00 00 00 a0 02 16 80  e6 d8 00 00 02 04 05 a0 04 02 08 0a 00 44 c9 22  00 00 00 00 01 03 03 06";
         String s = "080027248bea080027a7fe7686dd6000000000281140fc000000000000000000000000000012fc0000000000000000000000000000118235115c0028bf54450112b5110048666330303a3a313122115c2474657374282bcfd809e5840bef";
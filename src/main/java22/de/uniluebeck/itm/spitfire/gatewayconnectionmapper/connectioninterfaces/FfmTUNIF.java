@@ -0,0 +1,509 @@
+/**
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces;
+
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.ConnectionMapper;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.StructLayout;
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static java.lang.foreign.ValueLayout.ADDRESS;
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+import static java.lang.foreign.ValueLayout.JAVA_SHORT;
+
+/**
+ * This class represents a TUN interface which is accessed with the
+ * Foreign Function & Memory API (Java 22) instead of the JNI TUN wrapper
+ * libTUNWrapperCdl.so. /dev/net/tun is opened and configured with TUNSETIFF
+ * and packets are read and written with read(2)/write(2) directly from
+ * off-heap MemorySegments.
+ * Batch readers get views on the read segment, so packets are not copied
+ * until the handler copies them. Direct ByteBuffers are read and written
+ * without copying, codecs working on off-heap memory can use
+ * read(MemorySegment) and write(MemorySegment, long) directly.
+ * This class is only compiled with a JDK 22 or newer (Maven profile "ffm"),
+ * use TUNIF.openFfm() to load it. The JVM should be started with
+ * --enable-native-access=ALL-UNNAMED.
+ */
+public class FfmTUNIF implements IFBufferReadWriter, IFBatchReader, SelectableIF, Closeable {
+
+    //Size of the read and write segments, larger packets can not be written
+    public static int BUFFER_SIZE = 64 * 1024;
+
+    //linux/if_tun.h
+    private static final int TUNSETIFF = 0x400454ca;
+    private static final short IFF_TUN = 0x0001;
+    private static final short IFF_NO_PI = 0x1000;
+    //struct ifreq: char ifr_name[IFNAMSIZ] followed by short ifr_flags
+    private static final int IFREQ_SIZE = 40;
+    private static final int IFNAMSIZ = 16;
+    //fcntl.h and errno.h
+    private static final int O_RDWR = 02;
+    private static final int O_CLOEXEC = 02000000;
+    private static final int O_NONBLOCK = 04000;
+    private static final int F_GETFL = 3;
+    private static final int F_SETFL = 4;
+    private static final int EINTR = 4;
+    private static final int EAGAIN = 11;
+
+    private static final Linker LINKER = Linker.nativeLinker();
+    private static final StructLayout CALL_STATE = Linker.Option.captureStateLayout();
+    private static final long ERRNO_OFFSET = CALL_STATE.byteOffset(MemoryLayout.PathElement.groupElement("errno"));
+    private static final Linker.Option ERRNO = Linker.Option.captureCallState("errno");
+
+    //int open(const char *path, int flags, ...)
+    private static final MethodHandle OPEN = downcall("open",
+            FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_INT, JAVA_INT), ERRNO, Linker.Option.firstVariadicArg(2));
+    //int ioctl(int fd, unsigned long request, ...)
+    private static final MethodHandle IOCTL = downcall("ioctl",
+            FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_LONG, ADDRESS), ERRNO, Linker.Option.firstVariadicArg(2));
+    //int fcntl(int fd, int cmd, ...)
+    private static final MethodHandle FCNTL = downcall("fcntl",
+            FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_INT, JAVA_INT), ERRNO, Linker.Option.firstVariadicArg(2));
+    //ssize_t read(int fd, void *buf, size_t count)
+    private static final MethodHandle READ = downcall("read",
+            FunctionDescriptor.of(JAVA_LONG, JAVA_INT, ADDRESS, JAVA_LONG), ERRNO);
+    //ssize_t write(int fd, const void *buf, size_t count)
+    private static final MethodHandle WRITE = downcall("write",
+            FunctionDescriptor.of(JAVA_LONG, JAVA_INT, ADDRESS, JAVA_LONG), ERRNO);
+    //int close(int fd)
+    private static final MethodHandle CLOSE = downcall("close", FunctionDescriptor.of(JAVA_INT, JAVA_INT));
+    //char *strerror(int errnum)
+    private static final MethodHandle STRERROR = downcall("strerror", FunctionDescriptor.of(ADDRESS, JAVA_INT));
+
+    private final String name;
+    private final int fd;
+    private final Arena arena = Arena.ofShared();
+
+    //read side, guarded by readLock
+    private final Object readLock = new Object();
+    private final MemorySegment readSegment;
+    private final MemorySegment readState;
+    //view on readSegment which is passed to the handler
+    private final ByteBuffer readView;
+    private volatile boolean nonBlocking = false;
+
+    //write side, guarded by writeLock
+    private final Object writeLock = new Object();
+    private final MemorySegment writeSegment;
+    private final MemorySegment writeState;
+
+    /**
+     * Create a new TUN interface.
+     * @param tunIF system name of the TUN interface
+     * @throws IOException Will be thrown when the interface can not be opened
+     */
+    public FfmTUNIF(String tunIF) throws IOException {
+        this.name = tunIF;
+        this.readSegment = arena.allocate(BUFFER_SIZE);
+        this.readState = arena.allocate(CALL_STATE);
+        this.readView = readSegment.asByteBuffer();
+        this.writeSegment = arena.allocate(BUFFER_SIZE);
+        this.writeState = arena.allocate(CALL_STATE);
+        this.fd = open(tunIF);
+        ConnectionMapper.log.debug("FFM TUN interface " + tunIF + " has fileDescriptor: " + fd);
+    }
+
+    private int open(String tunIF) throws IOException {
+        byte[] nameBytes = tunIF.getBytes(StandardCharsets.US_ASCII);
+        if (nameBytes.length >= IFNAMSIZ) {
+            arena.close();
+            throw new IOException("Interface name too long: " + tunIF);
+        }
+        try (Arena local = Arena.ofConfined()) {
+            MemorySegment state = local.allocate(CALL_STATE);
+            int tunFd = (int) OPEN.invokeExact(state, cString(local, "/dev/net/tun"), O_RDWR | O_CLOEXEC, 0);
+            if (tunFd < 0) {
+                throw error("open /dev/net/tun", state);
+            }
+            MemorySegment ifreq = local.allocate(IFREQ_SIZE);
+            MemorySegment.copy(nameBytes, 0, ifreq, JAVA_BYTE, 0, nameBytes.length);
+            ifreq.set(JAVA_SHORT, IFNAMSIZ, (short) (IFF_TUN | IFF_NO_PI));
+            if ((int) IOCTL.invokeExact(state, tunFd, (long) TUNSETIFF, ifreq) < 0) {
+                IOException e = error("TUNSETIFF", state);
+                int ignored = (int) CLOSE.invokeExact(tunFd);
+                throw e;
+            }
+            return tunFd;
+        } catch (IOException e) {
+            arena.close();
+            throw e;
+        } catch (Throwable t) {
+            arena.close();
+            throw new IOException("Error while opening " + tunIF, t);
+        }
+    }
+
+    /**
+     * Reads a packet into segment.
+     * @param segment segment in which the packet will be stored, packets
+     * longer than the segment will be truncated
+     * @return bytes read, 0 if the interface is in non-blocking mode and
+     * no packet is available
+     * @throws IOException Will be thrown when reading failed
+     */
+    public long read(MemorySegment segment) throws IOException {
+        synchronized (readLock) {
+            return read(segment, readState);
+        }
+    }
+
+    /**
+     * Writes length bytes of segment. The data should be a IP packet.
+     * @param segment segment containing the packet
+     * @param length length of the packet
+     * @return bytes written
+     * @throws IOException Will be thrown when writing failed
+     */
+    public long write(MemorySegment segment, long length) throws IOException {
+        synchronized (writeLock) {
+            return write(segment, length, writeState);
+        }
+    }
+
+    private long read(MemorySegment segment, MemorySegment state) throws IOException {
+        while (true) {
+            long result;
+            try {
+                result = (long) READ.invokeExact(state, fd, segment, segment.byteSize());
+            } catch (Throwable t) {
+                throw new IOException("Error while reading from " + name, t);
+            }
+            if (result >= 0) {
+                return result;
+            }
+            int errno = state.get(JAVA_INT, ERRNO_OFFSET);
+            if (errno == EAGAIN) {
+                return 0;
+            }
+            if (errno != EINTR) {
+                throw error("read " + name, state);
+            }
+        }
+    }
+
+    private long write(MemorySegment segment, long length, MemorySegment state) throws IOException {
+        while (true) {
+            long result;
+            try {
+                result = (long) WRITE.invokeExact(state, fd, segment, length);
+            } catch (Throwable t) {
+                throw new IOException("Error while writing to " + name, t);
+            }
+            if (result >= 0) {
+                return result;
+            }
+            if (state.get(JAVA_INT, ERRNO_OFFSET) != EINTR) {
+                throw error("write " + name, state);
+            }
+        }
+    }
+
+    /**
+     * Reads packets and passes them to handler as views on the off-heap
+     * read segment. In blocking mode a single packet is read, in
+     * non-blocking mode packets are read until none is available.
+     * @param handler handler for the read packets
+     * @param maxPackets maximum number of packets to read
+     * @return number of packets passed to handler
+     * @throws IOException Will be thrown when reading failed
+     */
+    @Override
+    public int read(PacketHandler handler, int maxPackets) throws IOException {
+        synchronized (readLock) {
+            int packets = 0;
+            while (packets < maxPackets) {
+                long length = read(readSegment, readState);
+                if (length <= 0) {
+                    break;
+                }
+                readView.clear();
+                readView.limit((int) length);
+                handler.handlePacket(readView);
+                packets++;
+                if (!nonBlocking) {
+                    break;
+                }
+            }
+            return packets;
+        }
+    }
+
+    /**
+     * Read data. Data will contain a IP packet.
+     * @param buffer buffer in which the read data will be stored
+     * @param nbytes buffer size
+     * @return bytes read, 0 if no packet is available in non-blocking mode,
+     * -1 on error
+     */
+    @Override
+    public int read(byte[] buffer, int nbytes) {
+        synchronized (readLock) {
+            try {
+                int length = (int) Math.min(read(readSegment, readState), nbytes);
+                MemorySegment.copy(readSegment, JAVA_BYTE, 0, buffer, 0, length);
+                return length;
+            } catch (IOException e) {
+                ConnectionMapper.log.error(e.getMessage());
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Writes nbytes from buffer. The data should be a IP packet.
+     * @param buffer byte buffer with data (IP packet)
+     * @param nbytes number of bytes which should be written from buffer
+     * @return bytes actually written, -1 on error
+     */
+    @Override
+    public int write(byte[] buffer, int nbytes) {
+        if (nbytes > BUFFER_SIZE) {
+            ConnectionMapper.log.error("Packet too long for " + name + ": " + nbytes + " bytes");
+            return -1;
+        }
+        synchronized (writeLock) {
+            try {
+                MemorySegment.copy(buffer, 0, writeSegment, JAVA_BYTE, 0, nbytes);
+                return (int) write(writeSegment, nbytes, writeState);
+            } catch (IOException e) {
+                ConnectionMapper.log.error(e.getMessage());
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Reads a IP packet into buffer, direct buffers are read without copying.
+     * @param buffer buffer in which the packet will be stored
+     * @return bytes read, 0 if no packet is available in non-blocking mode,
+     * -1 on error
+     */
+    @Override
+    public int read(ByteBuffer buffer) {
+        synchronized (readLock) {
+            try {
+                return readInto(buffer);
+            } catch (IOException e) {
+                ConnectionMapper.log.error(e.getMessage());
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Reads IP packets, one into each buffer. In blocking mode a single
+     * packet is read, in non-blocking mode packets are read until none is
+     * available.
+     * @param buffers buffers in which the packets will be stored
+     * @param offset index of the first buffer
+     * @param length maximum number of packets to read
+     * @return number of packets read
+     * @throws IOException Will be thrown when reading failed
+     */
+    @Override
+    public int read(ByteBuffer[] buffers, int offset, int length) throws IOException {
+        synchronized (readLock) {
+            int packets = 0;
+            while (packets < length) {
+                if (readInto(buffers[offset + packets]) <= 0) {
+                    break;
+                }
+                packets++;
+                if (!nonBlocking) {
+                    break;
+                }
+            }
+            return packets;
+        }
+    }
+
+    private int readInto(ByteBuffer buffer) throws IOException {
+        int length;
+        if (buffer.isDirect()) {
+            length = (int) read(MemorySegment.ofBuffer(buffer), readState);
+        } else {
+            length = (int) Math.min(read(readSegment, readState), buffer.remaining());
+            MemorySegment.copy(readSegment, 0, MemorySegment.ofBuffer(buffer), 0, length);
+        }
+        buffer.position(buffer.position() + length);
+        return length;
+    }
+
+    /**
+     * Writes the IP packet between position and limit of packet, direct
+     * buffers are written without copying.
+     * @param packet buffer containing the IP packet
+     * @return bytes actually written, -1 on error
+     */
+    @Override
+    public int write(ByteBuffer packet) {
+        synchronized (writeLock) {
+            try {
+                return writeFrom(packet);
+            } catch (IOException e) {
+                ConnectionMapper.log.error(e.getMessage());
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Writes IP packets, each buffer contains one packet.
+     * @param packets buffers containing the IP packets
+     * @param offset index of the first buffer
+     * @param length number of packets
+     * @return number of packets written
+     */
+    @Override
+    public int write(ByteBuffer[] packets, int offset, int length) {
+        synchronized (writeLock) {
+            for (int i = 0; i < length; i++) {
+                try {
+                    writeFrom(packets[offset + i]);
+                } catch (IOException e) {
+                    ConnectionMapper.log.error(e.getMessage());
+                    return i;
+                }
+            }
+            return length;
+        }
+    }
+
+    private int writeFrom(ByteBuffer packet) throws IOException {
+        int length = packet.remaining();
+        int written;
+        if (packet.isDirect()) {
+            written = (int) write(MemorySegment.ofBuffer(packet), length, writeState);
+        } else {
+            if (length > BUFFER_SIZE) {
+                throw new IOException("Packet too long for " + name + ": " + length + " bytes");
+            }
+            MemorySegment.copy(MemorySegment.ofBuffer(packet), 0, writeSegment, 0, length);
+            written = (int) write(writeSegment, length, writeState);
+        }
+        packet.position(packet.limit());
+        return written;
+    }
+
+    /**
+     * Returns the file descriptor of the TUN interface.
+     * @return file descriptor
+     */
+    @Override
+    public int getSelectableFd() {
+        return fd;
+    }
+
+    /**
+     * Switches to non-blocking mode, reads return 0 if no packet is available.
+     * @throws IOException Will be thrown when the mode can not be set
+     */
+    @Override
+    public void setNonBlocking() throws IOException {
+        try (Arena local = Arena.ofConfined()) {
+            MemorySegment state = local.allocate(CALL_STATE);
+            int flags = (int) FCNTL.invokeExact(state, fd, F_GETFL, 0);
+            if (flags < 0 || (int) FCNTL.invokeExact(state, fd, F_SETFL, flags | O_NONBLOCK) < 0) {
+                throw error("fcntl " + name, state);
+            }
+        } catch (IOException e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IOException("Error while setting non-blocking mode for " + name, t);
+        }
+        nonBlocking = true;
+    }
+
+    /**
+     * Closes the TUN interface and frees the segments. No thread may read
+     * or write at the same time.
+     */
+    @Override
+    public void close() {
+        synchronized (readLock) {
+            synchronized (writeLock) {
+                try {
+                    int ignored = (int) CLOSE.invokeExact(fd);
+                } catch (Throwable t) {
+                    ConnectionMapper.log.warn("Error while closing " + name + ": " + t);
+                }
+                arena.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the system name of the TUN interface.
+     * @return systems TUN interface name
+     */
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    private static MethodHandle downcall(String function, FunctionDescriptor descriptor, Linker.Option... options) {
+        MemorySegment address = LINKER.defaultLookup().find(function)
+                .orElseThrow(() -> new UnsatisfiedLinkError("C library function not found: " + function));
+        return LINKER.downcallHandle(address, descriptor, options);
+    }
+
+    private static MemorySegment cString(Arena arena, String string) {
+        byte[] bytes = string.getBytes(StandardCharsets.US_ASCII);
+        //allocated memory is zeroed, so the string is terminated
+        MemorySegment segment = arena.allocate(bytes.length + 1);
+        MemorySegment.copy(bytes, 0, segment, JAVA_BYTE, 0, bytes.length);
+        return segment;
+    }
+
+    /**
+     * Creates a IOException "call: strerror(errno)" from the captured errno.
+     */
+    private static IOException error(String call, MemorySegment state) {
+        int errno = state.get(JAVA_INT, ERRNO_OFFSET);
+        String message = "errno " + errno;
+        try {
+            MemorySegment text = ((MemorySegment) STRERROR.invokeExact(errno)).reinterpret(256);
+            int length = 0;
+            while (length < 256 && text.get(JAVA_BYTE, length) != 0) {
+                length++;
+            }
+            message = new String(text.asSlice(0, length).toArray(JAVA_BYTE), StandardCharsets.US_ASCII);
+        } catch (Throwable t) {
+            //keep the errno
+        }
+        return new IOException(call + ": " + message);
+    }
+}
@@ -0,0 +1,172 @@
+/**
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.uniluebeck.itm.spitfire.gatewayconnectionmapper;
+
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.FilterableIFReader;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.protocol.IPv6Address;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.protocol.IPv6AddressSet;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import junit.framework.TestCase;
+
+import static de.uniluebeck.itm.spitfire.gatewayconnectionmapper.ConnectionTable.*;
+import static de.uniluebeck.itm.spitfire.gatewayconnectionmapper.TestPackets.*;
+
+/**
+ * JUnit tests for the generated capture filters.
+ */
+public class CaptureFilterTest extends TestCase {
+
+    /**
+     * Test of createStaticFilter method, of class CaptureFilter.
+     */
+    public void testCreateStaticFilter() throws Exception {
+        List<IPv6Address> bound = new ArrayList<IPv6Address>();
+        bound.add(IPv6Address.getByName("fc00::11"));
+        String filter = CaptureFilter.createStaticFilter(0x0800270026c3L, new IPv6AddressSet(bound));
+        assertTrue(filter.startsWith("ip6 and not ether src 08:00:27:00:26:c3"));
+        assertTrue(filter.contains("not dst host fc00:0:0:0:0:0:0:11"));
+        assertTrue(filter.contains("ip6 proto 6 or ip6 proto 17"));
+    }
+
+    /**
+     * Test of createUdpFlowFilter and createTcpFlowFilter methods, of class CaptureFilter.
+     */
+    public void testCreateFlowFilter() throws Exception {
+        ConnectionMapper.setConfig(new MapperConfig("fc00::31", 33333, 8080, "fc00::33", "fc00::32"));
+        MapperConfig config = ConnectionMapper.getConfig();
+        List<Request> requests = new ArrayList<Request>();
+        requests.add(new TcpRequest(4711, InetAddress.getByName("fc00::22"), 30000,
+                InetAddress.getByName("fc00::11"), 80));
+
+        String filter = CaptureFilter.createUdpFlowFilter(config, IPv6AddressSet.EMPTY, requests);
+        assertTrue(filter.contains("dst port " + config.getVirtualUDPServerPort()));
+        assertTrue(filter.contains("(ip6 proto 17 and src host fc00:0:0:0:0:0:0:11"
+                + " and dst host fc00:0:0:0:0:0:0:22 and dst port 30000)"));
+
+        requests.get(0).setLocalTcpPort(22222);
+        filter = CaptureFilter.createTcpFlowFilter(config, IPv6AddressSet.EMPTY, requests);
+        assertTrue(filter.contains("dst port " + config.getVirtualTCPServerPort()));
+        assertTrue(filter.contains("and dst port 22222)"));
+    }
+
+    /**
+     * A new connection is added to the dynamic filter as soon as the
+     * mapping thread wakes the filter thread, without waiting for
+     * CHECK_INTERVALL.
+     */
+    public void testDynamicFilterOnRequest() throws Exception {
+        ConnectionMapper.setConfig(new MapperConfig("fc00::31", 33333, 8080, "fc00::33", "fc00::32"));
+        int checkIntervall = DynamicCaptureFilter.CHECK_INTERVALL;
+        //the thread only installs the first filter
+        DynamicCaptureFilter.CHECK_INTERVALL = 60000;
+        FilterRecorder pcap = new FilterRecorder();
+        TaskGroup tasks = new TaskGroup("filter", ExecutionMode.PLATFORM_THREADS, null);
+        boolean terminated;
+        try {
+            tasks.execute(new DynamicCaptureFilter(pcap, true));
+            pcap.await(1);
+
+            //UDP requests are answered on the TCP uplink
+            ConnectionTable.getInstance().mapUdpRequest(modPacket(udpPacket(), "fc00::61", 40061, "fc00::62", 5683));
+            DynamicCaptureFilter.requestMapped(true);
+            Thread.sleep(100);
+            assertEquals(1, pcap.filters.size());
+            DynamicCaptureFilter.requestMapped(false);
+            pcap.await(2);
+            assertTrue(pcap.filters.get(1).contains("(ip6 proto 6 and src host fc00:0:0:0:0:0:0:62"
+                    + " and dst host fc00:0:0:0:0:0:0:61"));
+            //nothing changed
+            DynamicCaptureFilter.requestMapped(false);
+            Thread.sleep(100);
+            assertEquals(2, pcap.filters.size());
+
+            //a rejected filter falls back to the static filter
+            pcap.reject = true;
+            ConnectionTable.getInstance().mapUdpRequest(modPacket(udpPacket(), "fc00::61", 40062, "fc00::62", 5683));
+            DynamicCaptureFilter.requestMapped(false);
+            pcap.await(3);
+            assertTrue(pcap.filters.get(2).startsWith("ip6 and not ether src"));
+        } finally {
+            //the group interrupts the filter thread
+            tasks.shutdown();
+            terminated = tasks.waitForTasks(10000);
+            DynamicCaptureFilter.CHECK_INTERVALL = checkIntervall;
+        }
+        assertTrue(terminated);
+    }
+
+    /**
+     * Records the installed filters, dynamic filters can be rejected.
+     * Requested filters are installed at once, like PacketRingIF does.
+     */
+    private static class FilterRecorder implements FilterableIFReader {
+        final List<String> filters = new CopyOnWriteArrayList<String>();
+        volatile boolean reject = false;
+
+        @Override
+        public void setFilter(String expression) throws IOException {
+            if (reject && !expression.startsWith("ip6 and not ether src")) {
+                throw new IOException("setsockopt: Cannot allocate memory");
+            }
+            filters.add(expression);
+        }
+
+        @Override
+        public void requestFilter(String expression, String fallback) {
+            try {
+                setFilter(expression);
+            } catch (IOException e) {
+                filters.add(fallback);
+            }
+        }
+
+        void await(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (filters.size() < count && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            assertEquals(count, filters.size());
+        }
+
+        @Override
+        public void setInboundOnly() {
+        }
+
+        @Override
+        public int read(byte[] buffer, int nbytes) {
+            return 0;
+        }
+
+        @Override
+        public String getName() {
+            return "eth-test";
+        }
+    }
+}
@@ -26,15 +26,22 @@ package de.uniluebeck.itm.spitfire.gatewayconnectionmapper;
 
 import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.IFReadWriter;
 import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.IFReader;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.LoopbackIF;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.WaitStrategy;
 import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.protocol.EthernetFrame;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.protocol.IPv6Address;
 import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.protocol.IPv6Packet;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 
 import junit.framework.TestCase;
 
+import static de.uniluebeck.itm.spitfire.gatewayconnectionmapper.TestPackets.*;
 import static de.uniluebeck.itm.spitfire.gatewayconnectionmapper.protocol.Tools.*;
 
 /**
@@ -43,26 +50,16 @@ import static de.uniluebeck.itm.spitfire.gatewayconnectionmapper.protocol.Tools.
  */
 public class ConnectionMapperTest extends TestCase {
 
-    byte[] tcpPacket = getByteArrayFromString("0800270026c3080027c6ec3a86dd6000"
-            + "000000280640fc000000000000000000000000000022fc000000000000000000"
-            + "000000000011d99800506ea3d3ef00000000a002168024a70000020405a00402"
-            + "080a001ef81f0000000001030306");
-    byte[] udpPacket = getByteArrayFromString("0800270026c3080027c6ec3a86dd6000"
-            + "000000261140fc000000000000000000000000000022fc000000000000000000"
-            + "00000000001163f416330026c5264401f26458666330303a3a31312216332474"
-            + "65737428298cb1f76b6bdf62");
-    
-    private byte[] modEthPacket(byte[] src, String srcIP, int srcPort,
-            String destIP, int destPort) throws Exception {
-        EthernetFrame f = new EthernetFrame(src);
-        //IPv6Packet p = new IPv6Packet(f.getPayload());
-        IPv6Packet p = new IPv6Packet(f.getPayload());
-        p.setSourceIP(InetAddress.getByName(srcIP));
-        p.setSourcePort(srcPort);
-        p.setDestIP(InetAddress.getByName(destIP));
-        p.setDestPort(destPort);
-        f.setPayload(p.encode());
-        return f.encode();
+    //Tasks started by a test, shut down in tearDown()
+    private TaskGroup group;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (group != null) {
+            group.shutdown();
+            assertTrue(group.awaitTermination(10000));
+            group = null;
+        }
     }
 
     private byte[] getIPpacket(byte[] ethernet) throws Exception {
@@ -75,18 +72,15 @@ public class ConnectionMapperTest extends TestCase {
      */
     public void testMapUDPNetIF() throws Exception {
         //setup values
-        ConnectionMapper.tunBoundIP = "fc00::31";
-        ConnectionMapper.localUdpServerPort = 33333;
-        ConnectionMapper.localTcpServerPort = 8080;
-        ConnectionMapper.tunVirtualUdpIP = "fc00::33";
-        ConnectionMapper.tunVirtualTcpIP = "fc00::32";
+        ConnectionMapper.setConfig(new MapperConfig("fc00::31", 33333, 8080, "fc00::33", "fc00::32"));
+        MapperConfig config = ConnectionMapper.getConfig();
 
         //Simulate udp request
 
         //eth1 receive
         VirtualPcapIF pcap = new VirtualPcapIF();
         VirtualTunIF tun = new VirtualTunIF();
-        byte[] p1eth = modEthPacket(udpPacket, "fc00::11", 4444, "fc00::22", ConnectionMapper.virtualUDPServerPort);
+        byte[] p1eth = modEthPacket(udpPacket(), "fc00::11", 4444, "fc00::22", config.getVirtualUDPServerPort());
         System.out.println("SimulateReceivingPcap2: "
                 + new IPv6Packet(new EthernetFrame(p1eth).getPayload()));
         pcap.addData(p1eth);
@@ -96,20 +90,19 @@ public class ConnectionMapperTest extends TestCase {
         ConnectionMapper.mapUDPNetIF(pcap, buffer, tun, blockedSourceMac);
         
         //check tun written
-        Thread.sleep(20); //wait for data in case of multithreading
         IPv6Packet p = new IPv6Packet(tun.readLastSend());
         System.out.println("VirtualTUNwritten: " + p);
-        assertEquals(p.getSourceIP(), InetAddress.getByName(ConnectionMapper.tunVirtualUdpIP));
+        assertEquals(p.getSourceIP(), config.getTunVirtualUdpIP().getInetAddress());
         int mappedPort = p.getSourcePort();
-        assertEquals(p.getDestIP(), InetAddress.getByName(ConnectionMapper.tunBoundIP));
-        assertEquals(p.getDestPort(), ConnectionMapper.localUdpServerPort);
+        assertEquals(p.getDestIP(), config.getTunBoundIP().getInetAddress());
+        assertEquals(p.getDestPort(), config.getLocalUdpServerPort());
         
         //simulate tcp request on tun
-        p = new IPv6Packet(getIPpacket(tcpPacket));
-        p.setSourceIP(InetAddress.getByName(ConnectionMapper.tunBoundIP));
+        p = new IPv6Packet(getIPpacket(tcpPacket()));
+        p.setSourceIP(config.getTunBoundIP().getInetAddress());
         int localTcpPort = 22222;
         p.setSourcePort(localTcpPort);
-        p.setDestIP(InetAddress.getByName(ConnectionMapper.tunVirtualTcpIP));
+        p.setDestIP(config.getTunVirtualTcpIP().getInetAddress());
         p.setDestPort(mappedPort);
         System.out.println("SimulateReceivingTUN: " + p);
         tun.addReceivedData(p.encode());
@@ -117,16 +110,15 @@ public class ConnectionMapperTest extends TestCase {
         ConnectionMapper.mapTUNNetIF(tun, buffer);
 
         //check tun written
-        Thread.sleep(20); //wait for data in case of multithreading
         p = new IPv6Packet(tun.readLastSend());
         System.out.println("VirtualTUNwritten: " + p);
         assertEquals(p.getSourceIP(), InetAddress.getByName("fc00::11"));
         assertEquals(p.getSourcePort(), localTcpPort);
         assertEquals(p.getDestIP(), InetAddress.getByName("fc00::22"));
-        assertEquals(p.getDestPort(), ConnectionMapper.virtualTCPServerPort);
+        assertEquals(p.getDestPort(), config.getVirtualTCPServerPort());
 
          //simulate eth0 receive tcp answer
-        p1eth = modEthPacket(tcpPacket, "fc00::22", ConnectionMapper.virtualTCPServerPort, "fc00::11", localTcpPort);
+        p1eth = modEthPacket(tcpPacket(), "fc00::22", config.getVirtualTCPServerPort(), "fc00::11", localTcpPort);
         System.out.println("SimulateReceivingPcap1: "
                 + new IPv6Packet(new EthernetFrame(p1eth).getPayload()));
         pcap.addData(p1eth);
@@ -134,19 +126,18 @@ public class ConnectionMapperTest extends TestCase {
         ConnectionMapper.mapTCPNetIF(pcap, buffer, tun, blockedSourceMac);
 
         //check tun written
-        Thread.sleep(20); //wait for data in case of multithreading
         p = new IPv6Packet(tun.readLastSend());
         System.out.println("VirtualTUNwritten: " + p);
-        assertEquals(p.getSourceIP(), InetAddress.getByName(ConnectionMapper.tunVirtualTcpIP));
+        assertEquals(p.getSourceIP(), config.getTunVirtualTcpIP().getInetAddress());
         assertEquals(p.getSourcePort(), mappedPort);
-        assertEquals(p.getDestIP(), InetAddress.getByName(ConnectionMapper.tunBoundIP));
+        assertEquals(p.getDestIP(), config.getTunBoundIP().getInetAddress());
         assertEquals(p.getDestPort(), localTcpPort);
 
         //simulate udp answer on tun
-        p = new IPv6Packet(getIPpacket(udpPacket));
-        p.setSourceIP(InetAddress.getByName(ConnectionMapper.tunBoundIP));
-        p.setSourcePort(ConnectionMapper.localUdpServerPort);
-        p.setDestIP(InetAddress.getByName(ConnectionMapper.tunVirtualUdpIP));
+        p = new IPv6Packet(getIPpacket(udpPacket()));
+        p.setSourceIP(config.getTunBoundIP().getInetAddress());
+        p.setSourcePort(config.getLocalUdpServerPort());
+        p.setDestIP(config.getTunVirtualUdpIP().getInetAddress());
         p.setDestPort(mappedPort);
         System.out.println("SimulateReceivingTUN: " + p);
         tun.addReceivedData(p.encode());
@@ -154,11 +145,10 @@ public class ConnectionMapperTest extends TestCase {
         ConnectionMapper.mapTUNNetIF(tun, buffer);
 
         //check tun written
-        Thread.sleep(20); //wait for data in case of multithreading
         p = new IPv6Packet(tun.readLastSend());
         System.out.println("VirtualTUNwritten: " + p);
         assertEquals(p.getSourceIP(), InetAddress.getByName("fc00::22"));
-        assertEquals(p.getSourcePort(), ConnectionMapper.virtualUDPServerPort);
+        assertEquals(p.getSourcePort(), config.getVirtualUDPServerPort());
         assertEquals(p.getDestIP(), InetAddress.getByName("fc00::11"));
         assertEquals(p.getDestPort(), 4444);
         
@@ -169,18 +159,15 @@ public class ConnectionMapperTest extends TestCase {
      */
     public void testMapTCPNetIF() throws Exception {
         //setup values
-        ConnectionMapper.tunBoundIP = "fc00::31";
-        ConnectionMapper.localUdpServerPort = 33333;
-        ConnectionMapper.localTcpServerPort = 8080;
-        ConnectionMapper.tunVirtualUdpIP = "fc00::33";
-        ConnectionMapper.tunVirtualTcpIP = "fc00::32";
+        ConnectionMapper.setConfig(new MapperConfig("fc00::31", 33333, 8080, "fc00::33", "fc00::32"));
+        MapperConfig config = ConnectionMapper.getConfig();
 
         //Simulate tcp request
 
         //eth0 receive
         VirtualPcapIF pcap = new VirtualPcapIF();
         VirtualTunIF tun = new VirtualTunIF();
-        byte[] p1eth = modEthPacket(tcpPacket, "fc00::22", 30000, "fc00::11", ConnectionMapper.virtualTCPServerPort);
+        byte[] p1eth = modEthPacket(tcpPacket(), "fc00::22", 30000, "fc00::11", config.getVirtualTCPServerPort());
         System.out.println("SimulateReceivingPcap1: "
                 + new IPv6Packet(new EthernetFrame(p1eth).getPayload()));
         pcap.addData(p1eth);
@@ -190,20 +177,19 @@ public class ConnectionMapperTest extends TestCase {
         ConnectionMapper.mapTCPNetIF(pcap, buffer, tun, blockedSourceMac);
 
         //check tun written
-        Thread.sleep(20); //wait for data in case of multithreading
         IPv6Packet p = new IPv6Packet(tun.readLastSend());
         System.out.println("VirtualTUNwritten: " + p);
-        assertEquals(p.getSourceIP(), InetAddress.getByName(ConnectionMapper.tunVirtualTcpIP));
+        assertEquals(p.getSourceIP(), config.getTunVirtualTcpIP().getInetAddress());
         int mappedPort = p.getSourcePort();
-        assertEquals(p.getDestIP(), InetAddress.getByName(ConnectionMapper.tunBoundIP));
-        assertEquals(p.getDestPort(), ConnectionMapper.localTcpServerPort);
+        assertEquals(p.getDestIP(), config.getTunBoundIP().getInetAddress());
+        assertEquals(p.getDestPort(), config.getLocalTcpServerPort());
 
         //simulate udp request on tun
-        p = new IPv6Packet(getIPpacket(udpPacket));
-        p.setSourceIP(InetAddress.getByName(ConnectionMapper.tunBoundIP));
+        p = new IPv6Packet(getIPpacket(udpPacket()));
+        p.setSourceIP(config.getTunBoundIP().getInetAddress());
         int localUdpPort = 43210;
         p.setSourcePort(localUdpPort);
-        p.setDestIP(InetAddress.getByName(ConnectionMapper.tunVirtualUdpIP));
+        p.setDestIP(config.getTunVirtualUdpIP().getInetAddress());
         p.setDestPort(mappedPort);
         System.out.println("SimulateReceivingTUN: " + p);
         tun.addReceivedData(p.encode());
@@ -211,16 +197,15 @@ public class ConnectionMapperTest extends TestCase {
         ConnectionMapper.mapTUNNetIF(tun, buffer);
 
         //check tun written
-        Thread.sleep(20); //wait for data in case of multithreading
         p = new IPv6Packet(tun.readLastSend());
         System.out.println("VirtualTUNwritten: " + p);
         assertEquals(p.getSourceIP(), InetAddress.getByName("fc00::22"));
         assertEquals(p.getSourcePort(), 30000);
         assertEquals(p.getDestIP(), InetAddress.getByName("fc00::11"));
-        assertEquals(p.getDestPort(), ConnectionMapper.virtualUDPServerPort);
+        assertEquals(p.getDestPort(), config.getVirtualUDPServerPort());
 
         //simulate eth1 receive udp answer
-        p1eth = modEthPacket(udpPacket, "fc00::11", ConnectionMapper.virtualUDPServerPort, "fc00::22", 30000);
+        p1eth = modEthPacket(udpPacket(), "fc00::11", config.getVirtualUDPServerPort(), "fc00::22", 30000);
         System.out.println("SimulateReceivingPcap2: "
                 + new IPv6Packet(new EthernetFrame(p1eth).getPayload()));
         pcap.addData(p1eth);
@@ -228,19 +213,18 @@ public class ConnectionMapperTest extends TestCase {
         ConnectionMapper.mapUDPNetIF(pcap, buffer, tun, blockedSourceMac);
 
         //check tun written
-        Thread.sleep(20); //wait for data in case of multithreading
         p = new IPv6Packet(tun.readLastSend());
         System.out.println("VirtualTUNwritten: " + p);
-        assertEquals(p.getSourceIP(), InetAddress.getByName(ConnectionMapper.tunVirtualUdpIP));
+        assertEquals(p.getSourceIP(), config.getTunVirtualUdpIP().getInetAddress());
         assertEquals(p.getSourcePort(), mappedPort);
-        assertEquals(p.getDestIP(), InetAddress.getByName(ConnectionMapper.tunBoundIP));
+        assertEquals(p.getDestIP(), config.getTunBoundIP().getInetAddress());
         assertEquals(p.getDestPort(), localUdpPort);
 
         //simulate tcp answer on tun
-        p = new IPv6Packet(getIPpacket(tcpPacket));
-        p.setSourceIP(InetAddress.getByName(ConnectionMapper.tunBoundIP));
-        p.setSourcePort(ConnectionMapper.localTcpServerPort);
-        p.setDestIP(InetAddress.getByName(ConnectionMapper.tunVirtualTcpIP));
+        p = new IPv6Packet(getIPpacket(tcpPacket()));
+        p.setSourceIP(config.getTunBoundIP().getInetAddress());
+        p.setSourcePort(config.getLocalTcpServerPort());
+        p.setDestIP(config.getTunVirtualTcpIP().getInetAddress());
         p.setDestPort(mappedPort);
         System.out.println("SimulateReceivingTUN: " + p);
         tun.addReceivedData(p.encode());
@@ -248,15 +232,159 @@ public class ConnectionMapperTest extends TestCase {
         ConnectionMapper.mapTUNNetIF(tun, buffer);
 
         //check tun written
-        Thread.sleep(20); //wait for data in case of multithreading
         p = new IPv6Packet(tun.readLastSend());
         System.out.println("VirtualTUNwritten: " + p);
         assertEquals(p.getSourceIP(), InetAddress.getByName("fc00::11"));
-        assertEquals(p.getSourcePort(), ConnectionMapper.virtualTCPServerPort);
+        assertEquals(p.getSourcePort(), config.getVirtualTCPServerPort());
         assertEquals(p.getDestIP(), InetAddress.getByName("fc00::22"));
         assertEquals(p.getDestPort(), 30000);
     }
 
+    /**
+     * Test of unmapped traffic, which has to be forwarded unmodified.
+     */
+    public void testPassThrough() throws Exception {
+        //setup values
+        ConnectionMapper.setConfig(new MapperConfig("fc00::31", 33333, 8080, "fc00::33", "fc00::32"));
+
+        VirtualPcapIF pcap = new VirtualPcapIF();
+        VirtualTunIF tun = new VirtualTunIF();
+        byte[] buffer = new byte[1900];
+        byte[] blockedSourceMac = getHWaddrAsBytes("01:23:45:67:89:00");
+
+        //UDP packet neither to the virtual server port nor part of a connection
+        byte[] p1eth = modEthPacket(udpPacket(), "fc00::11", 4444, "fc00::22", 4445);
+        pcap.addData(p1eth);
+        ConnectionMapper.mapUDPNetIF(pcap, buffer, tun, blockedSourceMac);
+        assertTrue(Arrays.equals(getIPpacket(p1eth), tun.readLastSend()));
+
+        //TCP packet on the UDP side
+        p1eth = modEthPacket(tcpPacket(), "fc00::22", 30000, "fc00::11", 80);
+        pcap.addData(p1eth);
+        ConnectionMapper.mapUDPNetIF(pcap, buffer, tun, blockedSourceMac);
+        assertTrue(Arrays.equals(getIPpacket(p1eth), tun.readLastSend()));
+
+        //TCP packet neither to the virtual server port nor part of a connection
+        p1eth = modEthPacket(tcpPacket(), "fc00::22", 30000, "fc00::11", 8081);
+        pcap.addData(p1eth);
+        ConnectionMapper.mapTCPNetIF(pcap, buffer, tun, blockedSourceMac);
+        assertTrue(Arrays.equals(getIPpacket(p1eth), tun.readLastSend()));
+
+        //frames from the blocked source mac are dropped
+        p1eth = copyArray(p1eth);
+        insertBytes(p1eth, blockedSourceMac, 6, 6);
+        pcap.addData(p1eth);
+        ConnectionMapper.mapTCPNetIF(pcap, buffer, tun, blockedSourceMac);
+        assertNull(tun.readLastSend());
+    }
+
+    /**
+     * Test of frames passed to NetIfFrameHandler, as done for batched reads.
+     */
+    public void testFrameHandler() throws Exception {
+        //setup values
+        ConnectionMapper.setConfig(new MapperConfig("fc00::31", 33333, 8080, "fc00::33", "fc00::32"));
+
+        VirtualTunIF tun = new VirtualTunIF();
+        NetIfFrameHandler handler = new NetIfFrameHandler(tun, true, new byte[1900]);
+        long blockedSourceMac = getHWaddrAsLong(getHWaddrAsBytes("01:23:45:67:89:00"));
+        handler.setConfig(ConnectionMapper.getConfig().withNetIfMacs(blockedSourceMac, blockedSourceMac));
+
+        //frame located in the middle of a larger buffer
+        byte[] p1eth = modEthPacket(udpPacket(), "fc00::11", 4444, "fc00::22", 4445);
+        ByteBuffer packet = ByteBuffer.allocate(p1eth.length + 20);
+        packet.position(10);
+        packet.put(p1eth);
+        packet.flip();
+        packet.position(10);
+        handler.handlePacket(packet);
+        assertTrue(Arrays.equals(getIPpacket(p1eth), tun.readLastSend()));
+
+        //frames from the blocked source mac are dropped
+        p1eth = copyArray(p1eth);
+        insertBytes(p1eth, getHWaddrAsBytes("01:23:45:67:89:00"), 6, 6);
+        handler.handlePacket(ByteBuffer.wrap(p1eth));
+        assertNull(tun.readLastSend());
+
+        //non IPv6 frames are dropped
+        p1eth = copyArray(udpPacket());
+        p1eth[12] = 0x08;
+        p1eth[13] = 0x00;
+        handler.handlePacket(ByteBuffer.wrap(p1eth));
+        assertNull(tun.readLastSend());
+    }
+
+    /**
+     * Test of the mapper threads connected to in-memory loopback interfaces.
+     */
+    public void testThreadsOverLoopback() throws Exception {
+        //setup values
+        ConnectionMapper.setConfig(new MapperConfig("fc00::31", 33333, 8080, "fc00::33", "fc00::32"));
+        MapperConfig config = ConnectionMapper.getConfig();
+
+        LoopbackIF[] tcpPair = LoopbackIF.createPair("eth0", "eth0-peer");
+        LoopbackIF[] udpPair = LoopbackIF.createPair("eth1", "eth1-peer");
+        LoopbackIF[] tunPair = LoopbackIF.createPair("tun0", "tun0-peer", WaitStrategy.BLOCKING, true);
+        group = new TaskGroup("test", ExecutionMode.PLATFORM_THREADS, null);
+        group.execute(new TcpNetIfPcapThread(tunPair[0], tcpPair[0]), "tcp");
+        group.execute(new UdpNetIfPcapThread(tunPair[0], udpPair[0]), "udp");
+        group.execute(new TunNetIfThread(tunPair[0]), "tun");
+        LoopbackIF tunPeer = tunPair[1];
+        ByteBuffer buffer = ByteBuffer.allocate(1900);
+
+        //udp request on eth1
+        byte[] p1eth = modEthPacket(udpPacket(), "fc00::11", 4444, "fc00::22", config.getVirtualUDPServerPort());
+        udpPair[1].write(p1eth, p1eth.length);
+        buffer.clear();
+        assertTrue(tunPeer.read(buffer) > 0);
+        IPv6Packet p = new IPv6Packet(getBytes(buffer.array(), 0, buffer.position()));
+        assertEquals(p.getSourceIP(), config.getTunVirtualUdpIP().getInetAddress());
+        int mappedPort = p.getSourcePort();
+        assertEquals(p.getDestPort(), config.getLocalUdpServerPort());
+
+        //tcp request on tun
+        p = new IPv6Packet(getIPpacket(tcpPacket()));
+        p.setSourceIP(config.getTunBoundIP().getInetAddress());
+        p.setSourcePort(22222);
+        p.setDestIP(config.getTunVirtualTcpIP().getInetAddress());
+        p.setDestPort(mappedPort);
+        tunPeer.write(ByteBuffer.wrap(p.encode()));
+        tunPeer.flush();
+        buffer.clear();
+        assertTrue(tunPeer.read(buffer) > 0);
+        p = new IPv6Packet(getBytes(buffer.array(), 0, buffer.position()));
+        assertEquals(p.getSourceIP(), InetAddress.getByName("fc00::11"));
+        assertEquals(p.getDestIP(), InetAddress.getByName("fc00::22"));
+        assertEquals(p.getDestPort(), config.getVirtualTCPServerPort());
+
+        //unmapped traffic from both network interfaces is forwarded without losses
+        final byte[] udpEth = modEthPacket(udpPacket(), "fc00::11", 4444, "fc00::22", 4445);
+        final byte[] tcpEth = modEthPacket(tcpPacket(), "fc00::22", 30000, "fc00::11", 8081);
+        final LoopbackIF udpPeer = udpPair[1];
+        final LoopbackIF tcpPeer = tcpPair[1];
+        final int count = 20000;
+        //more packets than the queues can buffer, so they are written while
+        //the TUN side is read
+        group.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < count; i++) {
+                    udpPeer.write(udpEth, udpEth.length);
+                    tcpPeer.write(tcpEth, tcpEth.length);
+                }
+            }
+        }, "writer");
+        byte[] udpIp = getIPpacket(udpEth);
+        byte[] tcpIp = getIPpacket(tcpEth);
+        for (int i = 0; i < 2 * count; i++) {
+            buffer.clear();
+            assertTrue(tunPeer.read(buffer) > 0);
+            byte[] read = getBytes(buffer.array(), 0, buffer.position());
+            assertTrue(Arrays.equals(udpIp, read) || Arrays.equals(tcpIp, read));
+        }
+        assertEquals(0, tunPair[0].getOutputQueue().getDropped());
+    }
+
     private static class VirtualPcapIF implements IFReader {
         String name;
         List<byte[]> data = new LinkedList<byte[]>();
@@ -345,4 +473,63 @@ public class ConnectionMapperTest extends TestCase {
         }
 
     }
+
+    /**
+     * Test that replacing the local bound IPs publishes the complete new set
+     * and keeps the old set on errors.
+     */
+    public void testSetLocalBoundIPs() throws Exception {
+        List<InetAddress> old = new LinkedList<InetAddress>();
+        for (IPv6Address address : ConnectionMapper.getLocalBoundIPs().getAddresses()) {
+            old.add(address.getInetAddress());
+        }
+        try {
+            ConnectionMapper.setLocalBoundIPs(Arrays.asList(InetAddress.getByName("fc00::51"),
+                    InetAddress.getByName("fc00::52")));
+            assertEquals(2, ConnectionMapper.getLocalBoundIPs().size());
+            try {
+                ConnectionMapper.setLocalBoundIPs(Arrays.asList(InetAddress.getByName("fc00::53"),
+                        InetAddress.getByName("10.0.0.1")));
+                fail("IPv4 address");
+            } catch (UnknownHostException ex) {
+                //expected
+            }
+            assertEquals(2, ConnectionMapper.getLocalBoundIPs().size());
+            assertTrue(ConnectionMapper.getLocalBoundIPs().contains(IPv6Address.getByName("fc00::52")));
+            assertFalse(ConnectionMapper.getLocalBoundIPs().contains(IPv6Address.getByName("fc00::53")));
+        } finally {
+            ConnectionMapper.setLocalBoundIPs(old);
+        }
+    }
+
+    /**
+     * Test of getWakeupAddress method, of class ConnectionMapper.
+     */
+    public void testGetWakeupAddress() throws Exception {
+        //fc00::32 and fc00::31 are used by the mapper
+        MapperConfig config = new MapperConfig("fc00::31", 33333, 8080, "fc00::33", "fc00::32");
+        assertEquals(InetAddress.getByName("fc00::30"), ConnectionMapper.getWakeupAddress(config));
+        config = new MapperConfig("fc00::1", 33333, 8080, "fc00::33", "fc00::2");
+        assertEquals(InetAddress.getByName("fc00::32"), ConnectionMapper.getWakeupAddress(config));
+    }
+
+    /**
+     * Stopping a mapper which was not started does nothing.
+     */
+    public void testStopNotStarted() throws Exception {
+        assertNull(ConnectionMapper.getTasks());
+        assertTrue(ConnectionMapper.stop(1000));
+        assertNull(ConnectionMapper.getTasks());
+    }
+
+    /**
+     * The virtual server port fields default to the ports of MapperConfig.
+     */
+    public void testDefaultVirtualServerPorts() throws Exception {
+        assertEquals(MapperConfig.DEFAULT_VIRTUAL_UDP_SERVER_PORT, ConnectionMapper.virtualUDPServerPort);
+        assertEquals(MapperConfig.DEFAULT_VIRTUAL_TCP_SERVER_PORT, ConnectionMapper.virtualTCPServerPort);
+        MapperConfig config = new MapperConfig("fc00::31", 33333, 8080, "fc00::33", "fc00::32");
+        assertEquals(ConnectionMapper.virtualUDPServerPort, config.getVirtualUDPServerPort());
+        assertEquals(ConnectionMapper.virtualTCPServerPort, config.getVirtualTCPServerPort());
+    }
 }
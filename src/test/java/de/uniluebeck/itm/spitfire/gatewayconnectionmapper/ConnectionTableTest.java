@@ -0,0 +1,92 @@
+/**
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.uniluebeck.itm.spitfire.gatewayconnectionmapper;
+
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.protocol.IPv6Packet;
+import junit.framework.TestCase;
+
+import static de.uniluebeck.itm.spitfire.gatewayconnectionmapper.ConnectionTable.*;
+import static de.uniluebeck.itm.spitfire.gatewayconnectionmapper.TestPackets.*;
+
+/**
+ * JUnit tests for the lookups of the ConnectionTable.
+ */
+public class ConnectionTableTest extends TestCase {
+
+
+    public ConnectionTableTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        ConnectionMapper.setConfig(new MapperConfig("fc00::31", 33333, 8080, "fc00::33", "fc00::32"));
+    }
+
+    private IPv6Packet createPacket(String srcIP, int srcPort, String destIP, int destPort) throws Exception {
+        return modPacket(udpPacket(), srcIP, srcPort, destIP, destPort);
+    }
+
+    /**
+     * Test of mapUdpRequest and the request and response lookups.
+     */
+    public void testMapRequest() throws Exception {
+        ConnectionTable table = ConnectionTable.getInstance();
+        IPv6Packet request = createPacket("fc00::101", 40001, "fc00::102", 5683);
+        int port = table.mapUdpRequest(request);
+        assertEquals(port, table.mapUdpRequest(createPacket("fc00::101", 40001, "fc00::102", 5683)));
+        assertEquals(port, table.getMappedPortFromUdpRequest(request));
+        assertNotSame(port, table.mapUdpRequest(createPacket("fc00::101", 40002, "fc00::102", 5683)));
+        assertEquals(-1, table.getMappedPortFromTcpRequest(request));
+
+        UdpRequest udpRequest = table.getUdpRequest(port);
+        assertNotNull(udpRequest);
+        assertSame(udpRequest, table.getRequest(port));
+        assertNull(table.getTcpRequest(port));
+        assertTrue(table.getUdpRequests().contains(udpRequest));
+    }
+
+    /**
+     * Test of getMappedPortFromTCPResponseForUDPRequest after the local
+     * TCP port of a request changed.
+     */
+    public void testLocalTcpPort() throws Exception {
+        ConnectionTable table = ConnectionTable.getInstance();
+        int port = table.mapUdpRequest(createPacket("fc00::201", 40001, "fc00::202", 5683));
+        UdpRequest udpRequest = table.getUdpRequest(port);
+        udpRequest.setLocalTcpPort(45001);
+
+        //TCP response of the server to the local TCP client port
+        IPv6Packet response = createPacket("fc00::202", 80, "fc00::201", 45001);
+        assertEquals(port, table.getMappedPortFromTCPResponseForUDPRequest(response));
+        response.setDestPort(45002);
+        assertEquals(-1, table.getMappedPortFromTCPResponseForUDPRequest(response));
+
+        udpRequest.setLocalTcpPort(45002);
+        assertEquals(port, table.getMappedPortFromTCPResponseForUDPRequest(response));
+        response.setDestPort(45001);
+        assertEquals(-1, table.getMappedPortFromTCPResponseForUDPRequest(response));
+    }
+}
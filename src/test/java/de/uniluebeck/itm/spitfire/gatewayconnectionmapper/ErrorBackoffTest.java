@@ -0,0 +1,73 @@
+/**
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.uniluebeck.itm.spitfire.gatewayconnectionmapper;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+/**
+ * Test the wait of ErrorBackoff after failed reads.
+ */
+public class ErrorBackoffTest extends TestCase {
+
+    public ErrorBackoffTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * The wait doubles up to the maximum and is reset by a successful read.
+     */
+    public void testBackoff() throws Exception {
+        ErrorBackoff backoff = new ErrorBackoff("test", 4);
+        IOException error = new IOException("test");
+        long[] waits = {1, 2, 4, 4};
+        for (int i = 0; i < waits.length; i++) {
+            backoff.failed(error);
+            assertEquals(i + 1, backoff.getErrors());
+            assertEquals(waits[i], backoff.getWait());
+        }
+        backoff.succeeded();
+        assertEquals(0, backoff.getErrors());
+        assertEquals(0, backoff.getWait());
+        backoff.failed(error);
+        assertEquals(1, backoff.getWait());
+    }
+
+    /**
+     * An interrupted wait ends at once and keeps the interrupt flag, so
+     * the loop ends.
+     */
+    public void testInterrupted() throws Exception {
+        ErrorBackoff backoff = new ErrorBackoff("test", 10000);
+        for (int i = 0; i < 20; i++) {
+            backoff.failed(new IOException("test"));
+            Thread.currentThread().interrupt();
+        }
+        //the flag is cleared by the test
+        assertTrue(Thread.interrupted());
+        assertEquals(20, backoff.getErrors());
+    }
+}
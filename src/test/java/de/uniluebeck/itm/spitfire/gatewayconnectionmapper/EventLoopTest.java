@@ -0,0 +1,130 @@
+/**
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.uniluebeck.itm.spitfire.gatewayconnectionmapper;
+
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.IFReadWriter;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.IFReader;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.SelectableIF;
+import java.util.LinkedList;
+import java.util.List;
+import junit.framework.TestCase;
+
+import static de.uniluebeck.itm.spitfire.gatewayconnectionmapper.TestPackets.*;
+
+/**
+ * JUnit tests for the batched draining of polled interfaces by the EventLoop.
+ */
+public class EventLoopTest extends TestCase {
+
+
+    public EventLoopTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * Test of poll method, of class EventLoop.
+     */
+    public void testPoll() throws Exception {
+        ConnectionMapper.setConfig(new MapperConfig("fc00::31", 33333, 8080, "fc00::33", "fc00::32"));
+        PolledIF pcap = new PolledIF();
+        CountingTunIF tun = new CountingTunIF();
+        EventLoop loop = new EventLoop();
+        loop.addUplink(pcap, tun, true);
+        assertTrue(pcap.nonBlocking);
+
+        for (int i = 0; i < EventLoop.BATCH_SIZE + 1; i++) {
+            pcap.frames.add(udpPacket());
+        }
+        //first batch is full, more data may be available
+        assertTrue(loop.poll());
+        assertEquals(EventLoop.BATCH_SIZE, tun.written);
+        assertFalse(loop.poll());
+        assertEquals(EventLoop.BATCH_SIZE + 1, tun.written);
+        assertFalse(loop.poll());
+    }
+
+    /**
+     * Interfaces which would block the event loop are rejected.
+     */
+    public void testBlockingInterface() throws Exception {
+        EventLoop loop = new EventLoop();
+        try {
+            loop.addTun(new CountingTunIF());
+            fail("Blocking interface accepted");
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+    }
+
+    private static class PolledIF implements IFReader, SelectableIF {
+        List<byte[]> frames = new LinkedList<byte[]>();
+        boolean nonBlocking = false;
+
+        @Override
+        public int read(byte[] buffer, int nbytes) {
+            if (frames.isEmpty()) {
+                return 0;
+            }
+            byte[] frame = frames.remove(0);
+            System.arraycopy(frame, 0, buffer, 0, frame.length);
+            return frame.length;
+        }
+
+        @Override
+        public int getSelectableFd() {
+            return -1;
+        }
+
+        @Override
+        public void setNonBlocking() {
+            nonBlocking = true;
+        }
+
+        @Override
+        public String getName() {
+            return "PolledIF";
+        }
+    }
+
+    private static class CountingTunIF implements IFReadWriter {
+        int written = 0;
+
+        @Override
+        public int read(byte[] buffer, int nbytes) {
+            return 0;
+        }
+
+        @Override
+        public int write(byte[] buffer, int nbytes) {
+            written++;
+            return nbytes;
+        }
+
+        @Override
+        public String getName() {
+            return "CountingTunIF";
+        }
+    }
+}
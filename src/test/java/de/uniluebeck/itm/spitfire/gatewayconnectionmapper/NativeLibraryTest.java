@@ -0,0 +1,192 @@
+/**
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.uniluebeck.itm.spitfire.gatewayconnectionmapper;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import junit.framework.TestCase;
+
+/**
+ * Test the extraction of native libraries into the cache directory.
+ */
+public class NativeLibraryTest extends TestCase {
+
+    File directory;
+
+    public NativeLibraryTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = File.createTempFile("NativeLibraryTest", "");
+        directory.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(directory);
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static byte[] content(int seed) {
+        byte[] content = new byte[100000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i * seed);
+        }
+        return content;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] content = new byte[(int) file.length()];
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < content.length) {
+                offset += inputStream.read(content, offset, content.length - offset);
+            }
+        } finally {
+            inputStream.close();
+        }
+        return content;
+    }
+
+    private File extract(byte[] content) throws IOException {
+        return NativeLibrary.extract("libTest", new ByteArrayInputStream(content), directory);
+    }
+
+    /**
+     * Test that a library is extracted once and reused afterwards.
+     */
+    public void testCache() throws Exception {
+        byte[] content = content(3);
+        File library = extract(content);
+        assertTrue(Arrays.equals(content, read(library)));
+        assertTrue(library.canExecute());
+        assertEquals("libTest.so", library.getName());
+        //no temporary files are left
+        assertEquals(1, library.getParentFile().listFiles().length);
+
+        library.setLastModified(1000000000L);
+        assertEquals(library, extract(content));
+        assertEquals(1000000000L, library.lastModified());
+
+        //other content is stored in another directory
+        File other = extract(content(5));
+        assertFalse(library.getParentFile().equals(other.getParentFile()));
+        assertTrue(Arrays.equals(content(5), read(other)));
+        assertTrue(Arrays.equals(content, read(library)));
+    }
+
+    /**
+     * Test that a modified cached library is replaced.
+     */
+    public void testModifiedCache() throws Exception {
+        byte[] content = content(7);
+        File library = extract(content);
+        FileOutputStream outputStream = new FileOutputStream(library, true);
+        outputStream.write(1);
+        outputStream.close();
+        assertEquals(library, extract(content));
+        assertTrue(Arrays.equals(content, read(library)));
+
+        //same length, different content
+        outputStream = new FileOutputStream(library);
+        outputStream.write(content(11));
+        outputStream.close();
+        assertEquals(library, extract(content));
+        assertTrue(Arrays.equals(content, read(library)));
+    }
+
+    /**
+     * Test that missing cache directories are created private.
+     */
+    public void testPrivateDirectories() throws Exception {
+        File library = extract(content(13));
+        assertEquals("rwx------", PosixFilePermissions.toString(
+                Files.getPosixFilePermissions(directory.toPath())));
+        assertEquals("rwx------", PosixFilePermissions.toString(
+                Files.getPosixFilePermissions(library.getParentFile().toPath())));
+        assertFalse(PosixFilePermissions.toString(Files.getPosixFilePermissions(library.toPath()))
+                .matches(".....w..w."));
+    }
+
+    /**
+     * Test that a cache directory writable by others is refused.
+     */
+    public void testWritableDirectory() throws Exception {
+        assertTrue(directory.mkdir());
+        Files.setPosixFilePermissions(directory.toPath(), PosixFilePermissions.fromString("rwxrwxrwx"));
+        try {
+            extract(content(17));
+            fail("world writable cache directory");
+        } catch (IOException ex) {
+            //expected
+        }
+
+        //a library replaced by a writable file is extracted again
+        Files.setPosixFilePermissions(directory.toPath(), PosixFilePermissions.fromString("rwx------"));
+        byte[] content = content(17);
+        File library = extract(content);
+        Files.setPosixFilePermissions(library.toPath(), PosixFilePermissions.fromString("rwxrwxrwx"));
+        library.setLastModified(1000000000L);
+        assertEquals(library, extract(content));
+        assertFalse(1000000000L == library.lastModified());
+        assertTrue(Arrays.equals(content, read(library)));
+    }
+
+    /**
+     * Test that a symbolic link is not used as cache directory.
+     */
+    public void testSymbolicLink() throws Exception {
+        File target = File.createTempFile("NativeLibraryTest", "");
+        target.delete();
+        assertTrue(target.mkdir());
+        try {
+            Files.createSymbolicLink(directory.toPath(), target.toPath());
+            extract(content(19));
+            fail("symbolic link as cache directory");
+        } catch (IOException ex) {
+            //expected
+        } finally {
+            delete(target);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/**
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.uniluebeck.itm.spitfire.gatewayconnectionmapper;
+
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.LoopbackIF;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.PacketQueue;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.WaitStrategy;
+import java.nio.ByteBuffer;
+import junit.framework.TestCase;
+
+import static de.uniluebeck.itm.spitfire.gatewayconnectionmapper.TestPackets.*;
+import static de.uniluebeck.itm.spitfire.gatewayconnectionmapper.protocol.Tools.*;
+
+/**
+ * JUnit tests for the shedding of new flows by OverloadController.
+ */
+public class OverloadControllerTest extends TestCase {
+
+
+    public OverloadControllerTest(String testName) {
+        super(testName);
+    }
+
+    private static void fill(PacketQueue queue, int packets) {
+        for (int i = 0; i < packets; i++) {
+            assertTrue(queue.offer(new byte[8], 0, 8));
+        }
+    }
+
+    private static void drain(PacketQueue queue, int packets) {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        for (int i = 0; i < packets; i++) {
+            buffer.clear();
+            assertEquals(8, queue.poll(buffer));
+        }
+    }
+
+    /**
+     * Test the queue depth thresholds and the hysteresis between them.
+     */
+    public void testWatermarks() {
+        OverloadController controller = new OverloadController(0.5, 0.25, 0);
+        PacketQueue queue = new PacketQueue(8, 16, false, WaitStrategy.BLOCKING, false);
+        controller.watch(queue);
+        assertEquals(1, controller.getWatchedQueues());
+        assertFalse(controller.isOverloaded());
+        fill(queue, 4);
+        assertFalse(controller.isOverloaded());
+        fill(queue, 1);
+        assertTrue(controller.isOverloaded());
+        //stays overloaded until the queue is below the low watermark
+        drain(queue, 2);
+        assertTrue(controller.isOverloaded());
+        drain(queue, 1);
+        assertFalse(controller.isOverloaded());
+        fill(queue, 3);
+        assertTrue(controller.isOverloaded());
+        assertEquals(2, controller.getOverloadPeriods());
+    }
+
+    /**
+     * Test that a queue whose oldest packet waits too long overloads the
+     * mapper even if it is almost empty.
+     */
+    public void testMaxDelay() throws Exception {
+        OverloadController controller = new OverloadController(0.5, 0.25, 1);
+        PacketQueue queue = new PacketQueue(8, 16, false, WaitStrategy.BLOCKING, false);
+        controller.watch(queue);
+        assertEquals(0, queue.getHeadAge());
+        fill(queue, 1);
+        Thread.sleep(5);
+        assertTrue(queue.getHeadAge() > 1000000L);
+        assertTrue(controller.isOverloaded());
+        drain(queue, 1);
+        assertEquals(0, queue.getHeadAge());
+        assertFalse(controller.isOverloaded());
+    }
+
+    public void testInvalidWatermarks() {
+        try {
+            new OverloadController(0.25, 0.5, 0);
+            fail("low watermark above high watermark");
+        } catch (IllegalArgumentException ex) {
+            //expected
+        }
+    }
+
+    /**
+     * Test that only requests of new flows are dropped while the mapper is
+     * overloaded.
+     */
+    public void testShedNewFlows() throws Exception {
+        ConnectionMapper.setConfig(new MapperConfig("fc00::31", 33333, 8080, "fc00::33", "fc00::32"));
+        MapperConfig config = ConnectionMapper.getConfig();
+        OverloadController controller = new OverloadController(0.5, 0.25, 0);
+        PacketQueue queue = new PacketQueue(4, 16, false, WaitStrategy.BLOCKING, false);
+        controller.watch(queue);
+        LoopbackIF[] tunPair = LoopbackIF.createPair("tun0", "tun0-peer");
+        PacketQueue written = tunPair[1].getInputQueue();
+        long udpMac = config.getUdpNetIfMac();
+        long tcpMac = config.getTcpNetIfMac();
+        byte[] established = modEthPacket(udpPacket(), "fc00::71", 5001, "fc00::22",
+                config.getVirtualUDPServerPort());
+        byte[] newUdpFlow = modEthPacket(udpPacket(), "fc00::71", 5002, "fc00::22",
+                config.getVirtualUDPServerPort());
+        byte[] newTcpFlow = modEthPacket(tcpPacket(), "fc00::71", 5003, "fc00::22",
+                config.getVirtualTCPServerPort());
+        ConnectionMapper.setOverloadController(controller);
+        try {
+            ConnectionMapper.mapUDPFrame(established, established.length, tunPair[0], udpMac);
+            assertEquals(1, written.size());
+
+            fill(queue, 3);
+            //established flows are still mapped
+            ConnectionMapper.mapUDPFrame(established, established.length, tunPair[0], udpMac);
+            assertEquals(2, written.size());
+            //new flows are shed
+            ConnectionMapper.mapUDPFrame(newUdpFlow, newUdpFlow.length, tunPair[0], udpMac);
+            ConnectionMapper.mapTCPFrame(newTcpFlow, newTcpFlow.length, tunPair[0], tcpMac);
+            assertEquals(2, written.size());
+            assertEquals(1, controller.getShedUdpRequests());
+            assertEquals(1, controller.getShedTcpRequests());
+
+            //retransmitted requests are mapped once the queue has drained
+            drain(queue, 3);
+            ConnectionMapper.mapUDPFrame(newUdpFlow, newUdpFlow.length, tunPair[0], udpMac);
+            ConnectionMapper.mapTCPFrame(newTcpFlow, newTcpFlow.length, tunPair[0], tcpMac);
+            assertEquals(4, written.size());
+            assertEquals(1, controller.getOverloadPeriods());
+        } finally {
+            ConnectionMapper.setOverloadController(null);
+        }
+    }
+
+    /**
+     * Test that capture stages and flow dispatchers drop requests of new
+     * flows before they take a queue slot.
+     */
+    public void testShedBeforeQueue() throws Exception {
+        ConnectionMapper.setConfig(new MapperConfig("fc00::31", 33333, 8080, "fc00::33", "fc00::32"));
+        MapperConfig config = ConnectionMapper.getConfig();
+        OverloadController controller = new OverloadController(0.5, 0.25, 0);
+        PacketQueue watched = new PacketQueue(4, 16, false, WaitStrategy.BLOCKING, false);
+        controller.watch(watched);
+        fill(watched, 3);
+        byte[] established = modEthPacket(udpPacket(), "fc00::72", 5001, "fc00::22",
+                config.getVirtualUDPServerPort());
+        byte[] newFlow = modEthPacket(udpPacket(), "fc00::72", 5002, "fc00::22",
+                config.getVirtualUDPServerPort());
+        byte[] unmapped = modEthPacket(udpPacket(), "fc00::72", 5003, "fc00::22", 4445);
+        LoopbackIF[] tunPair = LoopbackIF.createPair("tun0", "tun0-peer");
+        ConnectionMapper.mapUDPFrame(established, established.length, tunPair[0], config.getUdpNetIfMac());
+
+        LoopbackIF[] capturePair = LoopbackIF.createPair("eth1", "eth1-peer");
+        LoopbackIF[] dispatchPair = LoopbackIF.createPair("eth2", "eth2-peer");
+        PacketQueue captured = new PacketQueue(16, 2048, false, WaitStrategy.BLOCKING, true);
+        PacketQueue dispatched = new PacketQueue(16, 2048, false, WaitStrategy.BLOCKING, true);
+        TaskGroup group = new TaskGroup("test", ExecutionMode.PLATFORM_THREADS, null);
+        ConnectionMapper.setOverloadController(controller);
+        try {
+            group.execute(new CaptureStage(capturePair[0], captured, WorkerPool.UDP_FRAME));
+            group.execute(new FlowDispatcher(dispatchPair[0], WorkerPool.UDP_FRAME,
+                    new FlowWorker[]{new FlowWorker(0, dispatched, tunPair[0])}));
+            for (byte[] frame : new byte[][]{newFlow, established, newFlow, unmapped}) {
+                capturePair[1].write(frame, frame.length);
+                dispatchPair[1].write(frame, frame.length);
+            }
+            long deadline = System.currentTimeMillis() + 10000;
+            while ((controller.getShedUdpRequests() < 4 || captured.size() < 2 || dispatched.size() < 2)
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(4, controller.getShedUdpRequests());
+            for (PacketQueue queue : new PacketQueue[]{captured, dispatched}) {
+                assertEquals(2, queue.size());
+                assertEquals(0, queue.getDropped());
+                ByteBuffer buffer = ByteBuffer.allocate(2048);
+                queue.poll(buffer);
+                assertEquals(5001, getUnsignedShort(buffer.array(), 54));
+                buffer.clear();
+                queue.poll(buffer);
+                assertEquals(5003, getUnsignedShort(buffer.array(), 54));
+            }
+        } finally {
+            group.shutdown();
+            assertTrue(group.awaitTermination(10000));
+            ConnectionMapper.setOverloadController(null);
+        }
+    }
+}
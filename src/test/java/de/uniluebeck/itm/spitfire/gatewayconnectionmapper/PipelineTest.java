@@ -0,0 +1,140 @@
+/**
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.uniluebeck.itm.spitfire.gatewayconnectionmapper;
+
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.LoopbackIF;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.PacketQueue;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.WaitStrategy;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.protocol.EthernetFrame;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.protocol.IPv6Packet;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import junit.framework.TestCase;
+
+import static de.uniluebeck.itm.spitfire.gatewayconnectionmapper.TestPackets.*;
+import static de.uniluebeck.itm.spitfire.gatewayconnectionmapper.protocol.Tools.*;
+
+/**
+ * JUnit tests for the staged processing of packets by Pipeline.
+ */
+public class PipelineTest extends TestCase {
+
+    //runs the stages of the tested pipelines
+    private TaskGroup tasks;
+
+    public PipelineTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        tasks = new TaskGroup("test", ExecutionMode.PLATFORM_THREADS, null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        tasks.shutdown();
+        assertTrue(tasks.waitForTasks(10000));
+        super.tearDown();
+    }
+
+    private static IPv6Packet read(LoopbackIF netIf) throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(1900);
+        assertTrue(netIf.read(buffer) > 0);
+        return new IPv6Packet(getBytes(buffer.array(), 0, buffer.position()));
+    }
+
+    /**
+     * Test of a mapped connection through a uplink and a TUN pipeline.
+     */
+    public void testPipelines() throws Exception {
+        ConnectionMapper.setConfig(new MapperConfig("fc00::31", 33333, 8080, "fc00::33", "fc00::32"));
+        MapperConfig config = ConnectionMapper.getConfig();
+
+        LoopbackIF[] udpPair = LoopbackIF.createPair("eth1", "eth1-peer");
+        LoopbackIF[] tunPair = LoopbackIF.createPair("tun0", "tun0-peer", WaitStrategy.BLOCKING, true);
+        Pipeline udp = Pipeline.createUplink(udpPair[0], tunPair[0], true);
+        Pipeline tun = Pipeline.createTun(tunPair[0]);
+        udp.start(tasks);
+        tun.start(tasks);
+        LoopbackIF tunPeer = tunPair[1];
+
+        //udp request on eth1
+        byte[] p1eth = modEthPacket(udpPacket(), "fc00::11", 4444, "fc00::22", config.getVirtualUDPServerPort());
+        udpPair[1].write(p1eth, p1eth.length);
+        IPv6Packet p = read(tunPeer);
+        assertEquals(p.getSourceIP(), config.getTunVirtualUdpIP().getInetAddress());
+        int mappedPort = p.getSourcePort();
+        assertEquals(p.getDestIP(), config.getTunBoundIP().getInetAddress());
+        assertEquals(p.getDestPort(), config.getLocalUdpServerPort());
+
+        //tcp request on tun
+        p = new IPv6Packet(new EthernetFrame(tcpPacket()).getPayload());
+        p.setSourceIP(config.getTunBoundIP().getInetAddress());
+        p.setSourcePort(22222);
+        p.setDestIP(config.getTunVirtualTcpIP().getInetAddress());
+        p.setDestPort(mappedPort);
+        tunPeer.write(ByteBuffer.wrap(p.encode()));
+        tunPeer.flush();
+        p = read(tunPeer);
+        assertEquals(p.getSourceIP(), InetAddress.getByName("fc00::11"));
+        assertEquals(p.getSourcePort(), 22222);
+        assertEquals(p.getDestIP(), InetAddress.getByName("fc00::22"));
+        assertEquals(p.getDestPort(), config.getVirtualTCPServerPort());
+
+        assertEquals(0, udp.getCapturedQueue().getDropped());
+        assertEquals(0, tun.getMappedQueue().getDropped());
+    }
+
+    /**
+     * Test that the capture stage drops packets instead of waiting if the
+     * map stage falls behind.
+     */
+    public void testCaptureDoesNotBlock() throws Exception {
+        LoopbackIF[] pair = LoopbackIF.createPair("eth0", "eth0-peer");
+        PacketQueue queue = new PacketQueue(4, 2048, false, WaitStrategy.BLOCKING, true);
+        tasks.execute(new CaptureStage(pair[0], queue, WorkerPool.UDP_FRAME));
+        //nobody reads the queue
+        byte[] frame = udpPacket();
+        for (int i = 0; i < 10; i++) {
+            frame[frame.length - 1] = (byte) i;
+            pair[1].write(frame, frame.length);
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while (queue.getDropped() < 6 && System.currentTimeMillis() < deadline) {
+            Thread.yield();
+        }
+        assertEquals(6, queue.getDropped());
+        assertEquals(0, pair[0].getInputQueue().size());
+        //the first packets were kept
+        ByteBuffer buffer = ByteBuffer.allocate(2048);
+        for (int i = 0; i < 4; i++) {
+            buffer.clear();
+            assertEquals(frame.length, queue.poll(buffer));
+            assertEquals(i, buffer.get(frame.length - 1));
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/**
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.uniluebeck.itm.spitfire.gatewayconnectionmapper;
+
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.LoopbackIF;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.WaitStrategy;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import junit.framework.TestCase;
+
+/**
+ * JUnit tests for the execution modes and the lifecycle of TaskGroup.
+ */
+public class TaskGroupTest extends TestCase {
+
+    public TaskGroupTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * Runs the mapping threads of a loopback interface pair in the group and
+     * shuts the group down.
+     */
+    private void runMapperThreads(TaskGroup group) throws Exception {
+        ConnectionMapper.setConfig(new MapperConfig("fc00::31", 33333, 8080, "fc00::33", "fc00::32"));
+        LoopbackIF[] tcpPair = LoopbackIF.createPair("eth0", "eth0-peer");
+        LoopbackIF[] udpPair = LoopbackIF.createPair("eth1", "eth1-peer");
+        LoopbackIF[] tunPair = LoopbackIF.createPair("tun0", "tun0-peer", WaitStrategy.BLOCKING, true);
+        Thread tcp = new TcpNetIfPcapThread(tunPair[0], tcpPair[0]);
+        tcp.setName("tcp");
+        Thread udp = new UdpNetIfPcapThread(tunPair[0], udpPair[0]);
+        udp.setName("udp");
+        Thread tun = new TunNetIfThread(tunPair[0]);
+        tun.setName("tun");
+        group.execute(tcp);
+        group.execute(udp);
+        group.execute(tun);
+        assertEquals(Arrays.asList("tcp", "udp", "tun"), group.getTaskNames());
+
+        group.shutdown();
+        assertTrue(group.isShutdown());
+        //loopback reads return when they are interrupted
+        assertTrue(group.awaitTermination(10000));
+        assertTrue(group.getTaskNames().isEmpty());
+        try {
+            group.execute(new TunNetIfThread(tunPair[0]));
+            fail("execute after shutdown");
+        } catch (IllegalStateException ex) {
+            //expected
+        }
+    }
+
+    public void testPlatformThreads() throws Exception {
+        TaskGroup group = new TaskGroup("test", ExecutionMode.PLATFORM_THREADS, null);
+        assertEquals(ExecutionMode.PLATFORM_THREADS, group.getMode());
+        runMapperThreads(group);
+    }
+
+    public void testExecutor() throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            TaskGroup group = new TaskGroup("test", ExecutionMode.EXECUTOR, executor);
+            assertEquals(ExecutionMode.EXECUTOR, group.getMode());
+            runMapperThreads(group);
+        } finally {
+            executor.shutdown();
+        }
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    public void testExecutorRequired() {
+        try {
+            new TaskGroup("test", ExecutionMode.EXECUTOR, null);
+            fail("EXECUTOR without executor");
+        } catch (IllegalArgumentException ex) {
+            //expected
+        }
+    }
+
+    /**
+     * Virtual threads are used on Java 21 or newer, platform threads otherwise.
+     */
+    public void testVirtualThreads() throws Exception {
+        TaskGroup group = new TaskGroup("test", ExecutionMode.VIRTUAL_THREADS, null);
+        assertEquals(TaskGroup.isVirtualThreadsAvailable() ? ExecutionMode.VIRTUAL_THREADS
+                : ExecutionMode.PLATFORM_THREADS, group.getMode());
+        final CountDownLatch started = new CountDownLatch(1);
+        final String[] threadName = new String[1];
+        group.execute(new Runnable() {
+            @Override
+            public void run() {
+                threadName[0] = Thread.currentThread().getName();
+                started.countDown();
+                while (!Thread.currentThread().isInterrupted()) {
+                    LockSupport.park();
+                }
+            }
+        }, "parked");
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        assertEquals("parked", threadName[0]);
+        group.shutdown();
+        assertTrue(group.awaitTermination(10000));
+    }
+
+    /**
+     * A failing task is logged and removed, the other tasks keep running.
+     */
+    public void testFailingTask() throws Exception {
+        TaskGroup group = new TaskGroup("test", ExecutionMode.PLATFORM_THREADS, null);
+        final CountDownLatch failed = new CountDownLatch(1);
+        group.execute(new Runnable() {
+            @Override
+            public void run() {
+                failed.countDown();
+                throw new IllegalStateException("test");
+            }
+        }, "failing");
+        group.execute(new Runnable() {
+            @Override
+            public void run() {
+                while (!Thread.currentThread().isInterrupted()) {
+                    LockSupport.park();
+                }
+            }
+        }, "parked");
+        assertTrue(failed.await(10, TimeUnit.SECONDS));
+        long deadline = System.currentTimeMillis() + 10000;
+        while (group.getTaskNames().size() > 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(group.awaitTermination(100));
+        assertEquals(Arrays.asList("parked"), group.getTaskNames());
+        group.shutdown();
+        assertTrue(group.awaitTermination(10000));
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.uniluebeck.itm.spitfire.gatewayconnectionmapper;
+
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.protocol.EthernetFrame;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.protocol.IPv6Packet;
+import java.net.InetAddress;
+
+import static de.uniluebeck.itm.spitfire.gatewayconnectionmapper.protocol.Tools.*;
+
+/**
+ * Captured test packets shared by the JUnit tests, and tools to rewrite
+ * their addresses and ports.
+ */
+public class TestPackets {
+
+    //Ethernet frame with a TCP SYN from fc00::22 to fc00::11
+    private static final String TCP_PACKET = "0800270026c3080027c6ec3a86dd6000"
+            + "000000280640fc000000000000000000000000000022fc000000000000000000"
+            + "000000000011d99800506ea3d3ef00000000a002168024a70000020405a00402"
+            + "080a001ef81f0000000001030306";
+
+    //Ethernet frame with a UDP datagram from fc00::22 to fc00::11
+    private static final String UDP_PACKET = "0800270026c3080027c6ec3a86dd6000"
+            + "000000261140fc000000000000000000000000000022fc000000000000000000"
+            + "00000000001163f416330026c5264401f26458666330303a3a31312216332474"
+            + "65737428298cb1f76b6bdf62";
+
+    private TestPackets() {
+    }
+
+    /**
+     * @return a new copy of the captured TCP Ethernet frame
+     */
+    public static byte[] tcpPacket() {
+        return getByteArrayFromString(TCP_PACKET);
+    }
+
+    /**
+     * @return a new copy of the captured UDP Ethernet frame
+     */
+    public static byte[] udpPacket() {
+        return getByteArrayFromString(UDP_PACKET);
+    }
+
+    /**
+     * Creates the IPv6 packet of a Ethernet frame with new addresses and ports.
+     * @param src Ethernet frame, is not modified
+     * @return modified IPv6Packet
+     */
+    public static IPv6Packet modPacket(byte[] src, String srcIP, int srcPort,
+            String destIP, int destPort) throws Exception {
+        IPv6Packet p = new IPv6Packet(new EthernetFrame(src).getPayload());
+        p.setSourceIP(InetAddress.getByName(srcIP));
+        p.setSourcePort(srcPort);
+        p.setDestIP(InetAddress.getByName(destIP));
+        p.setDestPort(destPort);
+        return p;
+    }
+
+    /**
+     * Creates a copy of a Ethernet frame with new addresses and ports.
+     * @param src Ethernet frame, is not modified
+     * @return modified Ethernet frame
+     */
+    public static byte[] modEthPacket(byte[] src, String srcIP, int srcPort,
+            String destIP, int destPort) throws Exception {
+        EthernetFrame f = new EthernetFrame(src);
+        f.setPayload(modPacket(src, srcIP, srcPort, destIP, destPort).encode());
+        return f.encode();
+    }
+}
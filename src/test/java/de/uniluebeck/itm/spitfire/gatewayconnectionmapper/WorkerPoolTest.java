@@ -0,0 +1,166 @@
+/**
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.uniluebeck.itm.spitfire.gatewayconnectionmapper;
+
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.LoopbackIF;
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces.WaitStrategy;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import junit.framework.TestCase;
+
+import static de.uniluebeck.itm.spitfire.gatewayconnectionmapper.TestPackets.*;
+
+/**
+ * JUnit tests for the flow hash dispatching of WorkerPool.
+ */
+public class WorkerPoolTest extends TestCase {
+
+    //runs the workers and dispatchers of the tested pools
+    private TaskGroup tasks;
+
+    public WorkerPoolTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        tasks = new TaskGroup("test", ExecutionMode.PLATFORM_THREADS, null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        tasks.shutdown();
+        assertTrue(tasks.waitForTasks(10000));
+        super.tearDown();
+    }
+
+    private byte[] frame(String srcIP, int srcPort, String destIP, int destPort) throws Exception {
+        return modEthPacket(udpPacket(), srcIP, srcPort, destIP, destPort);
+    }
+
+    private static ByteBuffer ipPacket(byte[] frame) {
+        return ByteBuffer.wrap(frame, 14, frame.length - 14).slice();
+    }
+
+    /**
+     * Test that all packets of a flow are passed to the same worker and that
+     * flows are spread over all workers.
+     */
+    public void testWorkerFor() throws Exception {
+        boolean[] used = new boolean[4];
+        for (int port = 5000; port < 5064; port++) {
+            byte[] frame = frame("fc00::11", port, "fc00::22", 4445);
+            int worker = WorkerPool.workerFor(ByteBuffer.wrap(frame), WorkerPool.UDP_FRAME, 4);
+            //other payload, same flow
+            frame[frame.length - 1]++;
+            assertEquals(worker, WorkerPool.workerFor(ByteBuffer.wrap(frame), WorkerPool.UDP_FRAME, 4));
+            used[worker] = true;
+        }
+        for (boolean workerUsed : used) {
+            assertTrue(workerUsed);
+        }
+
+        //TUN packets are dispatched by the mapped (destination) port
+        byte[] first = frame("fc00::31", 8080, "fc00::33", 40000);
+        byte[] second = frame("fc00::31", 33333, "fc00::32", 40000);
+        for (int workers = 2; workers < 8; workers++) {
+            assertEquals(WorkerPool.workerFor(ipPacket(first), WorkerPool.TUN_PACKET, workers),
+                    WorkerPool.workerFor(ipPacket(second), WorkerPool.TUN_PACKET, workers));
+        }
+        //the position of the packet is used
+        ByteBuffer buffer = ByteBuffer.allocate(first.length + 10);
+        buffer.position(10);
+        buffer.put(first, 14, first.length - 14).flip();
+        buffer.position(10);
+        assertEquals(WorkerPool.workerFor(ipPacket(first), WorkerPool.TUN_PACKET, 7),
+                WorkerPool.workerFor(buffer, WorkerPool.TUN_PACKET, 7));
+    }
+
+    /**
+     * Test that the packets of each flow keep their order while the flows are
+     * mapped by several workers.
+     */
+    public void testOrderPerFlow() throws Exception {
+        ConnectionMapper.setConfig(new MapperConfig("fc00::31", 33333, 8080, "fc00::33", "fc00::32"));
+        LoopbackIF[] udpPair = LoopbackIF.createPair("eth1", "eth1-peer");
+        LoopbackIF[] tunPair = LoopbackIF.createPair("tun0", "tun0-peer", WaitStrategy.BLOCKING, true);
+        WorkerPool pool = new WorkerPool(Collections.singletonList(tunPair[0]), 4);
+        pool.addUplink(udpPair[0], true);
+        pool.start(tasks);
+
+        final int flows = 16;
+        //fewer packets than a worker queue can buffer, so nothing is dropped
+        //even if all flows are mapped by the same worker
+        final int packets = 250;
+        final byte[][] frames = new byte[flows][];
+        for (int i = 0; i < flows; i++) {
+            //unmapped traffic is forwarded unmodified
+            frames[i] = frame("fc00::11", 5000 + i, "fc00::22", 4445);
+        }
+        final LoopbackIF udpPeer = udpPair[1];
+        new Thread() {
+            @Override
+            public void run() {
+                for (int sequence = 0; sequence < packets; sequence++) {
+                    for (byte[] frame : frames) {
+                        frame[frame.length - 2] = (byte) (sequence >> 8);
+                        frame[frame.length - 1] = (byte) sequence;
+                        udpPeer.write(frame, frame.length);
+                    }
+                }
+            }
+        }.start();
+
+        int[] next = new int[flows];
+        ByteBuffer buffer = ByteBuffer.allocate(1900);
+        for (int i = 0; i < flows * packets; i++) {
+            buffer.clear();
+            int length = tunPair[1].read(buffer);
+            assertTrue(length > 0);
+            int flow = buffer.getShort(40) - 5000;
+            int sequence = (buffer.get(length - 2) & 0xFF) << 8 | (buffer.get(length - 1) & 0xFF);
+            assertEquals(next[flow]++, sequence);
+        }
+
+        //the counters are updated after the packets were written
+        long processed = 0;
+        int busyWorkers = 0;
+        long deadline = System.currentTimeMillis() + 10000;
+        while (processed < flows * packets && System.currentTimeMillis() < deadline) {
+            Thread.yield();
+            processed = 0;
+            busyWorkers = 0;
+            for (FlowWorker worker : pool.getWorkers()) {
+                processed += worker.getProcessed();
+                busyWorkers += worker.getProcessed() > 0 ? 1 : 0;
+                assertEquals(0, worker.getQueue().getDropped());
+            }
+        }
+        assertEquals(flows * packets, processed);
+        assertTrue(busyWorkers > 1);
+        assertEquals(4, pool.getQueueDepths().length);
+    }
+}
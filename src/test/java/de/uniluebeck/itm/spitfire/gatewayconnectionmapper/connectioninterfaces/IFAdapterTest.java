@@ -0,0 +1,192 @@
+/**
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ * Test the ByteBuffer API of interfaces which only implement the byte
+ * array API, provided by IFAdapter.
+ */
+public class IFAdapterTest extends TestCase {
+
+    public IFAdapterTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * Interface with byte array API only, reads packets from a list and
+     * records written packets and the arrays passed to it.
+     */
+    private static class ArrayIF implements IFReadWriter {
+        List<byte[]> packets = new ArrayList<byte[]>();
+        List<byte[]> written = new ArrayList<byte[]>();
+        byte[] lastArray;
+
+        @Override
+        public int read(byte[] buffer, int nbytes) {
+            lastArray = buffer;
+            if (packets.isEmpty()) {
+                return 0;
+            }
+            byte[] packet = packets.remove(0);
+            int length = Math.min(packet.length, nbytes);
+            System.arraycopy(packet, 0, buffer, 0, length);
+            return length;
+        }
+
+        @Override
+        public int write(byte[] buffer, int nbytes) {
+            lastArray = buffer;
+            byte[] packet = new byte[nbytes];
+            System.arraycopy(buffer, 0, packet, 0, nbytes);
+            written.add(packet);
+            return nbytes;
+        }
+
+        @Override
+        public String getName() {
+            return "array0";
+        }
+    }
+
+    /**
+     * Batch reader passing all packets of the list at once.
+     */
+    private static class BatchIF extends ArrayIF implements IFBatchReader {
+        @Override
+        public int read(PacketHandler handler, int maxPackets) throws IOException {
+            int count = 0;
+            while (count < maxPackets && !packets.isEmpty()) {
+                handler.handlePacket(ByteBuffer.wrap(packets.remove(0)));
+                count++;
+            }
+            return count;
+        }
+    }
+
+    private static byte[] packet(int content, int length) {
+        byte[] packet = new byte[length];
+        for (int i = 0; i < length; i++) {
+            packet[i] = (byte) content;
+        }
+        return packet;
+    }
+
+    /**
+     * Test that heap buffers starting at index 0 are passed through and
+     * other buffers are copied.
+     */
+    public void testRead() {
+        ArrayIF netIf = new ArrayIF();
+        IFBufferReadWriter adapter = IFAdapter.bufferReadWriter(netIf);
+        netIf.packets.add(packet(1, 10));
+        netIf.packets.add(packet(2, 10));
+        netIf.packets.add(packet(3, 10));
+
+        ByteBuffer heap = ByteBuffer.allocate(100);
+        assertEquals(10, adapter.read(heap));
+        assertSame(heap.array(), netIf.lastArray);
+        assertEquals(10, heap.position());
+
+        //slice, stored after the first packet
+        assertEquals(10, adapter.read(heap));
+        assertEquals(20, heap.position());
+        assertEquals(2, heap.get(15));
+
+        //direct buffer, truncated to its remaining bytes
+        ByteBuffer direct = ByteBuffer.allocateDirect(100);
+        direct.limit(4);
+        assertEquals(4, adapter.read(direct));
+        assertEquals(3, direct.get(3));
+
+        assertEquals(0, adapter.read(heap));
+        assertEquals(20, heap.position());
+    }
+
+    /**
+     * Test writing slices, direct buffers and batches.
+     */
+    public void testWrite() {
+        ArrayIF netIf = new ArrayIF();
+        IFBufferReadWriter adapter = IFAdapter.bufferReadWriter(netIf);
+
+        byte[] frame = new byte[30];
+        frame[14] = 42;
+        ByteBuffer slice = ByteBuffer.wrap(frame, 14, 16);
+        assertEquals(16, adapter.write(slice));
+        assertEquals(30, slice.position());
+        assertEquals(42, netIf.written.get(0)[0]);
+        assertEquals(16, netIf.written.get(0).length);
+
+        ByteBuffer whole = ByteBuffer.wrap(frame);
+        assertEquals(30, adapter.write(whole));
+        assertSame(frame, netIf.lastArray);
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(8);
+        direct.put(packet(7, 8)).flip();
+        ByteBuffer[] batch = {direct, ByteBuffer.wrap(packet(8, 5))};
+        assertEquals(2, adapter.write(batch, 0, 2));
+        assertEquals(4, netIf.written.size());
+        assertEquals(7, netIf.written.get(2)[7]);
+        assertEquals(5, netIf.written.get(3).length);
+        assertFalse(direct.hasRemaining());
+    }
+
+    /**
+     * Test that batch reads use the batch reader of the wrapped interface
+     * and read single packets otherwise.
+     */
+    public void testBatchRead() throws Exception {
+        BatchIF batchIf = new BatchIF();
+        batchIf.packets.add(packet(1, 10));
+        batchIf.packets.add(packet(2, 30));
+        batchIf.packets.add(packet(3, 10));
+        IFAdapter adapter = new IFAdapter(batchIf);
+        assertTrue(IFAdapter.canReadBatches(adapter));
+        ByteBuffer[] buffers = {ByteBuffer.allocate(20), ByteBuffer.allocateDirect(20), ByteBuffer.allocate(20)};
+        assertEquals(3, adapter.read(buffers, 0, 3));
+        assertEquals(10, buffers[0].position());
+        //truncated
+        assertEquals(20, buffers[1].position());
+        assertEquals(2, buffers[1].get(19));
+        assertEquals(3, buffers[2].get(0));
+
+        ArrayIF arrayIf = new ArrayIF();
+        arrayIf.packets.add(packet(4, 10));
+        arrayIf.packets.add(packet(5, 10));
+        adapter = new IFAdapter(new IFAdapter(arrayIf));
+        assertFalse(IFAdapter.canReadBatches(adapter));
+        buffers[0].clear();
+        buffers[1].clear();
+        assertEquals(1, adapter.read(buffers, 0, 2));
+        assertEquals(4, buffers[0].get(0));
+        assertEquals(0, buffers[1].position());
+    }
+}
@@ -0,0 +1,192 @@
+/**
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+
+/**
+ * Test PacketQueue and LoopbackIF.
+ */
+public class PacketQueueTest extends TestCase {
+
+    static final long TIMEOUT = TimeUnit.SECONDS.toNanos(10);
+
+    public PacketQueueTest(String testName) {
+        super(testName);
+    }
+
+    private static byte[] packet(int producer, int sequence) {
+        return new byte[]{(byte) producer, (byte) (sequence >> 16), (byte) (sequence >> 8), (byte) sequence};
+    }
+
+    /**
+     * Starts producers which each put count packets into queue, reads all
+     * packets and checks that the packets of each producer keep their order.
+     */
+    private void checkProducers(final PacketQueue queue, int producers, final int count) throws Exception {
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < producers; i++) {
+            final int producer = i;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    for (int sequence = 0; sequence < count; sequence++) {
+                        queue.put(packet(producer, sequence), 0, 4, TIMEOUT);
+                        if (sequence % 16 == 15) {
+                            queue.signal();
+                        }
+                    }
+                    queue.signal();
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        final int[] next = new int[producers];
+        final int[] received = new int[1];
+        PacketHandler handler = new PacketHandler() {
+            @Override
+            public void handlePacket(ByteBuffer packet) {
+                assertEquals(4, packet.remaining());
+                int producer = packet.get();
+                int sequence = (packet.get() & 0xFF) << 16 | (packet.get() & 0xFF) << 8 | packet.get() & 0xFF;
+                assertEquals(next[producer]++, sequence);
+                received[0]++;
+            }
+        };
+        while (received[0] < producers * count) {
+            assertTrue(queue.take(handler, 64, TIMEOUT) > 0);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, queue.size());
+        assertEquals(0, queue.getDropped());
+    }
+
+    /**
+     * Test a single producer with a queue which is much smaller than the
+     * number of packets.
+     */
+    public void testSingleProducer() throws Exception {
+        checkProducers(new PacketQueue(64, 16, false, WaitStrategy.BLOCKING, false), 1, 20000);
+        checkProducers(new PacketQueue(64, 16, false, WaitStrategy.SPINNING, false), 1, 20000);
+    }
+
+    /**
+     * Test concurrent producers, also in batched mode.
+     */
+    public void testMultiProducer() throws Exception {
+        checkProducers(new PacketQueue(64, 16, true, WaitStrategy.YIELDING, false), 4, 5000);
+        checkProducers(new PacketQueue(64, 16, true, WaitStrategy.BLOCKING, false), 4, 5000);
+        checkProducers(new PacketQueue(64, 16, true, WaitStrategy.BLOCKING, true), 4, 5000);
+    }
+
+    /**
+     * Test that offer drops packets instead of waiting if the queue is full
+     * and that oversized packets are dropped.
+     */
+    public void testDropWhenFull() {
+        PacketQueue queue = new PacketQueue(4, 16, true, WaitStrategy.BLOCKING, false);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offer(packet(0, i), 0, 4));
+        }
+        assertFalse(queue.offer(packet(0, 4), 0, 4));
+        assertFalse(queue.put(ByteBuffer.wrap(packet(0, 5)), TimeUnit.MILLISECONDS.toNanos(10)));
+        assertEquals(2, queue.getDropped());
+        assertEquals(4, queue.size());
+
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        assertEquals(4, queue.poll(buffer));
+        assertEquals(0, buffer.get(3));
+        assertFalse(queue.offer(new byte[17], 0, 17));
+        assertEquals(3, queue.getDropped());
+        assertTrue(queue.offer(ByteBuffer.wrap(new byte[16])));
+    }
+
+    /**
+     * Test timeouts and that closing a queue ends waiting reads.
+     */
+    public void testTimeoutAndClose() throws Exception {
+        final PacketQueue queue = new PacketQueue(4, 16, false, WaitStrategy.BLOCKING, false);
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        assertEquals(0, queue.poll(buffer));
+        assertEquals(0, queue.take(buffer, TimeUnit.MILLISECONDS.toNanos(10)));
+        queue.offer(packet(1, 2), 0, 4);
+        new Thread() {
+            @Override
+            public void run() {
+                //the delay only lets close() usually end a waiting take(),
+                //the results are the same if it runs before
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException ex) {
+                }
+                queue.close();
+            }
+        }.start();
+        //queued packets can be read after closing
+        assertEquals(4, queue.take(buffer, TIMEOUT));
+        assertEquals(-1, queue.take(buffer, TIMEOUT));
+        assertFalse(queue.offer(packet(1, 3), 0, 4));
+    }
+
+    /**
+     * Test a pair of connected loopback interfaces in batched mode.
+     */
+    public void testLoopbackPair() throws Exception {
+        LoopbackIF[] pair = LoopbackIF.createPair("a", "b", WaitStrategy.BLOCKING, true);
+        assertEquals(-1, pair[0].getSelectableFd());
+        assertEquals(4, pair[0].write(packet(1, 1), 4));
+        ByteBuffer direct = ByteBuffer.allocateDirect(8);
+        direct.put(packet(2, 2)).flip();
+        ByteBuffer[] packets = {ByteBuffer.wrap(packet(3, 3)), direct};
+        assertEquals(2, pair[0].write(packets, 0, 2));
+        assertFalse(direct.hasRemaining());
+        pair[0].flush();
+
+        byte[] buffer = new byte[16];
+        assertEquals(4, pair[1].read(buffer, buffer.length));
+        assertEquals(1, buffer[0]);
+        ByteBuffer[] buffers = {ByteBuffer.allocate(16), ByteBuffer.allocate(2)};
+        assertEquals(2, pair[1].read(buffers, 0, 2));
+        assertEquals(4, buffers[0].position());
+        assertEquals(3, buffers[0].get(0));
+        //truncated
+        assertEquals(2, buffers[1].position());
+        assertEquals(2, buffers[1].get(0));
+
+        //nothing was written in the other direction
+        pair[0].setNonBlocking();
+        assertEquals(0, pair[0].read(ByteBuffer.allocate(16)));
+
+        pair[1].close();
+        assertEquals(-1, pair[0].read(buffer, buffer.length));
+    }
+}
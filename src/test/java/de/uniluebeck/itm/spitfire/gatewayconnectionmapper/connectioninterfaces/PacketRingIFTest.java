@@ -0,0 +1,156 @@
+/**
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ * Test the TPACKET_V3 ring walking of PacketRingIF on a ring built in memory.
+ */
+public class PacketRingIFTest extends TestCase {
+
+    static final int BLOCK_SIZE = 4096;
+    static final int BLOCK_COUNT = 2;
+    static final int PACKET_SLOT = 256;
+    static final int MAC_OFFSET = 80;
+
+    ByteBuffer ring;
+    boolean[] ready;
+    List<Integer> released;
+    List<byte[]> handled;
+    PacketRingIF instance;
+    PacketHandler handler = new PacketHandler() {
+        @Override
+        public void handlePacket(ByteBuffer packet) {
+            byte[] frame = new byte[packet.remaining()];
+            packet.get(frame);
+            handled.add(frame);
+        }
+    };
+
+    public PacketRingIFTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        ring = ByteBuffer.allocate(BLOCK_SIZE * BLOCK_COUNT).order(ByteOrder.nativeOrder());
+        ready = new boolean[BLOCK_COUNT];
+        released = new ArrayList<Integer>();
+        handled = new ArrayList<byte[]>();
+        instance = new PacketRingIF("ring", 0, ring, BLOCK_SIZE, BLOCK_COUNT) {
+            @Override
+            boolean waitForBlock(int block, int timeout) {
+                return ready[block];
+            }
+
+            @Override
+            void releaseBlock(int block) {
+                ready[block] = false;
+                released.add(block);
+            }
+        };
+    }
+
+    /**
+     * Writes a block with one frame per entry of lengths, the frame
+     * content is its index in the block.
+     */
+    private void fillBlock(int block, int[] lengths, int outgoing) {
+        int blockOffset = block * BLOCK_SIZE;
+        ring.putInt(blockOffset + 12, lengths.length);
+        ring.putInt(blockOffset + 16, 64);
+        for (int i = 0; i < lengths.length; i++) {
+            int offset = blockOffset + 64 + i * PACKET_SLOT;
+            ring.putInt(offset, i == lengths.length - 1 ? 0 : PACKET_SLOT);
+            ring.putInt(offset + 12, lengths[i]);
+            ring.putShort(offset + 24, (short) MAC_OFFSET);
+            ring.put(offset + 58, (byte) (i == outgoing ? 4 : 0));
+            for (int j = 0; j < lengths[i]; j++) {
+                ring.put(offset + MAC_OFFSET + j, (byte) i);
+            }
+        }
+        ready[block] = true;
+    }
+
+    /**
+     * Test of read method, of class PacketRingIF.
+     */
+    public void testReadBlocks() throws Exception {
+        assertEquals(0, instance.read(handler, 10));
+
+        fillBlock(0, new int[] {60, 100, 14}, -1);
+        fillBlock(1, new int[] {20}, -1);
+        //block is read in two batches and released afterwards
+        assertEquals(2, instance.read(handler, 2));
+        assertTrue(released.isEmpty());
+        assertEquals(1, instance.read(handler, 2));
+        assertEquals(1, released.size());
+        assertEquals(0, (int) released.get(0));
+        assertEquals(3, handled.size());
+        assertEquals(60, handled.get(0).length);
+        assertEquals(100, handled.get(1).length);
+        assertEquals(14, handled.get(2).length);
+        assertEquals(1, handled.get(1)[99]);
+        assertEquals(2, handled.get(2)[0]);
+
+        assertEquals(1, instance.read(handler, 10));
+        assertEquals(1, (int) released.get(1));
+        //ring wraps around to the first block
+        assertEquals(0, instance.read(handler, 10));
+        fillBlock(0, new int[] {30}, -1);
+        assertEquals(1, instance.read(handler, 10));
+        assertEquals(30, handled.get(4).length);
+    }
+
+    /**
+     * Test of setInboundOnly method, of class PacketRingIF.
+     */
+    public void testInboundOnly() throws Exception {
+        instance.setInboundOnly();
+        fillBlock(0, new int[] {60, 70, 80}, 1);
+        assertEquals(2, instance.read(handler, 10));
+        assertEquals(60, handled.get(0).length);
+        assertEquals(80, handled.get(1).length);
+        assertEquals(1, released.size());
+    }
+
+    /**
+     * Test of read method with a byte array, of class PacketRingIF.
+     */
+    public void testReadArray() throws Exception {
+        byte[] buffer = new byte[50];
+        assertEquals(0, instance.read(buffer, buffer.length));
+        fillBlock(0, new int[] {60, 40}, -1);
+        //frames are truncated to the buffer size
+        assertEquals(50, instance.read(buffer, buffer.length));
+        assertEquals(40, instance.read(buffer, buffer.length));
+        assertEquals(1, buffer[39]);
+    }
+}
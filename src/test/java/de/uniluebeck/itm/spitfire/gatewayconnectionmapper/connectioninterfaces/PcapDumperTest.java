@@ -0,0 +1,254 @@
+/**
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ * Test PcapDumper and TapIF.
+ */
+public class PcapDumperTest extends TestCase {
+
+    File directory;
+
+    public PcapDumperTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = File.createTempFile("PcapDumperTest", "");
+        directory.delete();
+        directory.mkdir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    private static byte[] packet(int content, int length) {
+        byte[] packet = new byte[length];
+        for (int i = 0; i < length; i++) {
+            packet[i] = (byte) content;
+        }
+        return packet;
+    }
+
+    private static List<byte[]> readAll(File file) throws IOException {
+        final List<byte[]> packets = new ArrayList<byte[]>();
+        PcapFileIF pcap = new PcapFileIF(file.getPath(), PcapFileIF.AS_FAST_AS_POSSIBLE, false);
+        while (!pcap.isFinished()) {
+            pcap.read(new PacketHandler() {
+                @Override
+                public void handlePacket(ByteBuffer packet) {
+                    byte[] copy = new byte[packet.remaining()];
+                    packet.get(copy);
+                    packets.add(copy);
+                }
+            }, 16);
+        }
+        return packets;
+    }
+
+    /**
+     * Test that packets are dropped instead of blocking if the ring is full.
+     */
+    public void testDropWhenFull() {
+        PcapDumper dumper = new PcapDumper(new File(directory, "full").getPath(),
+                PcapDumper.LINKTYPE_RAW, 4, 64, 1024, 1);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(dumper.offer(packet(i, 10), 0, 10));
+        }
+        assertFalse(dumper.offer(packet(4, 10), 0, 10));
+        assertFalse(dumper.offer(ByteBuffer.wrap(packet(5, 10))));
+        assertEquals(2, dumper.getDropped());
+    }
+
+    /**
+     * Test that packets are truncated to snaplen and written to rotating
+     * files which can be read by PcapFileIF.
+     */
+    public void testRotatingFiles() throws Exception {
+        //header 24 bytes, each record 16 + 32 bytes: 3 records per file
+        PcapDumper dumper = new PcapDumper(new File(directory, "eth0").getPath(),
+                PcapDumper.LINKTYPE_ETHERNET, 16, 32, 24 + 3 * 48, 2);
+        for (int i = 0; i < 9; i++) {
+            assertTrue(dumper.offer(packet(i, 40), 0, 40));
+        }
+        Thread dumperThread = new Thread(dumper, dumper.getTaskName());
+        dumperThread.start();
+        dumper.shutdown();
+        dumperThread.join(5000);
+        assertFalse(dumperThread.isAlive());
+        assertEquals(9, dumper.getWritten());
+        assertEquals(0, dumper.getDropped());
+
+        assertFalse(new File(directory, "eth0-0.pcap").exists());
+        List<byte[]> packets = readAll(new File(directory, "eth0-1.pcap"));
+        packets.addAll(readAll(new File(directory, "eth0-2.pcap")));
+        assertEquals(6, packets.size());
+        for (int i = 0; i < 6; i++) {
+            assertEquals(32, packets.get(i).length);
+            assertEquals(i + 3, packets.get(i)[0]);
+        }
+    }
+
+    /**
+     * Test that a new run continues after the files of an earlier run and
+     * removes the oldest files.
+     */
+    public void testContinueAfterEarlierRun() throws Exception {
+        for (int run = 0; run < 2; run++) {
+            //one record per file
+            PcapDumper dumper = new PcapDumper(new File(directory, "eth0").getPath(),
+                    PcapDumper.LINKTYPE_ETHERNET, 16, 32, 24 + 48, 2);
+            for (int i = 0; i < 2; i++) {
+                assertTrue(dumper.offer(packet(run * 2 + i, 40), 0, 40));
+            }
+            Thread dumperThread = new Thread(dumper, dumper.getTaskName());
+            dumperThread.start();
+            dumper.shutdown();
+            dumperThread.join(5000);
+            assertFalse(dumperThread.isAlive());
+        }
+        //a file of another dumper with a longer prefix is not touched
+        assertTrue(new File(directory, "eth0-peer-0.pcap").createNewFile());
+        assertEquals(3, directory.listFiles().length);
+        assertFalse(new File(directory, "eth0-1.pcap").exists());
+        assertEquals(2, readAll(new File(directory, "eth0-2.pcap")).get(0)[0]);
+        assertEquals(3, readAll(new File(directory, "eth0-3.pcap")).get(0)[0]);
+    }
+
+    /**
+     * Test that a tap passes packets through and dumps only filtered and
+     * sampled packets.
+     */
+    public void testTapFilterAndSampling() throws Exception {
+        final List<Integer> writes = new ArrayList<Integer>();
+        IFWriter writer = new IFWriter() {
+            @Override
+            public int write(byte[] buffer, int nbytes) {
+                writes.add((int) buffer[0]);
+                return nbytes;
+            }
+
+            @Override
+            public String getName() {
+                return "tun0";
+            }
+        };
+        PcapDumper dumper = new PcapDumper(new File(directory, "tun0").getPath(),
+                PcapDumper.LINKTYPE_RAW, 16, 64, 1024 * 1024, 1);
+        //dump only packets with even content, every second of them
+        PacketFilter even = new PacketFilter() {
+            @Override
+            public boolean accept(ByteBuffer packet) {
+                return packet.get(packet.position()) % 2 == 0;
+            }
+        };
+        TapIF tap = new TapIF(writer, dumper, even, 2);
+        for (int i = 0; i < 8; i++) {
+            assertEquals(20, tap.write(packet(i, 20), 20));
+        }
+        assertEquals(8, writes.size());
+        assertEquals("tun0", tap.getName());
+
+        Thread dumperThread = new Thread(dumper, dumper.getTaskName());
+        dumperThread.start();
+        dumper.shutdown();
+        dumperThread.join(5000);
+        List<byte[]> packets = readAll(new File(directory, "tun0-0.pcap"));
+        assertEquals(2, packets.size());
+        assertEquals(2, packets.get(0)[0]);
+        assertEquals(6, packets.get(1)[0]);
+    }
+
+    /**
+     * Test that a tap only dumps packets which were written successfully.
+     */
+    public void testTapFailedWrites() throws Exception {
+        IFBufferWriter writer = new IFBufferWriter() {
+            @Override
+            public int write(byte[] buffer, int nbytes) {
+                return buffer[0] % 2 == 0 ? nbytes : -1;
+            }
+
+            @Override
+            public int write(ByteBuffer packet) {
+                if (packet.get(packet.position()) % 2 != 0) {
+                    return -1;
+                }
+                int length = packet.remaining();
+                packet.position(packet.limit());
+                return length;
+            }
+
+            @Override
+            public int write(ByteBuffer[] packets, int offset, int length) {
+                for (int i = 0; i < length; i++) {
+                    if (write(packets[offset + i]) < 0) {
+                        return i;
+                    }
+                }
+                return length;
+            }
+
+            @Override
+            public String getName() {
+                return "tun0";
+            }
+        };
+        PcapDumper dumper = new PcapDumper(new File(directory, "tun0").getPath(),
+                PcapDumper.LINKTYPE_RAW, 16, 64, 1024 * 1024, 1);
+        TapIF tap = new TapIF(writer, dumper);
+        assertEquals(20, tap.write(packet(0, 20), 20));
+        assertEquals(-1, tap.write(packet(1, 20), 20));
+        assertEquals(20, tap.write(ByteBuffer.wrap(packet(2, 20))));
+        assertEquals(-1, tap.write(ByteBuffer.wrap(packet(3, 20))));
+        ByteBuffer[] packets = {ByteBuffer.wrap(packet(4, 20)), ByteBuffer.wrap(packet(5, 20)),
+            ByteBuffer.wrap(packet(6, 20))};
+        assertEquals(1, tap.write(packets, 0, 3));
+
+        Thread dumperThread = new Thread(dumper, dumper.getTaskName());
+        dumperThread.start();
+        dumper.shutdown();
+        dumperThread.join(5000);
+        List<byte[]> dumped = readAll(new File(directory, "tun0-0.pcap"));
+        assertEquals(3, dumped.size());
+        assertEquals(0, dumped.get(0)[0]);
+        assertEquals(2, dumped.get(1)[0]);
+        assertEquals(4, dumped.get(2)[0]);
+        assertEquals(20, dumped.get(2).length);
+    }
+}
@@ -0,0 +1,232 @@
+/**
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ * Test the replay of pcap and pcapng files by PcapFileIF.
+ */
+public class PcapFileIFTest extends TestCase {
+
+    List<byte[]> handled;
+    PacketHandler handler = new PacketHandler() {
+        @Override
+        public void handlePacket(ByteBuffer packet) {
+            byte[] frame = new byte[packet.remaining()];
+            packet.get(frame);
+            handled.add(frame);
+        }
+    };
+
+    public PcapFileIFTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        handled = new ArrayList<byte[]>();
+    }
+
+    /**
+     * Builds a pcap file with microsecond timestamps, one frame per entry
+     * of lengths, the content of a frame is its index.
+     */
+    private static ByteBuffer pcapFile(ByteOrder order, int[] lengths, long[] micros) {
+        ByteBuffer file = ByteBuffer.allocate(4096).order(order);
+        file.putInt(0xA1B2C3D4);
+        file.putShort((short) 2).putShort((short) 4);
+        file.putInt(0).putInt(0).putInt(65535).putInt(1);
+        for (int i = 0; i < lengths.length; i++) {
+            file.putInt((int) (micros[i] / 1000000)).putInt((int) (micros[i] % 1000000));
+            file.putInt(lengths[i]).putInt(lengths[i]);
+            for (int j = 0; j < lengths[i]; j++) {
+                file.put((byte) i);
+            }
+        }
+        file.flip();
+        return file;
+    }
+
+    private static void block(ByteBuffer file, int type, byte[] body) {
+        int length = 12 + ((body.length + 3) & ~3);
+        file.putInt(type).putInt(length);
+        file.put(body);
+        file.position(file.position() + ((4 - body.length % 4) % 4));
+        file.putInt(length);
+    }
+
+    private static byte[] enhancedPacket(ByteOrder order, long timestamp, int length, int content) {
+        ByteBuffer body = ByteBuffer.allocate(20 + length).order(order);
+        body.putInt(0).putInt((int) (timestamp >>> 32)).putInt((int) timestamp);
+        body.putInt(length).putInt(length);
+        for (int j = 0; j < length; j++) {
+            body.put((byte) content);
+        }
+        return body.array();
+    }
+
+    /**
+     * Builds a pcapng file with a interface with nanosecond timestamps,
+     * two enhanced packet blocks, a unknown block and a simple packet block.
+     */
+    private static ByteBuffer pcapngFile(ByteOrder order, long secondTimestamp) {
+        ByteBuffer file = ByteBuffer.allocate(4096).order(order);
+        ByteBuffer shb = ByteBuffer.allocate(16).order(order);
+        shb.putInt(0x1A2B3C4D).putShort((short) 1).putShort((short) 0).putLong(-1);
+        block(file, 0x0A0D0D0A, shb.array());
+        ByteBuffer idb = ByteBuffer.allocate(20).order(order);
+        //link type ethernet, snaplen, if_tsresol = 9, end of options
+        idb.putShort((short) 1).putShort((short) 0).putInt(65535);
+        idb.putShort((short) 9).putShort((short) 1).put((byte) 9).put(new byte[3]);
+        idb.putShort((short) 0).putShort((short) 0);
+        block(file, 1, idb.array());
+        block(file, 6, enhancedPacket(order, 1000000000L, 61, 0));
+        block(file, 0x0BAD, new byte[8]);
+        block(file, 6, enhancedPacket(order, 1000000000L + secondTimestamp, 30, 1));
+        ByteBuffer spb = ByteBuffer.allocate(4 + 15).order(order);
+        spb.putInt(15).put(new byte[15]);
+        block(file, 3, spb.array());
+        file.flip();
+        return file;
+    }
+
+    /**
+     * Test of read method with pcap files, of class PcapFileIF.
+     */
+    public void testPcap() throws Exception {
+        for (ByteOrder order : new ByteOrder[] {ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN}) {
+            handled.clear();
+            PcapFileIF instance = new PcapFileIF("test.pcap",
+                    pcapFile(order, new int[] {60, 14, 100}, new long[] {0, 10, 20}), 0, false);
+            instance.setNonBlocking();
+            assertEquals(2, instance.read(handler, 2));
+            assertEquals(1, instance.read(handler, 2));
+            assertEquals(0, instance.read(handler, 2));
+            assertTrue(instance.isFinished());
+            assertEquals(3, instance.getPacketCount());
+            assertEquals(60, handled.get(0).length);
+            assertEquals(14, handled.get(1).length);
+            assertEquals(2, handled.get(2)[99]);
+        }
+    }
+
+    /**
+     * Test of read method with pcapng files, of class PcapFileIF.
+     */
+    public void testPcapng() throws Exception {
+        for (ByteOrder order : new ByteOrder[] {ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN}) {
+            handled.clear();
+            PcapFileIF instance = new PcapFileIF("test.pcapng", pcapngFile(order, 0), 0, false);
+            instance.setNonBlocking();
+            assertEquals(3, instance.read(handler, 10));
+            assertEquals(61, handled.get(0).length);
+            assertEquals(30, handled.get(1).length);
+            assertEquals(1, handled.get(1)[29]);
+            assertEquals(15, handled.get(2).length);
+            assertTrue(instance.isFinished());
+        }
+    }
+
+    /**
+     * Test of timestamp faithful replay, of class PcapFileIF.
+     */
+    public void testReplaySpeed() throws Exception {
+        //frames are 200 ms apart (nanosecond timestamps), replayed twice as fast
+        PcapFileIF instance = new PcapFileIF("test.pcapng", pcapngFile(ByteOrder.BIG_ENDIAN, 200000000L),
+                2, false);
+        long start = System.nanoTime();
+        assertEquals(1, instance.read(handler, 10));
+        //the second frame is not due yet, the first one is returned at once
+        assertTrue(System.nanoTime() - start < 90000000L);
+        assertEquals(2, instance.read(handler, 10));
+        long elapsed = System.nanoTime() - start;
+        assertTrue("replay took " + elapsed + " ns", elapsed >= 100000000L && elapsed < 1000000000L);
+
+        //frames 10 s apart are not due in non-blocking mode
+        instance = new PcapFileIF("test.pcap",
+                pcapFile(ByteOrder.BIG_ENDIAN, new int[] {60, 60}, new long[] {0, 10000000}), 1, false);
+        instance.setNonBlocking();
+        assertEquals(1, instance.read(handler, 10));
+        assertEquals(0, instance.read(handler, 10));
+        assertFalse(instance.isFinished());
+    }
+
+    /**
+     * Test of loop mode, of class PcapFileIF.
+     */
+    public void testLoop() throws Exception {
+        PcapFileIF instance = new PcapFileIF("test.pcap",
+                pcapFile(ByteOrder.LITTLE_ENDIAN, new int[] {60, 70, 80}, new long[] {0, 1, 2}), 0, true);
+        assertEquals(7, instance.read(handler, 7));
+        assertEquals(2, instance.getLoopCount());
+        assertEquals(60, handled.get(6).length);
+        assertFalse(instance.isFinished());
+
+        //a file without frames is not looped
+        instance = new PcapFileIF("empty.pcap", pcapFile(ByteOrder.BIG_ENDIAN, new int[0], new long[0]), 0, true);
+        instance.setNonBlocking();
+        assertEquals(0, instance.read(handler, 7));
+        assertTrue(instance.isFinished());
+    }
+
+    /**
+     * Test of reading a mapped file, of class PcapFileIF.
+     */
+    public void testFile() throws Exception {
+        File file = File.createTempFile("PcapFileIFTest", ".pcap");
+        try {
+            ByteBuffer content = pcapFile(ByteOrder.LITTLE_ENDIAN, new int[] {60, 40}, new long[] {0, 1});
+            FileOutputStream out = new FileOutputStream(file);
+            out.write(content.array(), 0, content.limit());
+            out.close();
+            PcapFileIF instance = new PcapFileIF(file.getPath());
+            byte[] buffer = new byte[50];
+            //frames are truncated to the buffer size
+            assertEquals(50, instance.read(buffer, buffer.length));
+            assertEquals(40, instance.read(buffer, buffer.length));
+            assertEquals(1, buffer[39]);
+
+            out = new FileOutputStream(file);
+            out.write(new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+            out.close();
+            try {
+                new PcapFileIF(file.getPath());
+                fail("IOException expected");
+            } catch (IOException e) {
+                //no pcap file
+            }
+        } finally {
+            file.delete();
+        }
+    }
+}
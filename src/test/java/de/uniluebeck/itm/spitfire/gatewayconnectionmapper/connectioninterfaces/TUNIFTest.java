@@ -0,0 +1,93 @@
+/**
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces;
+
+import de.uniluebeck.itm.spitfire.gatewayconnectionmapper.protocol.EthernetFrame;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+import junit.framework.TestCase;
+
+import static de.uniluebeck.itm.spitfire.gatewayconnectionmapper.TestPackets.*;
+import static de.uniluebeck.itm.spitfire.gatewayconnectionmapper.protocol.Tools.*;
+
+/**
+ * Test the flow hash used to spread packets across TUN queues.
+ */
+public class TUNIFTest extends TestCase {
+
+
+    public TUNIFTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * Test of flowHash method, of class TUNIF.
+     */
+    public void testFlowHash() throws Exception {
+        byte[] packet = new EthernetFrame(udpPacket()).getPayload();
+        int hash = TUNIF.flowHash(packet, packet.length);
+
+        //payload does not change the hash
+        byte[] otherPayload = copyArray(packet);
+        otherPayload[50] ^= 0xFF;
+        assertEquals(hash, TUNIF.flowHash(otherPayload, otherPayload.length));
+
+        //source ports spread across queues
+        Set<Integer> queues = new HashSet<Integer>();
+        for (int port = 40000; port < 40064; port++) {
+            byte[] p = copyArray(packet);
+            p[40] = (byte) (port >> 8);
+            p[41] = (byte) port;
+            queues.add((TUNIF.flowHash(p, p.length) & 0x7FFFFFFF) % 4);
+        }
+        assertEquals(4, queues.size());
+
+        //packets too short for a IPv6Packet header
+        assertEquals(0, TUNIF.flowHash(packet, 39));
+    }
+
+    /**
+     * Test that the flow hash of a packet in a ByteBuffer equals the hash
+     * of the same packet in a byte array.
+     */
+    public void testFlowHashByteBuffer() throws Exception {
+        byte[] packet = new EthernetFrame(udpPacket()).getPayload();
+        int hash = TUNIF.flowHash(packet, packet.length);
+
+        //slice of a heap buffer
+        assertEquals(hash, TUNIF.flowHash(ByteBuffer.wrap(udpPacket(), 14, packet.length)));
+
+        //direct buffer with the packet at position 7
+        ByteBuffer direct = ByteBuffer.allocateDirect(packet.length + 7);
+        direct.position(7);
+        direct.put(packet);
+        direct.position(7);
+        assertEquals(hash, TUNIF.flowHash(direct));
+        assertEquals(7, direct.position());
+
+        assertEquals(0, TUNIF.flowHash(ByteBuffer.wrap(packet, 0, 39)));
+    }
+}
@@ -0,0 +1,224 @@
+/**
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import junit.framework.TestCase;
+
+/**
+ * Test TUNWriter.
+ */
+public class TUNWriterTest extends TestCase {
+
+    public TUNWriterTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * Records the written packets and the number of batch writes.
+     */
+    private static class RecordingIF implements IFBufferWriter {
+        final List<byte[]> packets = new ArrayList<byte[]>();
+        int batches = 0;
+        CountDownLatch blocked = null;
+        //packets starting with this byte are rejected, -1 to accept all
+        int rejected = -1;
+
+        @Override
+        public synchronized int write(ByteBuffer packet) {
+            byte[] copy = new byte[packet.remaining()];
+            packet.get(copy);
+            packets.add(copy);
+            notifyAll();
+            return copy.length;
+        }
+
+        @Override
+        public int write(ByteBuffer[] packets, int offset, int length) {
+            try {
+                if (blocked != null) {
+                    blocked.await();
+                }
+            } catch (InterruptedException ex) {
+                return 0;
+            }
+            synchronized (this) {
+                batches++;
+                //stops at the first rejected packet, like TUNIF
+                for (int i = 0; i < length; i++) {
+                    ByteBuffer packet = packets[offset + i];
+                    if (packet.get(packet.position()) == rejected) {
+                        return i;
+                    }
+                    write(packet);
+                }
+            }
+            return length;
+        }
+
+        @Override
+        public int write(byte[] buffer, int nbytes) {
+            return write(ByteBuffer.wrap(buffer, 0, nbytes));
+        }
+
+        synchronized void await(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (packets.size() < count && System.currentTimeMillis() < deadline) {
+                wait(100);
+            }
+            assertEquals(count, packets.size());
+        }
+
+        @Override
+        public String getName() {
+            return "recording";
+        }
+    }
+
+    /**
+     * Test that the packets of concurrent writers are written in batches
+     * and keep their order per writer.
+     */
+    public void testConcurrentWriters() throws Exception {
+        RecordingIF tun = new RecordingIF();
+        final TUNWriter writer = new TUNWriter(tun, 256, 16, 32, 1000, WaitStrategy.BLOCKING);
+        Thread writerThread = new Thread(writer, writer.getTaskName());
+        writerThread.start();
+        final int count = 5000;
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 3; i++) {
+            final int producer = i;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    ByteBuffer packet = ByteBuffer.allocate(3);
+                    for (int sequence = 0; sequence < count; sequence++) {
+                        packet.clear();
+                        packet.put((byte) producer).putShort((short) sequence).flip();
+                        assertEquals(3, writer.write(packet));
+                        assertFalse(packet.hasRemaining());
+                        if (sequence % 8 == 7) {
+                            writer.flush();
+                        }
+                    }
+                    writer.flush();
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        tun.await(3 * count);
+        int[] next = new int[3];
+        synchronized (tun) {
+            for (byte[] packet : tun.packets) {
+                int sequence = ByteBuffer.wrap(packet).getShort(1) & 0xFFFF;
+                assertEquals(next[packet[0]]++, sequence);
+            }
+            assertTrue(tun.batches < 3 * count);
+        }
+        assertEquals(0, writer.getDropped());
+        writer.shutdown();
+        writerThread.join(10000);
+        assertFalse(writerThread.isAlive());
+        assertEquals(3 * count, writer.getWritten());
+    }
+
+    /**
+     * Test that writers wait and finally drop packets if the TUN interface
+     * does not keep up.
+     */
+    public void testBackpressure() throws Exception {
+        RecordingIF tun = new RecordingIF();
+        tun.blocked = new CountDownLatch(1);
+        TUNWriter writer = new TUNWriter(tun, 4, 16, 4, 10, WaitStrategy.BLOCKING);
+        Thread writerThread = new Thread(writer, writer.getTaskName());
+        writerThread.setDaemon(true);
+        writerThread.start();
+        byte[] packet = new byte[8];
+        int written = 0;
+        for (int i = 0; i < 20; i++) {
+            if (writer.write(packet, packet.length) > 0) {
+                written++;
+            }
+            writer.flush();
+        }
+        //at most one batch is taken by the blocked writer thread
+        assertTrue(written <= 8);
+        assertEquals(20 - written, writer.getDropped());
+        assertTrue(writer.getStalls() > 0);
+        assertTrue(writer.getPending() > 0);
+
+        tun.blocked.countDown();
+        tun.await(written);
+        //the slots are released after the batch was written
+        long deadline = System.currentTimeMillis() + 10000;
+        while (writer.getPending() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(0, writer.getPending());
+        //writes succeed again
+        assertEquals(8, writer.write(ByteBuffer.wrap(packet)));
+        writer.flush();
+        tun.await(written + 1);
+    }
+
+    /**
+     * Test that a rejected packet only drops itself, not the rest of its
+     * batch.
+     */
+    public void testRejectedPacket() throws Exception {
+        RecordingIF tun = new RecordingIF();
+        tun.rejected = 2;
+        tun.blocked = new CountDownLatch(1);
+        TUNWriter writer = new TUNWriter(tun, 16, 16, 8, 1000, WaitStrategy.BLOCKING);
+        Thread writerThread = new Thread(writer, writer.getTaskName());
+        writerThread.start();
+        //the packets are queued while the interface is blocked, so most
+        //of them are written in one batch
+        for (int i = 0; i < 6; i++) {
+            assertEquals(1, writer.write(new byte[]{(byte) (i % 3)}, 1));
+        }
+        writer.flush();
+        tun.blocked.countDown();
+        tun.await(4);
+        writer.shutdown();
+        writerThread.join(10000);
+        assertFalse(writerThread.isAlive());
+        assertEquals(4, writer.getWritten());
+        assertEquals(2, writer.getFailed());
+        synchronized (tun) {
+            int[] expected = {0, 1, 0, 1};
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals(expected[i], tun.packets.get(i)[0]);
+            }
+        }
+    }
+}
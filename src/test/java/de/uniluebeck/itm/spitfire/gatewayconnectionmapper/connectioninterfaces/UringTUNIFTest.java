@@ -0,0 +1,318 @@
+/**
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.uniluebeck.itm.spitfire.gatewayconnectionmapper.connectioninterfaces;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ * Test the batching of UringTUNIF with rings which are simulated in memory.
+ */
+public class UringTUNIFTest extends TestCase {
+
+    static final long READ_RING = 1;
+    static final long WRITE_RING = 2;
+    static final int READ_SLOT_COUNT = 8;
+    static final int WRITE_SLOT_COUNT = 4;
+    static final int SLOT_BYTES = 64;
+
+    ByteBuffer readBuffer;
+    ByteBuffer writeBuffer;
+    //queued requests: ring, slot, length
+    List<long[]> queued;
+    //read slots which are in flight
+    LinkedList<Integer> readsInFlight;
+    //packets which arrived before a read was in flight
+    LinkedList<byte[]> incoming;
+    List<int[]> readCompletions;
+    List<int[]> writeCompletions;
+    //packets written by the simulated kernel and by the fallback
+    List<byte[]> written;
+    List<byte[]> writtenDirectly;
+    int readSubmits;
+    int writeSubmits;
+    //number of following writes which complete with EIO
+    int failingWrites;
+    int oldWriteBatch;
+    UringTUNIF instance;
+    List<byte[]> handled;
+    PacketHandler handler = new PacketHandler() {
+        @Override
+        public void handlePacket(ByteBuffer packet) {
+            byte[] data = new byte[packet.remaining()];
+            packet.get(data);
+            handled.add(data);
+        }
+    };
+
+    public UringTUNIFTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        readBuffer = ByteBuffer.allocate(READ_SLOT_COUNT * SLOT_BYTES);
+        writeBuffer = ByteBuffer.allocate(WRITE_SLOT_COUNT * SLOT_BYTES);
+        queued = new ArrayList<long[]>();
+        readsInFlight = new LinkedList<Integer>();
+        incoming = new LinkedList<byte[]>();
+        readCompletions = new ArrayList<int[]>();
+        writeCompletions = new ArrayList<int[]>();
+        written = new ArrayList<byte[]>();
+        writtenDirectly = new ArrayList<byte[]>();
+        handled = new ArrayList<byte[]>();
+        readSubmits = 0;
+        writeSubmits = 0;
+        failingWrites = 0;
+        oldWriteBatch = UringTUNIF.WRITE_BATCH;
+        IFWriter tun = new IFWriter() {
+            @Override
+            public int write(byte[] buffer, int nbytes) {
+                byte[] packet = new byte[nbytes];
+                System.arraycopy(buffer, 0, packet, 0, nbytes);
+                writtenDirectly.add(packet);
+                return nbytes;
+            }
+
+            @Override
+            public String getName() {
+                return "tun0";
+            }
+        };
+        instance = new UringTUNIF(tun, 3, READ_RING, readBuffer, READ_SLOT_COUNT,
+                WRITE_RING, writeBuffer, WRITE_SLOT_COUNT, SLOT_BYTES) {
+            @Override
+            boolean prepare(long ring, boolean write, int slot, int length) {
+                assertEquals(ring == WRITE_RING, write);
+                queued.add(new long[] {ring, slot, length});
+                return true;
+            }
+
+            @Override
+            int submit(long ring, int minComplete) {
+                int submitted = 0;
+                for (long[] request : new ArrayList<long[]>(queued)) {
+                    if (request[0] != ring) {
+                        continue;
+                    }
+                    queued.remove(request);
+                    submitted++;
+                    int slot = (int) request[1];
+                    if (ring == WRITE_RING) {
+                        byte[] packet = new byte[(int) request[2]];
+                        System.arraycopy(writeBuffer.array(), slot * SLOT_BYTES, packet, 0, packet.length);
+                        if (failingWrites > 0) {
+                            failingWrites--;
+                            writeCompletions.add(new int[] {slot, -5});
+                        } else {
+                            written.add(packet);
+                            writeCompletions.add(new int[] {slot, packet.length});
+                        }
+                    } else {
+                        readsInFlight.add(slot);
+                    }
+                }
+                if (ring == WRITE_RING) {
+                    writeSubmits++;
+                } else {
+                    readSubmits++;
+                    while (!incoming.isEmpty() && !readsInFlight.isEmpty()) {
+                        complete(incoming.removeFirst());
+                    }
+                }
+                assertTrue(minComplete <= (ring == WRITE_RING ? writeCompletions : readCompletions).size());
+                return submitted;
+            }
+
+            @Override
+            int reap(long ring, int[] completions) {
+                List<int[]> available = ring == WRITE_RING ? writeCompletions : readCompletions;
+                int count = 0;
+                while (!available.isEmpty() && count < completions.length / 2) {
+                    int[] completion = available.remove(0);
+                    completions[2 * count] = completion[0];
+                    completions[2 * count + 1] = completion[1];
+                    count++;
+                }
+                return count;
+            }
+        };
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        UringTUNIF.WRITE_BATCH = oldWriteBatch;
+    }
+
+    /**
+     * Completes a read which is in flight with packet.
+     */
+    private void complete(byte[] packet) {
+        int slot = readsInFlight.removeFirst();
+        System.arraycopy(packet, 0, readBuffer.array(), slot * SLOT_BYTES, packet.length);
+        readCompletions.add(new int[] {slot, packet.length});
+    }
+
+    private static byte[] packet(int length, int content) {
+        byte[] packet = new byte[length];
+        for (int i = 0; i < length; i++) {
+            packet[i] = (byte) content;
+        }
+        return packet;
+    }
+
+    /**
+     * Test of write and flush methods, of class UringTUNIF.
+     */
+    public void testBatchedWrites() throws Exception {
+        UringTUNIF.WRITE_BATCH = 3;
+        //writes of threads which call flush are batched
+        assertEquals(0, instance.flush());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(20 + i, instance.write(packet(20 + i, i), 20 + i));
+        }
+        //a submission per WRITE_BATCH packets, slots are reused
+        assertEquals(3, writeSubmits);
+        assertEquals(9, written.size());
+        instance.flush();
+        assertEquals(4, writeSubmits);
+        assertEquals(10, written.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(20 + i, written.get(i).length);
+            assertEquals(i, written.get(i)[19]);
+        }
+        //nothing to submit
+        instance.flush();
+        assertEquals(4, writeSubmits);
+
+        //packets which do not fit in a slot are written directly after
+        //the queued packets were submitted
+        instance.write(packet(10, 1), 10);
+        instance.write(packet(SLOT_BYTES + 1, 2), SLOT_BYTES + 1);
+        assertEquals(11, written.size());
+        assertEquals(1, writtenDirectly.size());
+        assertEquals(SLOT_BYTES + 1, writtenDirectly.get(0).length);
+        long[] stats = instance.getStatistics();
+        assertEquals(11, stats[2]);
+        assertEquals(5, stats[3]);
+    }
+
+    /**
+     * Writers which never call flush are not batched.
+     */
+    public void testUnbatchedWrites() throws Exception {
+        assertEquals(20, instance.write(packet(20, 1), 20));
+        assertEquals(1, writeSubmits);
+        assertEquals(1, written.size());
+        //the completion is returned
+        failingWrites = 1;
+        assertEquals(-1, instance.write(ByteBuffer.wrap(packet(30, 2))));
+        assertEquals(2, writeSubmits);
+        assertEquals(1, written.size());
+        assertEquals(1, instance.getStatistics()[4]);
+    }
+
+    /**
+     * Failed completions are returned by the next flush or batch write.
+     */
+    public void testFailedWrites() throws Exception {
+        instance.flush();
+        instance.write(packet(20, 1), 20);
+        failingWrites = 1;
+        instance.write(packet(20, 2), 20);
+        instance.write(packet(20, 3), 20);
+        assertEquals(1, instance.flush());
+        assertEquals(2, written.size());
+        assertEquals(3, written.get(1)[0]);
+        assertEquals(0, instance.flush());
+
+        //packets after the failed packet are still written
+        ByteBuffer[] packets = new ByteBuffer[3];
+        for (int i = 0; i < packets.length; i++) {
+            packets[i] = ByteBuffer.wrap(packet(20, 4 + i));
+        }
+        failingWrites = 1;
+        assertEquals(2, instance.write(packets, 0, packets.length));
+        assertEquals(4, written.size());
+        assertEquals(6, written.get(3)[0]);
+        assertEquals(0, packets[2].remaining());
+        assertEquals(0, instance.flush());
+        assertEquals(2, instance.getStatistics()[4]);
+    }
+
+    /**
+     * Test of read method, of class UringTUNIF.
+     */
+    public void testBatchedReads() throws Exception {
+        incoming.add(packet(40, 1));
+        incoming.add(packet(50, 2));
+        incoming.add(packet(60, 3));
+        //all reads are submitted and completed with a single submission
+        assertEquals(3, instance.read(handler, 10));
+        assertEquals(1, readSubmits);
+        assertEquals(3, handled.size());
+        assertEquals(50, handled.get(1).length);
+        assertEquals(3, handled.get(2)[59]);
+
+        //completions are processed in several batches without submissions
+        complete(packet(10, 4));
+        assertEquals(1, instance.read(handler, 1));
+        assertEquals(1, readSubmits);
+        //the slots of the processed reads are queued again and
+        //submitted with the next wait
+        incoming.add(packet(20, 5));
+        incoming.add(packet(30, 6));
+        incoming.add(packet(40, 7));
+        assertEquals(3, instance.read(handler, 10));
+        assertEquals(2, readSubmits);
+        //slots of the last batch wait for the next submission
+        assertEquals(3, queued.size());
+        assertEquals(7, handled.get(6)[39]);
+
+        byte[] buffer = new byte[25];
+        incoming.add(packet(30, 8));
+        //packets are truncated to the buffer size
+        assertEquals(25, instance.read(buffer, buffer.length));
+        assertEquals(8, buffer[24]);
+        long[] stats = instance.getStatistics();
+        assertEquals(8, stats[0]);
+        assertEquals(3, stats[1]);
+    }
+
+    /**
+     * Packets which fill a whole slot may be truncated and are dropped.
+     */
+    public void testOversizedReads() throws Exception {
+        incoming.add(packet(SLOT_BYTES, 1));
+        incoming.add(packet(SLOT_BYTES - 1, 2));
+        assertEquals(1, instance.read(handler, 10));
+        assertEquals(1, handled.size());
+        assertEquals(SLOT_BYTES - 1, handled.get(0).length);
+        assertEquals(1, instance.getStatistics()[5]);
+    }
+}
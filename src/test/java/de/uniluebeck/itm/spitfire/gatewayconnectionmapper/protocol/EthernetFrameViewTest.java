@@ -0,0 +1,79 @@
+/**
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.uniluebeck.itm.spitfire.gatewayconnectionmapper.protocol;
+
+import java.util.Arrays;
+import junit.framework.TestCase;
+import static de.uniluebeck.itm.spitfire.gatewayconnectionmapper.protocol.Tools.*;
+
+/**
+ * Test the in place ethernet frame view
+ */
+public class EthernetFrameViewTest extends TestCase {
+
+    byte[] org = getByteArrayFromString("3333ff0000220800270026c386dd"
+            + "6000000000203afffc000000000000000000000000000021ff020000000"
+            + "0000000000001ff00002287002b7500000000fc00000000000000000000"
+            + "000000002201010800270026c3");
+
+    public EthernetFrameViewTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * Test of getSourceMac and getDestinationMac methods, of class EthernetFrameView.
+     */
+    public void testMacAddresses() throws Exception {
+        EthernetFrameView instance = new EthernetFrameView(org, org.length);
+        assertEquals(getHWaddrAsLong(getHWaddrAsBytes("08:00:27:00:26:c3")), instance.getSourceMac());
+        assertEquals(getHWaddrAsLong(getHWaddrAsBytes("33:33:ff:00:00:22")), instance.getDestinationMac());
+    }
+
+    /**
+     * Test of isIPv6 method, of class EthernetFrameView.
+     */
+    public void testIsIPv6() throws Exception {
+        assertTrue(new EthernetFrameView(org, org.length).isIPv6());
+        byte[] arp = copyArray(org);
+        arp[12] = 0x08;
+        arp[13] = 0x06;
+        assertFalse(new EthernetFrameView(arp, arp.length).isIPv6());
+        //incomplete frames are never IPv6
+        assertFalse(new EthernetFrameView(org, 13).isIPv6());
+        assertFalse(new EthernetFrameView(org, 0).isIPv6());
+    }
+
+    /**
+     * Test of getPayloadOffset and getPayloadLength methods, of class EthernetFrameView.
+     */
+    public void testPayload() throws Exception {
+        EthernetFrameView instance = new EthernetFrameView(org, org.length);
+        IPv6Packet expected = new IPv6Packet(new EthernetFrame(org).getPayload());
+        IPv6Packet result = new IPv6Packet(org, instance.getPayloadOffset(), instance.getPayloadLength());
+        assertEquals(expected.getSourceIP(), result.getSourceIP());
+        assertEquals(expected.getDestIP(), result.getDestIP());
+        assertTrue(Arrays.equals(expected.encode(), result.encode()));
+    }
+}
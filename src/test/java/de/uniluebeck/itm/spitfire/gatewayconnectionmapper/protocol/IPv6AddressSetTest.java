@@ -0,0 +1,75 @@
+/**
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.uniluebeck.itm.spitfire.gatewayconnectionmapper.protocol;
+
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ * Test the open-addressed IPv6 address set
+ */
+public class IPv6AddressSetTest extends TestCase {
+
+    public IPv6AddressSetTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * Test of contains methods, of class IPv6AddressSet.
+     */
+    public void testContains() throws Exception {
+        List<IPv6Address> addresses = new ArrayList<IPv6Address>();
+        for (int i = 1; i <= 100; i++) {
+            addresses.add(IPv6Address.getByName("fc00::" + Integer.toHexString(i)));
+        }
+        addresses.add(IPv6Address.getByName("fc00::1"));
+        IPv6AddressSet instance = new IPv6AddressSet(addresses);
+        assertEquals(100, instance.size());
+        for (int i = 1; i <= 100; i++) {
+            assertTrue(instance.contains(IPv6Address.getByName("fc00::" + Integer.toHexString(i))));
+        }
+        assertFalse(instance.contains(IPv6Address.getByName("fc00::1000")));
+        assertFalse(instance.contains(IPv6Address.getByName("fd00::1")));
+        assertFalse(instance.contains(IPv6Address.getByName("::")));
+
+        byte[] packet = new byte[48];
+        System.arraycopy(IPv6Address.getByName("fc00::42").getBytes(), 0, packet, 32, 16);
+        assertTrue(instance.contains(packet, 32));
+        assertFalse(instance.contains(packet, 16));
+    }
+
+    /**
+     * Test of with method, of class IPv6AddressSet.
+     */
+    public void testWith() throws Exception {
+        List<IPv6Address> toAdd = new ArrayList<IPv6Address>();
+        toAdd.add(IPv6Address.getByName("fc00::11"));
+        IPv6AddressSet instance = IPv6AddressSet.EMPTY.with(toAdd);
+        assertEquals(0, IPv6AddressSet.EMPTY.size());
+        assertFalse(IPv6AddressSet.EMPTY.contains(IPv6Address.getByName("fc00::11")));
+        assertTrue(instance.contains(IPv6Address.getByName("fc00::11")));
+    }
+}
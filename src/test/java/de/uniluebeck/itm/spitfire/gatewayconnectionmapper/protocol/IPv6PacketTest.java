@@ -0,0 +1,112 @@
+/**
+ * Copyright (c) 2012, all partners of project SPITFIRE (http://www.spitfire-project.eu)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ *    disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *  - Neither the name of the University of Luebeck nor the names of its contributors may be used to endorse or promote
+ *    products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.uniluebeck.itm.spitfire.gatewayconnectionmapper.protocol;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import junit.framework.TestCase;
+import static de.uniluebeck.itm.spitfire.gatewayconnectionmapper.protocol.Tools.*;
+
+/**
+ * Test decoding and encoding of IPv6 packets with extension headers
+ */
+public class IPv6PacketTest extends TestCase {
+
+    //UDP packet without extension headers
+    byte[] udpPacket = getByteArrayFromString("6000"
+            + "000000261140fc000000000000000000000000000022fc000000000000000000"
+            + "00000000001163f416330026c5264401f26458666330303a3a31312216332474"
+            + "65737428298cb1f76b6bdf62");
+
+    public IPv6PacketTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * Inserts a 8 byte extension header of type headerType directly behind
+     * the fixed header of packet.
+     */
+    private byte[] insertExtensionHeader(byte[] packet, int headerType, int segmentsLeft) throws Exception {
+        byte[] res = new byte[packet.length + 8];
+        System.arraycopy(packet, 0, res, 0, 40);
+        System.arraycopy(packet, 40, res, 48, packet.length - 40);
+        res[40] = packet[6];
+        res[40 + 3] = (byte) segmentsLeft;
+        res[6] = (byte) headerType;
+        insertBytes(res, getBytesFromInt(packet.length - 40 + 8), 4, 2);
+        return res;
+    }
+
+    /**
+     * Test of findTransportHeader method, of class IPv6Packet.
+     */
+    public void testFindTransportHeader() throws Exception {
+        int header = IPv6Packet.findTransportHeader(udpPacket, 0, udpPacket.length);
+        assertEquals(IPv6Packet.UDP, IPv6Packet.getProtocol(header));
+        assertEquals(40, IPv6Packet.getOffset(header));
+
+        byte[] ext = insertExtensionHeader(udpPacket, IPv6Packet.DESTINATION_OPTIONS, 0);
+        ext = insertExtensionHeader(ext, IPv6Packet.HOP_BY_HOP_OPTIONS, 0);
+        header = IPv6Packet.findTransportHeader(ext, 0, ext.length);
+        assertEquals(IPv6Packet.UDP, IPv6Packet.getProtocol(header));
+        assertEquals(56, IPv6Packet.getOffset(header));
+
+        //routing header with segments left must not be skipped
+        ext = insertExtensionHeader(udpPacket, IPv6Packet.ROUTING, 1);
+        header = IPv6Packet.findTransportHeader(ext, 0, ext.length);
+        assertEquals(IPv6Packet.ROUTING, IPv6Packet.getProtocol(header));
+
+        //fragments are never skipped
+        ext = insertExtensionHeader(udpPacket, IPv6Packet.FRAGMENT, 0);
+        header = IPv6Packet.findTransportHeader(ext, 0, ext.length);
+        assertEquals(IPv6Packet.FRAGMENT, IPv6Packet.getProtocol(header));
+
+        //truncated chain and truncated UDP header
+        ext = insertExtensionHeader(udpPacket, IPv6Packet.DESTINATION_OPTIONS, 0);
+        assertEquals(-1, IPv6Packet.findTransportHeader(ext, 0, 44));
+        assertEquals(-1, IPv6Packet.findTransportHeader(ext, 0, 52));
+    }
+
+    /**
+     * Test of port rewriting and checksum calculation behind extension headers.
+     */
+    public void testEncodeWithExtensionHeader() throws Exception {
+        byte[] ext = insertExtensionHeader(udpPacket, IPv6Packet.DESTINATION_OPTIONS, 0);
+        IPv6Packet plain = new IPv6Packet(udpPacket);
+        IPv6Packet instance = new IPv6Packet(ext);
+        assertTrue(instance.isUDP());
+        assertEquals(8, instance.getTransportOffset());
+        assertEquals(IPv6Packet.DESTINATION_OPTIONS, instance.getNextHeader());
+        assertEquals(plain.getSourcePort(), instance.getSourcePort());
+        assertEquals(plain.getDestPort(), instance.getDestPort());
+
+        plain.setSourceIP(InetAddress.getByName("fc00::33"));
+        plain.setSourcePort(1234);
+        instance.setSourceIP(InetAddress.getByName("fc00::33"));
+        instance.setSourcePort(1234);
+        byte[] expected = insertExtensionHeader(plain.encode(), IPv6Packet.DESTINATION_OPTIONS, 0);
+        assertTrue(Arrays.equals(expected, instance.encode()));
+    }
+}